@@ -40,6 +40,16 @@ public interface ActivityConstants {
    * The property name for the source of the activity.
    */
   public static final String PARAM_SOURCE = "sakai:activity-source";
+  /**
+   * The property name that records how an activity reaches the feeds of the actor's
+   * contacts. When set to {@link #FANOUT_READ} the activity has not been copied into
+   * their feeds and is merged into them when a feed is read.
+   */
+  public static final String PARAM_FANOUT = "sakai:activity-fanout";
+  /**
+   * Value of {@link #PARAM_FANOUT} for activities that are delivered at read time.
+   */
+  public static final String FANOUT_READ = "read";
 
 
   // Node names
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps the write amplification of activity delivery and the latency of feed reads, and
+ * publishes them over JMX.
+ */
+@Component(immediate = true)
+@Service(value = ActivityFeedStats.class)
+public class ActivityFeedStats implements ActivityFeedStatsMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ActivityFeedStats.class);
+
+  private final AtomicLong activities = new AtomicLong();
+  private final AtomicLong copies = new AtomicLong();
+  private final AtomicLong fanoutOnRead = new AtomicLong();
+  private final AtomicLong reads = new AtomicLong();
+  private final AtomicLong readTime = new AtomicLong();
+  private final AtomicLong maxReadTime = new AtomicLong();
+
+  private ObjectName statsName;
+
+  @Activate
+  protected void activate() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("org.sakaiproject.nakamura.activity:type=ActivityFeed");
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(this, name);
+      statsName = name;
+    } catch (Exception e) {
+      LOGGER.debug("Unable to register activity feed statistics ", e);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (statsName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsName);
+      } catch (Exception e) {
+        LOGGER.debug("Unable to unregister activity feed statistics ", e);
+      }
+      statsName = null;
+    }
+  }
+
+  /**
+   * @param feedCopies
+   *          the number of feeds the activity was copied into.
+   * @param onRead
+   *          true if the activity is merged into the contacts' feeds when they are read.
+   */
+  public void routed(int feedCopies, boolean onRead) {
+    activities.incrementAndGet();
+    copies.addAndGet(feedCopies);
+    if (onRead) {
+      fanoutOnRead.incrementAndGet();
+    }
+  }
+
+  /**
+   * @param nanos
+   *          the time taken to query a feed.
+   */
+  public void feedRead(long nanos) {
+    reads.incrementAndGet();
+    readTime.addAndGet(nanos);
+    long current = maxReadTime.get();
+    while (nanos > current && !maxReadTime.compareAndSet(current, nanos)) {
+      current = maxReadTime.get();
+    }
+  }
+
+  public long getActivityCount() {
+    return activities.get();
+  }
+
+  public long getFeedCopyCount() {
+    return copies.get();
+  }
+
+  public double getWriteAmplification() {
+    long count = activities.get();
+    return (count == 0) ? 0 : (double) copies.get() / count;
+  }
+
+  public long getFanoutOnReadCount() {
+    return fanoutOnRead.get();
+  }
+
+  public long getFeedReadCount() {
+    return reads.get();
+  }
+
+  public double getAverageFeedReadTime() {
+    long count = reads.get();
+    return (count == 0) ? 0 : toMillis(readTime.get()) / count;
+  }
+
+  public double getMaxFeedReadTime() {
+    return toMillis(maxReadTime.get());
+  }
+
+  public void reset() {
+    activities.set(0);
+    copies.set(0);
+    fanoutOnRead.set(0);
+    reads.set(0);
+    readTime.set(0);
+    maxReadTime.set(0);
+  }
+
+  private static double toMillis(long nanos) {
+    return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
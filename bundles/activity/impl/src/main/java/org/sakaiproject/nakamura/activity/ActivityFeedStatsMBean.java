@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+/**
+ * Statistics of the activity feeds. Times are in milliseconds.
+ */
+public interface ActivityFeedStatsMBean {
+
+  /**
+   * @return the number of activities that were routed.
+   */
+  long getActivityCount();
+
+  /**
+   * @return the number of copies written into feeds.
+   */
+  long getFeedCopyCount();
+
+  /**
+   * @return the average number of feed copies written per activity.
+   */
+  double getWriteAmplification();
+
+  /**
+   * @return the number of activities left to be merged into the contacts' feeds when they
+   *         are read.
+   */
+  long getFanoutOnReadCount();
+
+  /**
+   * @return the number of feed reads.
+   */
+  long getFeedReadCount();
+
+  double getAverageFeedReadTime();
+
+  double getMaxFeedReadTime();
+
+  void reset();
+}
@@ -63,6 +63,8 @@ public class LiteActivityListener implements MessageListener {
   protected Repository sparseRepository;
   @Reference
   protected ActivityRouterManager activityRouterManager;
+  @Reference
+  protected ActivityFeedStats activityFeedStats;
 
   public static final Logger LOG = LoggerFactory
       .getLogger(LiteActivityListener.class);
@@ -132,6 +134,9 @@ public class LiteActivityListener implements MessageListener {
         for (ActivityRoute route : routes) {
           deliverActivityToFeed(session, activity, route.getDestination());
         }
+        activityFeedStats.routed(routes.size(),
+            ActivityConstants.FANOUT_READ.equals(activity
+                .getProperty(ActivityConstants.PARAM_FANOUT)));
       } finally {
         try { 
           session.logout(); 
@@ -170,7 +175,8 @@ public class LiteActivityListener implements MessageListener {
         .newPath(activityFeedPath, StorageClientUtils.getObjectName(activity.getPath()));
     Builder<String, Object> contentProperties = ImmutableMap.builder();
     for ( Entry<String, Object> e : activity.getProperties().entrySet()) {
-      if (!JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY.equals(e.getKey())) {
+      if (!JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY.equals(e.getKey())
+          && !ActivityConstants.PARAM_FANOUT.equals(e.getKey())) {
         contentProperties.put(e.getKey(), e.getValue());
       }
     }
@@ -17,9 +17,13 @@
  */
 package org.sakaiproject.nakamura.activity.routing;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.sakaiproject.nakamura.api.activity.AbstractActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
@@ -40,6 +44,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -52,17 +57,34 @@ import javax.jcr.security.Privilege;
  * This router will deliver an activity to the feed of all the contacts of the actor. It
  * will only deliver if the contact has READ access on the node where the activity was
  * performed on.
+ * <p>
+ * Copying into every feed does not scale with the number of contacts, so for actors with
+ * more contacts than {@link #PROP_FANOUT_MAX} the activity is only marked with
+ * {@link ActivityConstants#PARAM_FANOUT} and is merged into the contacts' feeds when they
+ * are read. The principals that can read the target are indexed with the activity and the
+ * feed only includes it for those principals, as this router would have.
  */
-@Component(immediate = true, enabled = true)
+@Component(immediate = true, enabled = true, metatype = true)
 @Service(value = ActivityRouter.class)
 public class ContactsActivityRouter implements ActivityRouter {
 
+  @Property(intValue = 100)
+  public static final String PROP_FANOUT_MAX = "sakai.activity.contacts.fanout.max";
+
   @Reference
   protected ConnectionManager connectionManager;
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(ContactsActivityRouter.class);
 
+  private int fanoutMax = 100;
+
+  @Activate
+  @Modified
+  protected void modified(Map<String, Object> properties) {
+    fanoutMax = PropertiesUtil.toInteger(properties.get(PROP_FANOUT_MAX), 100);
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -133,7 +155,11 @@ public class ContactsActivityRouter implements ActivityRouter {
           ConnectionState.ACCEPTED);
       org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager accessControlManager = adminSession.getAccessControlManager();
       AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
-      if (connections != null && connections.size() > 0) {
+      if (connections != null && connections.size() > fanoutMax) {
+        // too many feeds to copy into, let the feeds pick it up when they are read
+        activity.setProperty(ActivityConstants.PARAM_FANOUT, ActivityConstants.FANOUT_READ);
+        adminSession.getContentManager().update(activity);
+      } else if (connections != null && connections.size() > 0) {
 
         String activityPath = activity.getPath();
         for (String connection : connections) {
@@ -158,6 +184,9 @@ public class ContactsActivityRouter implements ActivityRouter {
     } catch (StorageClientException e) {
       LOGGER.error(
           "Exception when trying to deliver an activity to contacts feed.", e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error(
+          "Exception when trying to deliver an activity to contacts feed.", e);
     }
   }
 
@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.activity.search;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -33,7 +34,10 @@ import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.solr.IndexingHandler;
@@ -42,6 +46,7 @@ import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -57,6 +62,11 @@ public class ActivityIndexingHandler implements IndexingHandler {
   // list of properties to be indexed
   private static final Set<String> WHITELISTED_PROPS = ImmutableSet.of("_created");
 
+  // properties of the original activity that let a feed be assembled at read time
+  private static final Map<String, String> SOURCE_PROPS = ImmutableMap.of(
+      ActivityConstants.PARAM_ACTOR_ID, "actor", ActivityConstants.PARAM_FANOUT,
+      "fanout");
+
   private static final Logger logger = LoggerFactory
       .getLogger(ActivityIndexingHandler.class);
 
@@ -106,6 +116,21 @@ public class ActivityIndexingHandler implements IndexingHandler {
           for (String prop : WHITELISTED_PROPS) {
             doc.addField(prop, content.getProperty(prop));
           }
+          if (ActivityConstants.ACTIVITY_SOURCE_ITEM_RESOURCE_TYPE.equals(content
+              .getProperty("sling:resourceType"))) {
+            for (Map.Entry<String, String> prop : SOURCE_PROPS.entrySet()) {
+              Object value = content.getProperty(prop.getKey());
+              if (value != null) {
+                doc.addField(prop.getValue(), value);
+              }
+            }
+            if (ActivityConstants.FANOUT_READ.equals(content
+                .getProperty(ActivityConstants.PARAM_FANOUT))) {
+              for (String reader : getTargetReaders(session, content)) {
+                doc.addField("targetreaders", reader);
+              }
+            }
+          }
           doc.addField(_DOC_SOURCE_OBJECT, content);
           documents.add(doc);
         }
@@ -119,6 +144,28 @@ public class ActivityIndexingHandler implements IndexingHandler {
     return documents;
   }
 
+  /**
+   * Activities delivered when the feed is read are stored below the target, where
+   * everyone can read them, so the principals that can read the target itself are indexed
+   * for the feed query to filter on.
+   *
+   * @return the principals granted, and not denied, read on the target of the activity.
+   */
+  private Set<String> getTargetReaders(Session session, Content activity)
+      throws StorageClientException {
+    Set<String> readers = Sets.newHashSet();
+    String source = (String) activity.getProperty(ActivityConstants.PARAM_SOURCE);
+    if (source != null) {
+      AccessControlManager accessControlManager = session.getAccessControlManager();
+      int read = Permissions.CAN_READ.getPermission();
+      Collections.addAll(readers,
+          accessControlManager.findPrincipals(Security.ZONE_CONTENT, source, read, true));
+      readers.removeAll(Arrays.asList(accessControlManager.findPrincipals(
+          Security.ZONE_CONTENT, source, read, false)));
+    }
+    return readers;
+  }
+
   /**
    * {@inheritDoc}
    *
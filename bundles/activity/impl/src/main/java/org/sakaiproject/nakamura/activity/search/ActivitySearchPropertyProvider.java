@@ -17,16 +17,31 @@
  */
 package org.sakaiproject.nakamura.activity.search;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.solr.client.solrj.util.ClientUtils;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchPropertyProvider;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 @Component(label = "ActivitySearchPropertyProvider")
 @Properties({
@@ -37,6 +52,15 @@ import java.util.Map;
 @Service
 public class ActivitySearchPropertyProvider implements SolrSearchPropertyProvider {
 
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ActivitySearchPropertyProvider.class);
+
+  /**
+   * Keeps each list of actors well below the maximum number of clauses in a Solr boolean
+   * query.
+   */
+  private static final int MAX_ACTORS_PER_CLAUSE = 500;
+
   /**
    * {@inheritDoc}
    *
@@ -53,5 +77,65 @@ public class ActivitySearchPropertyProvider implements SolrSearchPropertyProvide
     // Encode the path
     path = ClientUtils.escapeQueryChars(path);
     propertiesMap.put("_myFeed", path);
+    propertiesMap.put("_followedActivities", getFollowedActivities(request, user));
+  }
+
+  /**
+   * Activities of actors with many contacts are not copied into the contacts' feeds, so
+   * they are merged in here from the original activities of the user's contacts. Those
+   * activities can be read by everyone, so they are restricted to the ones whose target
+   * the user's principals can read.
+   *
+   * @return a clause to OR with the feed query, or an empty string.
+   */
+  private String getFollowedActivities(SlingHttpServletRequest request, String user) {
+    if (UserConstants.ANON_USERID.equals(user)) {
+      return "";
+    }
+    String[] contacts = null;
+    Set<String> principals = new TreeSet<String>();
+    try {
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+          .adaptTo(javax.jcr.Session.class));
+      AuthorizableManager authorizableManager = session.getAuthorizableManager();
+      Authorizable group = authorizableManager.findAuthorizable("g-contacts-" + user);
+      if (group instanceof Group) {
+        contacts = ((Group) group).getMembers();
+      }
+      principals.add(ClientUtils.escapeQueryChars(user));
+      principals.add(Group.EVERYONE);
+      Authorizable reader = authorizableManager.findAuthorizable(user);
+      if (reader != null) {
+        for (Iterator<Group> gi = reader.memberOf(authorizableManager); gi.hasNext();) {
+          principals.add(ClientUtils.escapeQueryChars(gi.next().getId()));
+        }
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to get the contacts of {}: {}", user, e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.debug("Unable to get the contacts of {}: {}", user, e.getMessage());
+    }
+    if (contacts == null || contacts.length == 0) {
+      return "";
+    }
+
+    StringBuilder actors = new StringBuilder();
+    for (int i = 0; i < contacts.length; i += MAX_ACTORS_PER_CLAUSE) {
+      if (actors.length() > 0) {
+        actors.append(" OR ");
+      }
+      actors.append("actor:(");
+      for (int j = i; j < Math.min(i + MAX_ACTORS_PER_CLAUSE, contacts.length); j++) {
+        if (j > i) {
+          actors.append(" OR ");
+        }
+        actors.append(ClientUtils.escapeQueryChars(contacts[j]));
+      }
+      actors.append(")");
+    }
+    return " OR (resourceType:"
+        + ClientUtils.escapeQueryChars(ActivityConstants.ACTIVITY_SOURCE_ITEM_RESOURCE_TYPE)
+        + " AND fanout:" + ActivityConstants.FANOUT_READ + " AND targetreaders:("
+        + StringUtils.join(principals, " OR ") + ") AND (" + actors + "))";
   }
 }
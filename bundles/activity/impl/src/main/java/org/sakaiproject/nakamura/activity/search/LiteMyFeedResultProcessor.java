@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.sakaiproject.nakamura.activity.ActivityFeedStats;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.search.SearchUtil;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the items of a user's activity feed. The feed holds the activities copied into
+ * it and the original activities of contacts that are delivered when the feed is read,
+ * which are written as feed items.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = SolrSearchResultProcessor.class)
+@Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = SolrSearchConstants.REG_PROCESSOR_NAMES, value = "MyFeed") })
+public class LiteMyFeedResultProcessor implements SolrSearchResultProcessor {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(LiteMyFeedResultProcessor.class);
+
+  @Reference
+  protected SolrSearchServiceFactory searchServiceFactory;
+
+  @Reference
+  protected ActivityFeedStats activityFeedStats;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor#getSearchResultSet(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.sakaiproject.nakamura.api.search.solr.Query)
+   */
+  public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
+      Query query) throws SolrSearchException {
+    long start = System.nanoTime();
+    try {
+      return searchServiceFactory.getSearchResultSet(request, query);
+    } finally {
+      activityFeedStats.feedRead(System.nanoTime() - start);
+    }
+  }
+
+  public void writeResult(SlingHttpServletRequest request, JSONWriter write, Result result)
+      throws JSONException {
+    String contentPath = result.getPath();
+    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+        .adaptTo(javax.jcr.Session.class));
+    try {
+      Content contentResult = session.getContentManager().get(contentPath);
+      if (contentResult != null) {
+        if (ActivityConstants.ACTIVITY_SOURCE_ITEM_RESOURCE_TYPE.equals(contentResult
+            .getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY))) {
+          if (!canReadTarget(session, contentResult)) {
+            // access to the target was revoked after the activity was indexed
+            LOGGER.debug("Skipping activity on an unreadable target: {}", contentPath);
+            return;
+          }
+          // not saved, only so it is written the same as a copy in the feed
+          contentResult.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+              ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE);
+        }
+        int traversalDepth = SearchUtil.getTraversalDepth(request, -1);
+        ExtendedJSONWriter.writeContentTreeToWriter(write, contentResult, traversalDepth);
+      } else {
+        LOGGER.warn("Failed to write result to JSON output: {}", contentPath);
+      }
+    } catch (Exception e) {
+      throw new JSONException(e);
+    }
+  }
+
+  private boolean canReadTarget(Session session, Content activity)
+      throws StorageClientException, AccessDeniedException {
+    String source = (String) activity.getProperty(ActivityConstants.PARAM_SOURCE);
+    if (source == null) {
+      return false;
+    }
+    Authorizable reader = session.getAuthorizableManager().findAuthorizable(
+        session.getUserId());
+    return reader != null
+        && session.getAccessControlManager().can(reader, Security.ZONE_CONTENT, source,
+            Permissions.CAN_READ);
+  }
+}
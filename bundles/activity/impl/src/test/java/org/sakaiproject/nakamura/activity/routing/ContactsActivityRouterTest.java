@@ -17,15 +17,31 @@
  */
 package org.sakaiproject.nakamura.activity.routing;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
 import org.easymock.EasyMock;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityRoute;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.RepositoryException;
 
@@ -55,4 +71,63 @@ public class ContactsActivityRouterTest extends AbstractActivityRouterTest {
     verify();
   }
 
+  @Test
+  public void testSmallAudienceIsCopied() throws Exception {
+    Content content = new Content("/p/content/activity/a1", ImmutableMap.<String, Object> of(
+        ActivityConstants.PARAM_ACTOR_ID, user));
+    Session adminSession = mockAdminSession();
+    Mockito.when(adminSession.getAccessControlManager().can((Authorizable) Mockito.any(),
+        Mockito.eq(Security.ZONE_CONTENT), Mockito.eq(content.getPath()),
+        Mockito.eq(Permissions.CAN_READ))).thenReturn(true);
+
+    ContactsActivityRouter router = newRouter(2, adminSession, "bob");
+    List<ActivityRoute> liteRoutes = new ArrayList<ActivityRoute>();
+    router.route(content, liteRoutes, adminSession);
+
+    Assert.assertEquals(1, liteRoutes.size());
+    Assert.assertFalse(content.hasProperty(ActivityConstants.PARAM_FANOUT));
+    Mockito.verify(adminSession.getContentManager(), Mockito.never()).update(content);
+  }
+
+  @Test
+  public void testLargeAudienceIsFannedOutOnRead() throws Exception {
+    Content content = new Content("/p/content/activity/a1", ImmutableMap.<String, Object> of(
+        ActivityConstants.PARAM_ACTOR_ID, user));
+    Session adminSession = mockAdminSession();
+
+    ContactsActivityRouter router = newRouter(2, adminSession, "bob", "carol", "dave");
+    List<ActivityRoute> liteRoutes = new ArrayList<ActivityRoute>();
+    router.route(content, liteRoutes, adminSession);
+
+    Assert.assertEquals(0, liteRoutes.size());
+    Assert.assertEquals(ActivityConstants.FANOUT_READ,
+        content.getProperty(ActivityConstants.PARAM_FANOUT));
+    Mockito.verify(adminSession.getContentManager()).update(content);
+    Mockito.verifyZeroInteractions(adminSession.getAccessControlManager());
+  }
+
+  private ContactsActivityRouter newRouter(int fanoutMax, Session adminSession,
+      String... contacts) throws Exception {
+    ConnectionManager connectionManager = Mockito.mock(ConnectionManager.class);
+    Mockito.when(connectionManager.getConnectedUsers(adminSession, user,
+        ConnectionState.ACCEPTED)).thenReturn(Lists.newArrayList(contacts));
+    ContactsActivityRouter router = new ContactsActivityRouter();
+    router.connectionManager = connectionManager;
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(ContactsActivityRouter.PROP_FANOUT_MAX, fanoutMax);
+    router.modified(properties);
+    return router;
+  }
+
+  private Session mockAdminSession() throws Exception {
+    Session adminSession = Mockito.mock(Session.class);
+    ContentManager contentManager = Mockito.mock(ContentManager.class);
+    AccessControlManager accessControlManager = Mockito.mock(AccessControlManager.class);
+    AuthorizableManager authorizableManager = Mockito.mock(AuthorizableManager.class);
+    Mockito.when(adminSession.getContentManager()).thenReturn(contentManager);
+    Mockito.when(adminSession.getAccessControlManager()).thenReturn(accessControlManager);
+    Mockito.when(adminSession.getAuthorizableManager()).thenReturn(authorizableManager);
+    return adminSession;
+  }
+
 }
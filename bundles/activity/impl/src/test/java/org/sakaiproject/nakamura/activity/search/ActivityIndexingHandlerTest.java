@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.RepositorySession;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ *
+ */
+public class ActivityIndexingHandlerTest {
+
+  @Test
+  public void testFanoutActivityIndexesReadersOfPrivateTarget() throws Exception {
+    Repository repository = new BaseMemoryRepository().getRepository();
+    Session adminSession = repository.loginAdministrative();
+    adminSession.getAuthorizableManager().createUser("alice", "alice", "alice", null);
+    adminSession.getAuthorizableManager().createUser("bob", "bob", "bob", null);
+    adminSession.getContentManager().update(new Content("/p/private", null));
+    adminSession.getContentManager().update(new Content("/p/private/activity/a1",
+        ImmutableMap.of("sling:resourceType",
+            (Object) ActivityConstants.ACTIVITY_SOURCE_ITEM_RESOURCE_TYPE,
+            ActivityConstants.PARAM_SOURCE, "/p/private",
+            ActivityConstants.PARAM_ACTOR_ID, "alice",
+            ActivityConstants.PARAM_FANOUT, ActivityConstants.FANOUT_READ)));
+    List<AclModification> acl = Lists.newArrayList();
+    AclModification.addAcl(true, Permissions.CAN_READ, "alice", acl);
+    AclModification.addAcl(false, Permissions.CAN_READ, Group.EVERYONE, acl);
+    AclModification.addAcl(false, Permissions.CAN_READ, "bob", acl);
+    adminSession.getAccessControlManager().setAcl(Security.ZONE_CONTENT, "/p/private",
+        acl.toArray(new AclModification[acl.size()]));
+
+    RepositorySession repositorySession = mock(RepositorySession.class);
+    when(repositorySession.adaptTo(Session.class)).thenReturn(adminSession);
+    Dictionary<String, Object> props = new Hashtable<String, Object>();
+    props.put(IndexingHandler.FIELD_PATH, "/p/private/activity/a1");
+    Event event = new Event("org/sakaiproject/nakamura/lite/content/UPDATED", props);
+
+    Collection<SolrInputDocument> docs = new ActivityIndexingHandler().getDocuments(
+        repositorySession, event);
+
+    Assert.assertEquals(1, docs.size());
+    SolrInputDocument doc = docs.iterator().next();
+    Collection<Object> readers = doc.getFieldValues("targetreaders");
+    Assert.assertNotNull(readers);
+    Assert.assertTrue(readers.contains("alice"));
+    Assert.assertFalse(readers.contains("bob"));
+    Assert.assertFalse(readers.contains(Group.EVERYONE));
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ * Activities fanned out on read are stored where everyone can read them, so the feed must
+ * not write the ones whose target the reader cannot see.
+ */
+public class LiteMyFeedResultProcessorTest {
+
+  private static final String TARGET_PATH = "/p/private";
+  private static final String ACTIVITY_PATH = TARGET_PATH + "/activity/a1";
+
+  private LiteMyFeedResultProcessor processor;
+  private Repository repository;
+  private ContentManager contentManager;
+  private Result result;
+
+  @Before
+  public void setup() throws Exception {
+    processor = new LiteMyFeedResultProcessor();
+    repository = new BaseMemoryRepository().getRepository();
+    Session adminSession = repository.loginAdministrative();
+    adminSession.getAuthorizableManager().createUser("alice", "alice", "alice", null);
+    adminSession.getAuthorizableManager().createUser("bob", "bob", "bob", null);
+    contentManager = adminSession.getContentManager();
+
+    contentManager.update(new Content(TARGET_PATH, null));
+    contentManager.update(new Content(ACTIVITY_PATH, ImmutableMap.of(
+        "sling:resourceType", (Object) ActivityConstants.ACTIVITY_SOURCE_ITEM_RESOURCE_TYPE,
+        ActivityConstants.PARAM_SOURCE, TARGET_PATH,
+        ActivityConstants.PARAM_ACTOR_ID, "alice",
+        ActivityConstants.PARAM_FANOUT, ActivityConstants.FANOUT_READ)));
+    // the activity store is readable by everyone, as ActivityServiceImpl sets it up
+    List<AclModification> storeAcl = Lists.newArrayList();
+    AclModification.addAcl(true, Permissions.CAN_READ, Group.EVERYONE, storeAcl);
+    adminSession.getAccessControlManager().setAcl(Security.ZONE_CONTENT,
+        TARGET_PATH + "/activity", storeAcl.toArray(new AclModification[storeAcl.size()]));
+
+    result = mock(Result.class);
+    when(result.getPath()).thenReturn(ACTIVITY_PATH);
+  }
+
+  @Test
+  public void testPrivateTargetIsNotWrittenForNonReaderContact() throws Exception {
+    List<AclModification> targetAcl = Lists.newArrayList();
+    AclModification.addAcl(false, Permissions.CAN_READ, Group.EVERYONE, targetAcl);
+    AclModification.addAcl(false, Permissions.CAN_READ, "bob", targetAcl);
+    repository.loginAdministrative().getAccessControlManager().setAcl(Security.ZONE_CONTENT,
+        TARGET_PATH, targetAcl.toArray(new AclModification[targetAcl.size()]));
+
+    Assert.assertEquals("[]", writeAs("bob"));
+  }
+
+  @Test
+  public void testReadableTargetIsWrittenAsFeedItem() throws Exception {
+    String json = writeAs("bob");
+    Assert.assertTrue(json, json.contains("\"alice\""));
+    Assert.assertTrue(json, json.contains(ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE + "\""));
+  }
+
+  private String writeAs(String userId) throws Exception {
+    javax.jcr.Session jcrSession = mock(javax.jcr.Session.class, Mockito.withSettings()
+        .extraInterfaces(SessionAdaptable.class));
+    when(((SessionAdaptable) jcrSession).getSession()).thenReturn(
+        repository.loginAdministrative(userId));
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class, RETURNS_DEEP_STUBS);
+    when(request.getResourceResolver().adaptTo(javax.jcr.Session.class)).thenReturn(
+        jcrSession);
+
+    StringWriter stringWriter = new StringWriter();
+    JSONWriter jsonWriter = new ExtendedJSONWriter(stringWriter);
+    jsonWriter.array();
+    processor.writeResult(request, jsonWriter, result);
+    jsonWriter.endArray();
+    return stringWriter.toString();
+  }
+}
@@ -20,13 +20,16 @@ package org.sakaiproject.nakamura.batch;
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceNotFoundException;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.JSONString;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.util.RequestInfo;
 import org.sakaiproject.nakamura.util.RequestWrapper;
@@ -35,14 +38,23 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
@@ -55,6 +67,12 @@ public class BatchHelper {
 
   protected static final String REQUESTS_PARAMETER = "requests";
 
+  /**
+   * Header added to the headers of every result with the time taken by the sub-request in
+   * milliseconds.
+   */
+  protected static final String TIME_HEADER = "X-Nakamura-Batch-Time";
+
 
   /**
    * Takes the original request and starts the batching.
@@ -66,6 +84,29 @@ public class BatchHelper {
    */
   protected void batchRequest(SlingHttpServletRequest request,
       SlingHttpServletResponse response, String jsonRequest, boolean allowModify) throws IOException, ServletException {
+    batchRequest(request, response, jsonRequest, allowModify, null, null);
+  }
+
+  /**
+   * Takes the original request and starts the batching. If an executor and a request
+   * processor are given and all the requests are GETs, the requests are processed
+   * concurrently and each result is streamed to the client as soon as it completes,
+   * carrying the index of its request.
+   *
+   * @param request
+   * @param response
+   * @param jsonRequest
+   * @param allowModify
+   * @param executor the executor to run the requests on, or null to run them in order.
+   * @param requestProcessor the processor to run the requests with, or null to run them in
+   *          order.
+   * @throws IOException
+   * @throws ServletException
+   */
+  protected void batchRequest(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, String jsonRequest, boolean allowModify,
+      ExecutorService executor, SlingRequestProcessor requestProcessor)
+      throws IOException, ServletException {
     // Grab the JSON block out of it and convert it to RequestData objects we can use.
 
     List<RequestInfo> batchedRequests = new ArrayList<RequestInfo>();
@@ -94,6 +135,11 @@ public class BatchHelper {
       return;
     }
 
+    if (executor != null && requestProcessor != null && isAllGet(batchedRequests)) {
+      batchRequestParallel(request, response, batchedRequests, executor, requestProcessor);
+      return;
+    }
+
     // Loop over the requests and handle each one.
     try {
       StringWriter sw = new StringWriter();
@@ -149,7 +195,10 @@ public class BatchHelper {
           LOGGER.debug("Dispatching to request path='{}', no resource", requestPath);
           requestDispatcher = request.getRequestDispatcher(requestPath);
         }
+        long start = System.currentTimeMillis();
         requestDispatcher.forward(requestWrapper, responseWrapper);
+        responseWrapper.setHeader(TIME_HEADER,
+            String.valueOf(System.currentTimeMillis() - start));
       } catch (ResourceNotFoundException e) {
         responseWrapper.setStatus(HttpServletResponse.SC_NOT_FOUND);
       } catch (SlingException e) {
@@ -167,15 +216,32 @@ public class BatchHelper {
 
   private void writeResponse(JSONWriter write, ResponseWrapper responseWrapper,
       RequestInfo requestData) throws JSONException {
+    writeResponse(write, responseWrapper, requestData, -1, false);
+  }
+
+  /**
+   * @param index the index of the request in the batch, or -1 to leave it out.
+   * @param embedJson true to write JSON bodies as they are rather than as a string.
+   */
+  private void writeResponse(JSONWriter write, ResponseWrapper responseWrapper,
+      RequestInfo requestData, int index, boolean embedJson) throws JSONException {
     try {
       String body = responseWrapper.getDataAsString();
       write.object();
+      if (index >= 0) {
+        write.key("index");
+        write.value(index);
+      }
       write.key("url");
       write.value(requestData.getUrl());
       write.key("success");
       write.value(true);
       write.key("body");
-      write.value(body);
+      if (embedJson && isJson(responseWrapper, body)) {
+        write.value(new RawJson(body));
+      } else {
+        write.value(body);
+      }
       write.key("status");
       write.value(responseWrapper.getResponseStatus());
       write.key("headers");
@@ -190,13 +256,22 @@ public class BatchHelper {
       write.endObject();
       write.endObject();
     } catch (UnsupportedEncodingException e) {
-      writeFailedRequest(write, requestData);
+      writeFailedRequest(write, requestData, index);
     }
   }
 
   private void writeFailedRequest(JSONWriter write, RequestInfo requestData)
       throws JSONException {
+    writeFailedRequest(write, requestData, -1);
+  }
+
+  private void writeFailedRequest(JSONWriter write, RequestInfo requestData, int index)
+      throws JSONException {
     write.object();
+    if (index >= 0) {
+      write.key("index");
+      write.value(index);
+    }
     write.key("url");
     write.value(requestData.getUrl());
     write.key("success");
@@ -204,4 +279,212 @@ public class BatchHelper {
     write.endObject();
   }
 
+  private boolean isAllGet(List<RequestInfo> requests) {
+    for (RequestInfo r : requests) {
+      if (!"GET".equals(r.getMethod())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Only successful bodies declared as JSON that look like an object or an array are
+   * embedded as they are, anything else is written as a string.
+   */
+  private boolean isJson(ResponseWrapper responseWrapper, String body) {
+    int status = responseWrapper.getResponseStatus();
+    String contentType = responseWrapper.getContentType();
+    if (status < 200 || status >= 300 || contentType == null
+        || !contentType.startsWith("application/json")) {
+      return false;
+    }
+    String trimmed = body.trim();
+    return (trimmed.startsWith("{") && trimmed.endsWith("}"))
+        || (trimmed.startsWith("[") && trimmed.endsWith("]"));
+  }
+
+  /**
+   * Run the requests concurrently and write each result as soon as it is available. Each
+   * request is processed from scratch by the request processor with its own resource
+   * resolver, since the resolver and the dispatch state of the original request can't be
+   * shared between threads. Returns when all the requests have completed.
+   */
+  private void batchRequestParallel(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, List<RequestInfo> batchedRequests,
+      ExecutorService executor, SlingRequestProcessor requestProcessor) throws IOException {
+    CompletionService<SubResult> completionService = new ExecutorCompletionService<SubResult>(
+        executor);
+    for (int i = 0; i < batchedRequests.size(); i++) {
+      completionService.submit(new SubRequest(request, response, batchedRequests.get(i), i,
+          requestProcessor));
+    }
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    PrintWriter out = response.getWriter();
+    try {
+      JSONWriter write = new JSONWriter(out);
+      write.object();
+      write.key("results");
+      write.array();
+      for (int i = 0; i < batchedRequests.size(); i++) {
+        SubResult result = completionService.take().get();
+        if (result.responseWrapper == null) {
+          writeFailedRequest(write, result.requestInfo, result.index);
+        } else {
+          writeResponse(write, result.responseWrapper, result.requestInfo, result.index, true);
+        }
+        out.flush();
+      }
+      write.endArray();
+      write.endObject();
+      out.flush();
+    } catch (JSONException e) {
+      LOGGER.warn("Failed to create a JSON response");
+      throw new IOException("Failed to write JSON response");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for batched requests");
+    } catch (ExecutionException e) {
+      // sub requests catch their own failures
+      LOGGER.warn("Batched request failed ", e.getCause());
+      throw new IOException("Batched request failed");
+    }
+  }
+
+  /**
+   * A single request of a parallel batch.
+   */
+  private static final class SubRequest implements Callable<SubResult> {
+    private final SlingHttpServletRequest request;
+    private final SlingHttpServletResponse response;
+    private final RequestInfo requestInfo;
+    private final int index;
+    private final SlingRequestProcessor requestProcessor;
+
+    private SubRequest(SlingHttpServletRequest request, SlingHttpServletResponse response,
+        RequestInfo requestInfo, int index, SlingRequestProcessor requestProcessor) {
+      this.request = request;
+      this.response = response;
+      this.requestInfo = requestInfo;
+      this.index = index;
+      this.requestProcessor = requestProcessor;
+    }
+
+    public SubResult call() {
+      long start = System.currentTimeMillis();
+      ResourceResolver resourceResolver = null;
+      try {
+        resourceResolver = request.getResourceResolver().clone(null);
+        ResponseWrapper responseWrapper = new ResponseWrapper(response);
+        LOGGER.debug("Processing batched request path='{}'", requestInfo.getUrl());
+        requestProcessor.processRequest(new SubRequestWrapper(request, requestInfo),
+            responseWrapper, resourceResolver);
+        responseWrapper.setHeader(TIME_HEADER,
+            String.valueOf(System.currentTimeMillis() - start));
+        return new SubResult(requestInfo, index, responseWrapper);
+      } catch (LoginException e) {
+        LOGGER.warn("Unable to get a resource resolver for batched request {} ",
+            requestInfo.getUrl());
+      } catch (ServletException e) {
+        LOGGER.debug("Batched request {} failed {} ", requestInfo.getUrl(), e.getMessage());
+      } catch (IOException e) {
+        LOGGER.debug("Batched request {} failed {} ", requestInfo.getUrl(), e.getMessage());
+      } catch (RuntimeException e) {
+        LOGGER.warn("Batched request " + requestInfo.getUrl() + " failed ", e);
+      } finally {
+        if (resourceResolver != null) {
+          resourceResolver.close();
+        }
+      }
+      return new SubResult(requestInfo, index, null);
+    }
+  }
+
+  private static final class SubResult {
+    private final RequestInfo requestInfo;
+    private final int index;
+    /** null if the request failed */
+    private final ResponseWrapper responseWrapper;
+
+    private SubResult(RequestInfo requestInfo, int index, ResponseWrapper responseWrapper) {
+      this.requestInfo = requestInfo;
+      this.index = index;
+      this.responseWrapper = responseWrapper;
+    }
+  }
+
+  /**
+   * Keeps request attributes local to the sub-request so that concurrent sub-requests
+   * don't see or overwrite each other's attributes on the shared original request.
+   */
+  private static final class SubRequestWrapper extends RequestWrapper {
+    private final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+
+    private SubRequestWrapper(SlingHttpServletRequest request, RequestInfo requestInfo) {
+      super(request, requestInfo);
+    }
+
+    /**
+     * The request processor resolves the resource from the path info, which must not
+     * carry the query string of the url.
+     */
+    @Override
+    public String getPathInfo() {
+      return getPathTranslated();
+    }
+
+    @Override
+    public String getRequestURI() {
+      return getPathTranslated();
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      Object value = attributes.get(name);
+      return (value != null) ? value : super.getAttribute(name);
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Override
+    public Enumeration getAttributeNames() {
+      List<String> names = Collections.list(super.getAttributeNames());
+      for (String name : attributes.keySet()) {
+        if (!names.contains(name)) {
+          names.add(name);
+        }
+      }
+      return Collections.enumeration(names);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+      if (value == null) {
+        attributes.remove(name);
+      } else {
+        attributes.put(name, value);
+      }
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+      attributes.remove(name);
+    }
+  }
+
+  /**
+   * A body that is already JSON, written as it is.
+   */
+  private static final class RawJson implements JSONString {
+    private final String json;
+
+    private RawJson(String json) {
+      this.json = json;
+    }
+
+    public String toJSONString() {
+      return json;
+    }
+  }
 }
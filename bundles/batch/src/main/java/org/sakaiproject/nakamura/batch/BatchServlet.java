@@ -17,10 +17,18 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -29,6 +37,13 @@ import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -41,11 +56,19 @@ import javax.servlet.http.HttpServletResponse;
     methods = {
       @ServiceMethod(name = "POST",
         description = "Get multiple request responses into a single response. It can do GET, POST and DELETE everything is defined in the json block.",
-        parameters = @ServiceParameter(
-          name = "requests",
-          description = "A JSON string representing a request. <br />Example:" +
-            "<pre>[{  \"url\" : \"/foo/bar\",  \"method\" : \"POST\",  \"parameters\" : {    \"val\" : 123,    \"val@TypeHint\" : \"Long\"  }},{  \"url\" : \"/~admin/public/authprofile.json\",  \"method\" : \"GET\"}]</pre>"
-        ),
+        parameters = {
+          @ServiceParameter(
+            name = "requests",
+            description = "A JSON string representing a request. <br />Example:" +
+              "<pre>[{  \"url\" : \"/foo/bar\",  \"method\" : \"POST\",  \"parameters\" : {    \"val\" : 123,    \"val@TypeHint\" : \"Long\"  }},{  \"url\" : \"/~admin/public/authprofile.json\",  \"method\" : \"GET\"}]</pre>"
+          ),
+          @ServiceParameter(
+            name = "parallel",
+            description = "Optional, if true and all the requests are GETs they are run concurrently. " +
+              "Each result is streamed as soon as it completes with the \"index\" of its request, " +
+              "and JSON bodies are embedded as JSON rather than as a string."
+          )
+        },
         response = {
           @ServiceResponse(code = 200,
             description = {
@@ -63,9 +86,48 @@ public class BatchServlet extends SlingAllMethodsServlet {
   private static final long serialVersionUID = 419598445499567027L;
 
   protected static final String REQUESTS_PARAMETER = "requests";
-  
+
+  protected static final String PARALLEL_PARAMETER = "parallel";
+
+  @Property(intValue = 8, label = "Parallel threads",
+      description = "The number of threads running the requests of parallel batches.")
+  protected static final String PARALLEL_THREADS = "batch.parallel.threads";
+
+  @Property(intValue = 200, label = "Parallel queue size",
+      description = "The number of requests of parallel batches that may wait for a thread, "
+        + "beyond which requests run on the thread of their batch.")
+  protected static final String PARALLEL_QUEUE_SIZE = "batch.parallel.queue.size";
+
   private BatchHelper helper = new BatchHelper();
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private volatile SlingRequestProcessor slingRequestProcessor;
+
+  private ExecutorService parallelExecutor;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    int threads = PropertiesUtil.toInteger(props.get(PARALLEL_THREADS), 8);
+    int queueSize = PropertiesUtil.toInteger(props.get(PARALLEL_QUEUE_SIZE), 200);
+    final AtomicInteger count = new AtomicInteger();
+    parallelExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "batch-request-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (parallelExecutor != null) {
+      parallelExecutor.shutdown();
+      parallelExecutor = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -125,8 +187,13 @@ public class BatchServlet extends SlingAllMethodsServlet {
   protected void batchRequest(SlingHttpServletRequest request,
       SlingHttpServletResponse response, boolean allowModify) throws IOException, ServletException {
     // Grab the JSON block out of it and convert it to RequestData objects we can use.
-    String json = request.getParameter(REQUESTS_PARAMETER);    
-    helper.batchRequest(request, response, json, allowModify);
+    String json = request.getParameter(REQUESTS_PARAMETER);
+    if (PropertiesUtil.toBoolean(request.getParameter(PARALLEL_PARAMETER), false)) {
+      helper.batchRequest(request, response, json, allowModify, parallelExecutor,
+          slingRequestProcessor);
+    } else {
+      helper.batchRequest(request, response, json, allowModify);
+    }
   }
 
 
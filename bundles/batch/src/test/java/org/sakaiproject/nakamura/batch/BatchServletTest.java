@@ -17,6 +17,10 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -26,15 +30,24 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.util.Collections;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -49,11 +62,17 @@ public class BatchServletTest {
   @Before
   public void setUp() throws Exception {
     servlet = new BatchServlet();
+    servlet.activate(Collections.emptyMap());
     request = mock(SlingHttpServletRequest.class);
     response = mock(SlingHttpServletResponse.class);
 
   }
 
+  @After
+  public void tearDown() {
+    servlet.deactivate();
+  }
+
   @Test
   public void testInvalidRequest() throws ServletException, IOException {
     when(request.getParameter(REQUESTS_PARAMETER)).thenReturn("marlformedparameter");
@@ -80,4 +99,58 @@ public class BatchServletTest {
     servlet.doPost(request, response);
   }
 
+  @Test
+  public void testParallelRequest() throws Exception {
+    String json = "[{\"url\" : \"/a.json\",\"method\" : \"GET\"},"
+        + "{\"url\" : \"/b.txt\",\"method\" : \"GET\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+    when(request.getParameter(BatchServlet.PARALLEL_PARAMETER)).thenReturn("true");
+
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.clone(null)).thenReturn(mock(ResourceResolver.class));
+
+    SlingRequestProcessor processor = mock(SlingRequestProcessor.class);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        HttpServletRequest subRequest = (HttpServletRequest) invocation.getArguments()[0];
+        HttpServletResponse subResponse = (HttpServletResponse) invocation.getArguments()[1];
+        if (subRequest.getPathInfo().endsWith(".json")) {
+          subResponse.setContentType("application/json");
+          subResponse.getWriter().write("{\"a\":1}");
+        } else {
+          subResponse.setContentType("text/plain");
+          subResponse.getWriter().write("{b}");
+        }
+        return null;
+      }
+    }).when(processor).processRequest(any(HttpServletRequest.class),
+        any(HttpServletResponse.class), any(ResourceResolver.class));
+    Field field = BatchServlet.class.getDeclaredField("slingRequestProcessor");
+    field.setAccessible(true);
+    field.set(servlet, processor);
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter writer = new PrintWriter(baos);
+    when(response.getWriter()).thenReturn(writer);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    JSONArray results = new JSONObject(baos.toString("UTF-8")).getJSONArray("results");
+    assertEquals(2, results.length());
+    for (int i = 0; i < results.length(); i++) {
+      JSONObject result = results.getJSONObject(i);
+      assertTrue(result.getBoolean("success"));
+      assertTrue(result.getJSONObject("headers").has(BatchHelper.TIME_HEADER));
+      if (result.getInt("index") == 0) {
+        assertEquals("/a.json", result.getString("url"));
+        // JSON bodies are embedded, not escaped
+        assertEquals(1, result.getJSONObject("body").getInt("a"));
+      } else {
+        assertEquals("/b.txt", result.getString("url"));
+        assertEquals("{b}", result.getString("body"));
+      }
+    }
+  }
+
 }
@@ -29,13 +29,8 @@ import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.sling.commons.osgi.PropertiesUtil;
-import org.apache.sling.commons.scheduler.Job;
-import org.apache.sling.commons.scheduler.JobContext;
-import org.apache.sling.commons.scheduler.Scheduler;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.osgi.service.component.ComponentContext;
-import org.osgi.service.event.Event;
-import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -52,16 +47,15 @@ import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
 
 import javax.jcr.Node;
@@ -74,8 +68,14 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Queue;
 import javax.jms.Session;
+import javax.mail.Address;
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 @Component(immediate = true, metatype = true)
 public class LiteOutgoingEmailMessageListener implements MessageListener {
@@ -99,6 +99,12 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   private static final String MAX_RETRIES = "sakai.email.maxRetries";
   @Property(intValue = 30)
   private static final String RETRY_INTERVAL = "sakai.email.retryIntervalMinutes";
+  @Property(intValue = 60)
+  private static final String RETRY_INITIAL_DELAY = "sakai.email.retryInitialDelaySeconds";
+  @Property(intValue = 4)
+  private static final String SMTP_TRANSPORTS = "sakai.smtp.transports";
+  @Property(intValue = 50)
+  private static final String MAX_RECIPIENTS_PER_MESSAGE = "sakai.email.maxRecipientsPerMessage";
   @Property(value = "no-reply@example.com")
   private static final String REPLY_AS_ADDRESS = "sakai.email.replyAsAddress";
   @Property(value = "Sakai OAE")
@@ -109,10 +115,6 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   @Reference
   protected SlingRepository repository;
   @Reference
-  protected Scheduler scheduler;
-  @Reference
-  protected EventAdmin eventAdmin;
-  @Reference
   protected ConnectionFactoryService connFactoryService;
   @Reference
   protected TemplateService templateService;
@@ -132,6 +134,19 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
   public static final String RECIPIENTS = "recipients";
 
+  /**
+   * If present the email addresses a resumed message is still to be sent to, the
+   * recipients are only used to build the message.
+   */
+  protected static final String ADDRESSES = "addresses";
+
+  /**
+   * The attempt the addresses of a resumed message are at.
+   */
+  protected static final String ATTEMPT = "attempt";
+
+  protected static final String EXHAUSTED_RETRIES = "Unable to send message, exhausted SMTP retries.";
+
   private Connection connection = null;
   private String smtpServer;
   private Integer smtpPort;
@@ -143,6 +158,9 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   private Integer retryInterval;
   private String replyAsAddress;
   private String replyAsName;
+  private SmtpDeliveryPipeline deliveryPipeline;
+  private final OutgoingEmailStats stats = new OutgoingEmailStats();
+  private ObjectName statsName;
 
 
   public LiteOutgoingEmailMessageListener() {
@@ -157,8 +175,8 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     try {
       LOGGER.debug("Started handling email jms message.");
 
-      String nodePath = message.getStringProperty(NODE_PATH_PROPERTY);
       String contentPath = message.getStringProperty(CONTENT_PATH_PROPERTY);
+      String addresses = message.getStringProperty(ADDRESSES);
       Object objRcpt = message.getObjectProperty(RECIPIENTS);
       List<String> recipients = null;
 
@@ -180,6 +198,7 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
         try {
           ContentManager contentManager = sparseSession.getContentManager();
           Content messageContent = contentManager.get(contentPath);
+          boolean retrying = false;
 
           if (objRcpt != null) {
             // validate the message
@@ -203,47 +222,30 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
                     setOptions(email);
 
-                    email.send();
-                  } catch (EmailException e) {
-                    String exMessage = e.getMessage();
-                    Throwable cause = e.getCause();
-
-                    setError(messageContent, exMessage);
-                    LOGGER.warn("Unable to send email: " + exMessage);
-
-                    // Get the SMTP error code
-                    // There has to be a better way to do this
-                    boolean rescheduled = false;
-                    if (cause != null && cause.getMessage() != null) {
-                      String smtpError = cause.getMessage().trim();
-                      try {
-                        int errorCode = Integer.parseInt(smtpError.substring(0, 3));
-                        // All retry-able SMTP errors should have codes starting
-                        // with 4
-                        scheduleRetry(errorCode, messageContent);
-                        rescheduled = true;
-                      } catch (NumberFormatException nfe) {
-                        // smtpError didn't start with an error code, let's dig for
-                        // it
-                        String searchFor = "response:";
-                        int rindex = smtpError.indexOf(searchFor);
-                        if (rindex > -1
-                            && (rindex + searchFor.length()) < smtpError.length()) {
-                          int errorCode = Integer.parseInt(smtpError.substring(
-                              searchFor.length(), searchFor.length() + 3));
-                          scheduleRetry(errorCode, messageContent);
-                          rescheduled = true;
-                        }
-                      }
-                    }
-                    if (rescheduled) {
-                      LOGGER.info("Email {} rescheduled for redelivery. ", nodePath);
+                    email.buildMimeMessage();
+                    MimeMessage mimeMessage = email.getMimeMessage();
+                    SmtpDeliveryPipeline.Delivery delivery;
+                    if (addresses != null) {
+                      delivery = deliveryPipeline.deliver(mimeMessage,
+                          Arrays.asList(InternetAddress.parse(addresses)), contentPath,
+                          message.getIntProperty(ATTEMPT));
                     } else {
-                      LOGGER
-                          .error(
-                              "Unable to reschedule email for delivery: "
-                                  + e.getMessage(), e);
+                      delivery = deliveryPipeline.deliver(mimeMessage,
+                          getEnvelopeRecipients(mimeMessage), contentPath);
+                    }
+                    if (!delivery.isComplete()) {
+                      // the message stays in the outbox until the last retry is done
+                      retrying = true;
+                      delivery.whenComplete(new RetriesCompleted(contentPath, objRcpt));
+                    } else if (delivery.getFailed() > 0) {
+                      setError(messageContent, getError(delivery));
                     }
+                  } catch (EmailException e) {
+                    setError(messageContent, e.getMessage());
+                    LOGGER.warn("Unable to send email: " + e.getMessage());
+                  } catch (MessagingException e) {
+                    setError(messageContent, e.getMessage());
+                    LOGGER.warn("Unable to send email: " + e.getMessage());
                   }
                 } else {
                   setError(messageContent, "Message must have a to and from set");
@@ -251,10 +253,12 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
               } else {
                 setError(messageContent, "Not an outbox");
               }
-              if (!messageContent.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)) {
+              if (!retrying
+                  && !messageContent.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)) {
                 messageContent.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
                     MessageConstants.BOX_SENT);
               }
+              contentManager.update(messageContent);
             }
           } else {
             String retval = "null";
@@ -284,6 +288,94 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     }
   }
 
+  private String getError(SmtpDeliveryPipeline.Delivery delivery) {
+    return delivery.isExhausted() ? EXHAUSTED_RETRIES : delivery.getError();
+  }
+
+  /**
+   * Writes the outcome of the retries of a message back to its content, or hands the
+   * recipients still waiting for a retry back to the queue when delivery shuts down.
+   */
+  private class RetriesCompleted implements SmtpDeliveryPipeline.CompletionListener {
+    private final String contentPath;
+    private final Object recipients;
+
+    RetriesCompleted(String contentPath, Object recipients) {
+      this.contentPath = contentPath;
+      this.recipients = recipients;
+    }
+
+    public void completed(SmtpDeliveryPipeline.Delivery delivery) {
+      List<Address> abandoned = delivery.getAbandoned();
+      if (!abandoned.isEmpty() && resume(abandoned, delivery.getAbandonedAttempt())) {
+        return;
+      }
+      javax.jcr.Session adminSession = null;
+      try {
+        adminSession = repository.loginAdministrative(null);
+        ContentManager contentManager = StorageClientUtils.adaptToSession(adminSession)
+            .getContentManager();
+        Content messageContent = contentManager.get(contentPath);
+        if (messageContent == null) {
+          return;
+        }
+        if (delivery.getFailed() > 0 || !abandoned.isEmpty()) {
+          setError(messageContent, getError(delivery));
+        } else {
+          messageContent.setProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR, (String) null);
+          messageContent.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
+              MessageConstants.BOX_SENT);
+        }
+        contentManager.update(messageContent);
+      } catch (RepositoryException e) {
+        LOGGER.error(e.getMessage(), e);
+      } catch (StorageClientException e) {
+        LOGGER.error(e.getMessage(), e);
+      } catch (AccessDeniedException e) {
+        LOGGER.error(e.getMessage(), e);
+      } finally {
+        if (adminSession != null) {
+          adminSession.logout();
+        }
+      }
+    }
+
+    /**
+     * Put the message back on the queue for the addresses that were not sent to yet, the
+     * broker keeps it until delivery starts again.
+     */
+    private boolean resume(List<Address> addresses, int attempt) {
+      if (connection == null) {
+        return false;
+      }
+      Session session = null;
+      try {
+        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Message message = session.createMessage();
+        message.setStringProperty(CONTENT_PATH_PROPERTY, contentPath);
+        message.setStringProperty(RECIPIENTS, (recipients instanceof List<?>) ? StringUtils
+            .join((List<?>) recipients, ',') : String.valueOf(recipients));
+        message.setStringProperty(ADDRESSES, InternetAddress.toString(addresses
+            .toArray(new Address[addresses.size()])));
+        message.setIntProperty(ATTEMPT, attempt);
+        session.createProducer(session.createQueue(QUEUE_NAME)).send(message);
+        LOGGER.info("Email {} to {} recipients queued to resume delivery ", contentPath,
+            addresses.size());
+        return true;
+      } catch (JMSException e) {
+        LOGGER.error("Unable to queue email " + contentPath + " to resume delivery", e);
+        return false;
+      } finally {
+        if (session != null) {
+          try {
+            session.close();
+          } catch (JMSException e) {
+          }
+        }
+      }
+    }
+  }
+
   /**
    * Set transfer options on the email based on configuration of this service.
    *
@@ -476,46 +568,25 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     return address;
   }
 
-  private void scheduleRetry(int errorCode, Content contentNode) {
-    // All retry-able SMTP errors should have codes starting with 4
-    if ((errorCode / 100) == 4) {
-      long retryCount = 0;
-      if (contentNode.hasProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT)) {
-        retryCount = StorageClientUtils.toLong(contentNode
-            .getProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT));
-      }
-
-      if (retryCount < maxRetries) {
-        Job job = new Job() {
-
-          public void execute(JobContext jc) {
-            Map<String, Serializable> config = jc.getConfiguration();
-            Properties eventProps = new Properties();
-            eventProps.put(NODE_PATH_PROPERTY, config.get(NODE_PATH_PROPERTY));
-
-            Event retryEvent = new Event(QUEUE_NAME, (Map) eventProps);
-            eventAdmin.postEvent(retryEvent);
-
+  /**
+   * @return the To, Cc and Bcc addresses of the message, without the empty
+   *         undisclosed-recipients group.
+   */
+  private List<Address> getEnvelopeRecipients(MimeMessage message)
+      throws MessagingException {
+    List<Address> recipients = new ArrayList<Address>();
+    for (RecipientType type : new RecipientType[] { RecipientType.TO, RecipientType.CC,
+        RecipientType.BCC }) {
+      Address[] addresses = message.getRecipients(type);
+      if (addresses != null) {
+        for (Address address : addresses) {
+          if (!(address instanceof InternetAddress) || !((InternetAddress) address).isGroup()) {
+            recipients.add(address);
           }
-        };
-
-        HashMap<String, Serializable> jobConfig = new HashMap<String, Serializable>();
-        jobConfig.put(NODE_PATH_PROPERTY, contentNode.getPath());
-
-        int retryIntervalMillis = retryInterval * 60000;
-        Date nextTry = new Date(System.currentTimeMillis() + (retryIntervalMillis));
-
-        try {
-          scheduler.fireJobAt(null, job, jobConfig, nextTry);
-        } catch (Exception e) {
-          LOGGER.error(e.getMessage(), e);
         }
-      } else {
-        setError(contentNode, "Unable to send message, exhausted SMTP retries.");
       }
-    } else {
-      LOGGER.warn("Not scheduling a retry for error code not of the form 4xx.");
     }
+    return recipients;
   }
 
   @Activate
@@ -588,6 +659,21 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     authUser = PropertiesUtil.toString(props.get(SMTP_AUTH_USER), "");
     authPass = PropertiesUtil.toString(props.get(SMTP_AUTH_PASS), "");
 
+    int transports = PropertiesUtil.toInteger(props.get(SMTP_TRANSPORTS), 4);
+    int maxRecipientsPerMessage = PropertiesUtil.toInteger(
+        props.get(MAX_RECIPIENTS_PER_MESSAGE), 50);
+    long retryInitialDelay = PropertiesUtil.toLong(props.get(RETRY_INITIAL_DELAY), 60);
+    if (deliveryPipeline != null) {
+      deliveryPipeline.shutdown();
+    }
+    SmtpTransportPool transportPool = new SmtpTransportPool(smtpServer, smtpPort, useTls,
+        useSsl, authUser, authPass, transports, stats);
+    // retries back off exponentially from the initial delay up to the retry interval
+    deliveryPipeline = new SmtpDeliveryPipeline(transportPool, transports,
+        maxRecipientsPerMessage, maxRetries, retryInitialDelay * 1000L,
+        retryInterval * 60000L, stats);
+    registerStats();
+
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
       Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
@@ -608,12 +694,42 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
   @Deactivate
   protected void deactivate(ComponentContext ctx) {
+    // shut delivery down first, the batches waiting for a retry go back on the queue
+    if (deliveryPipeline != null) {
+      deliveryPipeline.shutdown();
+      deliveryPipeline = null;
+    }
     if (connection != null) {
       try {
         connection.close();
       } catch (JMSException e) {
       }
     }
+    if (statsName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsName);
+      } catch (Exception e) {
+        LOGGER.debug("Unable to unregister outgoing email statistics ", e);
+      }
+      statsName = null;
+    }
+  }
+
+  private void registerStats() {
+    if (statsName != null) {
+      return;
+    }
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("org.sakaiproject.nakamura.email:type=OutgoingEmail");
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(stats, name);
+      statsName = name;
+    } catch (Exception e) {
+      LOGGER.debug("Unable to register outgoing email statistics ", e);
+    }
   }
 
   private void setError(Content node, String error) {
@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts kept by {@link SmtpDeliveryPipeline} and {@link SmtpTransportPool}.
+ */
+public class OutgoingEmailStats implements OutgoingEmailStatsMBean {
+
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicInteger retryQueueSize = new AtomicInteger();
+  private final AtomicLong connections = new AtomicLong();
+  private final AtomicLong batchTime = new AtomicLong();
+  private final AtomicLong maxBatchTime = new AtomicLong();
+  private volatile long since = System.currentTimeMillis();
+
+  void message() {
+    messages.incrementAndGet();
+  }
+
+  void batch(long nanos) {
+    batches.incrementAndGet();
+    batchTime.addAndGet(nanos);
+    long current = maxBatchTime.get();
+    while (nanos > current && !maxBatchTime.compareAndSet(current, nanos)) {
+      current = maxBatchTime.get();
+    }
+  }
+
+  void delivered(int recipients) {
+    delivered.addAndGet(recipients);
+  }
+
+  void failed(int recipients) {
+    failed.addAndGet(recipients);
+  }
+
+  void retryQueued(int recipients) {
+    retries.addAndGet(recipients);
+    retryQueueSize.addAndGet(recipients);
+  }
+
+  void retryDequeued(int recipients) {
+    retryQueueSize.addAndGet(-recipients);
+  }
+
+  void connectionOpened() {
+    connections.incrementAndGet();
+  }
+
+  public long getMessageCount() {
+    return messages.get();
+  }
+
+  public long getBatchCount() {
+    return batches.get();
+  }
+
+  public long getDeliveredCount() {
+    return delivered.get();
+  }
+
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  public long getRetryCount() {
+    return retries.get();
+  }
+
+  public int getRetryQueueSize() {
+    return retryQueueSize.get();
+  }
+
+  public long getConnectionCount() {
+    return connections.get();
+  }
+
+  public double getAverageBatchTime() {
+    long count = batches.get();
+    return (count == 0) ? 0 : toMillis(batchTime.get()) / count;
+  }
+
+  public double getMaxBatchTime() {
+    return toMillis(maxBatchTime.get());
+  }
+
+  public double getDeliveredPerSecond() {
+    long elapsed = System.currentTimeMillis() - since;
+    return (elapsed <= 0) ? 0 : delivered.get() * 1000.0 / elapsed;
+  }
+
+  public void reset() {
+    messages.set(0);
+    batches.set(0);
+    delivered.set(0);
+    failed.set(0);
+    retries.set(0);
+    connections.set(0);
+    batchTime.set(0);
+    maxBatchTime.set(0);
+    since = System.currentTimeMillis();
+  }
+
+  private static double toMillis(long nanos) {
+    return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+/**
+ * Throughput and failures of outgoing email delivery. Times are in milliseconds.
+ */
+public interface OutgoingEmailStatsMBean {
+
+  /**
+   * @return the number of messages handed to the delivery pipeline.
+   */
+  long getMessageCount();
+
+  /**
+   * @return the number of SMTP transactions, each carrying a batch of recipients.
+   */
+  long getBatchCount();
+
+  /**
+   * @return the number of recipients the SMTP server accepted.
+   */
+  long getDeliveredCount();
+
+  /**
+   * @return the number of recipients that failed permanently, including the ones that ran
+   *         out of retries.
+   */
+  long getFailedCount();
+
+  /**
+   * @return the number of recipients queued for a retry.
+   */
+  long getRetryCount();
+
+  /**
+   * @return the number of recipients waiting in the retry queue.
+   */
+  int getRetryQueueSize();
+
+  /**
+   * @return the number of SMTP connections opened.
+   */
+  long getConnectionCount();
+
+  double getAverageBatchTime();
+
+  double getMaxBatchTime();
+
+  /**
+   * @return the delivered recipients per second since the statistics were reset.
+   */
+  double getDeliveredPerSecond();
+
+  void reset();
+}
@@ -0,0 +1,501 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends a message to its recipients in batches of at most
+ * <code>maxRecipientsPerMessage</code> RCPT TO commands per SMTP transaction, over the
+ * transports of a {@link SmtpTransportPool}. Batches that fail with a transient (4xx) or
+ * connection error are put on a retry queue and sent again after an exponentially growing
+ * delay, until <code>maxRetries</code> is reached. A {@link Delivery} tells its
+ * {@link CompletionListener} once every recipient has been delivered, has failed or was
+ * abandoned because the pipeline shut down.
+ */
+public class SmtpDeliveryPipeline {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpDeliveryPipeline.class);
+
+  private final SmtpTransportPool pool;
+  private final int maxRecipientsPerMessage;
+  private final int maxRetries;
+  private final long initialRetryDelayMillis;
+  private final long maxRetryDelayMillis;
+  private final OutgoingEmailStats stats;
+  private final ExecutorService senders;
+  private final DelayQueue<RetryBatch> retries = new DelayQueue<RetryBatch>();
+  private final Thread retryThread;
+  private volatile boolean running = true;
+
+  public SmtpDeliveryPipeline(SmtpTransportPool pool, int threads,
+      int maxRecipientsPerMessage, int maxRetries, long initialRetryDelayMillis,
+      long maxRetryDelayMillis, OutgoingEmailStats stats) {
+    this.pool = pool;
+    this.maxRecipientsPerMessage = Math.max(1, maxRecipientsPerMessage);
+    this.maxRetries = maxRetries;
+    this.initialRetryDelayMillis = Math.max(1, initialRetryDelayMillis);
+    this.maxRetryDelayMillis = Math.max(this.initialRetryDelayMillis, maxRetryDelayMillis);
+    this.stats = stats;
+    final AtomicInteger threadNumber = new AtomicInteger();
+    senders = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Outgoing email delivery " + threadNumber.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    retryThread = new Thread(new Runnable() {
+      public void run() {
+        while (running) {
+          try {
+            RetryBatch batch = retries.take();
+            stats.retryDequeued(batch.recipients.length);
+            batch.delivery.retrying.addAndGet(-batch.recipients.length);
+            try {
+              senders.execute(new SendTask(batch.message, batch.recipients, batch.attempt,
+                  batch.delivery));
+            } catch (RejectedExecutionException e) {
+              batch.delivery.abandoned(batch.recipients, batch.attempt);
+              break;
+            }
+          } catch (InterruptedException e) {
+            break;
+          }
+        }
+      }
+    }, "Outgoing email retry");
+    retryThread.setDaemon(true);
+    retryThread.start();
+  }
+
+  /**
+   * Send a message and wait for the first attempt of every batch of recipients.
+   *
+   * @param message
+   *          the message to send, it is copied into memory first so the batches can be
+   *          written concurrently and retried after the caller is gone.
+   * @param recipients
+   *          the envelope recipients.
+   * @param id
+   *          identifies the message in the logs.
+   * @return what happened to the recipients on the first attempt.
+   */
+  public Delivery deliver(MimeMessage message, List<? extends Address> recipients, String id)
+      throws MessagingException {
+    return deliver(message, recipients, id, 0);
+  }
+
+  /**
+   * Send a message and wait for the first attempt of every batch of recipients.
+   *
+   * @param attempt
+   *          the attempt the recipients are at, when resuming a delivery that was
+   *          abandoned.
+   * @see #deliver(MimeMessage, List, String)
+   */
+  public Delivery deliver(MimeMessage message, List<? extends Address> recipients,
+      String id, int attempt) throws MessagingException {
+    stats.message();
+    message.saveChanges();
+    MimeMessage copy = new MimeMessage(message);
+    Delivery delivery = new Delivery(id, recipients.size());
+
+    List<Future<?>> sends = new ArrayList<Future<?>>();
+    for (int i = 0; i < recipients.size(); i += maxRecipientsPerMessage) {
+      List<? extends Address> batch = recipients.subList(i,
+          Math.min(i + maxRecipientsPerMessage, recipients.size()));
+      try {
+        sends.add(senders.submit(new SendTask(copy, batch.toArray(new Address[batch.size()]),
+            attempt, delivery)));
+      } catch (RejectedExecutionException e) {
+        throw new MessagingException("Email delivery has been shut down", e);
+      }
+    }
+    for (Future<?> send : sends) {
+      try {
+        send.get();
+      } catch (ExecutionException e) {
+        LOGGER.error("Failed to send email " + id, e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return delivery;
+  }
+
+  /**
+   * Stop sending. Batches still waiting for a retry are abandoned, their deliveries tell
+   * their listeners which recipients have yet to be sent to.
+   */
+  public void shutdown() {
+    running = false;
+    retryThread.interrupt();
+    senders.shutdown();
+    try {
+      if (!senders.awaitTermination(10, TimeUnit.SECONDS)) {
+        senders.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      senders.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    // drainTo would only take the batches that are due
+    List<RetryBatch> waiting = new ArrayList<RetryBatch>();
+    for (RetryBatch batch : retries.toArray(new RetryBatch[0])) {
+      if (retries.remove(batch)) {
+        waiting.add(batch);
+      }
+    }
+    if (!waiting.isEmpty()) {
+      LOGGER.info("Abandoning {} email batches waiting to be retried ", waiting.size());
+    }
+    for (RetryBatch batch : waiting) {
+      stats.retryDequeued(batch.recipients.length);
+      batch.delivery.retrying.addAndGet(-batch.recipients.length);
+      batch.delivery.abandoned(batch.recipients, batch.attempt);
+    }
+    pool.close();
+  }
+
+  int getRetryQueueSize() {
+    return retries.size();
+  }
+
+  /**
+   * @return the delay before the given retry, doubling from the initial delay up to the
+   *         maximum delay.
+   */
+  long getRetryDelay(int attempt) {
+    long delay = initialRetryDelayMillis << Math.min(Math.max(0, attempt - 1), 30);
+    return Math.min(delay, maxRetryDelayMillis);
+  }
+
+  /**
+   * @return the SMTP reply code found in the exception or its nested exceptions, or -1.
+   */
+  static int getSmtpCode(Exception e) {
+    Throwable t = e;
+    while (t != null) {
+      String message = t.getMessage();
+      if (message != null) {
+        message = message.trim();
+        int response = message.indexOf("response:");
+        if (response > -1) {
+          message = message.substring(response + "response:".length()).trim();
+        }
+        if (message.length() >= 3 && Character.isDigit(message.charAt(0))
+            && Character.isDigit(message.charAt(1)) && Character.isDigit(message.charAt(2))) {
+          return Integer.parseInt(message.substring(0, 3));
+        }
+      }
+      if (t instanceof MessagingException
+          && ((MessagingException) t).getNextException() != null) {
+        t = ((MessagingException) t).getNextException();
+      } else {
+        t = t.getCause();
+      }
+    }
+    return -1;
+  }
+
+  private class SendTask implements Runnable {
+    private final MimeMessage message;
+    private final Address[] recipients;
+    private final int attempt;
+    private final Delivery delivery;
+    /** the recipients this attempt has delivered, failed or queued for a retry */
+    private int accounted;
+
+    SendTask(MimeMessage message, Address[] recipients, int attempt, Delivery delivery) {
+      this.message = message;
+      this.recipients = recipients;
+      this.attempt = attempt;
+      this.delivery = delivery;
+    }
+
+    public void run() {
+      long start = System.nanoTime();
+      Transport transport = null;
+      boolean reusable = true;
+      try {
+        transport = pool.borrow();
+        transport.sendMessage(message, recipients);
+        delivered(recipients.length);
+      } catch (SendFailedException e) {
+        // the server refused some or all of the recipients, the others were accepted
+        int sent = length(e.getValidSentAddresses());
+        int invalid = length(e.getInvalidAddresses());
+        int unsent = length(e.getValidUnsentAddresses());
+        delivered(sent);
+        if (invalid > 0) {
+          failed(e.getInvalidAddresses(), e);
+        }
+        if (unsent > 0) {
+          failedOrRetry(e.getValidUnsentAddresses(), e);
+        }
+        if (sent + invalid + unsent == 0) {
+          failedOrRetry(recipients, e);
+        }
+      } catch (MessagingException e) {
+        reusable = false;
+        failedOrRetry(recipients, e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failedOrRetry(recipients, e);
+      } catch (RuntimeException e) {
+        // anything unexpected fails the batch, so the delivery still completes
+        reusable = false;
+        LOGGER.error("Unexpected failure sending email " + delivery.id, e);
+        if (accounted == 0) {
+          failed(recipients, e);
+        }
+      } finally {
+        if (transport != null) {
+          pool.release(transport, reusable);
+          stats.batch(System.nanoTime() - start);
+        }
+      }
+    }
+
+    private void delivered(int count) {
+      if (count > 0) {
+        accounted += count;
+        stats.delivered(count);
+        delivery.delivered.addAndGet(count);
+        if (attempt > 0) {
+          LOGGER.info("Delivered email {} to {} recipients on retry {} ", new Object[] {
+              delivery.id, count, attempt });
+        }
+        delivery.done(count);
+      }
+    }
+
+    private void failed(Address[] addresses, Exception e) {
+      accounted += addresses.length;
+      stats.failed(addresses.length);
+      delivery.failed.addAndGet(addresses.length);
+      delivery.error = e.getMessage();
+      LOGGER.warn("Unable to send email {} to {} recipients: {}", new Object[] {
+          delivery.id, addresses.length, e.getMessage() });
+      delivery.done(addresses.length);
+    }
+
+    private void failedOrRetry(Address[] addresses, Exception e) {
+      int code = getSmtpCode(e);
+      // no reply code means the connection failed, which is worth another try
+      boolean transientError = (code < 0) || (code / 100 == 4);
+      if (!transientError) {
+        failed(addresses, e);
+        return;
+      }
+      if (attempt >= maxRetries) {
+        delivery.exhausted = true;
+        failed(addresses, e);
+        return;
+      }
+      int next = attempt + 1;
+      delivery.error = e.getMessage();
+      if (!running) {
+        accounted += addresses.length;
+        delivery.abandoned(addresses, next);
+        return;
+      }
+      accounted += addresses.length;
+      delivery.retrying.addAndGet(addresses.length);
+      retries.add(new RetryBatch(message, addresses, next, delivery, getRetryDelay(next)));
+      stats.retryQueued(addresses.length);
+      LOGGER.info("Email {} to {} recipients rescheduled for redelivery: {}", new Object[] {
+          delivery.id, addresses.length, e.getMessage() });
+    }
+  }
+
+  private static int length(Address[] addresses) {
+    return (addresses == null) ? 0 : addresses.length;
+  }
+
+  /**
+   * Told when every recipient of a message has been delivered, has failed or was
+   * abandoned.
+   */
+  public interface CompletionListener {
+    void completed(Delivery delivery);
+  }
+
+  /**
+   * What happened to the recipients of a message.
+   */
+  public static class Delivery {
+    private final String id;
+    private final AtomicInteger delivered = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger retrying = new AtomicInteger();
+    private final AtomicInteger outstanding;
+    private volatile String error;
+    private volatile boolean exhausted;
+    /** Guarded by this. */
+    private final List<Address> abandoned = new ArrayList<Address>();
+    /** Guarded by this. */
+    private int abandonedAttempt;
+    /** Guarded by this. */
+    private CompletionListener listener;
+
+    Delivery(String id, int recipients) {
+      this.id = id;
+      this.outstanding = new AtomicInteger(recipients);
+    }
+
+    /**
+     * Tell the listener when the delivery is complete, straight away if it already is.
+     */
+    public void whenComplete(CompletionListener listener) {
+      synchronized (this) {
+        this.listener = listener;
+      }
+      notifyIfComplete();
+    }
+
+    private void done(int count) {
+      if (outstanding.addAndGet(-count) <= 0) {
+        notifyIfComplete();
+      }
+    }
+
+    private void abandoned(Address[] addresses, int attempt) {
+      synchronized (this) {
+        abandoned.addAll(Arrays.asList(addresses));
+        abandonedAttempt = Math.max(abandonedAttempt, attempt);
+      }
+      done(addresses.length);
+    }
+
+    private void notifyIfComplete() {
+      CompletionListener toNotify;
+      synchronized (this) {
+        if (listener == null || outstanding.get() > 0) {
+          return;
+        }
+        toNotify = listener;
+        listener = null;
+      }
+      toNotify.completed(this);
+    }
+
+    /**
+     * @return true once every recipient has been delivered, has failed or was abandoned.
+     */
+    public boolean isComplete() {
+      return outstanding.get() <= 0;
+    }
+
+    public int getDelivered() {
+      return delivered.get();
+    }
+
+    /**
+     * @return the number of recipients that will not receive the message.
+     */
+    public int getFailed() {
+      return failed.get();
+    }
+
+    /**
+     * @return the number of recipients currently waiting in the retry queue.
+     */
+    public int getRetrying() {
+      return retrying.get();
+    }
+
+    /**
+     * @return the last error reported by the SMTP server, or null.
+     */
+    public String getError() {
+      return error;
+    }
+
+    /**
+     * @return true if recipients failed because they ran out of retries.
+     */
+    public boolean isExhausted() {
+      return exhausted;
+    }
+
+    /**
+     * @return the recipients that were waiting for another attempt when the pipeline shut
+     *         down.
+     */
+    public synchronized List<Address> getAbandoned() {
+      return new ArrayList<Address>(abandoned);
+    }
+
+    /**
+     * @return the attempt the abandoned recipients were waiting for.
+     */
+    public synchronized int getAbandonedAttempt() {
+      return abandonedAttempt;
+    }
+  }
+
+  private static class RetryBatch implements Delayed {
+    private final MimeMessage message;
+    private final Address[] recipients;
+    private final int attempt;
+    private final Delivery delivery;
+    private final long due;
+
+    RetryBatch(MimeMessage message, Address[] recipients, int attempt, Delivery delivery,
+        long delayMillis) {
+      this.message = message;
+      this.recipients = recipients;
+      this.attempt = attempt;
+      this.delivery = delivery;
+      this.due = System.currentTimeMillis() + delayMillis;
+    }
+
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public int compareTo(Delayed o) {
+      long diff = getDelay(TimeUnit.MILLISECONDS) - o.getDelay(TimeUnit.MILLISECONDS);
+      return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+    }
+  }
+}
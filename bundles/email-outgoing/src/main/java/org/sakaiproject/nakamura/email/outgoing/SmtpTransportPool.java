@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * Keeps SMTP connections open between messages so that a delivery does not pay for a new
+ * connection, TLS handshake and login each time. At most <code>maxTransports</code>
+ * transports are handed out at once, which bounds the concurrency towards the relay.
+ */
+public class SmtpTransportPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+  private static final String SOCKET_TIMEOUT = "60000";
+
+  private final Session session;
+  private final String protocol;
+  private final String host;
+  private final int port;
+  private final String user;
+  private final String password;
+  private final BlockingQueue<Transport> idle = new LinkedBlockingQueue<Transport>();
+  private final Semaphore permits;
+  private final OutgoingEmailStats stats;
+  private volatile boolean closed;
+
+  public SmtpTransportPool(String host, int port, boolean useTls, boolean useSsl,
+      String user, String password, int maxTransports, OutgoingEmailStats stats) {
+    this.protocol = useSsl ? "smtps" : "smtp";
+    this.host = host;
+    this.port = port;
+    this.user = StringUtils.isBlank(user) ? null : user;
+    this.password = StringUtils.isBlank(password) ? null : password;
+    this.permits = new Semaphore(Math.max(1, maxTransports), true);
+    this.stats = stats;
+
+    Properties props = new Properties();
+    props.setProperty("mail." + protocol + ".host", host);
+    props.setProperty("mail." + protocol + ".port", Integer.toString(port));
+    props.setProperty("mail." + protocol + ".connectiontimeout", SOCKET_TIMEOUT);
+    props.setProperty("mail." + protocol + ".timeout", SOCKET_TIMEOUT);
+    // deliver to the accepted recipients of a batch even if others are refused
+    props.setProperty("mail." + protocol + ".sendpartial", "true");
+    if (useTls) {
+      props.setProperty("mail." + protocol + ".starttls.enable", "true");
+    }
+    if (this.user != null && this.password != null) {
+      props.setProperty("mail." + protocol + ".auth", "true");
+    }
+    this.session = Session.getInstance(props);
+  }
+
+  /**
+   * Borrow a connected transport, waiting while all of them are in use. Every borrowed
+   * transport must be given back with {@link #release(Transport, boolean)}.
+   */
+  public Transport borrow() throws MessagingException, InterruptedException {
+    permits.acquire();
+    try {
+      Transport transport = idle.poll();
+      // isConnected() checks that the server has not dropped an idle connection
+      if (transport != null && !transport.isConnected()) {
+        close(transport);
+        transport = null;
+      }
+      if (transport == null) {
+        transport = session.getTransport(protocol);
+        transport.connect(host, port, user, password);
+        stats.connectionOpened();
+      }
+      return transport;
+    } catch (MessagingException e) {
+      permits.release();
+      throw e;
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * @param transport
+   *          a transport obtained from {@link #borrow()}.
+   * @param reusable
+   *          false if the transport failed in a way that leaves the connection unusable.
+   */
+  public void release(Transport transport, boolean reusable) {
+    try {
+      if (reusable && !closed) {
+        idle.offer(transport);
+      } else {
+        close(transport);
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Close the idle transports. Transports that are still borrowed are closed when they are
+   * released.
+   */
+  public void close() {
+    closed = true;
+    Transport transport = idle.poll();
+    while (transport != null) {
+      close(transport);
+      transport = idle.poll();
+    }
+  }
+
+  public Session getSession() {
+    return session;
+  }
+
+  private void close(Transport transport) {
+    try {
+      transport.close();
+    } catch (MessagingException e) {
+      LOGGER.debug("Failed to close SMTP transport {} ", e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+public class SmtpDeliveryPipelineTest {
+
+  private Wiser wiser;
+  private int port;
+  private OutgoingEmailStats stats;
+  private SmtpDeliveryPipeline pipeline;
+  private SmtpTransportPool pool;
+
+  @Before
+  public void setUp() throws Exception {
+    port = findFreePort();
+    wiser = new Wiser() {
+      @Override
+      public boolean accept(String from, String recipient) {
+        return !recipient.startsWith("nobody");
+      }
+    };
+    wiser.setPort(port);
+    wiser.start();
+    stats = new OutgoingEmailStats();
+    pool = new SmtpTransportPool("localhost", port, false, false, null, null, 1, stats);
+    pipeline = new SmtpDeliveryPipeline(pool, 1, 2, 3, 1000, 5000, stats);
+  }
+
+  @After
+  public void tearDown() {
+    pipeline.shutdown();
+    wiser.stop();
+  }
+
+  @Test
+  public void testBatchesRecipientsOverOneConnection() throws Exception {
+    SmtpDeliveryPipeline.Delivery delivery = pipeline.deliver(createMessage(),
+        createRecipients("user", 5), "test");
+
+    assertEquals(5, delivery.getDelivered());
+    assertEquals(0, delivery.getFailed());
+    assertEquals(0, delivery.getRetrying());
+    assertEquals(5, wiser.getMessages().size());
+    assertEquals(3, stats.getBatchCount());
+    assertEquals(1, stats.getConnectionCount());
+
+    pipeline.deliver(createMessage(), createRecipients("user", 1), "again");
+    assertEquals(1, stats.getConnectionCount());
+    assertEquals(6, stats.getDeliveredCount());
+  }
+
+  @Test
+  public void testRefusedRecipientsAreNotRetried() throws Exception {
+    List<Address> recipients = createRecipients("user", 1);
+    recipients.addAll(createRecipients("nobody", 1));
+
+    SmtpDeliveryPipeline.Delivery delivery = pipeline.deliver(createMessage(), recipients,
+        "test");
+
+    assertEquals(1, delivery.getDelivered());
+    assertEquals(1, delivery.getFailed());
+    assertEquals(0, delivery.getRetrying());
+    assertEquals(1, wiser.getMessages().size());
+    assertEquals(0, pipeline.getRetryQueueSize());
+  }
+
+  @Test
+  public void testUnreachableServerIsRetried() throws Exception {
+    wiser.stop();
+
+    SmtpDeliveryPipeline.Delivery delivery = pipeline.deliver(createMessage(),
+        createRecipients("user", 3), "test");
+
+    assertEquals(0, delivery.getDelivered());
+    assertEquals(3, delivery.getRetrying());
+    assertEquals(2, pipeline.getRetryQueueSize());
+    assertEquals(3, stats.getRetryQueueSize());
+    wiser = new Wiser();
+    wiser.setPort(port);
+    wiser.start();
+  }
+
+  @Test
+  public void testRetriesCompleteTheDelivery() throws Exception {
+    pipeline.shutdown();
+    pipeline = new SmtpDeliveryPipeline(pool, 1, 2, 3, 500, 500, stats);
+    wiser.stop();
+
+    SmtpDeliveryPipeline.Delivery delivery = pipeline.deliver(createMessage(),
+        createRecipients("user", 3), "test");
+    assertEquals(3, delivery.getRetrying());
+    CompletionRecorder recorder = new CompletionRecorder();
+    delivery.whenComplete(recorder);
+    assertEquals(1, recorder.latch.getCount());
+
+    wiser = new Wiser();
+    wiser.setPort(port);
+    wiser.start();
+    assertTrue(recorder.latch.await(10, TimeUnit.SECONDS));
+    assertSame(delivery, recorder.delivery);
+    assertEquals(3, delivery.getDelivered());
+    assertEquals(0, delivery.getFailed());
+    assertEquals(0, delivery.getRetrying());
+    assertEquals(3, wiser.getMessages().size());
+  }
+
+  @Test
+  public void testExhaustedRetriesAreReported() throws Exception {
+    pipeline.shutdown();
+    pipeline = new SmtpDeliveryPipeline(pool, 1, 2, 0, 10, 10, stats);
+    wiser.stop();
+
+    SmtpDeliveryPipeline.Delivery delivery = pipeline.deliver(createMessage(),
+        createRecipients("user", 3), "test");
+    assertEquals(3, delivery.getFailed());
+    assertEquals(0, delivery.getRetrying());
+    assertTrue(delivery.isExhausted());
+
+    // a delivery that is already complete tells its listener straight away
+    CompletionRecorder recorder = new CompletionRecorder();
+    delivery.whenComplete(recorder);
+    assertEquals(0, recorder.latch.getCount());
+    wiser = new Wiser();
+    wiser.setPort(port);
+    wiser.start();
+  }
+
+  @Test
+  public void testShutdownAbandonsWaitingRetries() throws Exception {
+    wiser.stop();
+
+    SmtpDeliveryPipeline.Delivery delivery = pipeline.deliver(createMessage(),
+        createRecipients("user", 3), "test");
+    CompletionRecorder recorder = new CompletionRecorder();
+    delivery.whenComplete(recorder);
+    pipeline.shutdown();
+
+    assertEquals(0, recorder.latch.getCount());
+    assertEquals(3, delivery.getAbandoned().size());
+    assertEquals(1, delivery.getAbandonedAttempt());
+    assertEquals(0, delivery.getFailed());
+    assertEquals(0, stats.getRetryQueueSize());
+
+    pipeline = new SmtpDeliveryPipeline(pool, 1, 2, 3, 1000, 5000, stats);
+    wiser = new Wiser();
+    wiser.setPort(port);
+    wiser.start();
+  }
+
+  @Test
+  public void testUnexpectedErrorFailsTheBatch() throws Exception {
+    pipeline.shutdown();
+    SmtpTransportPool brokenPool = new SmtpTransportPool("localhost", port, false, false,
+        null, null, 1, stats) {
+      @Override
+      public Transport borrow() {
+        throw new IllegalStateException("broken");
+      }
+    };
+    pipeline = new SmtpDeliveryPipeline(brokenPool, 1, 2, 3, 1000, 5000, stats);
+
+    SmtpDeliveryPipeline.Delivery delivery = pipeline.deliver(createMessage(),
+        createRecipients("user", 3), "test");
+    CompletionRecorder recorder = new CompletionRecorder();
+    delivery.whenComplete(recorder);
+
+    assertEquals(0, recorder.latch.getCount());
+    assertTrue(delivery.isComplete());
+    assertEquals(3, delivery.getFailed());
+    assertEquals(0, delivery.getRetrying());
+  }
+
+  @Test
+  public void testRetryDelayBacksOffExponentially() {
+    assertEquals(1000, pipeline.getRetryDelay(1));
+    assertEquals(2000, pipeline.getRetryDelay(2));
+    assertEquals(4000, pipeline.getRetryDelay(3));
+    assertEquals(5000, pipeline.getRetryDelay(4));
+    assertEquals(5000, pipeline.getRetryDelay(100));
+  }
+
+  @Test
+  public void testSmtpCode() {
+    assertEquals(451, SmtpDeliveryPipeline.getSmtpCode(new MessagingException(
+        "451 4.7.1 Try again later")));
+    assertEquals(550, SmtpDeliveryPipeline.getSmtpCode(new MessagingException(
+        "Invalid Addresses", new MessagingException("550 5.1.1 User unknown"))));
+    assertEquals(421, SmtpDeliveryPipeline.getSmtpCode(new MessagingException(
+        "Exception reading response: 421 Too many connections")));
+    assertEquals(-1, SmtpDeliveryPipeline.getSmtpCode(new MessagingException(
+        "Could not connect to SMTP host")));
+  }
+
+  private static class CompletionRecorder implements SmtpDeliveryPipeline.CompletionListener {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile SmtpDeliveryPipeline.Delivery delivery;
+
+    public void completed(SmtpDeliveryPipeline.Delivery delivery) {
+      this.delivery = delivery;
+      latch.countDown();
+    }
+  }
+
+  private MimeMessage createMessage() throws MessagingException {
+    MimeMessage message = new MimeMessage(pool.getSession());
+    message.setFrom(new InternetAddress("no-reply@example.com"));
+    message.setSubject("Announcement");
+    message.setText("Hello everyone");
+    return message;
+  }
+
+  private List<Address> createRecipients(String prefix, int count) throws MessagingException {
+    List<Address> recipients = new ArrayList<Address>();
+    for (int i = 0; i < count; i++) {
+      recipients.add(new InternetAddress(prefix + i + "@example.com"));
+    }
+    return recipients;
+  }
+
+  private int findFreePort() throws IOException {
+    ServerSocket socket = new ServerSocket(0);
+    try {
+      return socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+}
@@ -17,11 +17,19 @@
  */
 package org.sakaiproject.nakamura.events;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
@@ -30,6 +38,7 @@ import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.management.ObjectName;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
@@ -52,6 +61,16 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Bridge to send OSGi events onto a JMS topic.
+ * <p>
+ * Broadcast events are filtered by topic and copied into a bounded queue on the thread
+ * that delivers them. A single sender thread drains the queue in batches and sends each
+ * batch as one transaction, over a connection, session and producers that it keeps open
+ * until they fail or the bridge is deactivated. When the queue is full the delivering
+ * thread waits briefly for room and then sends the event itself, so consumers such as
+ * the activity listener never miss an event because the sender fell behind.
+ * <p>
+ * Persistent and point to point events, such as queued outgoing email, are never queued
+ * or dropped by the bridge. They are sent on the delivering thread, as they always were.
  */
 @Component(label = "%bridge.name", description = "%bridge.description", metatype = true, immediate = true)
 @Service
@@ -71,9 +90,37 @@ public class OsgiJmsBridge implements EventHandler {
   static final String ACKNOWLEDGE_MODE = "bridge.acknowledgeMode";
 
   @Property(value = {"org/osgi/service/log/LogEntry/LOG_DEBUG", "org/osgi/service/log/LogEntry/LOG_INFO", "org/osgi/service/log/LogEntry/LOG_TRACE"})
-  private static final String IGNORE_EVENT_TOPICS = "bridge.ignore.event.topics";
+  static final String IGNORE_EVENT_TOPICS = "bridge.ignore.event.topics";
+
+  @Property(value = "*")
+  static final String ALLOW_EVENT_TOPICS = "bridge.allow.event.topics";
+
+  @Property(intValue = 100)
+  static final String MAX_BATCH_SIZE = "bridge.batch.size";
+
+  @Property(longValue = 5L)
+  static final String BATCH_LINGER = "bridge.batch.linger";
+
+  @Property(intValue = 10000)
+  static final String QUEUE_SIZE = "bridge.queue.size";
+
+  @Property(longValue = 100L)
+  static final String QUEUE_WAIT = "bridge.queue.wait";
+
+  private static final int MAX_TOPIC_DECISIONS = 10000;
+
+  /** attempts to send a persistent or point to point event before giving up */
+  private static final int MAX_DIRECT_ATTEMPTS = 3;
+
+  private static final String MBEAN_NAME = "org.sakaiproject.nakamura.events:type=OsgiJmsBridge";
 
   private Set<String> ignoreEventTopics = new HashSet<String>();
+  private List<String> ignoreEventTopicPrefixes = new ArrayList<String>();
+  private Set<String> allowEventTopics = new HashSet<String>();
+  private List<String> allowEventTopicPrefixes = new ArrayList<String>();
+
+  /** the filter decision per topic, topics are few so this stays small */
+  private final ConcurrentMap<String, Boolean> topicDecisions = new ConcurrentHashMap<String, Boolean>();
 
 
   @Reference
@@ -86,11 +133,28 @@ public class OsgiJmsBridge implements EventHandler {
   private boolean transacted;
   private String connectionClientId;
   private int acknowledgeMode;
+  private int maxBatchSize;
+  private long batchLinger;
+  private long queueWait;
 
   private long lastMessage = System.currentTimeMillis();
+  private long lastOverflow;
 
   private String serverId;
 
+  private BlockingQueue<PendingEvent> queue = new LinkedBlockingQueue<PendingEvent>();
+  private OsgiJmsBridgeStats stats = new OsgiJmsBridgeStats(queue);
+
+  /** set to false by tests so batches are only sent by {@link #flush()} */
+  boolean startSender = true;
+  private Thread senderThread;
+  private volatile boolean running;
+
+  // only used by the sender thread, or the flushing thread when there is no sender.
+  private Connection conn;
+  private Session clientSession;
+  private Map<String, MessageProducer> producers = new HashMap<String, MessageProducer>();
+
   /**
    * Default constructor.
    */
@@ -123,27 +187,63 @@ public class OsgiJmsBridge implements EventHandler {
     transacted = PropertiesUtil.toBoolean(props.get(SESSION_TRANSACTED), false);
     acknowledgeMode = PropertiesUtil.toInteger(props.get(ACKNOWLEDGE_MODE), 0);
     connectionClientId = PropertiesUtil.toString(props.get(CONNECTION_CLIENT_ID), "sakai.event.bridge");
+    maxBatchSize = Math.max(1, PropertiesUtil.toInteger(props.get(MAX_BATCH_SIZE), 100));
+    batchLinger = PropertiesUtil.toLong(props.get(BATCH_LINGER), 5L);
+    int queueSize = PropertiesUtil.toInteger(props.get(QUEUE_SIZE), 10000);
+    queueWait = Math.max(0L, PropertiesUtil.toLong(props.get(QUEUE_WAIT), 100L));
     serverId = clusterTrackingService.getCurrentServerId();
 
-    String[] ignoreEventTopicsValues = PropertiesUtil.toStringArray(props.get(IGNORE_EVENT_TOPICS));
     ignoreEventTopics.clear();
-
-    if ( ignoreEventTopicsValues != null ) {
-      for ( String iet : ignoreEventTopicsValues ) {
-        ignoreEventTopics.add(iet);
-      }
+    ignoreEventTopicPrefixes.clear();
+    parseTopics(PropertiesUtil.toStringArray(props.get(IGNORE_EVENT_TOPICS)),
+        ignoreEventTopics, ignoreEventTopicPrefixes);
+    allowEventTopics.clear();
+    allowEventTopicPrefixes.clear();
+    parseTopics(PropertiesUtil.toStringArray(props.get(ALLOW_EVENT_TOPICS),
+        new String[] { "*" }), allowEventTopics, allowEventTopicPrefixes);
+    topicDecisions.clear();
+
+    queue = new LinkedBlockingQueue<PendingEvent>(queueSize);
+    stats = new OsgiJmsBridgeStats(queue);
+    registerMBean();
+
+    running = true;
+    if (startSender) {
+      senderThread = new Thread(new Runnable() {
+        public void run() {
+          sendLoop();
+        }
+      }, "OsgiJmsBridge sender");
+      senderThread.setDaemon(true);
+      senderThread.start();
     }
 
-    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
-        new Object[] { transacted, acknowledgeMode, connectionClientId });
+    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}, "
+        + "Batch Size: {}, Batch Linger: {}ms", new Object[] { transacted,
+        acknowledgeMode, connectionClientId, maxBatchSize, batchLinger });
   }
 
   /**
-   * Called by the OSGi container to deactivate this component.
+   * Called by the OSGi container to deactivate this component. Events still queued are
+   * sent before the sender stops.
    *
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
+    running = false;
+    if (senderThread != null) {
+      // the sender sees running is false within a second and sends what is left.
+      try {
+        senderThread.join(10000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      senderThread = null;
+    } else {
+      flush();
+      closeSession();
+    }
+    unregisterMBean();
   }
 
   /**
@@ -153,81 +253,368 @@ public class OsgiJmsBridge implements EventHandler {
    */
   public void handleEvent(Event event) {
     LOGGER.trace("Receiving event");
-    if ( ignoreEventTopics.contains(event.getTopic()) ) {
+    if (!isBridged(event.getTopic())) {
       // Ignore Log messages in jms.
+      stats.filtered.incrementAndGet();
       return;
     }
-    Connection conn = null;
 
-    LOGGER.debug("Processing event {}", event);
-    Session clientSession = null;
+    PendingEvent pendingEvent = new PendingEvent(event);
+    if (pendingEvent.isGuaranteed()) {
+      sendDirect(pendingEvent, event);
+      return;
+    }
+
+    LOGGER.debug("Queueing event {}", event);
+    if (enqueue(pendingEvent)) {
+      stats.queued.incrementAndGet();
+    } else {
+      // the sender is behind, send the event here rather than drop it.
+      stats.overflowed.incrementAndGet();
+      if ((System.currentTimeMillis() - lastOverflow) > 15000L) {
+        lastOverflow = System.currentTimeMillis();
+        LOGGER.warn("JMS event queue is full, sending events on the delivering thread, "
+            + "first sent: {} ", event.getTopic());
+      }
+      sendDirect(pendingEvent, event);
+    }
+  }
+
+  /**
+   * @return true if the event was queued, waiting a little for room if the queue is full.
+   */
+  private boolean enqueue(PendingEvent pendingEvent) {
+    if (queue.offer(pendingEvent)) {
+      return true;
+    }
     try {
+      return queue.offer(pendingEvent, queueWait, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
 
-      conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
-      // conn.setClientID(connectionClientId);
-      // post to JMS
-      // Sessions are not thread safe, so we need to create and destroy a session, for
-      // sending.
-      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
-          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
-      EventMessageMode messageMode = (EventMessageMode) event
-          .getProperty(EventDeliveryConstants.MESSAGE_MODE);
+  /**
+   * Send everything that is queued on the calling thread.
+   */
+  void flush() {
+    List<PendingEvent> batch = new ArrayList<PendingEvent>(maxBatchSize);
+    while (queue.drainTo(batch, maxBatchSize) > 0) {
+      sendBatch(batch);
+      batch.clear();
+    }
+  }
 
-      EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
-          .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
+  OsgiJmsBridgeStats getStats() {
+    return stats;
+  }
 
-      int clientAcknowledgeMode = acknowledgeMode;
-      if (acknowledgeModeForEvent != null) {
-        switch (acknowledgeModeForEvent) {
-        case AUTO_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.AUTO_ACKNOWLEDGE;
-          break;
-        case CLIENT_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.CLIENT_ACKNOWLEDGE;
-          break;
-        case DUPS_OK_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.DUPS_OK_ACKNOWLEDGE;
+  private void sendLoop() {
+    List<PendingEvent> batch = new ArrayList<PendingEvent>(maxBatchSize);
+    try {
+      while (running) {
+        try {
+          if (collectBatch(batch)) {
+            sendBatch(batch);
+            batch.clear();
+          }
+        } catch (InterruptedException e) {
           break;
         }
       }
+      // the batch being collected when interrupted is sent with the rest of the queue.
+      if (!batch.isEmpty()) {
+        sendBatch(batch);
+      }
+      flush();
+    } finally {
+      closeSession();
+    }
+  }
 
-      clientSession = conn.createSession(transacted, clientAcknowledgeMode);
-
-      Message msg = clientSession.createMessage();
+  /**
+   * Wait for an event, then keep adding events until the batch is full or the linger time
+   * has passed since the first event.
+   *
+   * @return true if there is a batch to send.
+   */
+  private boolean collectBatch(List<PendingEvent> batch) throws InterruptedException {
+    PendingEvent first = queue.poll(1, TimeUnit.SECONDS);
+    if (first == null) {
+      return false;
+    }
+    batch.add(first);
+    long deadline = System.currentTimeMillis() + batchLinger;
+    while (batch.size() < maxBatchSize) {
+      if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+        continue;
+      }
+      long wait = deadline - System.currentTimeMillis();
+      if (wait <= 0) {
+        break;
+      }
+      PendingEvent next = queue.poll(wait, TimeUnit.MILLISECONDS);
+      if (next == null) {
+        break;
+      }
+      batch.add(next);
+    }
+    return true;
+  }
 
-      // may need to set a delivery mode eg persistent for certain types of messages.
-      // this should be specified in the OSGi event.
-      if (messageMode != null) {
-        switch (messageMode) {
-        case PERSISTENT:
-          msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
-          break;
-        case NON_PERSISTENT:
-        default:
-          msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+  /**
+   * Send a batch of broadcast events in one transaction. If the send fails on a session
+   * that was kept open from an earlier batch, the session may have gone stale, so the
+   * batch, which was rolled back when the session was closed, is tried once more on a new
+   * session before it is dropped.
+   */
+  private void sendBatch(List<PendingEvent> batch) {
+    for (int attempt = 0; attempt < 2; attempt++) {
+      long start = System.nanoTime();
+      boolean reused = (clientSession != null);
+      try {
+        Session session = getSession();
+        for (PendingEvent pendingEvent : batch) {
+          Message msg = pendingEvent.createMessage(session, serverId);
+          MessageProducer producer = getProducer(session, pendingEvent);
+          LOGGER.debug("Sending Message {} to {}  ", msg, pendingEvent.topic);
+          producer.send(msg);
+        }
+        session.commit();
+        stats.batchSent(batch.size(), System.nanoTime() - start);
+        return;
+      } catch (JMSException e) {
+        logJmsException(e);
+        closeSession();
+        if (!reused) {
           break;
         }
-      } else {
-        msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
       }
+    }
+    stats.dropped.addAndGet(batch.size());
+  }
 
-      Destination destination = null;
-      if (deliveryMode != null) {
-        switch (deliveryMode) {
-        case P2P:
-          destination = clientSession.createQueue(event.getTopic());
-          break;
-        case BROADCAST:
-        default:
-          destination = clientSession.createTopic(event.getTopic());
-          break;
+  /**
+   * @return the transacted session the batches are sent on, whatever the session
+   *         settings of the bridge, which apply to events sent on the delivering thread.
+   */
+  private Session getSession() throws JMSException {
+    if (clientSession == null) {
+      conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
+      // conn.setClientID(connectionClientId);
+      clientSession = conn.createSession(true, Session.SESSION_TRANSACTED);
+    }
+    return clientSession;
+  }
+
+  /**
+   * @return the producer for the destination of the event, created once per session.
+   */
+  private MessageProducer getProducer(Session session, PendingEvent pendingEvent)
+      throws JMSException {
+    String key = (pendingEvent.queue ? "queue:" : "topic:") + pendingEvent.topic;
+    MessageProducer producer = producers.get(key);
+    if (producer == null) {
+      producer = session.createProducer(pendingEvent.createDestination(session));
+      producers.put(key, producer);
+    }
+    return producer;
+  }
+
+  /**
+   * Send a persistent or point to point event on the calling thread, over a session of
+   * its own since sessions are not thread safe. The send is tried a few times on new
+   * sessions before it is given up.
+   */
+  private void sendDirect(PendingEvent pendingEvent, Event event) {
+    LOGGER.debug("Processing event {}", event);
+    for (int attempt = 1; attempt <= MAX_DIRECT_ATTEMPTS; attempt++) {
+      long start = System.nanoTime();
+      Connection directConn = null;
+      Session directSession = null;
+      try {
+        directConn = connFactoryService.getDefaultPooledConnectionFactory()
+            .createConnection();
+        directSession = directConn.createSession(transacted,
+            getAcknowledgeMode(event));
+        Message msg = pendingEvent.createMessage(directSession, serverId);
+        MessageProducer producer = directSession.createProducer(pendingEvent
+            .createDestination(directSession));
+        LOGGER.debug("Sending Message {} to {}  ", msg, pendingEvent.topic);
+        producer.send(msg);
+        if (transacted) {
+          directSession.commit();
+        }
+        stats.batchSent(1, System.nanoTime() - start);
+        return;
+      } catch (JMSException e) {
+        logJmsException(e);
+      } finally {
+        try {
+          if (directSession != null) {
+            directSession.close();
+          }
+        } catch (Exception e) {
+          LOGGER.error(e.getMessage(), e);
         }
+        try {
+          if (directConn != null) {
+            directConn.close();
+          }
+        } catch (Exception e) {
+          LOGGER.error(e.getMessage(), e);
+        }
+      }
+    }
+    stats.failed.incrementAndGet();
+    LOGGER.error("Unable to send {} event to JMS after {} attempts ", pendingEvent.topic,
+        MAX_DIRECT_ATTEMPTS);
+  }
+
+  private int getAcknowledgeMode(Event event) {
+    EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
+        .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
+    int clientAcknowledgeMode = acknowledgeMode;
+    if (acknowledgeModeForEvent != null) {
+      switch (acknowledgeModeForEvent) {
+      case AUTO_ACKNOWLEDGE:
+        clientAcknowledgeMode = Session.AUTO_ACKNOWLEDGE;
+        break;
+      case CLIENT_ACKNOWLEDGE:
+        clientAcknowledgeMode = Session.CLIENT_ACKNOWLEDGE;
+        break;
+      case DUPS_OK_ACKNOWLEDGE:
+        clientAcknowledgeMode = Session.DUPS_OK_ACKNOWLEDGE;
+        break;
+      }
+    }
+    return clientAcknowledgeMode;
+  }
+
+  private void closeSession() {
+    // closing the session closes its producers
+    producers.clear();
+    try {
+      if (clientSession != null) {
+        clientSession.close();
+      }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    clientSession = null;
+    try {
+      if (conn != null) {
+        conn.close();
+      }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    conn = null;
+  }
+
+  private void logJmsException(JMSException e) {
+    Throwable t = e.getCause();
+    if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
+      if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
+        lastMessage = System.currentTimeMillis();
+        LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
+      }
+      LOGGER.debug(e.getMessage(), e);
+    } else {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return true if the topic is allowed and not ignored.
+   */
+  private boolean isBridged(String topic) {
+    Boolean bridged = topicDecisions.get(topic);
+    if (bridged == null) {
+      bridged = matches(topic, allowEventTopics, allowEventTopicPrefixes)
+          && !matches(topic, ignoreEventTopics, ignoreEventTopicPrefixes);
+      if (topicDecisions.size() < MAX_TOPIC_DECISIONS) {
+        topicDecisions.put(topic, bridged);
+      }
+    }
+    return bridged;
+  }
+
+  private static boolean matches(String topic, Set<String> topics, List<String> prefixes) {
+    if (topics.contains(topic)) {
+      return true;
+    }
+    for (String prefix : prefixes) {
+      if (topic.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Split topics into exact topics and the prefixes of topics ending in <code>*</code>.
+   */
+  private static void parseTopics(String[] values, Set<String> topics, List<String> prefixes) {
+    if (values == null) {
+      return;
+    }
+    for (String value : values) {
+      if (value.endsWith("*")) {
+        prefixes.add(value.substring(0, value.length() - 1));
       } else {
-        destination = clientSession.createTopic(event.getTopic());
+        topics.add(value);
+      }
+    }
+  }
+
+  private void registerMBean() {
+    try {
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
       }
-      MessageProducer producer = clientSession.createProducer(destination);
-      msg.setJMSType(event.getTopic());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(stats, name);
+    } catch (Exception e) {
+      LOGGER.debug("Unable to register the bridge statistics {} ", e.getMessage());
+    }
+  }
+
+  private void unregisterMBean() {
+    try {
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      }
+    } catch (Exception e) {
+      LOGGER.debug("Unable to unregister the bridge statistics {} ", e.getMessage());
+    }
+  }
 
+  /**
+   * What is needed of an event to send it, taken on the thread that delivered the event.
+   */
+  private static final class PendingEvent {
+    private final String topic;
+    private final boolean queue;
+    private final int deliveryMode;
+    private final boolean persistent;
+    private final Map<String, Object> properties;
+
+    private PendingEvent(Event event) {
+      topic = event.getTopic();
+      EventDeliveryMode eventDeliveryMode = (EventDeliveryMode) event
+          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
+      queue = (eventDeliveryMode == EventDeliveryMode.P2P);
+      // may need to set a delivery mode eg persistent for certain types of messages.
+      // this should be specified in the OSGi event.
+      EventMessageMode messageMode = (EventMessageMode) event
+          .getProperty(EventDeliveryConstants.MESSAGE_MODE);
+      persistent = (messageMode == EventMessageMode.PERSISTENT);
+      deliveryMode = persistent ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT;
+
+      properties = new HashMap<String, Object>();
       for (String name : event.getPropertyNames()) {
         Object obj = event.getProperty(name);
         // "Only objectified primitive objects, String, Map and List types are
@@ -236,42 +623,31 @@ public class OsgiJmsBridge implements EventHandler {
         if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
             || obj instanceof Number || obj instanceof Map || obj instanceof String
             || obj instanceof List || obj instanceof Object[]) {
-          msg.setObjectProperty(name, EventUtils.cleanProperty(obj));
+          properties.put(name, EventUtils.cleanProperty(obj));
         }
       }
+    }
 
-      msg.setStringProperty("clusterServerId", serverId);
+    /**
+     * @return true if the event must not be queued or dropped by the bridge.
+     */
+    private boolean isGuaranteed() {
+      return queue || persistent;
+    }
 
-      // add the current user
+    private Destination createDestination(Session session) throws JMSException {
+      return queue ? session.createQueue(topic) : session.createTopic(topic);
+    }
 
-      LOGGER.debug("Sending Message {} to {}  ",msg, destination);
-      producer.send(msg);
-    } catch (JMSException e) {
-      Throwable t = e.getCause();
-      if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
-        if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
-          lastMessage = System.currentTimeMillis();
-          LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
-        }
-        LOGGER.debug(e.getMessage(), e);
-      } else {
-        LOGGER.error(e.getMessage(), e);
-      }
-    } finally {
-      try {
-        if (conn != null) {
-          conn.close();
-        }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
-      }
-      try {
-        if (clientSession != null) {
-          clientSession.close();
-        }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
+    private Message createMessage(Session session, String serverId) throws JMSException {
+      Message msg = session.createMessage();
+      msg.setJMSDeliveryMode(deliveryMode);
+      msg.setJMSType(topic);
+      for (Map.Entry<String, Object> property : properties.entrySet()) {
+        msg.setObjectProperty(property.getKey(), property.getValue());
       }
+      msg.setStringProperty("clusterServerId", serverId);
+      return msg;
     }
   }
 }
@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for the OSGi to JMS event bridge.
+ */
+public class OsgiJmsBridgeStats implements OsgiJmsBridgeStatsMBean {
+
+  private static final int[] BATCH_SIZE_BUCKETS = { 1, 4, 16, 64, 256 };
+
+  private final BlockingQueue<?> queue;
+  final AtomicLong queued = new AtomicLong();
+  final AtomicLong filtered = new AtomicLong();
+  final AtomicLong sent = new AtomicLong();
+  final AtomicLong dropped = new AtomicLong();
+  final AtomicLong overflowed = new AtomicLong();
+  final AtomicLong failed = new AtomicLong();
+  final AtomicLong batches = new AtomicLong();
+  private final AtomicLongArray batchSizes = new AtomicLongArray(
+      BATCH_SIZE_BUCKETS.length + 1);
+  private final AtomicLong sendNanos = new AtomicLong();
+  private final AtomicLong maxSendNanos = new AtomicLong();
+
+  public OsgiJmsBridgeStats(BlockingQueue<?> queue) {
+    this.queue = queue;
+  }
+
+  /**
+   * Record a batch that was sent.
+   *
+   * @param size the number of events in the batch.
+   * @param nanos the time taken to send and commit the batch.
+   */
+  void batchSent(int size, long nanos) {
+    sent.addAndGet(size);
+    batches.incrementAndGet();
+    int bucket = 0;
+    while (bucket < BATCH_SIZE_BUCKETS.length && size > BATCH_SIZE_BUCKETS[bucket]) {
+      bucket++;
+    }
+    batchSizes.incrementAndGet(bucket);
+    sendNanos.addAndGet(nanos);
+    long max = maxSendNanos.get();
+    while (nanos > max && !maxSendNanos.compareAndSet(max, nanos)) {
+      max = maxSendNanos.get();
+    }
+  }
+
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public long getEventsQueued() {
+    return queued.get();
+  }
+
+  public long getEventsFiltered() {
+    return filtered.get();
+  }
+
+  public long getEventsSent() {
+    return sent.get();
+  }
+
+  public long getEventsDropped() {
+    return dropped.get();
+  }
+
+  public long getEventsOverflowed() {
+    return overflowed.get();
+  }
+
+  public long getEventsFailed() {
+    return failed.get();
+  }
+
+  public long getBatchesSent() {
+    return batches.get();
+  }
+
+  public int[] getBatchSizeBuckets() {
+    return BATCH_SIZE_BUCKETS.clone();
+  }
+
+  public long[] getBatchSizeHistogram() {
+    long[] histogram = new long[batchSizes.length()];
+    for (int i = 0; i < histogram.length; i++) {
+      histogram[i] = batchSizes.get(i);
+    }
+    return histogram;
+  }
+
+  public double getAverageSendMillis() {
+    long n = batches.get();
+    return (n == 0) ? 0.0 : sendNanos.get() / (n * 1000000.0);
+  }
+
+  public double getMaxSendMillis() {
+    return maxSendNanos.get() / 1000000.0;
+  }
+
+  public void reset() {
+    queued.set(0);
+    filtered.set(0);
+    sent.set(0);
+    dropped.set(0);
+    overflowed.set(0);
+    failed.set(0);
+    batches.set(0);
+    for (int i = 0; i < batchSizes.length(); i++) {
+      batchSizes.set(i, 0);
+    }
+    sendNanos.set(0);
+    maxSendNanos.set(0);
+  }
+}
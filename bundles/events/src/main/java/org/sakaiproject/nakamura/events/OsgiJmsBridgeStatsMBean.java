@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+/**
+ * JMX view of the OSGi to JMS event bridge.
+ */
+public interface OsgiJmsBridgeStatsMBean {
+
+  /**
+   * @return the number of events waiting to be sent.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the number of events queued for sending.
+   */
+  long getEventsQueued();
+
+  /**
+   * @return the number of events not queued because of the allowed and ignored topics.
+   */
+  long getEventsFiltered();
+
+  /**
+   * @return the number of events sent to JMS.
+   */
+  long getEventsSent();
+
+  /**
+   * @return the number of queued broadcast events dropped because their batch could not
+   *         be sent.
+   */
+  long getEventsDropped();
+
+  /**
+   * @return the number of broadcast events sent on the delivering thread because the
+   *         queue stayed full.
+   */
+  long getEventsOverflowed();
+
+  /**
+   * @return the number of events sent on the delivering thread that could not be sent
+   *         after retrying.
+   */
+  long getEventsFailed();
+
+  /**
+   * @return the number of batches sent to JMS, a persistent or point to point event is
+   *         sent as a batch of its own.
+   */
+  long getBatchesSent();
+
+  /**
+   * @return the upper bounds of the buckets of {@link #getBatchSizeHistogram()}, the last
+   *         bucket has no upper bound.
+   */
+  int[] getBatchSizeBuckets();
+
+  /**
+   * @return the number of batches sent per batch size bucket.
+   */
+  long[] getBatchSizeHistogram();
+
+  /**
+   * @return the mean time to send and commit a batch, in milliseconds.
+   */
+  double getAverageSendMillis();
+
+  /**
+   * @return the longest time to send and commit a batch, in milliseconds.
+   */
+  double getMaxSendMillis();
+
+  /**
+   * Reset all the counters.
+   */
+  void reset();
+}
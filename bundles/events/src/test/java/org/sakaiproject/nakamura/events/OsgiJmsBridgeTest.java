@@ -36,6 +36,7 @@ import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
+import javax.jms.Queue;
 import javax.jms.Session;
 import javax.jms.Topic;
 
@@ -46,6 +47,9 @@ import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
 
 /**
  * Unit test for bridging events from OSGi to JMS.
@@ -202,7 +206,7 @@ public class OsgiJmsBridgeTest {
     // exception. this causes extra checking to happen in the exception
     // handling.
     sess = createMock(Session.class);
-    expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    expect(conn.createSession(true, Session.SESSION_TRANSACTED)).andReturn(sess);
     sess.run();
     expectLastCall();
     sess.close();
@@ -223,17 +227,229 @@ public class OsgiJmsBridgeTest {
     verify(ctx, conn, connFactory, clusterTrackingService);
   }
 
+  /**
+   * The session and the producer of a topic are kept open between batches.
+   */
+  @Test
+  public void testSessionIsReused() throws Exception {
+    setUpConnection(true);
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.SESSION_TRANSACTED)).andReturn(sess);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(2);
+    prod.send((Message) anyObject());
+    expectLastCall().times(2);
+    // each batch is its own transaction
+    sess.commit();
+    expectLastCall().times(2);
+    sess.close();
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod, clusterTrackingService);
+
+    sendMessage(buildEventProperties());
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    bridge.flush();
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
+    assertEquals(2, bridge.getStats().getEventsSent());
+    assertEquals(2, bridge.getStats().getBatchesSent());
+  }
+
+  /**
+   * A send that fails on a session kept from an earlier batch is tried again on a new
+   * session.
+   */
+  @Test
+  public void testStaleSessionIsReplaced() throws Exception {
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+    conn = createMock(Connection.class);
+    expect(connFactory.createConnection()).andReturn(conn).times(2);
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.SESSION_TRANSACTED)).andReturn(sess).times(2);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic).times(2);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod).times(2);
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(3);
+    prod.send((Message) anyObject());
+    expectLastCall();
+    prod.send((Message) anyObject());
+    expectLastCall().andThrow(new JMSException("stale session"));
+    prod.send((Message) anyObject());
+    expectLastCall();
+    sess.commit();
+    expectLastCall().times(2);
+    sess.close();
+    expectLastCall().times(2);
+    conn.close();
+    expectLastCall().times(2);
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod, clusterTrackingService);
+
+    sendMessage(buildEventProperties());
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    bridge.flush();
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
+    assertEquals(2, bridge.getStats().getEventsSent());
+    assertEquals(0, bridge.getStats().getEventsDropped());
+  }
+
+  /**
+   * Ignored topics and topics that are not allowed are never queued.
+   */
+  @Test
+  public void testFilteredTopics() throws Exception {
+    compProps.put(OsgiJmsBridge.ALLOW_EVENT_TOPICS, new String[] { "org/*", "test-event" });
+    compProps.put(OsgiJmsBridge.IGNORE_EVENT_TOPICS, new String[] { "org/osgi/service/log/*" });
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+
+    replay(ctx, connFactoryService, connFactory, clusterTrackingService);
+
+    activate();
+    bridge.handleEvent(new Event("org/osgi/service/log/LogEntry/LOG_DEBUG", buildEventProperties()));
+    bridge.handleEvent(new Event("other/topic", buildEventProperties()));
+    bridge.handleEvent(new Event("org/sakaiproject/topic", buildEventProperties()));
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+
+    assertEquals(2, bridge.getStats().getEventsFiltered());
+    assertEquals(2, bridge.getStats().getQueueDepth());
+  }
+
+  /**
+   * Broadcast events beyond the size of the queue are sent on the delivering thread
+   * rather than dropped.
+   */
+  @Test
+  public void testQueueFull() throws Exception {
+    compProps.put(OsgiJmsBridge.QUEUE_SIZE, 1);
+    compProps.put(OsgiJmsBridge.QUEUE_WAIT, 10L);
+    setUpConnection(true);
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+    sess = createMock(Session.class);
+    expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage());
+    prod.send((Message) anyObject());
+    sess.close();
+
+    replay(ctx, connFactoryService, connFactory, conn, sess, topic, prod, clusterTrackingService);
+
+    activate();
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+
+    verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
+    assertEquals(1, bridge.getStats().getQueueDepth());
+    assertEquals(1, bridge.getStats().getEventsOverflowed());
+    assertEquals(1, bridge.getStats().getEventsSent());
+    assertEquals(0, bridge.getStats().getEventsDropped());
+  }
+
+  /**
+   * Persistent point to point events, such as queued outgoing email, are sent on the
+   * delivering thread even when the queue is full.
+   */
+  @Test
+  public void testPersistentEventIsNeverQueued() throws Exception {
+    compProps.put(OsgiJmsBridge.QUEUE_SIZE, 1);
+    setUpConnection(true);
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+    sess = createMock(Session.class);
+    expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    Queue queue = createMock(Queue.class);
+    expect(sess.createQueue("sakai/email/outgoing")).andReturn(queue);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(queue)).andReturn(prod);
+    message = new ActiveMQMessage();
+    expect(sess.createMessage()).andReturn(message);
+    prod.send(message);
+    sess.close();
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, queue, prod, clusterTrackingService);
+
+    activate();
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    Dictionary<Object, Object> props = buildEventProperties();
+    props.put(EventDeliveryConstants.DELIVERY_MODE, EventDeliveryMode.P2P);
+    props.put(EventDeliveryConstants.MESSAGE_MODE, EventMessageMode.PERSISTENT);
+    bridge.handleEvent(new Event("sakai/email/outgoing", props));
+
+    verify(ctx, connFactory, conn, sess, queue, prod, clusterTrackingService);
+    assertEquals(1, bridge.getStats().getQueueDepth());
+    assertEquals(1, bridge.getStats().getEventsSent());
+    assertEquals(0, bridge.getStats().getEventsDropped());
+  }
+
+  /**
+   * A persistent event is tried again on new sessions rather than dropped after one
+   * failure.
+   */
+  @Test
+  public void testPersistentEventIsRetried() throws Exception {
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+    conn = createMock(Connection.class);
+    expect(connFactory.createConnection()).andThrow(new JMSException("broker restarting"));
+    expect(connFactory.createConnection()).andReturn(conn);
+    sess = createMock(Session.class);
+    expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage());
+    prod.send((Message) anyObject());
+    sess.close();
+    conn.close();
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod, clusterTrackingService);
+
+    activate();
+    Dictionary<Object, Object> props = buildEventProperties();
+    props.put(EventDeliveryConstants.MESSAGE_MODE, EventMessageMode.PERSISTENT);
+    bridge.handleEvent(new Event("test-event", props));
+
+    verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
+    assertEquals(1, bridge.getStats().getEventsSent());
+    assertEquals(0, bridge.getStats().getEventsFailed());
+  }
+
   /**
    * Constructs the bridge, activates it, constructs a message with 2 properties
    * and calls the bridge to handle it.
    */
   private void sendMessage(Dictionary<Object, Object> dict) {
-    bridge = new OsgiJmsBridge(connFactoryService);
-    bridge.clusterTrackingService = clusterTrackingService;
-    bridge.activate(ctx);
+    activate();
 
     event = new Event("test-event", dict);
     bridge.handleEvent(event);
+    bridge.flush();
+  }
+
+  /**
+   * Constructs the bridge and activates it without a sender thread, so queued events are
+   * only sent by calling flush.
+   */
+  private void activate() {
+    bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.clusterTrackingService = clusterTrackingService;
+    bridge.startSender = false;
+    bridge.activate(ctx);
   }
 
   /**
@@ -301,7 +517,7 @@ public class OsgiJmsBridgeTest {
 
       // mock a session to be returned by the connection and expect it
       sess = createMock(Session.class);
-      expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+      expect(conn.createSession(true, Session.SESSION_TRANSACTED)).andReturn(sess);
 
       // expect the session to get run
       //sess.run();
@@ -319,8 +535,9 @@ public class OsgiJmsBridgeTest {
       message = new ActiveMQMessage();
       expect(sess.createMessage()).andReturn(message);
 
-      // expect the message to be sent
+      // expect the message to be sent and the batch committed
       prod.send(message);
+      sess.commit();
       
 
       sess.close();
@@ -18,10 +18,13 @@
 package org.sakaiproject.nakamura.files.pool;
 
 import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_IF_MODIFIED_SINCE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_LAST_MODIFIED;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.sling.api.resource.Resource;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -29,36 +32,151 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import javax.jcr.RepositoryException;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Streams the body of a content item, honouring conditional and byte range requests.
+ * Bodies stored in files are copied through their file channel.
+ */
 public class StreamHelper {
 
+  private static final String HEADER_ETAG = "ETag";
+  private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+  private static final String HEADER_RANGE = "Range";
+  private static final String HEADER_IF_RANGE = "If-Range";
+  private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+  private static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+  /**
+   * Requests with more ranges than this get the whole body, many small ranges cost more
+   * to serve than the body.
+   */
+  private static final int MAX_RANGES = 32;
+
+  private static final Random RANDOM = new Random();
+
   public void stream(HttpServletRequest request, ContentManager contentManager, Content node, String alternativeStream, HttpServletResponse response, Resource resource, ServletContext servletContext) throws IOException, StorageClientException, AccessDeniedException {
+    Map<String, Object> properties = node.getProperties();
+    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
+    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+    String etag = getETag(modifTime, length);
+
+    // check the conditions before opening the body, a 304 does not need it.
+    if (unmodified(request, etag, modifTime)) {
+      if (etag != null) {
+        response.setHeader(HEADER_ETAG, etag);
+      }
+      response.setStatus(SC_NOT_MODIFIED);
+      return;
+    }
+
     InputStream dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
 
     if ( dataStream == null ) {
       response.sendError(HttpServletResponse.SC_NOT_FOUND);
       return;
     }
-    
-    Map<String, Object> properties = node.getProperties();
-    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
-    if (unmodified(request, modifTime)) {
-      response.setStatus(SC_NOT_MODIFIED);
-      return;
+
+    try {
+      String contentType = setHeaders(properties, resource, response, alternativeStream, servletContext);
+      if (etag != null) {
+        response.setHeader(HEADER_ETAG, etag);
+      }
+      List<long[]> ranges = null;
+      if (length > 0) {
+        response.setHeader(HEADER_ACCEPT_RANGES, "bytes");
+        ranges = getRanges(request, etag, modifTime, length);
+      }
+
+      if (ranges == null) {
+        setContentLength(properties, response, alternativeStream);
+        copy(dataStream, response.getOutputStream());
+      } else if (ranges.isEmpty()) {
+        response.setHeader(HEADER_CONTENT_RANGE, "bytes */" + length);
+        response.sendError(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      } else if (ranges.size() == 1) {
+        long[] range = ranges.get(0);
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setHeader(HEADER_CONTENT_RANGE, "bytes " + range[0] + "-" + range[1] + "/" + length);
+        setContentLength(response, range[1] - range[0] + 1);
+        copy(dataStream, response.getOutputStream(), 0, range[0], range[1] - range[0] + 1);
+      } else {
+        String boundary = "nakamura-" + Long.toHexString(RANDOM.nextLong());
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        OutputStream out = response.getOutputStream();
+        long position = 0;
+        for (long[] range : ranges) {
+          StringBuilder part = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+          if (contentType != null) {
+            part.append("Content-Type: ").append(contentType).append("\r\n");
+          }
+          part.append("Content-Range: bytes ").append(range[0]).append('-').append(range[1])
+              .append('/').append(length).append("\r\n\r\n");
+          out.write(part.toString().getBytes("ISO-8859-1"));
+          position = copy(dataStream, out, position, range[0], range[1] - range[0] + 1);
+        }
+        out.write(("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1"));
+      }
+    } finally {
+      dataStream.close();
     }
+  }
 
-    setHeaders(properties, resource, response, alternativeStream, servletContext);
-    setContentLength(properties, response, alternativeStream);
-    IOUtils.copyLarge(dataStream, response.getOutputStream());
-    dataStream.close();
+  /**
+   * @return a strong entity tag for the body, or null if the body has no modification
+   *         time to build one from.
+   */
+  private String getETag(long modifTime, long length) {
+    if (modifTime <= 0) {
+      return null;
+    }
+    return "\"" + Long.toHexString(modifTime) + "-" + Long.toHexString(length) + "\"";
+  }
+
+  /**
+   * An <code>If-None-Match</code> header takes precedence over
+   * <code>If-Modified-Since</code>.
+   *
+   * @return true if the client has the current body.
+   */
+  private boolean unmodified(HttpServletRequest request, String etag, long modifTime) {
+    String ifNoneMatch = request.getHeader(HEADER_IF_NONE_MATCH);
+    if (ifNoneMatch != null) {
+      if (etag == null) {
+        return false;
+      }
+      for (String tag : StringUtils.split(ifNoneMatch, ',')) {
+        tag = tag.trim();
+        // weak comparison is allowed for If-None-Match
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if ("*".equals(tag) || etag.equals(tag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return unmodified(request, modifTime);
   }
 
   /**
@@ -85,14 +203,172 @@ public class StreamHelper {
     return false;
   }
 
+  /**
+   * Parse the <code>Range</code> header of the request.
+   *
+   * @return the ranges to send as sorted, non overlapping, inclusive [first, last] byte
+   *         positions, an empty list if none of the ranges can be satisfied, or null if
+   *         the whole body should be sent.
+   */
+  private List<long[]> getRanges(HttpServletRequest request, String etag, long modifTime, long length) {
+    String rangeHeader = request.getHeader(HEADER_RANGE);
+    if (rangeHeader == null || !rangeHeader.startsWith("bytes=")
+        || !"GET".equals(request.getMethod()) || !ifRange(request, etag, modifTime)) {
+      return null;
+    }
+    String[] specs = StringUtils.split(rangeHeader.substring("bytes=".length()), ',');
+    if (specs.length == 0 || specs.length > MAX_RANGES) {
+      return null;
+    }
+    List<long[]> ranges = new ArrayList<long[]>(specs.length);
+    try {
+      for (String spec : specs) {
+        spec = spec.trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+          return null;
+        }
+        long first;
+        long last;
+        if (dash == 0) {
+          // suffix range, the last n bytes
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix <= 0) {
+            continue;
+          }
+          first = Math.max(0, length - suffix);
+          last = length - 1;
+        } else {
+          first = Long.parseLong(spec.substring(0, dash));
+          last = (dash == spec.length() - 1) ? length - 1 : Long.parseLong(spec.substring(dash + 1));
+          if (last < first) {
+            return null;
+          }
+          if (first >= length) {
+            continue;
+          }
+          last = Math.min(last, length - 1);
+        }
+        ranges.add(new long[] { first, last });
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+
+    // the body can only be read forwards, so sort the ranges and merge overlaps.
+    Collections.sort(ranges, new Comparator<long[]>() {
+      public int compare(long[] o1, long[] o2) {
+        return (o1[0] < o2[0]) ? -1 : ((o1[0] == o2[0]) ? 0 : 1);
+      }
+    });
+    List<long[]> merged = new ArrayList<long[]>(ranges.size());
+    for (long[] range : ranges) {
+      long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+      if (previous != null && range[0] <= previous[1] + 1) {
+        previous[1] = Math.max(previous[1], range[1]);
+      } else {
+        merged.add(range);
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * @return true if there is no <code>If-Range</code> header or it matches the current
+   *         body, so the ranges can be sent.
+   */
+  private boolean ifRange(HttpServletRequest request, String etag, long modifTime) {
+    String ifRange = request.getHeader(HEADER_IF_RANGE);
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      // only strong entity tags match
+      return etag != null && etag.equals(ifRange);
+    }
+    try {
+      long date = request.getDateHeader(HEADER_IF_RANGE);
+      return modifTime > 0 && date >= 0 && modifTime / 1000 == date / 1000;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Copy the whole body.
+   */
+  private void copy(InputStream in, OutputStream out) throws IOException {
+    if (in instanceof FileInputStream) {
+      FileChannel channel = ((FileInputStream) in).getChannel();
+      transfer(channel, out, 0, channel.size());
+    } else {
+      IOUtils.copyLarge(in, out);
+    }
+  }
+
+  /**
+   * Copy part of the body.
+   *
+   * @param position
+   *          the number of bytes already read from the stream.
+   * @param first
+   *          the position of the first byte to copy, not before position.
+   * @param count
+   *          the number of bytes to copy.
+   * @return the number of bytes read from the stream after the copy.
+   */
+  private long copy(InputStream in, OutputStream out, long position, long first, long count) throws IOException {
+    if (in instanceof FileInputStream) {
+      // positioned transfers leave the stream where it was
+      transfer(((FileInputStream) in).getChannel(), out, first, count);
+      return position;
+    }
+    long toSkip = first - position;
+    while (toSkip > 0) {
+      long skipped = in.skip(toSkip);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          throw new EOFException("Body ended before byte " + first);
+        }
+        skipped = 1;
+      }
+      toSkip -= skipped;
+    }
+    byte[] buffer = new byte[8192];
+    long remaining = count;
+    while (remaining > 0) {
+      int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (n < 0) {
+        throw new EOFException("Body ended before byte " + (first + count - 1));
+      }
+      out.write(buffer, 0, n);
+      remaining -= n;
+    }
+    return first + count;
+  }
+
+  private void transfer(FileChannel channel, OutputStream out, long first, long count) throws IOException {
+    WritableByteChannel target = Channels.newChannel(out);
+    long done = 0;
+    while (done < count) {
+      long n = channel.transferTo(first + done, count - done, target);
+      if (n <= 0) {
+        break;
+      }
+      done += n;
+    }
+  }
+
   /**
    * @param resource
    * @param request
    * @param response
    * @param servletContext 
+   * @return the content type of the body, if known.
    * @throws RepositoryException
    */
-  private void setHeaders(Map<String, Object> properties, Resource resource, HttpServletResponse response, String alternativeStream, ServletContext servletContext) {
+  private String setHeaders(Map<String, Object> properties, Resource resource, HttpServletResponse response, String alternativeStream, ServletContext servletContext) {
 
     long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
     if (modifTime > 0) {
@@ -114,6 +390,15 @@ public class StreamHelper {
     if (encoding != null) {
       response.setCharacterEncoding(encoding);
     }
+    return contentType;
+  }
+
+  /**
+   * Set the <code>Content-Length</code> header from the length of the stream.
+   */
+  private void setContentLength(Map<String,Object> properties, HttpServletResponse response, String alternativeStream) {
+    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+    setContentLength(response, length);
   }
 
   /**
@@ -128,8 +413,7 @@ public class StreamHelper {
    *          The content length to be set. If this value is equal to or less than zero,
    *          the header is not set.
    */
-  private void setContentLength(Map<String,Object> properties, HttpServletResponse response, String alternativeStream) {
-    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+  private void setContentLength(HttpServletResponse response, long length) {
     if (length > 0) {
       if (length < Integer.MAX_VALUE) {
         response.setContentLength((int) length);
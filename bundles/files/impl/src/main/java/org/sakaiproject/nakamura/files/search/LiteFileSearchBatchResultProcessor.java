@@ -35,11 +35,12 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SearchResultPrefetch;
+import org.sakaiproject.nakamura.api.search.solr.SearchResultPrefetcher;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
@@ -73,6 +74,9 @@ public class LiteFileSearchBatchResultProcessor implements SolrSearchBatchResult
   @Reference
   private ProfileService profileService;
 
+  @Reference
+  protected SearchResultPrefetcher searchResultPrefetcher;
+
   public LiteFileSearchBatchResultProcessor(SolrSearchServiceFactory searchServiceFactory, ProfileService profileService) {
     this.searchServiceFactory = searchServiceFactory;
     this.profileService = profileService;
@@ -116,6 +120,35 @@ public class LiteFileSearchBatchResultProcessor implements SolrSearchBatchResult
    */
   public Set<String> writeResultsInternal(SlingHttpServletRequest request,
       JSONWriter write, Iterator<Result> iterator) throws JSONException {
+    SearchResultPrefetch prefetch = openPrefetch(request);
+    try {
+      return writeResultsInternal(request, write, iterator, prefetch);
+    } finally {
+      prefetch.close();
+    }
+  }
+
+  /**
+   * @return a prefetch of the items behind the results of the request, loading in
+   *         parallel when the prefetch service is available. The caller closes it once the
+   *         results are written.
+   */
+  protected SearchResultPrefetch openPrefetch(SlingHttpServletRequest request) {
+    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+        .adaptTo(javax.jcr.Session.class));
+    if (searchResultPrefetcher == null) {
+      return new SearchResultPrefetch(session);
+    }
+    return searchResultPrefetcher.open(session);
+  }
+
+  /**
+   * As {@link #writeResultsInternal(SlingHttpServletRequest, JSONWriter, Iterator)}, the
+   * whole page being loaded through the prefetch before any of it is written.
+   */
+  protected Set<String> writeResultsInternal(SlingHttpServletRequest request,
+      JSONWriter write, Iterator<Result> iterator, SearchResultPrefetch prefetch)
+      throws JSONException {
     final Set<String> uniquePaths = new HashSet<String>();
     final Integer iDepth = (Integer) request.getAttribute("depth");
     int depth = 0;
@@ -124,14 +157,13 @@ public class LiteFileSearchBatchResultProcessor implements SolrSearchBatchResult
     }
     try {
       javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
-      final Session session = StorageClientUtils.adaptToSession(jcrSession);
-      while (iterator.hasNext()) {
-        final Result result = iterator.next();
+      final Session session = prefetch.getSession();
+      for (Result result : prefetch.prefetch(iterator)) {
         uniquePaths.add(result.getPath());
         try {
-          if ("authorizable".equals(result.getFirstValue("resourceType"))) {
-            AuthorizableManager authManager = session.getAuthorizableManager();
-            Authorizable auth = authManager.findAuthorizable((String) result.getFirstValue("id"));
+          if (SearchResultPrefetch.AUTHORIZABLE_RESOURCE_TYPE.equals(result
+              .getFirstValue("resourceType"))) {
+            Authorizable auth = prefetch.getAuthorizable((String) result.getFirstValue("id"));
             if (auth != null) {
               write.object();
               ValueMap map = profileService.getProfileMap(auth, jcrSession);
@@ -140,7 +172,7 @@ public class LiteFileSearchBatchResultProcessor implements SolrSearchBatchResult
             }
           } else {
             String contentPath = result.getPath();
-            final Content content = session.getContentManager().get(contentPath);
+            final Content content = prefetch.getContent(contentPath);
             if (content != null) {
               handleContent(content, session, write, depth);
             } else {
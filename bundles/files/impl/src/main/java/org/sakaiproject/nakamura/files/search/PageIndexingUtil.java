@@ -43,9 +43,11 @@ public class PageIndexingUtil {
   public static void indexAllPages(Content content, ContentManager contentManager, SolrInputDocument doc, TikaService tikaService) throws PageIndexException {
     for (InputStream pageStream : getPageStreams(content, contentManager)) {
       try {
-        doc.addField("content", tikaService.parseToString(pageStream));
+        doc.addField("content", tikaService.extractText(pageStream, null));
       } catch (IOException e) {
-        LOGGER.warn(e.getMessage());
+        // the page text is in memory, so this is the extraction pool going away; leave the
+        // whole document for the next index rather than indexing it without its text
+        throw new PageIndexException("Could not extract the text of a page: " + e.getMessage(), e);
       } catch (TikaException e) {
         LOGGER.warn(e.getMessage());
       }
@@ -34,6 +34,7 @@ import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -201,7 +202,12 @@ public class PoolContentResourceTypeHandler implements IndexingHandler, QoSIndex
                 // tika handles the closing of the input stream
                 InputStream contentStream = contentManager.getInputStream(path);
                 if (contentStream != null) {
-                  String extracted = tika.parseToString(contentStream);
+                  Metadata metadata = new Metadata();
+                  if (content.hasProperty(FilesConstants.POOLED_CONTENT_FILENAME)) {
+                    metadata.set(Metadata.RESOURCE_NAME_KEY,
+                        String.valueOf(content.getProperty(FilesConstants.POOLED_CONTENT_FILENAME)));
+                  }
+                  String extracted = tika.extractText(contentStream, metadata);
                   doc.addField("content", extracted);
                 }
               } catch (TikaException e) {
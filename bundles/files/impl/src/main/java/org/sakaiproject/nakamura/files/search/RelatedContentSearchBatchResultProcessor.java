@@ -27,11 +27,10 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
-import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
-import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SearchResultPrefetch;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
@@ -40,7 +39,9 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -87,13 +88,27 @@ public class RelatedContentSearchBatchResultProcessor extends
   public void writeResults(SlingHttpServletRequest request, JSONWriter write,
       Iterator<Result> iterator) throws JSONException {
     long startTicks = System.currentTimeMillis();
+    SearchResultPrefetch prefetch = openPrefetch(request);
+    try {
+      writeResults(request, write, iterator, prefetch);
+    } finally {
+      prefetch.close();
+    }
+    long endTicks = System.currentTimeMillis();
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("writeResults() took {} seconds",
+          new Object[] { (float) (endTicks - startTicks) / 1000 });
+    }
+  }
+
+  private void writeResults(SlingHttpServletRequest request, JSONWriter write,
+      Iterator<Result> iterator, SearchResultPrefetch prefetch) throws JSONException {
     final Set<String> uniquePathsProcessed = super.writeResultsInternal(request, write,
-        iterator);
+        iterator, prefetch);
     final int resultsCount = uniquePathsProcessed.size();
     if (resultsCount < VOLUME) {
       /* we need to grab some random content to reach minimum of 11 results. */
-      final Session session = StorageClientUtils.adaptToSession(request
-          .getResourceResolver().adaptTo(javax.jcr.Session.class));
+      final Session session = prefetch.getSession();
       final String user = MeManagerViewerSearchPropertyProvider.getUser(request);
 
       // query to find ALL content that is not mine, boost some fields that have values
@@ -117,21 +132,26 @@ public class RelatedContentSearchBatchResultProcessor extends
 
         if (i != null) {
 
-          final ContentManager contentManager = session.getContentManager();
           while (i.hasNext() && uniquePathsProcessed.size() <= VOLUME) {
-            final Result result = i.next();
-            final String path = (String) result.getFirstValue("path");
-            if (uniquePathsProcessed.contains(path)) {
-              // we have already painted this result
-              continue;
+            // load only as many new paths as are still needed, together
+            final List<String> paths = new ArrayList<String>();
+            while (i.hasNext()
+                && uniquePathsProcessed.size() + paths.size() <= VOLUME) {
+              final String path = (String) i.next().getFirstValue("path");
+              if (!uniquePathsProcessed.contains(path) && !paths.contains(path)) {
+                paths.add(path);
+              }
             }
-            final Content content = contentManager.get(path);
-            if (content != null) {
-              super.handleContent(content, session, write, 0);
-              uniquePathsProcessed.add(path);
-            } else {
-              // fail quietly in this edge case
-              LOG.debug("Content not found: {}", path);
+            prefetch.prefetchContent(paths);
+            for (String path : paths) {
+              final Content content = prefetch.getContent(path);
+              if (content != null) {
+                super.handleContent(content, session, write, 0);
+                uniquePathsProcessed.add(path);
+              } else {
+                // fail quietly in this edge case
+                LOG.debug("Content not found: {}", path);
+              }
             }
           }
           if (uniquePathsProcessed.size() < VOLUME) {
@@ -154,10 +174,5 @@ public class RelatedContentSearchBatchResultProcessor extends
         throw new IllegalStateException(e);
       }
     }
-    long endTicks = System.currentTimeMillis();
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("writeResults() took {} seconds",
-          new Object[] { (float) (endTicks - startTicks) / 1000 });
-    }
   }
 }
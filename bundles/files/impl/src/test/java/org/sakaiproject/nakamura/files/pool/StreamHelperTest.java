@@ -0,0 +1,154 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class StreamHelperTest {
+
+  private static final String DATA = "0123456789abcdefghij";
+  private static final long MODIFIED = 1300000000000L;
+  private static final String ETAG = "\"" + Long.toHexString(MODIFIED) + "-"
+      + Long.toHexString(DATA.length()) + "\"";
+
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private ContentManager contentManager;
+  private Content content;
+  private ByteArrayOutputStream body;
+
+  @Before
+  public void before() throws Exception {
+    request = Mockito.mock(HttpServletRequest.class);
+    response = Mockito.mock(HttpServletResponse.class);
+    contentManager = Mockito.mock(ContentManager.class);
+    content = new Content("pooled", ImmutableMap.of(Content.LASTMODIFIED_FIELD,
+        (Object) MODIFIED, Content.LENGTH_FIELD, (Object) (long) DATA.length(),
+        Content.MIMETYPE_FIELD, (Object) "text/plain"));
+    body = new ByteArrayOutputStream();
+    Mockito.when(request.getMethod()).thenReturn("GET");
+    Mockito.when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        body.write(b);
+      }
+    });
+    Mockito.when(contentManager.getInputStream("pooled", null)).thenReturn(
+        new ByteArrayInputStream(DATA.getBytes("UTF-8")));
+  }
+
+  private void stream() throws Exception {
+    new StreamHelper().stream(request, contentManager, content, null, response, null, null);
+  }
+
+  @Test
+  public void testFullBody() throws Exception {
+    stream();
+    Assert.assertEquals(DATA, body.toString("UTF-8"));
+    Mockito.verify(response).setContentLength(DATA.length());
+    Mockito.verify(response).setHeader("ETag", ETAG);
+    Mockito.verify(response).setHeader("Accept-Ranges", "bytes");
+    Mockito.verify(response, Mockito.never()).setStatus(Mockito.anyInt());
+  }
+
+  @Test
+  public void testIfNoneMatch() throws Exception {
+    Mockito.when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + ETAG);
+    stream();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    Mockito.verify(contentManager, Mockito.never()).getInputStream(Mockito.anyString(),
+        Mockito.anyString());
+    Assert.assertEquals(0, body.size());
+  }
+
+  @Test
+  public void testSingleRange() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=5-9");
+    stream();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Mockito.verify(response).setHeader("Content-Range", "bytes 5-9/20");
+    Mockito.verify(response).setContentLength(5);
+    Assert.assertEquals("56789", body.toString("UTF-8"));
+  }
+
+  @Test
+  public void testSuffixRangeFromFile() throws Exception {
+    File file = File.createTempFile("streamhelper", ".txt");
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(DATA.getBytes("UTF-8"));
+      out.close();
+      Mockito.when(contentManager.getInputStream("pooled", null)).thenReturn(
+          new FileInputStream(file));
+      Mockito.when(request.getHeader("Range")).thenReturn("bytes=-4");
+      stream();
+      Mockito.verify(response).setHeader("Content-Range", "bytes 16-19/20");
+      Assert.assertEquals("ghij", body.toString("UTF-8"));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testMultipleRanges() throws Exception {
+    // out of order and overlapping ranges are sorted and merged
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=15-,0-1,1-2");
+    stream();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    String multipart = body.toString("UTF-8");
+    Assert.assertTrue(multipart.contains("Content-Range: bytes 0-2/20\r\n\r\n012\r\n"));
+    Assert.assertTrue(multipart.contains("Content-Range: bytes 15-19/20\r\n\r\nfghij\r\n"));
+    Assert.assertTrue(multipart.endsWith("--\r\n"));
+  }
+
+  @Test
+  public void testUnsatisfiableRange() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=30-40");
+    stream();
+    Mockito.verify(response).setHeader("Content-Range", "bytes */20");
+    Mockito.verify(response).sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+    Assert.assertEquals(0, body.size());
+  }
+
+  @Test
+  public void testIfRangeMismatch() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=5-9");
+    Mockito.when(request.getHeader("If-Range")).thenReturn("\"stale\"");
+    stream();
+    Assert.assertEquals(DATA, body.toString("UTF-8"));
+    Mockito.verify(response).setContentLength(DATA.length());
+  }
+}
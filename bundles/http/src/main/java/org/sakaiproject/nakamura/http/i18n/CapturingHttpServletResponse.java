@@ -33,6 +33,7 @@ import javax.servlet.http.HttpServletResponseWrapper;
 public class CapturingHttpServletResponse extends HttpServletResponseWrapper {
   private final CharArrayWriter caw;
   private final ByteArrayOutputStream baos;
+  private long lastModified = -1;
 
   public CapturingHttpServletResponse(HttpServletResponse response) {
     super(response);
@@ -64,6 +65,43 @@ public class CapturingHttpServletResponse extends HttpServletResponseWrapper {
     return new PrintWriter(caw);
   }
 
+  /**
+   * The length of the captured content is not the length of the filtered content.
+   */
+  @Override
+  public void setContentLength(int len) {
+  }
+
+  @Override
+  public void setHeader(String name, String value) {
+    if (!"Content-Length".equalsIgnoreCase(name)) {
+      super.setHeader(name, value);
+    }
+  }
+
+  @Override
+  public void setDateHeader(String name, long date) {
+    if ("Last-Modified".equalsIgnoreCase(name)) {
+      lastModified = date;
+    }
+    super.setDateHeader(name, date);
+  }
+
+  @Override
+  public void addDateHeader(String name, long date) {
+    if ("Last-Modified".equalsIgnoreCase(name)) {
+      lastModified = date;
+    }
+    super.addDateHeader(name, date);
+  }
+
+  /**
+   * @return the Last-Modified date set on the response, or -1 if none was set.
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
   @Override
   public String toString() {
     String retval = null;
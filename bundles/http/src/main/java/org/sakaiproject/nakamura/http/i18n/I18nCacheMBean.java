@@ -0,0 +1,43 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.i18n;
+
+/**
+ * Statistics of the pages and language bundles cached by the {@link I18nFilter}.
+ */
+public interface I18nCacheMBean {
+
+  long getHits();
+
+  long getMisses();
+
+  /**
+   * @return the number of filtered pages held.
+   */
+  int getSize();
+
+  /**
+   * @return the number of times a language bundle was read from the repository.
+   */
+  long getBundleLoads();
+
+  /**
+   * Drop all cached pages and bundles.
+   */
+  void clear();
+}
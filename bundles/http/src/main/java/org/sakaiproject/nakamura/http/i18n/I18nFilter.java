@@ -20,21 +20,35 @@ package org.sakaiproject.nakamura.http.i18n;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.framework.Constants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -43,6 +57,9 @@ import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.ValueFormatException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -53,36 +70,74 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Filter to transform __MSG_*__ i18n message keys into i18n messages.
+ *
+ * Language bundles are read once and kept until something under the bundles path changes.
+ * Filtered pages that have a Last-Modified date are kept by path, locale and date.
  */
 @Component(metatype = true, enabled=false)
-@Service
+@Service(value = { Filter.class, EventHandler.class })
 @org.apache.felix.scr.annotations.Properties(value = {
     @Property(name = Constants.SERVICE_VENDOR, value = "The Sakai Foundation"),
     @Property(name = Constants.SERVICE_DESCRIPTION, value = "Nakamura i18n Filter"),
     @Property(name = Constants.SERVICE_RANKING, intValue = 10, propertyPrivate = true),
     @Property(name = "sling.filter.scope", value = "REQUEST", propertyPrivate = true),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true),
     @Property(name = I18nFilter.BUNDLES_PATH, value = I18nFilter.DEFAULT_BUNDLES_PATH),
     @Property(name = I18nFilter.MESSAGE_KEY_PATTERN, value = I18nFilter.DEFAULT_MESSAGE_KEY_PATTERN),
-    @Property(name = I18nFilter.SHOW_MISSING_KEYS, boolValue = I18nFilter.DEFAULT_SHOW_MISSING_KEYS)
+    @Property(name = I18nFilter.SHOW_MISSING_KEYS, boolValue = I18nFilter.DEFAULT_SHOW_MISSING_KEYS),
+    @Property(name = I18nFilter.CACHE_SIZE, intValue = I18nFilter.DEFAULT_CACHE_SIZE)
 })
-public class I18nFilter implements Filter {
+public class I18nFilter implements Filter, EventHandler, I18nCacheMBean {
   public static final String PARAM_LANGUAGE = "l";
   public static final String DEFAULT_BUNDLES_PATH = "/dev/bundle";
   public static final String DEFAULT_MESSAGE_KEY_PATTERN = "__MSG__(.+?)__";
   public static final boolean DEFAULT_SHOW_MISSING_KEYS = true;
+  public static final int DEFAULT_CACHE_SIZE = 200;
 
   private static final Logger logger = LoggerFactory.getLogger(I18nFilter.class);
 
   static final String BUNDLES_PATH = "sakai.filter.i18n.bundles.path";
   static final String MESSAGE_KEY_PATTERN = "sakai.filter.i18n.message_key.pattern";
   static final String SHOW_MISSING_KEYS = "sakai.filter.i18n.message_key.show_missing";
+  static final String CACHE_SIZE = "sakai.filter.i18n.cache.size";
+
+  private static final String DEFAULT_BUNDLE = "default";
 
   private String bundlesPath;
   private String keyPattern;
   private Pattern messageKeyPattern;
   private boolean showMissingKeys;
 
-  @Activate @Modified
+  /**
+   * Parsed language bundles by name, eg en_US or default. Names without a bundle are not
+   * kept.
+   */
+  private final Map<String, Map<String, String>> bundles = new ConcurrentHashMap<String, Map<String, String>>();
+  private Map<String, String> pages = createPageCache(DEFAULT_CACHE_SIZE);
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong bundleLoads = new AtomicLong();
+  private ObjectName mbeanName;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    modified(props);
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("org.sakaiproject.nakamura.http:type=I18nFilter");
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(new StandardMBean(this, I18nCacheMBean.class), name);
+      mbeanName = name;
+    } catch (Exception e) {
+      logger.debug("Unable to register i18n cache statistics ", e);
+    }
+  }
+
+  @Modified
   public void modified(Map<?, ?> props) {
     bundlesPath = PropertiesUtil.toString(props.get(BUNDLES_PATH), DEFAULT_BUNDLES_PATH);
 
@@ -92,6 +147,47 @@ public class I18nFilter implements Filter {
 
     showMissingKeys = PropertiesUtil.toBoolean(props.get(SHOW_MISSING_KEYS),
         DEFAULT_SHOW_MISSING_KEYS);
+
+    pages = createPageCache(PropertiesUtil.toInteger(props.get(CACHE_SIZE),
+        DEFAULT_CACHE_SIZE));
+    bundles.clear();
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (Exception e) {
+        logger.debug("Unable to unregister {} ", mbeanName, e);
+      }
+      mbeanName = null;
+    }
+  }
+
+  private static Map<String, String> createPageCache(final int maxSize) {
+    return Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > maxSize;
+      }
+    });
+  }
+
+  // ---------- EventHandler interface ----------
+  /**
+   * Drop the cached bundles, and the pages filtered with them, when a bundle changes.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path != null && path.startsWith(bundlesPath)) {
+      logger.debug("Language bundles changed at {} ", path);
+      clear();
+    }
   }
 
   // ---------- Filter interface ----------
@@ -131,11 +227,11 @@ public class I18nFilter implements Filter {
     String path = srequest.getPathInfo();
 
     // check that the path is something we should filter.
-    boolean filter = false;
+    CapturingHttpServletResponse capture = null;
     if ((path.startsWith("/dev/") || path.startsWith("/devwidgets/"))
         && path.endsWith(".html")) {
-      httpResponse = new CapturingHttpServletResponse(httpResponse);
-      filter = true;
+      capture = new CapturingHttpServletResponse(httpResponse);
+      httpResponse = capture;
     }
 
     // allow the chain to process so we can capture the response
@@ -143,12 +239,12 @@ public class I18nFilter implements Filter {
 
     // if the path was set to be filtered, get the output and filter it
     // otherwise the response isn't wrapped and doesn't require us to intervene
-    if (filter) {
-      String output = httpResponse.toString();
+    if (capture != null) {
+      String output = capture.toString();
       if (!StringUtils.isBlank(output)) {
         long start = System.currentTimeMillis();
 
-        writeFilteredResponse(srequest, response, output);
+        writeFilteredResponse(srequest, response, output, path, capture.getLastModified());
 
         long end = System.currentTimeMillis();
         logger.debug("Filtered {} in {}ms", path, (end - start));
@@ -163,65 +259,105 @@ public class I18nFilter implements Filter {
    * @param srequest
    * @param response
    * @param output
+   * @param path
+   * @param lastModified
+   *          the Last-Modified date of the output, or -1 if it has none, in which case
+   *          the filtered output is not cached.
    * @throws IOException
    */
   private void writeFilteredResponse(SlingHttpServletRequest srequest,
-      ServletResponse response, String output) throws IOException {
-    StringBuilder sb = new StringBuilder(output);
+      ServletResponse response, String output, String path, long lastModified)
+      throws IOException {
+    Locale locale = getLocale(srequest);
+    String cacheKey = null;
+    if (lastModified >= 0) {
+      cacheKey = path + ";" + locale + ";" + lastModified;
+      String filtered = pages.get(cacheKey);
+      if (filtered != null) {
+        hits.incrementAndGet();
+        write(response, filtered);
+        return;
+      }
+      misses.incrementAndGet();
+    }
+
+    Map<String, String> bndLang = Collections.emptyMap();
+    Map<String, String> bndLangDefault = Collections.emptyMap();
+    boolean bundlesLoaded = false;
     try {
       Session session = srequest.getResourceResolver().adaptTo(Session.class);
-      Node bundlesNode = session.getNode(bundlesPath);
-
-      // load the language bundle
-      Locale locale = getLocale(srequest);
-      Properties bndLang = getLangBundle(bundlesNode, locale.toString());
-
-      // load the default bundle
-      Properties bndLangDefault = getLangBundle(bundlesNode, "default");
-
-      // check for message keys and replace them with the appropriate message
-      Matcher m = messageKeyPattern.matcher(output);
-      ArrayList<String> matchedKeys = new ArrayList<String>();
-      while (m.find()) {
-        String msgKey = m.group(0);
-        String key = m.group(1);
-        if (!matchedKeys.contains(key)) {
-          String message = "";
-
-          if (bndLang.containsKey(key)) {
-            message = bndLang.getProperty(key);
-          } else if (bndLangDefault.containsKey(key)) {
-            message = bndLangDefault.getProperty(key);
-          } else {
-            String msg = "[MESSAGE KEY NOT FOUND '" + key + "']";
-            logger.warn(msg);
-            if (showMissingKeys) {
-              message = msg;
-            }
-          }
-
-          // replace all instances of msgKey with the actual message
-          int keyStart = sb.indexOf(msgKey);
-          while (keyStart >= 0) {
-            sb.replace(keyStart, keyStart + msgKey.length(), message);
-            keyStart = sb.indexOf(msgKey, keyStart);
-          }
-
-          // track the group so we don't try to replace it again
-          matchedKeys.add(key);
-        }
-      }
+      // load the language bundle, and the default bundle
+      bndLang = getLangBundle(session, locale.toString());
+      bndLangDefault = getLangBundle(session, DEFAULT_BUNDLE);
+      bundlesLoaded = true;
     } catch (RepositoryException e) {
       logger.error(e.getMessage(), e);
     }
+    if (!bundlesLoaded) {
+      // leave the keys in place, as there is nothing to replace them with
+      write(response, output);
+      return;
+    }
 
-    response.setContentLength(sb.length());
+    if (cacheKey == null) {
+      Writer writer = getWriter(response);
+      filter(output, bndLang, bndLangDefault, writer);
+      writer.flush();
+    } else {
+      StringBuilder sb = new StringBuilder(output.length());
+      filter(output, bndLang, bndLangDefault, sb);
+      String filtered = sb.toString();
+      pages.put(cacheKey, filtered);
+      write(response, filtered);
+    }
+  }
 
-    // send the output to the actual response
+  /**
+   * Copy output to out in a single pass, replacing message keys as they are found.
+   */
+  private void filter(String output, Map<String, String> bndLang,
+      Map<String, String> bndLangDefault, Appendable out) throws IOException {
+    Set<String> missingKeys = null;
+    Matcher m = messageKeyPattern.matcher(output);
+    int last = 0;
+    while (m.find()) {
+      out.append(output, last, m.start());
+      last = m.end();
+      String key = m.group(1);
+      String message = bndLang.get(key);
+      if (message == null) {
+        message = bndLangDefault.get(key);
+      }
+      if (message == null) {
+        String msg = "[MESSAGE KEY NOT FOUND '" + key + "']";
+        if (missingKeys == null) {
+          missingKeys = new HashSet<String>();
+        }
+        if (missingKeys.add(key)) {
+          logger.warn(msg);
+        }
+        message = showMissingKeys ? msg : "";
+      }
+      out.append(message);
+    }
+    out.append(output, last, output.length());
+  }
+
+  private void write(ServletResponse response, String filtered) throws IOException {
+    Writer writer = getWriter(response);
+    writer.write(filtered);
+    writer.flush();
+  }
+
+  /**
+   * @return the writer of the response, or a UTF-8 writer on its output stream if the
+   *         stream is already in use.
+   */
+  private Writer getWriter(ServletResponse response) throws IOException {
     try {
-      response.getWriter().write(sb.toString());
+      return response.getWriter();
     } catch (IllegalStateException e) {
-      response.getOutputStream().write(sb.toString().getBytes("UTF-8"));
+      return new OutputStreamWriter(response.getOutputStream(), "UTF-8");
     }
   }
 
@@ -231,7 +367,7 @@ public class I18nFilter implements Filter {
 
     if (lang != null) {
       String[] parts = lang.split("_");
-      l = new Locale(parts[0], parts[1]);
+      l = (parts.length > 1) ? new Locale(parts[0], parts[1]) : new Locale(parts[0]);
     } else {
       l = request.getLocale();
     }
@@ -239,15 +375,69 @@ public class I18nFilter implements Filter {
     return l;
   }
 
-  private Properties getLangBundle(Node bundlesNode, String name)
+  /**
+   * The name comes from the request, so only bundles that exist are kept, which bounds
+   * the cache by the bundles in the repository rather than by what clients ask for.
+   *
+   * @return the parsed bundle, empty if there is no bundle for that name.
+   */
+  private Map<String, String> getLangBundle(Session session, String name)
+      throws RepositoryException {
+    Map<String, String> bundle = bundles.get(name);
+    if (bundle == null) {
+      try {
+        Node bundlesNode = session.getNode(bundlesPath);
+        bundle = loadLangBundle(bundlesNode, name);
+      } catch (PathNotFoundException e) {
+        logger.debug("No language bundle {} ", name);
+        return Collections.emptyMap();
+      } catch (IOException e) {
+        throw new RepositoryException(e.getMessage(), e);
+      }
+      bundles.put(name, bundle);
+    }
+    return bundle;
+  }
+
+  private Map<String, String> loadLangBundle(Node bundlesNode, String name)
       throws PathNotFoundException, RepositoryException, ValueFormatException,
       IOException {
+    bundleLoads.incrementAndGet();
     Node langNode = bundlesNode.getNode(name + ".properties");
     Node content = langNode.getNode("jcr:content");
     Properties props = new Properties();
     InputStream in = content.getProperty("jcr:data").getBinary().getStream();
-    props.load(in);
-    in.close();
-    return props;
+    try {
+      props.load(in);
+    } finally {
+      in.close();
+    }
+    Map<String, String> bundle = new HashMap<String, String>();
+    for (String key : props.stringPropertyNames()) {
+      bundle.put(key, props.getProperty(key));
+    }
+    return Collections.unmodifiableMap(bundle);
+  }
+
+  // ---------- I18nCacheMBean interface ----------
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public int getSize() {
+    return pages.size();
+  }
+
+  public long getBundleLoads() {
+    return bundleLoads.get();
+  }
+
+  public void clear() {
+    bundles.clear();
+    pages.clear();
   }
 }
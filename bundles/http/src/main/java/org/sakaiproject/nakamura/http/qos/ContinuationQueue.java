@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import org.mortbay.util.ajax.Continuation;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The suspended requests of one priority. When fair, each user gets its own queue and the
+ * users are served round robin, so one user with many requests in flight cannot starve
+ * the others at the same priority.
+ */
+public class ContinuationQueue {
+
+  private final boolean fair;
+  private final Queue<Continuation> fifo = new ConcurrentLinkedQueue<Continuation>();
+  private final Map<String, Queue<Continuation>> byUser = new HashMap<String, Queue<Continuation>>();
+  private final Queue<String> users = new LinkedList<String>();
+  private int size;
+
+  public ContinuationQueue(boolean fair) {
+    this.fair = fair;
+  }
+
+  public void add(String user, Continuation continuation) {
+    if (!fair || user == null) {
+      fifo.add(continuation);
+      return;
+    }
+    synchronized (this) {
+      Queue<Continuation> queue = byUser.get(user);
+      if (queue == null) {
+        queue = new LinkedList<Continuation>();
+        byUser.put(user, queue);
+        users.add(user);
+      }
+      queue.add(continuation);
+      size++;
+    }
+  }
+
+  /**
+   * @return the next continuation, requests without a user go first, or null if there
+   *         are none.
+   */
+  public Continuation poll() {
+    Continuation continuation = fifo.poll();
+    if (continuation != null || !fair) {
+      return continuation;
+    }
+    synchronized (this) {
+      String user = users.poll();
+      if (user == null) {
+        return null;
+      }
+      Queue<Continuation> queue = byUser.get(user);
+      continuation = queue.poll();
+      size--;
+      if (queue.isEmpty()) {
+        byUser.remove(user);
+      } else {
+        // back of the line until every other user has had a turn
+        users.add(user);
+      }
+      return continuation;
+    }
+  }
+
+  public int size() {
+    if (!fair) {
+      return fifo.size();
+    }
+    synchronized (this) {
+      return fifo.size() + size;
+    }
+  }
+}
@@ -19,24 +19,91 @@ package org.sakaiproject.nakamura.http.qos;
 
 import org.mortbay.util.ajax.Continuation;
 
-import java.util.Queue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletRequest;
 
-public class QoSControl {
+/**
+ * The permits and statistics of one QoS category. When adaptive, the number of permits
+ * follows the observed latency: it grows by one each time a full limit of requests
+ * completes close to the best latency seen while the permits are in use, and is cut by
+ * the backoff ratio when the smoothed latency exceeds that best by more than the
+ * tolerance.
+ */
+public class QoSControl implements QoSControlMBean {
+
+  /**
+   * The best latency is forgotten after this many samples, so that it can follow a
+   * change in the real no load latency.
+   */
+  private static final int MIN_LATENCY_WINDOW = 1000;
+
+  private final String name;
+  private final AdjustableSemaphore semaphore;
+  private final int priority;
+  private final ContinuationQueue[] priorityQueue;
+  private final long timeout;
 
-  private Semaphore semaphore;
-  private int priority;
-  private Queue<Continuation>[] priorityQueue;
-  private long timeout;
+  private boolean adaptive;
+  private int minLimit;
+  private int maxLimit;
+  private double tolerance;
+  private double backoff;
+  private int maxQueued;
 
-  public QoSControl(Queue<Continuation>[] priorityQueue, int nRequests, int priority,
-      long timeout) {
-    semaphore = new Semaphore(nRequests, true);
+  private volatile int limit;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong totalWait = new AtomicLong();
+  private final AtomicLong maxWait = new AtomicLong();
+
+  // guarded by this
+  private double smoothedLatency;
+  private long minLatency = Long.MAX_VALUE;
+  private long windowMinLatency = Long.MAX_VALUE;
+  private int samples;
+  private int increaseCredit;
+  private long lastDecrease;
+
+  public QoSControl(String name, ContinuationQueue[] priorityQueue, int nRequests,
+      int priority, long timeout) {
+    this.name = name;
+    this.limit = nRequests;
+    semaphore = new AdjustableSemaphore(nRequests);
     this.priority = priority;
     this.priorityQueue = priorityQueue.clone();
     this.timeout = timeout;
+    this.maxLimit = nRequests;
+  }
+
+  /**
+   * Let the limit move between minLimit and maxLimit, starting from the configured number
+   * of requests.
+   *
+   * @param tolerance
+   *          the ratio of smoothed to best latency above which the limit is cut.
+   * @param backoff
+   *          the ratio the limit is multiplied by when cut.
+   */
+  public void setAdaptive(int minLimit, int maxLimit, double tolerance, double backoff) {
+    this.adaptive = true;
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.tolerance = tolerance;
+    this.backoff = backoff;
+  }
+
+  /**
+   * @param maxQueued
+   *          the number of suspended requests above which new requests are rejected
+   *          straight away, 0 for no limit.
+   */
+  public void setMaxQueued(int maxQueued) {
+    this.maxQueued = maxQueued;
   }
 
   public Semaphore getSemaphore() {
@@ -47,7 +114,7 @@ public class QoSControl {
     return priority;
   }
 
-  public Queue<Continuation>[] getPriorityQueue() {
+  public ContinuationQueue[] getPriorityQueue() {
     return priorityQueue;
   }
 
@@ -55,4 +122,145 @@ public class QoSControl {
     return timeout;
   }
 
+  /**
+   * @return true if the queue is so long that a new request would time out in it, so it
+   *         should be rejected now.
+   */
+  public boolean isOverloaded() {
+    return maxQueued > 0 && queued.get() >= maxQueued;
+  }
+
+  void queued(String user, Continuation continuation, int priority) {
+    queued.incrementAndGet();
+    priorityQueue[priority].add(user, continuation);
+  }
+
+  void dequeued() {
+    queued.decrementAndGet();
+  }
+
+  /**
+   * @param waited
+   *          the time the request waited for its permit, or -1 if it had one already.
+   */
+  void accepted(long waited) {
+    inFlight.incrementAndGet();
+    if (waited < 0) {
+      return;
+    }
+    accepted.incrementAndGet();
+    totalWait.addAndGet(waited);
+    long max = maxWait.get();
+    while (waited > max && !maxWait.compareAndSet(max, waited)) {
+      max = maxWait.get();
+    }
+  }
+
+  void rejected() {
+    rejected.incrementAndGet();
+  }
+
+  /**
+   * Give back the permit of a request that held it for latency ms.
+   */
+  void released(long latency) {
+    sample(latency);
+    inFlight.decrementAndGet();
+    semaphore.release();
+  }
+
+  private synchronized void sample(long latency) {
+    smoothedLatency = (samples == 0) ? latency : smoothedLatency * 0.9 + latency * 0.1;
+    windowMinLatency = Math.min(windowMinLatency, latency);
+    if (++samples % MIN_LATENCY_WINDOW == 0) {
+      minLatency = windowMinLatency;
+      windowMinLatency = Long.MAX_VALUE;
+    }
+    if (!adaptive) {
+      return;
+    }
+    long best = Math.max(1, Math.min(minLatency, windowMinLatency));
+    long now = System.currentTimeMillis();
+    if (smoothedLatency > best * tolerance) {
+      // cut at most once per latency, the requests in flight have not seen the last cut
+      if (now - lastDecrease > smoothedLatency) {
+        lastDecrease = now;
+        increaseCredit = 0;
+        setLimit(Math.max(minLimit, Math.min(limit - 1, (int) (limit * backoff))));
+      }
+    } else if (inFlight.get() * 2 >= limit && ++increaseCredit >= limit) {
+      increaseCredit = 0;
+      setLimit(Math.min(maxLimit, limit + 1));
+    }
+  }
+
+  private void setLimit(int newLimit) {
+    int delta = newLimit - limit;
+    limit = newLimit;
+    if (delta > 0) {
+      semaphore.release(delta);
+    } else if (delta < 0) {
+      semaphore.reducePermits(-delta);
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  public int getQueueLength() {
+    return queued.get();
+  }
+
+  public long getAcceptedCount() {
+    return accepted.get();
+  }
+
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  public long getAverageWaitTime() {
+    long n = accepted.get();
+    return (n == 0) ? 0 : totalWait.get() / n;
+  }
+
+  public long getMaxWaitTime() {
+    return maxWait.get();
+  }
+
+  public synchronized long getAverageLatency() {
+    return (long) smoothedLatency;
+  }
+
+  public void resetStatistics() {
+    accepted.set(0);
+    rejected.set(0);
+    totalWait.set(0);
+    maxWait.set(0);
+  }
+
+  /**
+   * Exposes reducePermits so the limit can shrink without waiting for requests to finish.
+   */
+  private static class AdjustableSemaphore extends Semaphore {
+    private static final long serialVersionUID = 1L;
+
+    AdjustableSemaphore(int permits) {
+      super(permits, true);
+    }
+
+    @Override
+    protected void reducePermits(int reduction) {
+      super.reducePermits(reduction);
+    }
+  }
 }
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+/**
+ * Statistics for one QoS category.
+ */
+public interface QoSControlMBean {
+
+  /**
+   * @return the category, method:firstPathElement or default.
+   */
+  String getName();
+
+  /**
+   * @return the number of requests that may run concurrently, adjusted from the observed
+   *         latency when adaptive.
+   */
+  int getLimit();
+
+  int getInFlight();
+
+  /**
+   * @return the number of requests of this category that are suspended, waiting for a
+   *         permit.
+   */
+  int getQueueLength();
+
+  long getAcceptedCount();
+
+  /**
+   * @return the number of requests sent a 503, either shed on arrival or timed out in the
+   *         queue.
+   */
+  long getRejectedCount();
+
+  /**
+   * @return the mean time accepted requests waited for a permit, in ms.
+   */
+  long getAverageWaitTime();
+
+  long getMaxWaitTime();
+
+  /**
+   * @return the smoothed time requests hold a permit, in ms.
+   */
+  long getAverageLatency();
+
+  void resetStatistics();
+}
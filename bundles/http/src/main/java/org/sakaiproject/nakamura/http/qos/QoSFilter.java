@@ -34,12 +34,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -52,6 +55,8 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * Provides a configurable QoS filter that manages request in and out of the server, based on number of concurrent requests. Pending requests are prioritiezed into queue, taken out of the queue based on priority and time of entry. If the request does not match any Quality of Service Configuration, the default configuration will be used.
  * Configuration is via the
+ * component properties. In adaptive mode the limit of each category follows the latency of its requests,
+ * and the statistics of each category are published over JMX.
  */
 @Component(immediate = true, metatype = true)
 @Properties(value = {
@@ -105,6 +110,45 @@ public class QoSFilter implements Filter {
    */
   @Property(value={})
   private static final String QOS_CATEGORIES_CONFIG = "qos.categories";
+  /**
+   * Serve the suspended requests of each priority round robin by user, rather than in
+   * order of arrival.
+   */
+  @Property(boolValue=false)
+  private static final String QOS_FAIR_CONF = "qos.fair";
+  /**
+   * Adjust the limit of each category from the latency of its requests, the configured
+   * limit is the starting point.
+   */
+  @Property(boolValue=false)
+  private static final String QOS_ADAPTIVE_CONF = "qos.adaptive";
+  /**
+   * The lowest limit an adaptive category will go down to.
+   */
+  @Property(intValue=2)
+  private static final String QOS_ADAPTIVE_MIN_LIMIT_CONF = "qos.adaptive.minLimit";
+  /**
+   * The highest limit an adaptive category will go up to.
+   */
+  @Property(intValue=200)
+  private static final String QOS_ADAPTIVE_MAX_LIMIT_CONF = "qos.adaptive.maxLimit";
+  /**
+   * The limit is cut when the smoothed latency is more than this many times the best
+   * recent latency.
+   */
+  @Property(doubleValue=2.0)
+  private static final String QOS_ADAPTIVE_TOLERANCE_CONF = "qos.adaptive.tolerance";
+  /**
+   * The ratio a limit is multiplied by when cut.
+   */
+  @Property(doubleValue=0.9)
+  private static final String QOS_ADAPTIVE_BACKOFF_CONF = "qos.adaptive.backoff";
+  /**
+   * The number of suspended requests per category above which new requests are rejected
+   * straight away rather than left to time out, 0 for no limit.
+   */
+  @Property(intValue=0)
+  private static final String QOS_MAX_QUEUED_CONF = "qos.queue.max";
   private static final Logger LOGGER = LoggerFactory.getLogger(QoSFilter.class);
   private String suspendedAttributeName=this.getClass().getName()+this.hashCode();
 
@@ -114,9 +158,10 @@ public class QoSFilter implements Filter {
   private long waitMs;
 
 
-  private Queue<Continuation>[] priorityQueue;
+  private ContinuationQueue[] priorityQueue;
   private QoSControl defaultQoSControl;
   private Map<String, QoSControl> qoSControMap = new ConcurrentHashMap<String, QoSControl>();
+  private List<ObjectName> mbeanNames = new ArrayList<ObjectName>();
 
   public void init(FilterConfig filterConfig) throws ServletException {
   }
@@ -134,12 +179,17 @@ public class QoSFilter implements Filter {
         accepted = qoSToken.acquire(waitMs);
         if (accepted) {
           request.setAttribute(suspendedAttributeName, Boolean.FALSE);
+        } else if (qoSToken instanceof QoSTokenImpl && ((QoSTokenImpl) qoSToken).isOverloaded()) {
+          LOGGER.debug("Shedding request, queue is full");
         } else {
           LOGGER.debug("Suspending request");
           request.setAttribute(suspendedAttributeName, Boolean.TRUE);
           Continuation continuation = ContinuationSupport.getContinuation((HttpServletRequest)request, qoSToken.getMutex());
-          continuation.suspend(qoSToken.getSuspendTime());
+          // queue before suspending, a retry continuation does not return from suspend.
           qoSToken.queue(continuation);
+          continuation.suspend(qoSToken.getSuspendTime());
+          // a waiting continuation returns once resumed or timed out
+          doFilter(request, response, chain);
           return;
         }
       } else {
@@ -147,7 +197,8 @@ public class QoSFilter implements Filter {
 
         if (suspended.booleanValue()) {
           request.setAttribute(suspendedAttributeName, Boolean.FALSE);
-          if (request.getAttribute("javax.servlet.resumed") == Boolean.TRUE) {
+          Continuation continuation = ContinuationSupport.getContinuation((HttpServletRequest)request, qoSToken.getMutex());
+          if (request.getAttribute("javax.servlet.resumed") == Boolean.TRUE || continuation.isResumed()) {
             qoSToken.acquire();
             accepted = true;
           } else {
@@ -164,13 +215,11 @@ public class QoSFilter implements Filter {
       if (accepted) {
         chain.doFilter(request, response);
       } else {
-        ((HttpServletResponse) response)
-            .sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        reject(qoSToken, response);
       }
     } catch (InterruptedException e) {
       LOGGER.warn("QoS", e);
-      ((HttpServletResponse) response)
-          .sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      reject(qoSToken, response);
     } finally {
       if (accepted) {
         qoSToken.release();
@@ -178,6 +227,14 @@ public class QoSFilter implements Filter {
     }
   }
 
+  private void reject(QoSToken qoSToken, ServletResponse response) throws IOException {
+    if (qoSToken instanceof QoSTokenImpl) {
+      ((QoSTokenImpl) qoSToken).rejected();
+    }
+    ((HttpServletResponse) response)
+        .sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+  }
+
   private QoSToken getQoSControl(ServletRequest request) {
     QoSToken control = (QoSToken) request.getAttribute(QoSToken.CONTROL_ATTR);
     if  ( control != null ) {
@@ -218,9 +275,10 @@ public class QoSFilter implements Filter {
 
     long defaultTimeout = PropertiesUtil.toInteger(properties.get(QOS_TIMEOUT_CONFIG),-1);
     int maxPriorityNumber = PropertiesUtil.toInteger(properties.get(QOS_MAX_PRIORITY_CONF),2);
-    priorityQueue = new Queue[maxPriorityNumber+1];
+    boolean fair = PropertiesUtil.toBoolean(properties.get(QOS_FAIR_CONF), false);
+    priorityQueue = new ContinuationQueue[maxPriorityNumber+1];
     for ( int i = 0; i < priorityQueue.length; i++ ) {
-      priorityQueue[i] = new ConcurrentLinkedQueue<Continuation>();
+      priorityQueue[i] = new ContinuationQueue(fair);
     }
 
     // path, max requests, priority, timeout
@@ -231,11 +289,11 @@ public class QoSFilter implements Filter {
         String[] settings = StringUtils.split(qosLocation,";");
         if ( settings != null ) {
           if ( settings.length > 3 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
+            qoSControMap.put(settings[0], new QoSControl(settings[0], priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
           } else if ( settings.length > 2 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
+            qoSControMap.put(settings[0], new QoSControl(settings[0], priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
           } else if ( settings.length > 1 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
+            qoSControMap.put(settings[0], new QoSControl(settings[0], priorityQueue, Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
           }
         }
       }
@@ -247,7 +305,23 @@ public class QoSFilter implements Filter {
     long qosDefaultTimeout = PropertiesUtil.toLong(properties.get(QOS_DEFAULT_REQUEST_TIMEOUT_CONF),defaultTimeout);
     waitMs = PropertiesUtil.toLong(properties.get(QOS_SEMAPHOREWAIT_CONF),50);
 
-    defaultQoSControl = new QoSControl(priorityQueue, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
+    defaultQoSControl = new QoSControl("default", priorityQueue, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
+
+    List<QoSControl> controls = new ArrayList<QoSControl>(qoSControMap.values());
+    controls.add(defaultQoSControl);
+    boolean adaptive = PropertiesUtil.toBoolean(properties.get(QOS_ADAPTIVE_CONF), false);
+    int minLimit = PropertiesUtil.toInteger(properties.get(QOS_ADAPTIVE_MIN_LIMIT_CONF), 2);
+    int maxLimit = PropertiesUtil.toInteger(properties.get(QOS_ADAPTIVE_MAX_LIMIT_CONF), 200);
+    double tolerance = PropertiesUtil.toDouble(properties.get(QOS_ADAPTIVE_TOLERANCE_CONF), 2.0);
+    double backoff = PropertiesUtil.toDouble(properties.get(QOS_ADAPTIVE_BACKOFF_CONF), 0.9);
+    int maxQueued = PropertiesUtil.toInteger(properties.get(QOS_MAX_QUEUED_CONF), 0);
+    for (QoSControl control : controls) {
+      if (adaptive) {
+        control.setAdaptive(minLimit, maxLimit, tolerance, backoff);
+      }
+      control.setMaxQueued(maxQueued);
+    }
+    registerMBeans(controls);
 
     int filterPriority = PropertiesUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),10);
 
@@ -258,14 +332,44 @@ public class QoSFilter implements Filter {
   @Deactivate
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
+    unregisterMBeans();
     // resume any continuations held by the filter
     for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();
-        break;
+      for (Continuation continutaion = priorityQueue[p].poll(); continutaion != null; continutaion = priorityQueue[p].poll()) {
+        if (continutaion.isPending()) {
+          continutaion.resume();
+        }
+      }
+    }
+  }
+
+  private void registerMBeans(List<QoSControl> controls) {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (QoSControl control : controls) {
+      try {
+        ObjectName name = new ObjectName("org.sakaiproject.nakamura.http:type=QoS,category="
+            + ObjectName.quote(control.getName()));
+        if (mBeanServer.isRegistered(name)) {
+          mBeanServer.unregisterMBean(name);
+        }
+        mBeanServer.registerMBean(control, name);
+        mbeanNames.add(name);
+      } catch (Exception e) {
+        LOGGER.debug("Unable to register QoS statistics for {} ", control.getName(), e);
+      }
+    }
+  }
+
+  private void unregisterMBeans() {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName name : mbeanNames) {
+      try {
+        mBeanServer.unregisterMBean(name);
+      } catch (Exception e) {
+        LOGGER.debug("Unable to unregister {} ", name, e);
       }
     }
+    mbeanNames.clear();
   }
 
 }
@@ -20,36 +20,59 @@ package org.sakaiproject.nakamura.http.qos;
 import org.mortbay.util.ajax.Continuation;
 import org.sakaiproject.nakamura.api.http.qos.QoSToken;
 
-import java.util.Queue;
 import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
 
 public class QoSTokenImpl implements QoSToken {
 
   private QoSControl qoSControl;
   private int priority;
+  private String user;
+  private long created;
+  private long acquired;
+  private boolean waiting;
 
   public QoSTokenImpl(QoSControl qoSControl, ServletRequest request) {
     this.qoSControl = qoSControl;
     priority = qoSControl.getPriority(request);
+    created = System.currentTimeMillis();
+    user = getUser(request);
   }
 
+  /**
+   * Authentication happens after this filter, so requests are only told apart by the
+   * remote user the container knows of, or by the client address.
+   */
+  private String getUser(ServletRequest request) {
+    if (request instanceof HttpServletRequest) {
+      String remoteUser = ((HttpServletRequest) request).getRemoteUser();
+      if (remoteUser != null) {
+        return remoteUser;
+      }
+    }
+    return request.getRemoteAddr();
+  }
 
   public Object getMutex() {
     return this;
   }
 
   public void release() {
-    Queue<Continuation>[] priorityQueue = qoSControl.getPriorityQueue();
+    ContinuationQueue[] priorityQueue = qoSControl.getPriorityQueue();
     for (int p = priorityQueue.length; p-- > 0;) {
       Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
+      // skip requests that have already timed out in the queue
+      while (continutaion != null && !continutaion.isPending()) {
+        continutaion = priorityQueue[p].poll();
+      }
+      if (continutaion != null) {
         continutaion.resume();// this assumes only 1 will be resumed, that may not be right and we might want to think how the proprity queues are managed.
         break;
       }
     }
-    qoSControl.getSemaphore().release();
+    qoSControl.released(System.currentTimeMillis() - acquired);
   }
 
   public long getSuspendTime() {
@@ -57,15 +80,52 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void queue(Continuation continuation) {
-    qoSControl.getPriorityQueue()[priority].add(continuation);
+    waiting = true;
+    qoSControl.queued(user, continuation, priority);
   }
 
   public boolean acquire(long waitMs) throws InterruptedException {
-    return qoSControl.getSemaphore().tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+    dequeue();
+    boolean accepted = qoSControl.getSemaphore().tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+    if (accepted) {
+      accepted();
+    }
+    return accepted;
   }
 
   public void acquire() throws InterruptedException {
+    dequeue();
     qoSControl.getSemaphore().acquire();
+    accepted();
+  }
+
+  /**
+   * @return true if the category has so many suspended requests that this one should be
+   *         rejected rather than queued.
+   */
+  public boolean isOverloaded() {
+    return qoSControl.isOverloaded();
+  }
+
+  /**
+   * Record that the request was sent a 503.
+   */
+  public void rejected() {
+    qoSControl.rejected();
+  }
+
+  private void dequeue() {
+    if (waiting) {
+      waiting = false;
+      qoSControl.dequeued();
+    }
+  }
+
+  private void accepted() {
+    long now = System.currentTimeMillis();
+    // a request resumed by something further down the chain is not waiting for QoS
+    qoSControl.accepted((acquired == 0) ? now - created : -1);
+    acquired = now;
   }
 
 }
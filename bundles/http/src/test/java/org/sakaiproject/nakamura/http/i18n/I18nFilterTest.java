@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.http.i18n;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
@@ -25,6 +26,7 @@ import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -33,6 +35,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.junit.After;
@@ -47,18 +50,21 @@ import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Properties;
 
 import javax.jcr.Binary;
 import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
 import javax.jcr.Property;
 import javax.jcr.Session;
 import javax.servlet.FilterChain;
@@ -343,6 +349,54 @@ public class I18nFilterTest {
     assertTrue(output.contains("Yay, In the language bundle!"));
   }
 
+  @Test
+  public void cacheFilteredPage() throws Exception {
+    when(request.getPathInfo()).thenReturn("/dev/index.html");
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws IOException {
+        HttpServletResponse response = (HttpServletResponse) invocation.getArguments()[1];
+        response.setDateHeader("Last-Modified", 1000L);
+        response.setContentLength(37);
+        response.getWriter().write("<html><body>__MSG__REPLACE_ME__</body></html>");
+        return null;
+      }
+    }).when(chain).doFilter(isA(ServletRequest.class), isA(ServletResponse.class));
+
+    filter.doFilter(request, response, chain);
+    filter.doFilter(request, response, chain);
+
+    String expected = "<html><body>Yay, In the language bundle!</body></html>";
+    assertEquals(expected + expected, sw.toString());
+    assertEquals(1, filter.getMisses());
+    assertEquals(1, filter.getHits());
+    assertEquals(2, filter.getBundleLoads());
+    // the length of the unfiltered page must not reach the client
+    verify(response, times(0)).setContentLength(37);
+
+    // a change to the bundles drops the cache
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(SlingConstants.PROPERTY_PATH, I18nFilter.DEFAULT_BUNDLES_PATH + "/default.properties");
+    filter.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, props));
+    assertEquals(0, filter.getSize());
+  }
+
+  @Test
+  public void missingBundleIsNotCached() throws Exception {
+    when(request.getParameter(I18nFilter.PARAM_LANGUAGE)).thenReturn("xx_YY");
+    when(bundlesNode.getNode("xx_YY.properties")).thenThrow(new PathNotFoundException());
+    when(request.getPathInfo()).thenReturn("/dev/index.html");
+    writeToResponse("__MSG__REPLACE_ME__", false);
+
+    filter.doFilter(request, response, chain);
+    filter.doFilter(request, response, chain);
+
+    String expected = "<html><body>Yay, In the default bundle!</body></html>";
+    assertEquals(expected + expected, sw.toString());
+    // the default bundle is kept, the missing one is looked up again
+    verify(bundlesNode, times(1)).getNode("default.properties");
+    verify(bundlesNode, times(2)).getNode("xx_YY.properties");
+  }
+
   @Test
   public void getLocaleFromRequest() throws Exception {
     // set the locale property in the authorizable
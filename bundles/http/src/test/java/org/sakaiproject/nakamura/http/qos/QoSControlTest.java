@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mortbay.util.ajax.Continuation;
+
+public class QoSControlTest {
+
+  private void round(QoSControl control, int requests, long latency) throws Exception {
+    for (int i = 0; i < requests; i++) {
+      control.getSemaphore().acquire();
+      control.accepted(0);
+    }
+    for (int i = 0; i < requests; i++) {
+      control.released(latency);
+    }
+  }
+
+  @Test
+  public void testAdaptiveLimit() throws Exception {
+    QoSControl control = new QoSControl("get:test",
+        new ContinuationQueue[] { new ContinuationQueue(false) }, 4, 0, 1000);
+    control.setAdaptive(1, 10, 2.0, 0.5);
+
+    for (int i = 0; i < 4; i++) {
+      round(control, 4, 10);
+    }
+    int grown = control.getLimit();
+    assertTrue(grown > 4);
+    assertEquals(grown, control.getSemaphore().availablePermits());
+
+    for (int i = 0; i < 3; i++) {
+      round(control, control.getLimit(), 100);
+    }
+    assertTrue(control.getLimit() < grown);
+    assertEquals(control.getLimit(), control.getSemaphore().availablePermits());
+    assertEquals(0, control.getInFlight());
+  }
+
+  @Test
+  public void testFixedLimit() throws Exception {
+    QoSControl control = new QoSControl("get:test",
+        new ContinuationQueue[] { new ContinuationQueue(false) }, 4, 0, 1000);
+    round(control, 4, 10);
+    round(control, 4, 1000);
+    assertEquals(4, control.getLimit());
+    assertEquals(8, control.getAcceptedCount());
+  }
+
+  @Test
+  public void testFairQueue() {
+    ContinuationQueue queue = new ContinuationQueue(true);
+    Continuation a1 = Mockito.mock(Continuation.class);
+    Continuation a2 = Mockito.mock(Continuation.class);
+    Continuation b1 = Mockito.mock(Continuation.class);
+    queue.add("a", a1);
+    queue.add("a", a2);
+    queue.add("b", b1);
+    assertEquals(3, queue.size());
+    assertSame(a1, queue.poll());
+    assertSame(b1, queue.poll());
+    assertSame(a2, queue.poll());
+    assertNull(queue.poll());
+  }
+
+  @Test
+  public void testMaxQueued() {
+    QoSControl control = new QoSControl("get:test",
+        new ContinuationQueue[] { new ContinuationQueue(false) }, 1, 0, 1000);
+    control.setMaxQueued(1);
+    assertTrue(!control.isOverloaded());
+    control.queued("a", Mockito.mock(Continuation.class), 0);
+    assertTrue(control.isOverloaded());
+    control.dequeued();
+    assertTrue(!control.isOverloaded());
+  }
+}
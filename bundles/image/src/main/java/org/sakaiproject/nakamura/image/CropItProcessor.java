@@ -24,7 +24,6 @@ import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
-import org.apache.sanselan.util.IOUtils;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.sakaiproject.nakamura.api.jcr.JCRConstants;
@@ -34,21 +33,37 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
+import org.sakaiproject.nakamura.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -59,6 +74,22 @@ public class CropItProcessor {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessor.class);
 
+  /**
+   * Images larger than this are refused while they are read.
+   */
+  static final long MAX_IMAGE_BYTES = 100L * 1024L * 1024L;
+
+  /**
+   * Images with more pixels than this are refused before they are decoded, whatever their
+   * compressed size.
+   */
+  static final long MAX_IMAGE_PIXELS = 50L * 1000L * 1000L;
+
+  /**
+   * Scaled images larger than this are not kept in the derived images cache.
+   */
+  static final int MAX_CACHED_IMAGE_BYTES = 256 * 1024;
+
   /**
    *
    * @param session
@@ -87,6 +118,23 @@ public class CropItProcessor {
    */
   public static String[] crop(ResourceResolver resourceResolver, int x, int y, int width, int height,
       List<Dimension> dimensions, String img, String save) throws ImageException, StorageClientException, AccessDeniedException {
+    return crop(resourceResolver, x, y, width, height, dimensions, img, save, null, null);
+  }
+
+  /**
+   * As {@link #crop(ResourceResolver, int, int, int, int, List, String, String)}, reusing
+   * the scaled images that were already derived from the same source, crop and size.
+   *
+   * @param derivedImages
+   *          The encoded scaled images, keyed by source hash, crop and size, or null to
+   *          derive every image. Images over {@link #MAX_CACHED_IMAGE_BYTES} are not kept.
+   * @param scalers
+   *          Scales and encodes the sizes in parallel, or null to do it on the calling
+   *          thread. The caller owns it and shuts it down.
+   */
+  public static String[] crop(ResourceResolver resourceResolver, int x, int y, int width, int height,
+      List<Dimension> dimensions, String img, String save, Cache<byte[]> derivedImages,
+      Executor scalers) throws ImageException, StorageClientException, AccessDeniedException {
 
     Session session = StorageClientUtils.adaptToSession(resourceResolver.adaptTo(javax.jcr.Session.class));
     ContentManager contentManager = session.getContentManager();
@@ -125,18 +173,15 @@ public class CropItProcessor {
 
       }
 
-        if ( in.available() > 100L*1024L*1024L ) {
-          throw new ImageException(406, "Image "+img+" too large to crop > 100MB Si "+in.available());
-        }
         try {
 
-          // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
-          // ImageInfo _and_ the BufferedImage.
-          // I've tried using a BufferedInputStream which allows you to reset, but for BMP
-          // this doesn't help.
-          byte[] bytes = IOUtils.getInputStreamBytes(in);
+          // Only the header is parsed here, the pixels are decoded once below.
+          byte[] bytes = readImageBytes(in, img);
           ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
+          if ((long) info.getWidth() * (long) info.getHeight() > MAX_IMAGE_PIXELS) {
+            throw new ImageException(406, "Image " + img + " too large to crop > "
+                + MAX_IMAGE_PIXELS + " pixels");
+          }
 
           // Set the correct width & height.
           width = (width <= 0) ? info.getWidth() : width;
@@ -149,24 +194,50 @@ public class CropItProcessor {
             height = info.getHeight() - y;
           }
 
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
-
-          // Loop the dimensions and create and save an image for each
-          // one.
+          // Work out every target size and pick up the ones derived before.
+          Dimension[] targets = new Dimension[dimensions.size()];
+          String[] keys = new String[dimensions.size()];
+          byte[][] images = new byte[dimensions.size()][];
+          String sourceHash = (derivedImages == null) ? null : getSourceHash(bytes);
+          int largestWidth = 0;
+          int largestHeight = 0;
+          boolean missing = false;
           for (int i = 0; i < dimensions.size(); i++) {
-
             Dimension d = dimensions.get(i);
+            int iWidth = (d.width <= 0) ? info.getWidth() : d.width;
+            int iHeight = (d.height <= 0) ? info.getHeight() : d.height;
+            targets[i] = new Dimension(iWidth, iHeight);
+            if (sourceHash != null) {
+              keys[i] = sourceHash + ":" + x + "," + y + "," + width + "," + height + ":"
+                  + iWidth + "x" + iHeight;
+              images[i] = derivedImages.get(keys[i]);
+            }
+            if (images[i] == null) {
+              missing = true;
+              largestWidth = Math.max(largestWidth, iWidth);
+              largestHeight = Math.max(largestHeight, iHeight);
+            }
+          }
 
-            // get dimension size
-            int iWidth = d.width;
-            int iHeight = d.height;
-
-            iWidth = (iWidth <= 0) ? info.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? info.getHeight() : iHeight;
+          if (missing) {
+            // Decode only the piece to cut out, at no more than twice the largest size.
+            BufferedImage subImage = decodeRegion(bytes, info, x, y, width, height,
+                largestWidth, largestHeight);
+            scaleAndWriteAll(subImage, info, targets, images, scalers);
+            if (sourceHash != null) {
+              for (int i = 0; i < images.length; i++) {
+                if (images[i] != null && images[i].length <= MAX_CACHED_IMAGE_BYTES) {
+                  derivedImages.put(keys[i], images[i]);
+                }
+              }
+            }
+          }
 
-            // Create the image.
-            byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, imgName, info);
+          // Loop the dimensions and save an image for each one.
+          for (int i = 0; i < dimensions.size(); i++) {
+            int iWidth = targets[i].width;
+            int iHeight = targets[i].height;
+            byte[] image = images[i];
 
             if ( image != null ) {
 
@@ -185,10 +256,6 @@ public class CropItProcessor {
           LOGGER.error("Can't parse this format. Image {}, mime Type {} :{}", new Object[]{img, mimeType, e.getMessage()});
           LOGGER.debug("Cause: ", e);
           throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
-        } catch (ImageWriteException e) {
-          LOGGER.error("Can't crop this Image {}, mime Type {}  :{} ", new Object[]{img, mimeType, e.getMessage()});
-          LOGGER.debug("Cause: ", e);
-          throw new ImageException(406, "Can't crop this Image "+img+", mime Type "+mimeType);
         }
 
     } catch (IOException e) {
@@ -216,6 +283,167 @@ public class CropItProcessor {
     return arrFiles;
   }
 
+  /**
+   * Read the whole image, refusing it as soon as it turns out to be larger than
+   * {@link #MAX_IMAGE_BYTES}.
+   */
+  protected static byte[] readImageBytes(InputStream in, String img) throws IOException,
+      ImageException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    long total = 0;
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      total += n;
+      if (total > MAX_IMAGE_BYTES) {
+        throw new ImageException(406, "Image " + img + " too large to crop > "
+            + (MAX_IMAGE_BYTES / (1024L * 1024L)) + "MB");
+      }
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @return the SHA-1 of the image in hex, or null if it can't be hashed.
+   */
+  private static String getSourceHash(byte[] bytes) {
+    try {
+      return StringUtils.byteToHex(MessageDigest.getInstance("SHA-1").digest(bytes));
+    } catch (NoSuchAlgorithmException e) {
+      LOGGER.warn("Unable to hash image, derived images won't be reused: {}", e.getMessage());
+    } catch (UnsupportedEncodingException e) {
+      LOGGER.warn("Unable to hash image, derived images won't be reused: {}", e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Decode the region of the image to cut out. JPEG and PNG images are read by ImageIO,
+   * which only decodes the region and, for sources much larger than the target, skips
+   * rows and columns so the result is still at least twice the target size. Other formats
+   * are decoded whole.
+   *
+   * @param targetWidth
+   *          The largest width the region will be scaled to.
+   * @param targetHeight
+   *          The largest height the region will be scaled to.
+   */
+  protected static BufferedImage decodeRegion(byte[] bytes, ImageInfo info, int x, int y,
+      int width, int height, int targetWidth, int targetHeight) throws ImageReadException,
+      IOException, ImageException {
+    if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG
+        || info.getFormat() == ImageFormat.IMAGE_FORMAT_PNG) {
+      int subsampling = Math.max(1, Math.min(width / (2 * Math.max(targetWidth, 1)),
+          height / (2 * Math.max(targetHeight, 1))));
+      ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes));
+      try {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (readers.hasNext()) {
+          ImageReader reader = readers.next();
+          try {
+            reader.setInput(iis, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(x, y, width, height));
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            return reader.read(0, param);
+          } finally {
+            reader.dispose();
+          }
+        }
+      } finally {
+        iis.close();
+      }
+    }
+    return getBufferedImage(bytes, info).getSubimage(x, y, width, height);
+  }
+
+  /**
+   * Scale and encode the image for every target that has no image yet. The image is
+   * halved once into a chain of intermediates, and each target is then scaled in parallel
+   * from the smallest intermediate that is still at least as large.
+   *
+   * @param images
+   *          The encoded images for each target, the missing ones are filled in or left
+   *          null if scaling failed.
+   * @param scalers
+   *          Runs the scaling, or null to scale on the calling thread, as is done when it
+   *          refuses the work.
+   * @throws ImageException
+   *           The scaling was interrupted.
+   */
+  protected static void scaleAndWriteAll(BufferedImage img, final ImageInfo info,
+      Dimension[] targets, byte[][] images, Executor scalers) throws ImageException {
+    int minWidth = Integer.MAX_VALUE;
+    int minHeight = Integer.MAX_VALUE;
+    for (int i = 0; i < targets.length; i++) {
+      if (images[i] == null) {
+        minWidth = Math.min(minWidth, targets[i].width);
+        minHeight = Math.min(minHeight, targets[i].height);
+      }
+    }
+    final List<BufferedImage> intermediates = getIntermediates(img, minWidth, minHeight);
+
+    List<FutureTask<byte[]>> scaled = new ArrayList<FutureTask<byte[]>>(targets.length);
+    for (int i = 0; i < targets.length; i++) {
+      if (images[i] == null) {
+        final Dimension d = targets[i];
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+          public byte[] call() throws Exception {
+            BufferedImage from = intermediates.get(0);
+            for (BufferedImage intermediate : intermediates) {
+              if (intermediate.getWidth() >= d.width && intermediate.getHeight() >= d.height) {
+                from = intermediate;
+              }
+            }
+            return writeToByteArray(getScaledInstance(from, d.width, d.height), info);
+          }
+        });
+        if (scalers == null) {
+          task.run();
+        } else {
+          try {
+            scalers.execute(task);
+          } catch (RejectedExecutionException e) {
+            task.run();
+          }
+        }
+        scaled.add(task);
+      } else {
+        scaled.add(null);
+      }
+    }
+    for (int i = 0; i < targets.length; i++) {
+      if (scaled.get(i) != null) {
+        try {
+          images[i] = scaled.get(i).get();
+        } catch (ExecutionException e) {
+          LOGGER.error("Failed to process image " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new ImageException(500, "Interrupted while scaling image.");
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the image followed by successive halvings of it, down to the smallest that is
+   *         still at least minWidth by minHeight.
+   */
+  protected static List<BufferedImage> getIntermediates(BufferedImage img, int minWidth,
+      int minHeight) {
+    List<BufferedImage> intermediates = new ArrayList<BufferedImage>();
+    intermediates.add(img);
+    BufferedImage current = img;
+    while ((current.getWidth() >> 1) >= minWidth && (current.getHeight() >> 1) >= minHeight
+        && (current.getWidth() >> 1) > 0 && (current.getHeight() >> 1) > 0) {
+      current = drawScaled(current, current.getWidth() >> 1, current.getHeight() >> 1);
+      intermediates.add(current);
+    }
+    return intermediates;
+  }
+
   /**
    * @param bytes
    * @param info
@@ -316,26 +544,33 @@ public class CropItProcessor {
     try {
       // Get a scaled image.
       BufferedImage imgScaled = getScaledInstance(img, width, height);
-
-      // Convert image to a stream
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-      // Write to stream.
-      if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
-        ImageIO.write(imgScaled, "jpg", out);
-      } else if (info.getFormat() == ImageFormat.IMAGE_FORMAT_PNG) {
-        ImageIO.write(imgScaled, "png", out);
-      } else {
-        Sanselan.writeImage(imgScaled, out, info.getFormat(), null);
-      }
-      out.close();
-      return out.toByteArray();
+      return writeToByteArray(imgScaled, info);
     } catch (Exception e) {
       LOGGER.error("Failed to process image "+e.getMessage(), e);
     }
     return null;
   }
 
+  /**
+   * Encode an image in the format of the source image.
+   */
+  protected static byte[] writeToByteArray(BufferedImage img, ImageInfo info)
+      throws IOException, ImageWriteException {
+    // Convert image to a stream
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    // Write to stream.
+    if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
+      ImageIO.write(img, "jpg", out);
+    } else if (info.getFormat() == ImageFormat.IMAGE_FORMAT_PNG) {
+      ImageIO.write(img, "png", out);
+    } else {
+      Sanselan.writeImage(img, out, info.getFormat(), null);
+    }
+    out.close();
+    return out.toByteArray();
+  }
+
 
   /**
    * Image scaling routine as prescribed by
@@ -371,20 +606,29 @@ public class CropItProcessor {
         h = targetHeight;
       }
 
-      BufferedImage tmp = new BufferedImage(w, h, img.getType());
-      Graphics2D g2 = tmp.createGraphics();
-      g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-          RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-      g2.setRenderingHint(RenderingHints.KEY_RENDERING,
-          RenderingHints.VALUE_RENDER_QUALITY);
-      g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-          RenderingHints.VALUE_ANTIALIAS_ON);
-      g2.drawImage(ret, 0, 0, w, h, null);
-      g2.dispose();
-
-      ret = tmp;
+      ret = drawScaled(ret, w, h);
     }
 
     return ret;
   }
+
+  private static BufferedImage drawScaled(BufferedImage img, int w, int h) {
+    // Images decoded with a custom layout can't be created again, draw them as RGB(A).
+    int type = img.getType();
+    if (type == BufferedImage.TYPE_CUSTOM) {
+      type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+          : BufferedImage.TYPE_INT_RGB;
+    }
+    BufferedImage tmp = new BufferedImage(w, h, type);
+    Graphics2D g2 = tmp.createGraphics();
+    g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    g2.setRenderingHint(RenderingHints.KEY_RENDERING,
+        RenderingHints.VALUE_RENDER_QUALITY);
+    g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+        RenderingHints.VALUE_ANTIALIAS_ON);
+    g2.drawImage(img, 0, 0, w, h, null);
+    g2.dispose();
+    return tmp;
+  }
 }
@@ -17,8 +17,11 @@
  */
 package org.sakaiproject.nakamura.image;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -37,6 +40,9 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.sakaiproject.nakamura.util.StringUtils;
@@ -47,6 +53,11 @@ import java.awt.Dimension;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -77,6 +88,45 @@ public class CropItServlet extends SlingAllMethodsServlet {
   private static final Logger logger = LoggerFactory.getLogger(CropItServlet.class);
   private static final long serialVersionUID = 7893384805719426200L;
 
+  /**
+   * Scaled images already derived from a source image, see
+   * {@link CropItProcessor#crop(ResourceResolver, int, int, int, int, List, String, String, Cache, java.util.concurrent.Executor)}.
+   * Its size is bounded in the ehcache configuration.
+   */
+  static final String DERIVED_IMAGES_CACHE = CropItServlet.class.getName() + "-derived";
+
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
+  /**
+   * Scales and encodes the sizes of an image in parallel. Idle threads time out, so
+   * nothing is kept running between crops.
+   */
+  private transient ThreadPoolExecutor scalers;
+
+  @Activate
+  protected void activate() {
+    int threads = Runtime.getRuntime().availableProcessors();
+    final AtomicInteger count = new AtomicInteger();
+    scalers = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CropIt scaler " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    scalers.allowCoreThreadTimeOut(true);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (scalers != null) {
+      scalers.shutdown();
+      scalers = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -148,8 +198,12 @@ public class CropItServlet extends SlingAllMethodsServlet {
 //      save = PathUtils.normalizePath(save) + "/";
 //      requestSave = PathUtils.normalizePath(requestSave) + "/";
 
+      Cache<byte[]> derivedImages = null;
+      if (cacheManagerService != null) {
+        derivedImages = cacheManagerService.getCache(DERIVED_IMAGES_CACHE, CacheScope.INSTANCE);
+      }
       String[] crop = CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, requestImg,
-          save);
+          save, derivedImages, scalers);
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
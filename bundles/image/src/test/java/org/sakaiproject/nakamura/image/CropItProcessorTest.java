@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.image;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyString;
@@ -37,17 +38,22 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.jackrabbit.SparseMapUserManager;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
 import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.imageio.ImageIO;
 import javax.jcr.RepositoryException;
@@ -149,4 +155,85 @@ public class CropItProcessorTest {
     assertEquals(scaledImage.getHeight(), 50);
   }
 
+  @Test
+  public void testCropsEverySizeAndReusesDerivedImages() throws Exception {
+    session.getContentManager().writeBody(img, getClass().getResourceAsStream("people.png"));
+    node = session.getContentManager().get(img);
+    ResourceResolver resourceResolver = mockResourceResolver();
+    dimensions.add(new Dimension(20, 20));
+    dimensions.add(new Dimension(10, 10));
+    MapCacheImpl<byte[]> derivedImages = new MapCacheImpl<byte[]>("derived", CacheScope.INSTANCE);
+    ExecutorService scalers = Executors.newFixedThreadPool(2);
+    try {
+      String[] files = CropItProcessor.crop(resourceResolver, x, y, width, height,
+          dimensions, img, save, derivedImages, scalers);
+      assertEquals(3, files.length);
+      for (int i = 0; i < files.length; i++) {
+        BufferedImage scaled = ImageIO.read(session.getContentManager().getInputStream(files[i]));
+        assertEquals(dimensions.get(i).width, scaled.getWidth());
+        assertEquals(dimensions.get(i).height, scaled.getHeight());
+      }
+      assertEquals(3, derivedImages.size());
+
+      // the same crop again is served from the derived images
+      String[] again = CropItProcessor.crop(resourceResolver, x, y, width, height,
+          dimensions, img, save, derivedImages, scalers);
+      assertArrayEquals(files, again);
+      assertEquals(3, derivedImages.size());
+    } finally {
+      scalers.shutdown();
+    }
+  }
+
+  @Test
+  public void testScalesOnTheCallingThreadOnceShutDown() throws Exception {
+    session.getContentManager().writeBody(img, getClass().getResourceAsStream("people.png"));
+    node = session.getContentManager().get(img);
+    dimensions.add(new Dimension(20, 20));
+    ExecutorService scalers = Executors.newFixedThreadPool(2);
+    scalers.shutdown();
+
+    String[] files = CropItProcessor.crop(mockResourceResolver(), x, y, width, height,
+        dimensions, img, save, null, scalers);
+    assertEquals(2, files.length);
+  }
+
+  @Test
+  public void testTooManyPixels() throws Exception {
+    // compresses to a few kilobytes but would need 256MB once decoded
+    BufferedImage huge = new BufferedImage(8000, 8000, BufferedImage.TYPE_BYTE_BINARY);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(huge, "png", out);
+    session.getContentManager().writeBody(img, new ByteArrayInputStream(out.toByteArray()));
+    node = session.getContentManager().get(img);
+    try {
+      CropItProcessor.crop(mockResourceResolver(), x, y, width, height, dimensions, img, save);
+      fail("The processor should refuse images with too many pixels.");
+    } catch (ImageException e) {
+      assertEquals(406, e.getCode());
+    }
+  }
+
+  @Test
+  public void testGetIntermediates() {
+    BufferedImage bufImg = new BufferedImage(200, 100, BufferedImage.TYPE_INT_RGB);
+    List<BufferedImage> intermediates = CropItProcessor.getIntermediates(bufImg, 20, 20);
+    assertEquals(3, intermediates.size());
+    assertEquals(50, intermediates.get(2).getWidth());
+    assertEquals(25, intermediates.get(2).getHeight());
+  }
+
+  private ResourceResolver mockResourceResolver() {
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    SparseContentResource someResource = mock(SparseContentResource.class);
+    when(someResource.adaptTo(Content.class)).thenReturn(node);
+    JackrabbitSession jrSession = mock(JackrabbitSession.class);
+    SparseMapUserManager userManager = mock(SparseMapUserManager.class);
+    when(userManager.getSession()).thenReturn(session);
+    when(jrSession.getUserManager()).thenReturn(userManager);
+    when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jrSession);
+    when(resourceResolver.getResource(anyString())).thenReturn(someResource);
+    return resourceResolver;
+  }
+
 }
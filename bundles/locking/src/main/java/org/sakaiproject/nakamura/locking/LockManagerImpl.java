@@ -20,10 +20,14 @@ package org.sakaiproject.nakamura.locking;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
@@ -34,13 +38,29 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that uses a cluster replicated cache to manage the locks. Within this
+ * instance the locks are guarded by striped monitors, so locks on different ids don't
+ * contend, and threads waiting for a lock queue up and are woken as soon as it is
+ * unlocked. Locks held by other instances in the cluster are only seen through the cache,
+ * so waiters for those check back every recheck interval.
  */
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 @Service
 @SuppressWarnings(justification="Circular dependency noted ", value={"CD_CIRCULAR_DEPENDENCY"})
 public class LockManagerImpl implements LockManager {
@@ -63,6 +83,10 @@ public class LockManagerImpl implements LockManager {
    * debug flag set at service creation.
    */
   private static final boolean debug = LOGGER.isDebugEnabled();
+  /**
+   * Number of monitors the lock ids are spread over.
+   */
+  private static final int STRIPES = 64;
 
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
@@ -70,6 +94,18 @@ public class LockManagerImpl implements LockManager {
   @Property(value = "In JVM Lock Manager")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  @Property(boolValue = true, label = "Fair",
+      description = "Hand a released lock to the longest waiting thread, rather than letting any thread take it")
+  static final String PROP_FAIR = "lockmanager.fair";
+
+  @Property(longValue = 120000, label = "Wait Timeout",
+      description = "Milliseconds to wait for a lock before giving up")
+  static final String PROP_TIMEOUT = "lockmanager.timeout";
+
+  @Property(longValue = 500, label = "Recheck Interval",
+      description = "Milliseconds between checks on a lock held elsewhere in the cluster or expired from the cache")
+  static final String PROP_RECHECK_INTERVAL = "lockmanager.recheck.interval";
+
   /**
    * Service dependency, the Cache Manager
    */
@@ -101,7 +137,24 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
+  /**
+   * The locks held in this instance, with the time they were taken.
+   */
+  private final ConcurrentMap<String, HeldLock> heldLocks = new ConcurrentHashMap<String, HeldLock>();
+  /**
+   * Monitors and waiter queues, a lock id always maps to the same stripe.
+   */
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  private volatile boolean fair = true;
+
+  private volatile long timeoutMillis = 120000;
+
+  private volatile long recheckMillis = 500;
+
+  private final LockStats stats = new LockStats();
+
+  private ObjectName statsName;
 
   /**
    * @throws NoSuchAlgorithmException
@@ -111,6 +164,44 @@ public class LockManagerImpl implements LockManager {
       throws NoSuchAlgorithmException {
     random = SecureRandom.getInstance("SHA1PRNG");
     instanceId = random.nextLong();
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    modified(properties);
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("org.sakaiproject.nakamura.locking:type=LockManager");
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(stats, name);
+      statsName = name;
+    } catch (Exception e) {
+      LOGGER.debug("Unable to register lock statistics ", e);
+    }
+  }
+
+  @Modified
+  protected void modified(Map<String, Object> properties) {
+    fair = PropertiesUtil.toBoolean(properties.get(PROP_FAIR), true);
+    timeoutMillis = PropertiesUtil.toLong(properties.get(PROP_TIMEOUT), 120000);
+    recheckMillis = Math.max(1, PropertiesUtil.toLong(properties.get(PROP_RECHECK_INTERVAL), 500));
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (statsName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsName);
+      } catch (Exception e) {
+        LOGGER.debug("Unable to unregister lock statistics ", e);
+      }
+      statsName = null;
+    }
   }
 
   public Lock getLock(String id) {
@@ -125,14 +216,20 @@ public class LockManagerImpl implements LockManager {
     LockImpl lock = lockMap.get(id);
     if (create) {
       if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
-          lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
+        boolean granted = false;
+        Stripe stripe = stripeFor(id);
+        stripe.lock.lock();
+        try {
+          lock = currentLock(id);
+          if (lock == null) {
+            lock = grant(id, threadId.get());
+            granted = true;
           }
+        } finally {
+          stripe.lock.unlock();
+        }
+        if (granted) {
+          getRequestLocks().put(id, lock);
         }
       }
     }
@@ -160,8 +257,22 @@ public class LockManagerImpl implements LockManager {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
       lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
+      String id = lock.getLocked();
+      Stripe stripe = stripeFor(id);
+      stripe.lock.lock();
+      try {
+        HeldLock held = heldLocks.get(id);
+        if (held != null && held.lock.getLockId() == lock.getLockId()) {
+          heldLocks.remove(id);
+          stats.held(id, System.nanoTime() - held.since);
+        }
+        LockImpl cached = lockMap.get(id);
+        if (cached == null || cached.getLockId() == lock.getLockId()) {
+          lockMap.remove(id);
+        }
+        wakeWaiter(stripe, id);
+      } finally {
+        stripe.lock.unlock();
       }
     }
   }
@@ -186,36 +297,74 @@ public class LockManagerImpl implements LockManager {
    * @see org.sakaiproject.nakamura.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
-        }
-        return lock;
-      }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
+    Lock lock = getLock(id);
+    if (lock.isOwner()) {
+      if (debug) {
+        LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
       }
+      return lock;
+    }
+
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    long recheckNanos = TimeUnit.MILLISECONDS.toNanos(recheckMillis);
+    long owner = threadId.get();
+    boolean interrupted = false;
+    LockImpl granted = null;
+    Stripe stripe = stripeFor(id);
+    stripe.lock.lock();
+    try {
+      Waiter waiter = stripe.enqueue(id, owner);
       try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
-        }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
+        while (true) {
+          if (waiter.granted != null) {
+            // handed over by unlock
+            granted = waiter.granted;
+            break;
+          }
+          if (currentLock(id) == null) {
+            if (!fair || stripe.isFirst(id, waiter)) {
+              granted = grant(id, owner);
+              break;
+            }
+            // the lock expired rather than being unlocked, let the first in line have it
+            stripe.first(id).condition.signal();
+          }
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            break;
+          }
+          try {
+            waiter.condition.awaitNanos(Math.min(remaining, recheckNanos));
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
         }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
+      } finally {
+        stripe.dequeue(id, waiter);
       }
+    } finally {
+      stripe.lock.unlock();
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (granted == null) {
+      stats.timedOut(id);
+      LOGGER.warn(Thread.currentThread() + " gave up waiting for " + id + " after "
+          + timeoutMillis + " ms");
+      throw new LockTimeoutException("Failed to lock node " + id);
+    }
+    stats.waited(id, System.nanoTime() - start);
+    granted.bind(this);
+    getRequestLocks().put(id, granted);
+    if (debug) {
+      LOGGER.debug(Thread.currentThread() + " lock Granted " + granted.getLocked());
     }
-    throw new LockTimeoutException("Failed to lock node " + id);
+    return granted;
   }
 
   /**
@@ -229,7 +378,73 @@ public class LockManagerImpl implements LockManager {
     requestLocks.clear();
   }
 
- 
+  /**
+   * @return the statistics of this lock manager.
+   */
+  LockStatsMBean getStats() {
+    return stats;
+  }
+
+  private Stripe stripeFor(String id) {
+    int h = id.hashCode();
+    h ^= (h >>> 16);
+    return stripes[(h & 0x7fffffff) % STRIPES];
+  }
+
+  /**
+   * Find the lock currently held on an id, here or elsewhere in the cluster, forgetting
+   * local locks that have expired from the cache. Called holding the stripe monitor.
+   *
+   * @param id
+   * @return the lock or null if the id is not locked.
+   */
+  private LockImpl currentLock(String id) {
+    LockImpl cached = lockMap.get(id);
+    HeldLock held = heldLocks.get(id);
+    if (held != null) {
+      if (held.lock.isLocked() && cached != null
+          && cached.getLockId() == held.lock.getLockId()) {
+        return held.lock;
+      }
+      LOGGER.debug("Lock on {} expired or was lost from the cache ", id);
+      heldLocks.remove(id);
+    }
+    if (cached != null && cached.isLocked()) {
+      return cached;
+    }
+    return null;
+  }
+
+  /**
+   * Create a lock on an id for an owner thread. Called holding the stripe monitor, when the
+   * id is not locked.
+   */
+  private LockImpl grant(String id, long owner) {
+    LockImpl lock = new LockImpl(id, random.nextLong(), owner, instanceId);
+    lock.bind(this);
+    heldLocks.put(id, new HeldLock(lock));
+    lockMap.put(id, lock);
+    stats.granted(id);
+    return lock;
+  }
+
+  /**
+   * Wake the first thread waiting for an id that has just been unlocked. When fair the lock
+   * is handed to it directly so no other thread can take it first. Called holding the
+   * stripe monitor.
+   */
+  private void wakeWaiter(Stripe stripe, String id) {
+    Waiter first = stripe.first(id);
+    if (first == null) {
+      return;
+    }
+    if (fair && currentLock(id) == null) {
+      stripe.dequeue(id, first);
+      first.granted = grant(id, first.owner);
+    }
+    first.condition.signal();
+  }
+
   /**
    * @param cacheManagerService
    */
@@ -244,6 +459,69 @@ public class LockManagerImpl implements LockManager {
     this.cacheManagerService = null;
     lockMap = null;
   }
- 
- 
+
+  /**
+   * A lock held in this instance.
+   */
+  private static final class HeldLock {
+    private final LockImpl lock;
+    private final long since = System.nanoTime();
+
+    private HeldLock(LockImpl lock) {
+      this.lock = lock;
+    }
+  }
+
+  /**
+   * A thread waiting for a lock, woken through its own condition.
+   */
+  private static final class Waiter {
+    private final long owner;
+    private final Condition condition;
+    /**
+     * The lock handed to this waiter when the previous owner unlocked.
+     */
+    private LockImpl granted;
+
+    private Waiter(long owner, Condition condition) {
+      this.owner = owner;
+      this.condition = condition;
+    }
+  }
+
+  /**
+   * A monitor and the FIFO queues of the threads waiting for the ids that map to it. The
+   * queues are only touched holding the monitor.
+   */
+  private static final class Stripe {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, LinkedList<Waiter>> waiters = new HashMap<String, LinkedList<Waiter>>();
+
+    private Waiter enqueue(String id, long owner) {
+      LinkedList<Waiter> queue = waiters.get(id);
+      if (queue == null) {
+        queue = new LinkedList<Waiter>();
+        waiters.put(id, queue);
+      }
+      Waiter waiter = new Waiter(owner, lock.newCondition());
+      queue.addLast(waiter);
+      return waiter;
+    }
+
+    private Waiter first(String id) {
+      LinkedList<Waiter> queue = waiters.get(id);
+      return (queue == null) ? null : queue.getFirst();
+    }
+
+    private boolean isFirst(String id, Waiter waiter) {
+      return first(id) == waiter;
+    }
+
+    private void dequeue(String id, Waiter waiter) {
+      LinkedList<Waiter> queue = waiters.get(id);
+      if (queue != null && queue.remove(waiter) && queue.isEmpty()) {
+        waiters.remove(id);
+      }
+    }
+  }
 }
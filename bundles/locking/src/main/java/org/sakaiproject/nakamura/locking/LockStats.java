@@ -0,0 +1,202 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wait and hold times kept by {@link LockManagerImpl}, in total and per lock prefix.
+ */
+public class LockStats implements LockStatsMBean {
+
+  /**
+   * Locks are taken on content paths, so the number of prefixes is bounded to keep the
+   * statistics from growing with the content.
+   */
+  private static final int MAX_PREFIXES = 200;
+
+  private static final String OTHER_PREFIX = "other";
+
+  private final Counters totals = new Counters();
+
+  private final ConcurrentMap<String, Counters> prefixes = new ConcurrentHashMap<String, Counters>();
+
+  void granted(String id) {
+    totals.locks.incrementAndGet();
+    countersFor(id).locks.incrementAndGet();
+  }
+
+  void waited(String id, long nanos) {
+    totals.waited(nanos);
+    countersFor(id).waited(nanos);
+  }
+
+  void timedOut(String id) {
+    totals.timeouts.incrementAndGet();
+    countersFor(id).timeouts.incrementAndGet();
+  }
+
+  void held(String id, long nanos) {
+    totals.held(nanos);
+    countersFor(id).held(nanos);
+  }
+
+  private Counters countersFor(String id) {
+    String prefix = prefixOf(id);
+    Counters counters = prefixes.get(prefix);
+    if (counters == null) {
+      if (prefixes.size() >= MAX_PREFIXES) {
+        prefix = OTHER_PREFIX;
+      }
+      Counters newCounters = new Counters();
+      counters = prefixes.putIfAbsent(prefix, newCounters);
+      if (counters == null) {
+        counters = newCounters;
+      }
+    }
+    return counters;
+  }
+
+  /**
+   * @param id
+   *          the id of a lock, eg <code>a:alice/message/ab/cd</code>.
+   * @return the prefix the lock is counted under, eg <code>a:*&#47;message</code>.
+   */
+  static String prefixOf(String id) {
+    String path = id.startsWith("/") ? id.substring(1) : id;
+    int slash = path.indexOf('/');
+    if (slash < 0) {
+      return path.indexOf(':') < 0 ? path : path.substring(0, path.indexOf(':') + 1) + "*";
+    }
+    String first = path.substring(0, slash);
+    int colon = first.indexOf(':');
+    if (colon < 0) {
+      return first;
+    }
+    // an authorizable home, count all of them together under the next element
+    int next = path.indexOf('/', slash + 1);
+    return first.substring(0, colon + 1) + "*/"
+        + (next < 0 ? path.substring(slash + 1) : path.substring(slash + 1, next));
+  }
+
+  public long getLockCount() {
+    return totals.locks.get();
+  }
+
+  public long getContendedCount() {
+    return totals.waits.get();
+  }
+
+  public long getTimeoutCount() {
+    return totals.timeouts.get();
+  }
+
+  public double getAverageWaitTime() {
+    return totals.averageWait();
+  }
+
+  public double getMaxWaitTime() {
+    return toMillis(totals.maxWait.get());
+  }
+
+  public double getAverageHoldTime() {
+    return totals.averageHold();
+  }
+
+  public double getMaxHoldTime() {
+    return toMillis(totals.maxHold.get());
+  }
+
+  public String[] getPrefixStatistics() {
+    List<String> lines = new ArrayList<String>();
+    for (Entry<String, Counters> e : prefixes.entrySet()) {
+      Counters c = e.getValue();
+      lines.add(e.getKey() + ": locks=" + c.locks.get() + " contended=" + c.waits.get()
+          + " timeouts=" + c.timeouts.get() + " avgWait=" + c.averageWait() + "ms maxWait="
+          + toMillis(c.maxWait.get()) + "ms avgHold=" + c.averageHold() + "ms maxHold="
+          + toMillis(c.maxHold.get()) + "ms");
+    }
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  public void reset() {
+    totals.reset();
+    prefixes.clear();
+  }
+
+  private static double toMillis(long nanos) {
+    return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  private static void max(AtomicLong max, long value) {
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  private static final class Counters {
+    private final AtomicLong locks = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong maxWait = new AtomicLong();
+    private final AtomicLong holds = new AtomicLong();
+    private final AtomicLong holdTime = new AtomicLong();
+    private final AtomicLong maxHold = new AtomicLong();
+
+    void waited(long nanos) {
+      waits.incrementAndGet();
+      waitTime.addAndGet(nanos);
+      max(maxWait, nanos);
+    }
+
+    void held(long nanos) {
+      holds.incrementAndGet();
+      holdTime.addAndGet(nanos);
+      max(maxHold, nanos);
+    }
+
+    double averageWait() {
+      long count = waits.get();
+      return (count == 0) ? 0 : toMillis(waitTime.get()) / count;
+    }
+
+    double averageHold() {
+      long count = holds.get();
+      return (count == 0) ? 0 : toMillis(holdTime.get()) / count;
+    }
+
+    void reset() {
+      locks.set(0);
+      waits.set(0);
+      timeouts.set(0);
+      waitTime.set(0);
+      maxWait.set(0);
+      holds.set(0);
+      holdTime.set(0);
+      maxHold.set(0);
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+/**
+ * Statistics of the locks taken through {@link LockManagerImpl}. Times are in
+ * milliseconds.
+ */
+public interface LockStatsMBean {
+
+  /**
+   * @return the number of locks granted.
+   */
+  long getLockCount();
+
+  /**
+   * @return the number of locks that had to be waited for.
+   */
+  long getContendedCount();
+
+  /**
+   * @return the number of waits that timed out.
+   */
+  long getTimeoutCount();
+
+  double getAverageWaitTime();
+
+  double getMaxWaitTime();
+
+  double getAverageHoldTime();
+
+  double getMaxHoldTime();
+
+  /**
+   * @return one line per lock prefix with its counts and times, the prefix being the first
+   *         element of the lock id, with authorizable homes collapsed into
+   *         <code>a:*&#47;element</code>.
+   */
+  String[] getPrefixStatistics();
+
+  void reset();
+}
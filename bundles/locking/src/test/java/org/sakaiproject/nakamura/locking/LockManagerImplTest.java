@@ -22,17 +22,27 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.locking.cache.LockImpl;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 /**
  *
  */
@@ -99,4 +109,96 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testWaiterWokenOnUnlock() throws Exception {
+    // a long recheck interval, so only the unlock can wake the waiter in time
+    configure(true, 10000L);
+    Lock l = lockManager.getLock("foo");
+    final long[] waited = new long[1];
+    Thread waiter = new Thread() {
+      public void run() {
+        try {
+          long start = System.nanoTime();
+          Lock lock = lockManager.waitForLock("foo");
+          waited[0] = System.nanoTime() - start;
+          lock.unlock();
+        } catch (LockTimeoutException e) {
+          waited[0] = -1;
+        }
+      }
+    };
+    waiter.start();
+    Thread.sleep(200);
+    l.unlock();
+    waiter.join(5000);
+    assertTrue(waited[0] > 0);
+    assertTrue(waited[0] < TimeUnit.MILLISECONDS.toNanos(5000));
+    assertEquals(1, lockManager.getStats().getContendedCount());
+  }
+
+  @Test
+  public void testWaitersAreServedInOrder() throws Exception {
+    configure(true, 10000L);
+    Lock l = lockManager.getLock("foo");
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    List<Thread> waiters = new ArrayList<Thread>();
+    for (final String name : new String[] { "a", "b", "c" }) {
+      Thread waiter = new Thread() {
+        public void run() {
+          try {
+            Lock lock = lockManager.waitForLock("foo");
+            order.add(name);
+            lock.unlock();
+          } catch (LockTimeoutException e) {
+            order.add("timeout");
+          }
+        }
+      };
+      waiter.start();
+      waiters.add(waiter);
+      // let each waiter queue up before the next one
+      Thread.sleep(100);
+    }
+    l.unlock();
+    for (Thread waiter : waiters) {
+      waiter.join(5000);
+    }
+    assertEquals("[a, b, c]", order.toString());
+  }
+
+  @Test
+  public void testWaitTimesOut() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LockManagerImpl.PROP_TIMEOUT, 200L);
+    lockManager.modified(properties);
+    Thread owner = new Thread() {
+      public void run() {
+        lockManager.getLock("foo");
+      }
+    };
+    owner.start();
+    owner.join();
+    try {
+      lockManager.waitForLock("foo");
+      fail("The lock is held by another thread");
+    } catch (LockTimeoutException e) {
+      assertEquals(1, lockManager.getStats().getTimeoutCount());
+    }
+  }
+
+  @Test
+  public void testPrefix() {
+    assertEquals("a:*/message", LockStats.prefixOf("a:alice/message/ab/cd/ef"));
+    assertEquals("a:*", LockStats.prefixOf("a:alice"));
+    assertEquals("_user", LockStats.prefixOf("/_user/a/al/alice"));
+    assertEquals("foo", LockStats.prefixOf("foo"));
+  }
+
+  private void configure(boolean fair, long recheck) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LockManagerImpl.PROP_FAIR, fair);
+    properties.put(LockManagerImpl.PROP_RECHECK_INTERVAL, recheck);
+    lockManager.modified(properties);
+  }
+
 }
@@ -47,6 +47,7 @@ public class CacheImpl<V> implements Cache<V> {
   private CacheScope scope;
   private boolean checkPayloadClasses;
   private Set<String> loadedClasses = Sets.newHashSet();
+  private CacheKeyIndex keyIndex;
 
   /**
    * @param cacheManager
@@ -70,6 +71,7 @@ public class CacheImpl<V> implements Cache<V> {
         }
       }
     }
+    keyIndex = CacheKeyIndex.getIndex(cache);
     checkPayloadClasses = false;
     CacheConfiguration cacheConfiguration = cache.getCacheConfiguration();
     if ( CacheScope.CLUSTERREPLICATED.equals(scope) || cacheConfiguration.isDiskPersistent() || cacheConfiguration.isEternal() || cacheConfiguration.isOverflowToDisk()) {
@@ -79,6 +81,13 @@ public class CacheImpl<V> implements Cache<V> {
     // a way of finding that out from the Cache Configuration object.
   }
 
+  /**
+   * @return the name of the underlying ehcache.
+   */
+  public String getName() {
+    return cacheName;
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -184,10 +193,10 @@ public class CacheImpl<V> implements Cache<V> {
     if (!key.endsWith("/")) {
       key = key + "/";
     }
-    List<?> keys = cache.getKeys();
-    for (Object k : keys) {
-      if (((String) k).startsWith(key)) {
-        cache.remove(k);
+    // the index is sorted, so this only visits the keys under the prefix.
+    for (String k : keyIndex.startingWith(key)) {
+      if (!cache.remove(k)) {
+        keyIndex.discard(k);
       }
     }
   }
@@ -0,0 +1,517 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Sends and receives cluster cache invalidations over JMS. Local invalidations are queued,
+ * batched by a single sender thread that lingers for a short time to collect more, then
+ * coalesced per cache (keys covered by a removed prefix are dropped, and many siblings
+ * under the same parent are collapsed into a single prefix) and sent as one compact
+ * {@link BytesMessage} per cache. Nodes ignore the messages they sent themselves.
+ */
+public class CacheInvalidationBroadcaster implements MessageListener, Runnable {
+
+  public static final String TOPIC = "org/sakaiproject/nakamura/memory/invalidation";
+  static final String ORIGIN_PROPERTY = "origin";
+  static final String CACHE_PROPERTY = "cache";
+
+  static final byte KEY = 'K';
+  static final byte PREFIX = 'P';
+  static final byte ALL = 'A';
+
+  private static final int MAX_PENDING = 10000;
+  private static final String MBEAN_DOMAIN = "org.sakaiproject.nakamura.memory";
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(CacheInvalidationBroadcaster.class);
+
+  private final String origin = UUID.randomUUID().toString();
+  private final Map<String, Cache<?>> caches;
+  private final BlockingQueue<Invalidation> pending = new LinkedBlockingQueue<Invalidation>(
+      MAX_PENDING);
+  private final Set<String> overflowed = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final Map<String, CacheInvalidationStats> stats = new ConcurrentHashMap<String, CacheInvalidationStats>();
+
+  private volatile int maxBatchSize = 500;
+  private volatile long lingerMs = 50L;
+  private volatile int coalesceThreshold = 20;
+
+  private volatile boolean running;
+  private Thread sender;
+  private Connection connection;
+  private Session producerSession;
+  private MessageProducer producer;
+
+  /**
+   * @param caches
+   *          the live map of caches on this node, used to find the target of a remote
+   *          invalidation.
+   */
+  public CacheInvalidationBroadcaster(Map<String, Cache<?>> caches) {
+    this.caches = caches;
+  }
+
+  /**
+   * @param maxBatchSize
+   *          the maximum number of invalidations sent in one batch.
+   * @param lingerMs
+   *          how long the sender waits for more invalidations before sending a batch.
+   * @param coalesceThreshold
+   *          the number of sibling keys under one parent above which the parent is sent
+   *          as a prefix invalidation instead.
+   */
+  public void configure(int maxBatchSize, long lingerMs, int coalesceThreshold) {
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+    this.lingerMs = Math.max(0L, lingerMs);
+    this.coalesceThreshold = Math.max(2, coalesceThreshold);
+  }
+
+  /**
+   * Connect to JMS, start listening for remote invalidations and start the sender thread.
+   *
+   * @param connectionFactory
+   * @throws JMSException
+   */
+  public synchronized void start(ConnectionFactory connectionFactory) throws JMSException {
+    if (running) {
+      return;
+    }
+    try {
+      connection = connectionFactory.createConnection();
+      producerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Topic topic = producerSession.createTopic(TOPIC);
+      producer = producerSession.createProducer(topic);
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      Session consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      MessageConsumer consumer = consumerSession.createConsumer(
+          consumerSession.createTopic(TOPIC), null, true);
+      consumer.setMessageListener(this);
+      connection.start();
+    } catch (JMSException e) {
+      closeConnection();
+      throw e;
+    }
+    pending.clear();
+    running = true;
+    sender = new Thread(this, "Cache Invalidation Sender");
+    sender.setDaemon(true);
+    sender.start();
+    LOGGER.info("Cluster cache invalidation started as {} ", origin);
+  }
+
+  /**
+   * Stop sending and receiving invalidations and unregister the statistics.
+   */
+  public synchronized void stop() {
+    running = false;
+    if (sender != null) {
+      sender.interrupt();
+      try {
+        sender.join(5000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      sender = null;
+    }
+    closeConnection();
+    pending.clear();
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (String cacheName : stats.keySet()) {
+      try {
+        ObjectName name = getObjectName(cacheName);
+        if (mBeanServer.isRegistered(name)) {
+          mBeanServer.unregisterMBean(name);
+        }
+      } catch (Exception e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+    stats.clear();
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * @param cacheName
+   * @param key
+   *          the key to drop on all other nodes.
+   */
+  public void invalidateKey(String cacheName, String key) {
+    enqueue(new Invalidation(cacheName, KEY, key));
+  }
+
+  /**
+   * @param cacheName
+   * @param key
+   *          the key which will be removed, with all of its children, on all other nodes.
+   */
+  public void invalidatePrefix(String cacheName, String key) {
+    enqueue(new Invalidation(cacheName, PREFIX, key));
+  }
+
+  /**
+   * @param cacheName
+   *          the cache to clear on all other nodes.
+   */
+  public void invalidateAll(String cacheName) {
+    enqueue(new Invalidation(cacheName, ALL, ""));
+  }
+
+  /**
+   * @param cacheName
+   * @return the statistics for the named cache.
+   */
+  public CacheInvalidationStats getStats(String cacheName) {
+    CacheInvalidationStats s = stats.get(cacheName);
+    if (s == null) {
+      synchronized (stats) {
+        s = stats.get(cacheName);
+        if (s == null) {
+          s = new CacheInvalidationStats(cacheName);
+          stats.put(cacheName, s);
+          try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(s,
+                getObjectName(cacheName));
+          } catch (Exception e) {
+            LOGGER.debug("Unable to register invalidation stats for {} {} ", cacheName,
+                e.getMessage());
+          }
+        }
+      }
+    }
+    return s;
+  }
+
+  private void enqueue(Invalidation invalidation) {
+    if (!running) {
+      return;
+    }
+    CacheInvalidationStats s = getStats(invalidation.cacheName);
+    s.queued.incrementAndGet();
+    if (!pending.offer(invalidation)) {
+      // the queue is full, rather than block the writer, clear the whole cache remotely.
+      s.dropped.incrementAndGet();
+      overflowed.add(invalidation.cacheName);
+    }
+  }
+
+  /**
+   * {@inheritDoc} The sender loop.
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    List<Invalidation> batch = Lists.newArrayList();
+    while (running) {
+      try {
+        Invalidation first = pending.poll(1000L, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = System.currentTimeMillis() + lingerMs;
+        while (batch.size() < maxBatchSize) {
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) {
+            break;
+          }
+          Invalidation next = pending.poll(wait, TimeUnit.MILLISECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        pending.drainTo(batch, maxBatchSize - batch.size());
+        for (Iterator<String> i = overflowed.iterator(); i.hasNext();) {
+          batch.add(new Invalidation(i.next(), ALL, ""));
+          i.remove();
+        }
+        send(coalesce(batch, coalesceThreshold));
+      } catch (InterruptedException e) {
+        LOGGER.debug("Sender interrupted ");
+      } catch (Exception e) {
+        LOGGER.error("Failed to send cache invalidations " + e.getMessage(), e);
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void send(Map<String, List<Invalidation>> coalesced) {
+    for (Entry<String, List<Invalidation>> e : coalesced.entrySet()) {
+      CacheInvalidationStats s = getStats(e.getKey());
+      try {
+        BytesMessage message = producerSession.createBytesMessage();
+        message.setStringProperty(ORIGIN_PROPERTY, origin);
+        message.setStringProperty(CACHE_PROPERTY, e.getKey());
+        List<Invalidation> invalidations = e.getValue();
+        message.writeInt(invalidations.size());
+        for (Invalidation invalidation : invalidations) {
+          message.writeByte(invalidation.type);
+          message.writeUTF(invalidation.key);
+        }
+        producer.send(message);
+        s.messagesSent.incrementAndGet();
+        s.sent.addAndGet(invalidations.size());
+      } catch (JMSException ex) {
+        s.dropped.addAndGet(e.getValue().size());
+        LOGGER.warn("Failed to send invalidations for {} {} ", e.getKey(), ex.getMessage());
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc} Applies invalidations sent by other nodes.
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    try {
+      if (!(message instanceof BytesMessage)
+          || origin.equals(message.getStringProperty(ORIGIN_PROPERTY))) {
+        return;
+      }
+      BytesMessage bytesMessage = (BytesMessage) message;
+      String cacheName = message.getStringProperty(CACHE_PROPERTY);
+      int n = bytesMessage.readInt();
+      List<Invalidation> invalidations = Lists.newArrayListWithCapacity(n);
+      for (int i = 0; i < n; i++) {
+        byte type = bytesMessage.readByte();
+        invalidations.add(new Invalidation(cacheName, type, bytesMessage.readUTF()));
+      }
+      apply(cacheName, invalidations);
+    } catch (JMSException e) {
+      LOGGER.error("Unable to read cache invalidation " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Apply a set of remote invalidations to the local copy of a cache.
+   *
+   * @param cacheName
+   * @param invalidations
+   */
+  void apply(String cacheName, List<Invalidation> invalidations) {
+    CacheInvalidationStats s = getStats(cacheName);
+    s.messagesReceived.incrementAndGet();
+    s.received.addAndGet(invalidations.size());
+    Cache<?> cache = caches.get(cacheName);
+    if (!(cache instanceof ClusterInvalidatedCacheImpl<?>)) {
+      // nothing has been cached here under that name, so there is nothing to invalidate.
+      return;
+    }
+    ClusterInvalidatedCacheImpl<?> target = (ClusterInvalidatedCacheImpl<?>) cache;
+    for (Invalidation invalidation : invalidations) {
+      switch (invalidation.type) {
+      case KEY:
+        target.invalidateLocally(invalidation.key);
+        break;
+      case PREFIX:
+        target.invalidateChildrenLocally(invalidation.key);
+        break;
+      case ALL:
+        target.invalidateAllLocally();
+        return;
+      default:
+        LOGGER.warn("Unknown invalidation type {} for {} ", invalidation.type, cacheName);
+      }
+    }
+  }
+
+  /**
+   * Group a batch of invalidations by cache and reduce each group to the smallest set of
+   * invalidations that covers it. A clear of the cache covers everything, a prefix covers
+   * itself and every key below it, and when at least <code>threshold</code> keys share a
+   * parent they are replaced by a prefix invalidation of that parent. Removing more than
+   * was asked for is always safe, the other nodes will reload from storage.
+   *
+   * @param batch
+   * @param threshold
+   * @return a map of cache name to the invalidations to send.
+   */
+  static Map<String, List<Invalidation>> coalesce(List<Invalidation> batch, int threshold) {
+    Map<String, Set<String>> keys = Maps.newHashMap();
+    Map<String, Set<String>> prefixes = Maps.newHashMap();
+    Set<String> all = Sets.newHashSet();
+    for (Invalidation invalidation : batch) {
+      switch (invalidation.type) {
+      case ALL:
+        all.add(invalidation.cacheName);
+        break;
+      case PREFIX:
+        getSet(prefixes, invalidation.cacheName).add(trimSlash(invalidation.key));
+        break;
+      default:
+        getSet(keys, invalidation.cacheName).add(invalidation.key);
+      }
+    }
+
+    Map<String, List<Invalidation>> result = Maps.newLinkedHashMap();
+    for (String cacheName : all) {
+      result.put(cacheName, Lists.newArrayList(new Invalidation(cacheName, ALL, "")));
+    }
+    Set<String> cacheNames = Sets.newHashSet(keys.keySet());
+    cacheNames.addAll(prefixes.keySet());
+    cacheNames.removeAll(all);
+    for (String cacheName : cacheNames) {
+      Set<String> cachePrefixes = getSet(prefixes, cacheName);
+      Set<String> cacheKeys = getSet(keys, cacheName);
+
+      // collapse crowded parents into prefixes
+      Map<String, Integer> siblings = Maps.newHashMap();
+      for (String key : cacheKeys) {
+        String parent = getParent(key);
+        if (parent != null) {
+          Integer count = siblings.get(parent);
+          siblings.put(parent, count == null ? 1 : count + 1);
+        }
+      }
+      for (Entry<String, Integer> e : siblings.entrySet()) {
+        if (e.getValue() >= threshold) {
+          cachePrefixes.add(e.getKey());
+        }
+      }
+
+      // drop prefixes and keys that are covered by another prefix.
+      List<Invalidation> invalidations = Lists.newArrayList();
+      for (String prefix : cachePrefixes) {
+        if (!isCovered(getParent(prefix), cachePrefixes)) {
+          invalidations.add(new Invalidation(cacheName, PREFIX, prefix));
+        }
+      }
+      for (String key : cacheKeys) {
+        if (!isCovered(key, cachePrefixes)) {
+          invalidations.add(new Invalidation(cacheName, KEY, key));
+        }
+      }
+      result.put(cacheName, invalidations);
+    }
+    return result;
+  }
+
+  /**
+   * @param key
+   * @param prefixes
+   * @return true if the key, or any of its ancestors, is in the set of prefixes.
+   */
+  private static boolean isCovered(String key, Set<String> prefixes) {
+    while (key != null) {
+      if (prefixes.contains(key)) {
+        return true;
+      }
+      key = getParent(key);
+    }
+    return false;
+  }
+
+  /**
+   * A prefix with a trailing slash covers the same keys as one without, apart from the
+   * prefix itself, so the trailing slash is dropped to make prefixes comparable.
+   */
+  private static String trimSlash(String key) {
+    while (key.length() > 1 && key.endsWith("/")) {
+      key = key.substring(0, key.length() - 1);
+    }
+    return key;
+  }
+
+  private static String getParent(String key) {
+    int i = key.lastIndexOf('/');
+    if (i <= 0) {
+      return null;
+    }
+    return key.substring(0, i);
+  }
+
+  private static Set<String> getSet(Map<String, Set<String>> m, String cacheName) {
+    Set<String> s = m.get(cacheName);
+    if (s == null) {
+      s = Sets.newHashSet();
+      m.put(cacheName, s);
+    }
+    return s;
+  }
+
+  private ObjectName getObjectName(String cacheName) throws Exception {
+    return new ObjectName(MBEAN_DOMAIN + ":type=ClusterInvalidation,cache="
+        + ObjectName.quote(cacheName));
+  }
+
+  private void closeConnection() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+    connection = null;
+    producerSession = null;
+    producer = null;
+  }
+
+  /**
+   * A single invalidation.
+   */
+  static class Invalidation {
+    final String cacheName;
+    final byte type;
+    final String key;
+
+    Invalidation(String cacheName, byte type, String key) {
+      this.cacheName = cacheName;
+      this.type = type;
+      this.key = key;
+    }
+  }
+}
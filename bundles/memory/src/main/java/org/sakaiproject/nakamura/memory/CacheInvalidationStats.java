@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the cluster invalidation traffic of a single cache.
+ */
+public class CacheInvalidationStats implements CacheInvalidationStatsMBean {
+
+  private final String cacheName;
+  final AtomicLong queued = new AtomicLong();
+  final AtomicLong sent = new AtomicLong();
+  final AtomicLong received = new AtomicLong();
+  final AtomicLong messagesSent = new AtomicLong();
+  final AtomicLong messagesReceived = new AtomicLong();
+  final AtomicLong dropped = new AtomicLong();
+
+  public CacheInvalidationStats(String cacheName) {
+    this.cacheName = cacheName;
+  }
+
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  public long getInvalidationsQueued() {
+    return queued.get();
+  }
+
+  public long getInvalidationsSent() {
+    return sent.get();
+  }
+
+  public long getInvalidationsReceived() {
+    return received.get();
+  }
+
+  public long getMessagesSent() {
+    return messagesSent.get();
+  }
+
+  public long getMessagesReceived() {
+    return messagesReceived.get();
+  }
+
+  public long getInvalidationsDropped() {
+    return dropped.get();
+  }
+
+  public void reset() {
+    queued.set(0);
+    sent.set(0);
+    received.set(0);
+    messagesSent.set(0);
+    messagesReceived.set(0);
+    dropped.set(0);
+  }
+
+}
@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * JMX view of the cluster invalidation traffic for a single cache.
+ */
+public interface CacheInvalidationStatsMBean {
+
+  /**
+   * @return the name of the cache.
+   */
+  String getCacheName();
+
+  /**
+   * @return the number of invalidations requested by this node, before coalescing.
+   */
+  long getInvalidationsQueued();
+
+  /**
+   * @return the number of invalidation entries sent to the cluster, after coalescing.
+   */
+  long getInvalidationsSent();
+
+  /**
+   * @return the number of invalidation entries received from other nodes.
+   */
+  long getInvalidationsReceived();
+
+  /**
+   * @return the number of JMS messages sent for this cache.
+   */
+  long getMessagesSent();
+
+  /**
+   * @return the number of JMS messages received for this cache.
+   */
+  long getMessagesReceived();
+
+  /**
+   * @return the number of invalidations that were dropped because the send queue was full
+   *         or JMS was not available. A dropped invalidation on a full queue is replaced
+   *         by a clear of the whole cache.
+   */
+  long getInvalidationsDropped();
+
+  /**
+   * Reset all the counters.
+   */
+  void reset();
+}
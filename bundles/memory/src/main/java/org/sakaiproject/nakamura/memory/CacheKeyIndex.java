@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A sorted index of the keys held in an ehcache, kept up to date by listening to the
+ * cache events, so that puts, removes, expiry, eviction and replication from other nodes
+ * are all reflected. Finding the keys under a path prefix costs O(log n + matches) rather
+ * than a scan of every key in the cache. There is one index per ehcache, shared by all the
+ * {@link CacheImpl} instances that wrap it.
+ */
+public class CacheKeyIndex implements CacheEventListener {
+
+  private final NavigableSet<String> keys = new ConcurrentSkipListSet<String>();
+
+  /**
+   * Get the index registered against an ehcache, registering a new one if there is none.
+   *
+   * @param cache
+   * @return the index for the cache.
+   */
+  public static CacheKeyIndex getIndex(Ehcache cache) {
+    synchronized (cache) {
+      for (Object listener : cache.getCacheEventNotificationService()
+          .getCacheEventListeners()) {
+        if (listener instanceof CacheKeyIndex) {
+          return (CacheKeyIndex) listener;
+        }
+      }
+      CacheKeyIndex index = new CacheKeyIndex();
+      cache.getCacheEventNotificationService().registerListener(index);
+      List<?> existing = cache.getKeys();
+      for (Object k : existing) {
+        index.add(k);
+      }
+      return index;
+    }
+  }
+
+  /**
+   * @param prefix
+   * @return a live, weakly consistent view of the keys starting with prefix, in key order.
+   *         Keys may be removed from the cache while iterating.
+   */
+  public Iterable<String> startingWith(final String prefix) {
+    return new Iterable<String>() {
+      public Iterator<String> iterator() {
+        final Iterator<String> tail = keys.tailSet(prefix, true).iterator();
+        return new Iterator<String>() {
+          private String next = advance();
+
+          private String advance() {
+            if (tail.hasNext()) {
+              String k = tail.next();
+              if (k.startsWith(prefix)) {
+                return k;
+              }
+            }
+            return null;
+          }
+
+          public boolean hasNext() {
+            return next != null;
+          }
+
+          public String next() {
+            String k = next;
+            next = advance();
+            return k;
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * @return the number of keys in the index.
+   */
+  public int size() {
+    return keys.size();
+  }
+
+  /**
+   * Drop a key from the index, for keys that have already left the cache without an event.
+   *
+   * @param key
+   */
+  public void discard(String key) {
+    keys.remove(key);
+  }
+
+  private void add(Object key) {
+    if (key instanceof String) {
+      keys.add((String) key);
+    }
+  }
+
+  private void remove(Element element) {
+    if (element != null && element.getObjectKey() instanceof String) {
+      keys.remove(element.getObjectKey());
+    }
+  }
+
+  public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+    if (element != null) {
+      add(element.getObjectKey());
+    }
+  }
+
+  public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+    if (element != null) {
+      add(element.getObjectKey());
+    }
+  }
+
+  public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+    remove(element);
+  }
+
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    remove(element);
+  }
+
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    remove(element);
+  }
+
+  public void notifyRemoveAll(Ehcache cache) {
+    keys.clear();
+  }
+
+  public void dispose() {
+    keys.clear();
+  }
+
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("A key index is bound to a single cache");
+  }
+
+}
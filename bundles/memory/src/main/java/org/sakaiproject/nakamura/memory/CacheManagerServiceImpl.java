@@ -24,9 +24,14 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
@@ -40,12 +45,13 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.jms.JMSException;
 import javax.management.MBeanServer;
 
 /**
@@ -68,6 +74,19 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   @Property( value = DEFAULT_CACHE_STORE)
   public static final String CACHE_STORE = "cache-store";
 
+  @Property(intValue = 500)
+  public static final String INVALIDATION_BATCH_SIZE = "cluster-invalidation-batch-size";
+
+  @Property(longValue = 50L)
+  public static final String INVALIDATION_LINGER = "cluster-invalidation-linger";
+
+  @Property(intValue = 20)
+  public static final String INVALIDATION_COALESCE_THRESHOLD = "cluster-invalidation-coalesce-threshold";
+
+  /** invalidate other nodes when a put replaces a value, puts filling a miss never do */
+  @Property(boolValue = true)
+  public static final String INVALIDATION_INVALIDATE_PUTS = "cluster-invalidation-invalidate-puts";
+
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
@@ -77,9 +96,18 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   private static final String CONFIG_PATH = "res://org/sakaiproject/nakamura/memory/ehcacheConfig.xml";
   private static final Logger LOGGER = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
-  private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
+  private Map<String, Cache<?>> caches = new ConcurrentHashMap<String, Cache<?>>();
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  private CacheInvalidationBroadcaster invalidationBroadcaster = new CacheInvalidationBroadcaster(caches);
+  private boolean invalidatePuts = true;
+
+  /**
+   * When JMS is available CLUSTERINVALIDATED caches send their invalidations to the rest
+   * of the cluster, without it they behave as INSTANCE caches.
+   */
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindConnectionFactoryService", unbind = "unbindConnectionFactoryService")
+  private ConnectionFactoryService connectionFactoryService;
 
   public CacheManagerServiceImpl() throws IOException {
     create();
@@ -122,6 +150,11 @@ public class CacheManagerServiceImpl implements CacheManagerService {
 
    @Activate
    protected void activate(Map<String, Object> properties) throws FileNotFoundException, IOException {
+	  invalidationBroadcaster.configure(
+	      PropertiesUtil.toInteger(properties.get(INVALIDATION_BATCH_SIZE), 500),
+	      PropertiesUtil.toLong(properties.get(INVALIDATION_LINGER), 50L),
+	      PropertiesUtil.toInteger(properties.get(INVALIDATION_COALESCE_THRESHOLD), 20));
+	  invalidatePuts = PropertiesUtil.toBoolean(properties.get(INVALIDATION_INVALIDATE_PUTS), true);
 	  String config = PropertiesUtil.toString(properties.get(CACHE_CONFIG), DEFAULT_CACHE_CONFIG);
 	  File configFile = new File(config);
 	  ClassLoader cl = Thread.currentThread().getContextClassLoader();
@@ -174,10 +207,31 @@ public class CacheManagerServiceImpl implements CacheManagerService {
 
   }
 
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    invalidationBroadcaster.stop();
+  }
+
+  protected void bindConnectionFactoryService(ConnectionFactoryService connectionFactoryService) {
+    this.connectionFactoryService = connectionFactoryService;
+    try {
+      invalidationBroadcaster.start(connectionFactoryService.getDefaultConnectionFactory());
+    } catch (JMSException e) {
+      LOGGER.error("Unable to start cluster cache invalidation, CLUSTERINVALIDATED caches will be local only "
+          + e.getMessage(), e);
+    }
+  }
+
+  protected void unbindConnectionFactoryService(ConnectionFactoryService connectionFactoryService) {
+    invalidationBroadcaster.stop();
+    this.connectionFactoryService = null;
+  }
+
   /**
    * perform a shutdown
    */
   public void stop() {
+    invalidationBroadcaster.stop();
     cacheManager.shutdown();
     // we really want to notify all threads that have maps
   }
@@ -192,7 +246,7 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     case INSTANCE:
       return getInstanceCache(name, scope);
     case CLUSTERINVALIDATED:
-      return getInstanceCache(name, scope);
+      return getClusterInvalidatedCache(name);
     case CLUSTERREPLICATED:
       return getInstanceCache(name, scope);
     case REQUEST:
@@ -256,6 +310,26 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     }
   }
 
+  /**
+   * Generate a cache that is local to the instance, but invalidated across the cluster.
+   *
+   * @param name
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private synchronized <V> Cache<V> getClusterInvalidatedCache(String name) {
+    if (name == null) {
+      return getInstanceCache(name, CacheScope.CLUSTERINVALIDATED);
+    }
+    Cache<V> c = (Cache<V>) caches.get(name);
+    if (c == null) {
+      c = new ClusterInvalidatedCacheImpl<V>(cacheManager, name, invalidationBroadcaster,
+          invalidatePuts);
+      caches.put(name, c);
+    }
+    return c;
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheManager;
+
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+/**
+ * A local ehcache backed cache that tells the other members of the cluster to drop their
+ * copies of any key that is changed or removed here. A put that fills a key this node did
+ * not hold is taken to be a read through and is not broadcast, otherwise every node
+ * reading the same key would evict it from all the others. Writers that must invalidate
+ * a key whether or not it is held here remove it before they put the new value.
+ * Invalidations received from other members are applied through the
+ * <code>invalidateLocally</code> methods, which never re-broadcast.
+ */
+public class ClusterInvalidatedCacheImpl<V> extends CacheImpl<V> {
+
+  private CacheInvalidationBroadcaster broadcaster;
+  private boolean invalidatePuts;
+
+  /**
+   * @param cacheManager
+   * @param name
+   * @param broadcaster
+   *          the broadcaster that will batch and send invalidations for this cache.
+   * @param invalidatePuts
+   *          if true a put that replaces a value held here will invalidate that key on the
+   *          other nodes, in the same way as ehcache replicateUpdatesViaCopy=false.
+   */
+  public ClusterInvalidatedCacheImpl(CacheManager cacheManager, String name,
+      CacheInvalidationBroadcaster broadcaster, boolean invalidatePuts) {
+    super(cacheManager, name, CacheScope.CLUSTERINVALIDATED);
+    this.broadcaster = broadcaster;
+    this.invalidatePuts = invalidatePuts;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#put(java.lang.String,
+   *      java.lang.Object)
+   */
+  @Override
+  public V put(String key, V payload) {
+    V previous = super.put(key, payload);
+    if (invalidatePuts && previous != null) {
+      broadcaster.invalidateKey(getName(), key);
+    }
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#remove(java.lang.String)
+   */
+  @Override
+  public void remove(String key) {
+    super.remove(key);
+    broadcaster.invalidateKey(getName(), key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#removeChildren(java.lang.String)
+   */
+  @Override
+  public void removeChildren(String key) {
+    super.removeChildren(key);
+    broadcaster.invalidatePrefix(getName(), key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#clear()
+   */
+  @Override
+  public void clear() {
+    super.clear();
+    broadcaster.invalidateAll(getName());
+  }
+
+  /**
+   * Remove a key in response to a remote invalidation.
+   *
+   * @param key
+   */
+  void invalidateLocally(String key) {
+    super.remove(key);
+  }
+
+  /**
+   * Remove a key and its children in response to a remote invalidation.
+   *
+   * @param key
+   */
+  void invalidateChildrenLocally(String key) {
+    super.removeChildren(key);
+  }
+
+  /**
+   * Clear the cache in response to a remote invalidation.
+   */
+  void invalidateAllLocally() {
+    super.clear();
+  }
+
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.Lists;
+
+import net.sf.ehcache.CacheManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.CacheInvalidationBroadcaster.Invalidation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class CacheInvalidationBroadcasterTest {
+
+  private CacheManagerServiceImpl cacheManagerService;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheManagerService = new CacheManagerServiceImpl();
+  }
+
+  @Test
+  public void testCoalesceDropsCoveredKeys() {
+    List<Invalidation> batch = Lists.newArrayList();
+    batch.add(new Invalidation("c1", CacheInvalidationBroadcaster.KEY, "a/b/c"));
+    batch.add(new Invalidation("c1", CacheInvalidationBroadcaster.KEY, "a/b/c"));
+    batch.add(new Invalidation("c1", CacheInvalidationBroadcaster.PREFIX, "a/b/"));
+    batch.add(new Invalidation("c1", CacheInvalidationBroadcaster.PREFIX, "a/b/d"));
+    batch.add(new Invalidation("c1", CacheInvalidationBroadcaster.KEY, "a/bc"));
+    Map<String, List<Invalidation>> coalesced = CacheInvalidationBroadcaster.coalesce(
+        batch, 20);
+    List<Invalidation> c1 = coalesced.get("c1");
+    assertEquals(2, c1.size());
+    assertEquals(CacheInvalidationBroadcaster.PREFIX, c1.get(0).type);
+    assertEquals("a/b", c1.get(0).key);
+    assertEquals(CacheInvalidationBroadcaster.KEY, c1.get(1).type);
+    assertEquals("a/bc", c1.get(1).key);
+  }
+
+  @Test
+  public void testCoalesceCollapsesSiblings() {
+    List<Invalidation> batch = Lists.newArrayList();
+    for (int i = 0; i < 50; i++) {
+      batch.add(new Invalidation("c1", CacheInvalidationBroadcaster.KEY, "x/y/" + i));
+    }
+    batch.add(new Invalidation("c2", CacheInvalidationBroadcaster.KEY, "x/y/1"));
+    batch.add(new Invalidation("c2", CacheInvalidationBroadcaster.ALL, ""));
+    Map<String, List<Invalidation>> coalesced = CacheInvalidationBroadcaster.coalesce(
+        batch, 20);
+    assertEquals(1, coalesced.get("c1").size());
+    assertEquals("x/y", coalesced.get("c1").get(0).key);
+    assertEquals(1, coalesced.get("c2").size());
+    assertEquals(CacheInvalidationBroadcaster.ALL, coalesced.get("c2").get(0).type);
+  }
+
+  @Test
+  public void testApplyRemoteInvalidations() {
+    Cache<String> cache = cacheManagerService.getCache("invalidatedCache",
+        CacheScope.CLUSTERINVALIDATED);
+    cache.put("a", "1");
+    cache.put("a/b", "2");
+    cache.put("c", "3");
+    cache.put("d", "4");
+    CacheInvalidationBroadcaster broadcaster = new CacheInvalidationBroadcaster(
+        Collections.<String, Cache<?>> singletonMap("invalidatedCache", cache));
+    List<Invalidation> invalidations = Lists.newArrayList();
+    invalidations.add(new Invalidation("invalidatedCache", CacheInvalidationBroadcaster.PREFIX, "a"));
+    invalidations.add(new Invalidation("invalidatedCache", CacheInvalidationBroadcaster.KEY, "c"));
+    broadcaster.apply("invalidatedCache", invalidations);
+    assertNull(cache.get("a"));
+    assertNull(cache.get("a/b"));
+    assertNull(cache.get("c"));
+    assertNotNull(cache.get("d"));
+    assertEquals(2, broadcaster.getStats("invalidatedCache").getInvalidationsReceived());
+    broadcaster.stop();
+  }
+
+  @Test
+  public void testFillsAreNotBroadcast() {
+    final List<String> invalidated = new ArrayList<String>();
+    CacheInvalidationBroadcaster broadcaster = new CacheInvalidationBroadcaster(
+        Collections.<String, Cache<?>> emptyMap()) {
+      @Override
+      public void invalidateKey(String cacheName, String key) {
+        invalidated.add(key);
+      }
+    };
+    Cache<String> cache = new ClusterInvalidatedCacheImpl<String>(CacheManager.create(),
+        "fillCache", broadcaster, true);
+    cache.put("a", "1");
+    cache.put("b", "1");
+    assertEquals(0, invalidated.size());
+    cache.put("a", "2");
+    cache.remove("b");
+    assertEquals(Lists.newArrayList("a", "b"), invalidated);
+  }
+}
@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the indexed {@link CacheImpl#removeChildren(String)} with the full key scan it
+ * replaced, removing a 100 key subtree from caches of 10k, 100k and 1M keys. Run with
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.sakaiproject.nakamura.memory.RemoveChildrenBenchmark</code>, or
+ * from an IDE.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RemoveChildrenBenchmark {
+
+  private static final int SUBTREE_SIZE = 100;
+
+  @Param({ "10000", "100000", "1000000" })
+  public int size;
+
+  private CacheManager cacheManager;
+  private CacheImpl<String> cache;
+  private net.sf.ehcache.Cache ehcache;
+  private int subtrees;
+  private int next;
+  private String parent;
+
+  @Setup(Level.Trial)
+  public void setUpCache() {
+    Configuration configuration = new Configuration();
+    configuration.setDefaultCacheConfiguration(new CacheConfiguration("default", 0)
+        .eternal(true));
+    configuration.setUpdateCheck(false);
+    cacheManager = new CacheManager(configuration);
+    cache = new CacheImpl<String>(cacheManager, "benchmark", CacheScope.INSTANCE);
+    ehcache = cacheManager.getCache("benchmark");
+    subtrees = size / SUBTREE_SIZE;
+    for (int i = 0; i < size; i++) {
+      cache.put(key(i / SUBTREE_SIZE, i), "v");
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownCache() {
+    cacheManager.shutdown();
+  }
+
+  @Setup(Level.Invocation)
+  public void refillSubtree() {
+    int subtree = next++ % subtrees;
+    parent = "/content/" + subtree;
+    for (int i = subtree * SUBTREE_SIZE; i < (subtree + 1) * SUBTREE_SIZE; i++) {
+      cache.put(key(subtree, i), "v");
+    }
+  }
+
+  @Benchmark
+  public void indexed() {
+    cache.removeChildren(parent);
+  }
+
+  @Benchmark
+  public void scan() {
+    ehcache.remove(parent);
+    String prefix = parent + "/";
+    List<?> keys = ehcache.getKeys();
+    for (Object k : keys) {
+      if (((String) k).startsWith(prefix)) {
+        ehcache.remove(k);
+      }
+    }
+  }
+
+  private static String key(int subtree, int i) {
+    return "/content/" + subtree + "/" + i;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(RemoveChildrenBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+}
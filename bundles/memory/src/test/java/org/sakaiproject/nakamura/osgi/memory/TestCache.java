@@ -93,6 +93,29 @@ public class TestCache {
     }
   }
 
+  @Test
+  public void testRemoveChildrenLeavesSiblings() {
+    Cache<String> cache = cacheManagerService.getCache("SiblingTestCache",
+        CacheScope.INSTANCE);
+    cache.put("a/b", "1");
+    cache.put("a/b/c", "2");
+    cache.put("a/b/c/d", "3");
+    cache.put("a/bc", "4");
+    cache.put("a/b-c", "5");
+    cache.removeChildren("a/b");
+    assertNull("Expected key to be removed", cache.get("a/b"));
+    assertNull("Expected key to be removed", cache.get("a/b/c"));
+    assertNull("Expected key to be removed", cache.get("a/b/c/d"));
+    assertEquals("Expected sibling to remain", "4", cache.get("a/bc"));
+    assertEquals("Expected sibling to remain", "5", cache.get("a/b-c"));
+    cache.put("a/b/c", "6");
+    cache.remove("a/b/c");
+    cache.put("a/b/e", "7");
+    cache.removeChildren("a/b/");
+    assertNull("Expected key to be removed", cache.get("a/b/e"));
+    cache.clear();
+  }
+
   @Test
   public void testThreadUnbinding() {
     ThreadBound testItem = createMock(ThreadBound.class);
@@ -26,7 +26,12 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -35,6 +40,11 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
@@ -43,9 +53,13 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -64,9 +78,8 @@ public abstract class LiteAbstractMyGroupsServlet extends SlingSafeMethodsServle
 
   /**
   * This and related code attempts to mimic the usual client-server API for paged searching.
-  *
-  * TODO Replace the MyGroupsServlet and MyManagedGroupsServlet with search queries.
-  * (This was not possible when the servlets were first written, but should be now.)
+  * The subclasses decide which groups belong in the listing; the listing itself is
+  * filtered, sorted, paged and faceted by a search query over those groups.
   */
   public static final String PARAMS_ITEMS_PER_PAGE = "items";
   /**
@@ -86,6 +99,11 @@ public abstract class LiteAbstractMyGroupsServlet extends SlingSafeMethodsServle
   *
   */
   public static final String JSON_RESULTS = "results";
+  /**
+   * The most group ids in one boolean clause of the id filter, below the Solr
+   * maxBooleanClauses limit of 1024.
+   */
+  protected static final int MAX_IDS_PER_CLAUSE = 1000;
   private static final Set<String> IGNORE_PROPERTIES = new HashSet<String>();
   private static final String[] IGNORE_PROPERTY_NAMES = new String[] {
     "members", "principals",
@@ -97,6 +115,22 @@ public abstract class LiteAbstractMyGroupsServlet extends SlingSafeMethodsServle
     }
   }
 
+  /**
+   * Orders groups the way the index does with general_sort, by lower-cased title, with
+   * the id breaking ties.
+   */
+  private static final Comparator<Group> TITLE_ORDER = new Comparator<Group>() {
+    public int compare(Group a, Group b) {
+      int c = sortTitle(a).compareTo(sortTitle(b));
+      return (c != 0) ? c : a.getId().compareTo(b.getId());
+    }
+
+    private String sortTitle(Group group) {
+      Object title = group.getProperty("sakai:group-title");
+      return (title == null) ? "" : String.valueOf(title).toLowerCase();
+    }
+  };
+
 
 
   protected transient ProfileService profileService;
@@ -108,6 +142,15 @@ public abstract class LiteAbstractMyGroupsServlet extends SlingSafeMethodsServle
     this.profileService = null;
   }
 
+  protected transient SolrSearchServiceFactory searchServiceFactory;
+
+  protected void bindSearchServiceFactory(SolrSearchServiceFactory searchServiceFactory) {
+    this.searchServiceFactory = searchServiceFactory;
+  }
+  protected void unbindSearchServiceFactory(SolrSearchServiceFactory searchServiceFactory) {
+    this.searchServiceFactory = null;
+  }
+
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws ServletException, IOException {
     javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
@@ -128,27 +171,25 @@ public abstract class LiteAbstractMyGroupsServlet extends SlingSafeMethodsServle
       }
       TreeMap<String, Group> groups = getGroups(authorizable, am, request);
 
-      // Get the specified search query filter, if any.
-      Pattern filterPattern = getFilterPattern(request.getParameter(PARAM_TEXT_TO_MATCH));
-
-      // Filter the Profiles so as to set up proper paging.
-      List<ValueMap> filteredProfiles = new ArrayList<ValueMap>();
-      for (Group group : groups.values()) {
-        ValueMap profile = profileService.getProfileMap(group, jcrSession);
-        if (profile != null) {
-          if ((filterPattern == null) || (isValueMapPattternMatch(profile, filterPattern))) {
-            filteredProfiles.add(profile);
-          }
-        } else {
-          LOGGER.info("No Profile found for group {}", group.getId());
-        }
-      }
-
-      // Write out the Profiles.
       long nitems = longRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
           DEFAULT_PAGED_ITEMS);
       long page = longRequestParameter(request, PARAMS_PAGE, 0);
-      long offset = page * nitems;
+      String textToMatch = request.getParameter(PARAM_TEXT_TO_MATCH);
+
+      // Filter, sort, page and facet in the index unless some of the groups are not
+      // indexed, in which case only the group properties in memory can give the answer.
+      GroupPage groupPage = null;
+      if (searchServiceFactory != null && allIndexed(groups.values())) {
+        try {
+          groupPage = pageFromIndex(request, groups, textToMatch, nitems, page);
+        } catch (SolrSearchException e) {
+          LOGGER.warn("Unable to search groups for user {}, filtering in memory: {}",
+              userId, e.getMessage());
+        }
+      }
+      if (groupPage == null) {
+        groupPage = pageInMemory(groups, textToMatch, nitems, page);
+      }
 
       List<String> selectors = Arrays.asList(request.getRequestPathInfo().getSelectors());
       response.setContentType("application/json");
@@ -161,22 +202,22 @@ public abstract class LiteAbstractMyGroupsServlet extends SlingSafeMethodsServle
       writer.value(nitems);
       writer.key(JSON_RESULTS);
 
+      // Only the groups on the requested page need their profiles.
       writer.array();
-      int i = 0;
-      for (ValueMap profile : filteredProfiles) {
-        if ( i >= (offset + nitems) ) {
-          break;
-        } else if ( i >= offset ) {
+      for (Group group : groupPage.rows) {
+        ValueMap profile = profileService.getProfileMap(group, jcrSession);
+        if (profile != null) {
           writer.valueMap(profile);
+        } else {
+          LOGGER.info("No Profile found for group {}", group.getId());
         }
-        i++;
       }
       writer.endArray();
 
-      writeFacetFields(filteredProfiles, writer);
+      writeFacetFields(groupPage.tags, writer);
 
       writer.key(TOTAL);
-      writer.value(filteredProfiles.size());
+      writer.value(groupPage.total);
 
       writer.endObject();
 
@@ -200,6 +241,155 @@ public abstract class LiteAbstractMyGroupsServlet extends SlingSafeMethodsServle
     }
   }
 
+  /**
+   * Run the filter, sort, page and tag facet as a single query over the authorizable
+   * documents of the given groups.
+   */
+  protected GroupPage pageFromIndex(SlingHttpServletRequest request,
+      Map<String, Group> groups, String textToMatch, long nitems, long page)
+      throws SolrSearchException {
+    StringBuilder queryString = new StringBuilder("resourceType:authorizable AND type:g");
+    if (textToMatch != null && textToMatch.trim().length() > 0) {
+      String term = escapeKeepingWildcards(textToMatch.trim());
+      queryString.append(" AND (name:(").append(term).append(") OR title:(").append(term)
+          .append(") OR description:(").append(term).append(") OR tag:(").append(term)
+          .append(") OR edgengram:(").append(term).append("))");
+    }
+
+    Map<String, Object> options = new HashMap<String, Object>();
+    options.put(CommonParams.FQ, getIdFilter(groups.keySet()));
+    options.put(PARAMS_ITEMS_PER_PAGE, Long.toString(nitems));
+    options.put(PARAMS_PAGE, Long.toString(page));
+    options.put(CommonParams.SORT, "general asc");
+    options.put(FacetParams.FACET, "true");
+    options.put(FacetParams.FACET_FIELD, "tagname");
+    options.put(FacetParams.FACET_MINCOUNT, "1");
+    options.put(FacetParams.FACET_LIMIT, "-1");
+    options.put(FacetParams.FACET_SORT, FacetParams.FACET_SORT_COUNT);
+
+    SolrSearchResultSet rs = searchServiceFactory.getSearchResultSet(request,
+        new Query(queryString.toString(), options));
+
+    GroupPage groupPage = new GroupPage();
+    groupPage.total = rs.getSize();
+    Iterator<Result> results = rs.getResultSetIterator();
+    while (results.hasNext() && groupPage.rows.size() < nitems) {
+      Group group = groups.get(results.next().getPath());
+      if (group != null) {
+        groupPage.rows.add(group);
+      }
+    }
+    List<FacetField> facetFields = rs.getFacetFields();
+    if (facetFields != null) {
+      for (FacetField facetField : facetFields) {
+        if ("tagname".equals(facetField.getName()) && facetField.getValues() != null) {
+          for (FacetField.Count count : facetField.getValues()) {
+            groupPage.tags.put(count.getName(), count.getCount());
+          }
+        }
+      }
+    }
+    return groupPage;
+  }
+
+  /**
+   * Filter, sort, page and facet the group properties in memory, for listings that
+   * include groups which are kept out of the index.
+   */
+  protected GroupPage pageInMemory(Map<String, Group> groups, String textToMatch,
+      long nitems, long page) {
+    Pattern filterPattern = getFilterPattern(textToMatch);
+    List<Group> filtered = new ArrayList<Group>();
+    for (Group group : groups.values()) {
+      if ((filterPattern == null)
+          || (isValueMapPattternMatch(new ValueMapDecorator(group.getSafeProperties()),
+              filterPattern))) {
+        filtered.add(group);
+      }
+    }
+    Collections.sort(filtered, TITLE_ORDER);
+
+    Multiset<String> tags = HashMultiset.create();
+    for (Group group : filtered) {
+      Object groupTags = group.getProperty("sakai:tags");
+      if (groupTags instanceof String[]) {
+        Collections.addAll(tags, (String[]) groupTags);
+      }
+    }
+    // sort the tags in descending order of their occurrence
+    List<Multiset.Entry<String>> sortedTags = Lists.newArrayList(tags.entrySet());
+    Collections.sort(sortedTags, new Comparator<Multiset.Entry<String>>() {
+      @Override
+      public int compare(Multiset.Entry<String> a, Multiset.Entry<String> b) {
+        return Ints.compare(b.getCount(), a.getCount());
+      }
+    });
+
+    GroupPage groupPage = new GroupPage();
+    groupPage.total = filtered.size();
+    long offset = page * nitems;
+    for (int i = (int) Math.min(offset, filtered.size()); i < filtered.size()
+        && groupPage.rows.size() < nitems; i++) {
+      groupPage.rows.add(filtered.get(i));
+    }
+    for (Multiset.Entry<String> tag : sortedTags) {
+      groupPage.tags.put(tag.getElement(), (long) tag.getCount());
+    }
+    return groupPage;
+  }
+
+  /**
+   * Restrict a query to the given group ids, as a disjunction of chunks that each stay
+   * well below the Solr limit on boolean clauses.
+   */
+  protected static String getIdFilter(Collection<String> groupIds) {
+    if (groupIds.isEmpty()) {
+      // nothing can match, but the query still has to be valid
+      return "id:\"\"";
+    }
+    StringBuilder filter = new StringBuilder();
+    int inChunk = 0;
+    for (String groupId : groupIds) {
+      if (inChunk == MAX_IDS_PER_CLAUSE) {
+        filter.append(") OR ");
+        inChunk = 0;
+      }
+      if (inChunk == 0) {
+        filter.append("id:(");
+      } else {
+        filter.append(" OR ");
+      }
+      filter.append(ClientUtils.escapeQueryChars(groupId));
+      inChunk++;
+    }
+    return filter.append(")").toString();
+  }
+
+  private static String escapeKeepingWildcards(String text) {
+    String[] parts = text.split("\\*", -1);
+    StringBuilder escaped = new StringBuilder(ClientUtils.escapeQueryChars(parts[0]));
+    for (int i = 1; i < parts.length; i++) {
+      escaped.append("*").append(ClientUtils.escapeQueryChars(parts[i]));
+    }
+    return escaped.toString();
+  }
+
+  /**
+   * @return true if every group has an authorizable document in the index, mirroring the
+   *         rules the authorizable indexer applies.
+   */
+  protected boolean allIndexed(Collection<Group> groups) {
+    for (Group group : groups) {
+      Object title = group.getProperty("sakai:group-title");
+      if (Boolean.parseBoolean(String.valueOf(group.getProperty(UserConstants.SAKAI_EXCLUDE)))
+          || group.hasProperty(UserConstants.PROP_MANAGED_GROUP)
+          || title == null || String.valueOf(title).trim().length() == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private long longRequestParameter(SlingHttpServletRequest request,
       String paramName, long defaultValue) {
     String p = request.getParameter(paramName);
@@ -312,33 +502,17 @@ public abstract class LiteAbstractMyGroupsServlet extends SlingSafeMethodsServle
     return queryFilter.matcher(stringValue).matches();
   }
 
-  private void writeFacetFields(List<ValueMap> filteredProfiles, ExtendedJSONWriter writer) throws JSONException {
-    Multiset<String> tags = HashMultiset.create();
-    for (ValueMap profile : filteredProfiles) {
-      Object profileTags = profile.get("sakai:tags");
-      if (profileTags != null && profileTags instanceof String[]) {
-        Collections.addAll(tags, (String[]) profileTags);
-      }
-    }
-    // sort the tags in descending order of their occurrence
-    List<Multiset.Entry<String>> sortedTags = Lists.newArrayList(tags.entrySet());
-    Collections.sort(sortedTags, new Comparator<Multiset.Entry<String>>() {
-      @Override
-      public int compare(Multiset.Entry<String> a, Multiset.Entry<String> b) {
-        return Ints.compare(b.getCount(), a.getCount());
-      }
-    });
-
-    // write out the tag names and their counts
+  private void writeFacetFields(Map<String, Long> tags, ExtendedJSONWriter writer) throws JSONException {
+    // write out the tag names and their counts, most frequent first
     writer.key("facet_fields");
     writer.array();
     writer.object();
     writer.key("tagname");
     writer.array();
-    for (Multiset.Entry<String> tag : sortedTags) {
+    for (Map.Entry<String, Long> tag : tags.entrySet()) {
       writer.object();
-      writer.key(tag.getElement());
-      writer.value(tag.getCount());
+      writer.key(tag.getKey());
+      writer.value(tag.getValue());
       writer.endObject();
     }
     writer.endArray();
@@ -346,4 +520,14 @@ public abstract class LiteAbstractMyGroupsServlet extends SlingSafeMethodsServle
     writer.endArray();
   }
 
+  /**
+   * The groups on the requested page, how many groups matched in total and the tags of
+   * all matching groups in descending order of their occurrence.
+   */
+  protected static class GroupPage {
+    final List<Group> rows = new ArrayList<Group>();
+    final Map<String, Long> tags = new LinkedHashMap<String, Long>();
+    long total;
+  }
+
 }
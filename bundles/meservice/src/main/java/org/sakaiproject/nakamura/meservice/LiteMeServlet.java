@@ -23,16 +23,14 @@ import static org.sakaiproject.nakamura.api.connections.ConnectionState.PENDING;
 
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
-import org.apache.jackrabbit.util.ISO9075;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
-import org.apache.solr.client.solrj.util.ClientUtils;
-import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -51,11 +49,7 @@ import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
-import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
@@ -66,13 +60,13 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TimeZone;
 
@@ -142,7 +136,8 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   private MessageBucketService messageBucketService;
 
   @Reference
-  SolrSearchServiceFactory searchServiceFactory;
+  protected transient MeCounts meCounts;
+
   @Reference
   BasicUserInfoService basicUserInfoService;
 
@@ -202,13 +197,19 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
       ValueMap profile = profileService.getProfileMap(au,jcrSession);
       writer.valueMap(profile);
 
+      // The message and contact counts come from a single query.
+      Map<String, Long> counts = Collections.emptyMap();
+      if (!UserConstants.ANON_USERID.equals(au.getId())) {
+        counts = meCounts.getCounts(request, session, au.getId());
+      }
+
       // Dump this user his number of unread messages.
       writer.key("messages");
-      writeMessageCounts(writer, session, au, request);
+      writeMessageCounts(writer, au, counts);
 
       // Dump this user his number of contacts.
       writer.key("contacts");
-      writeContactCounts(writer, session, au, request);
+      writeContactCounts(writer, au, counts);
 
       // Dump the groups for this user.
       writer.key("groups");
@@ -292,55 +293,21 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
    * PENDING, ACCEPTED.
    *
    * @param writer
-   * @param session
    * @param au
+   * @param counts
+   *          the counts from {@link MeCounts}.
    * @throws JSONException
-   * @throws SolrSearchException
-   * @throws RepositoryException
    */
-  protected void writeContactCounts(ExtendedJSONWriter writer, Session session,
-      Authorizable au, SlingHttpServletRequest request) throws JSONException, SolrSearchException {
+  protected void writeContactCounts(ExtendedJSONWriter writer, Authorizable au,
+      Map<String, Long> counts) throws JSONException {
     writer.object();
 
     // We don't do queries for anonymous users. (Possible ddos hole).
-    String userID = au.getId();
-    if (UserConstants.ANON_USERID.equals(userID)) {
-      writer.endObject();
-      return;
-    }
-
-    // Get the path to the store for this user.
-    Map<String, Integer> contacts = new HashMap<String, Integer>();
-    contacts.put(ACCEPTED.toString().toLowerCase(), 0);
-    contacts.put(INVITED.toString().toLowerCase(), 0);
-    contacts.put(PENDING.toString().toLowerCase(), 0);
-    try {
-      // This could just use ConnectionUtils.getConnectionPathBase, but that util class is
-      // in the private package unfortunately.
-      String store = LitePersonalUtils.getHomePath(userID) + "/"
-          + ConnectionConstants.CONTACT_STORE_NAME;
-      store = ISO9075.encodePath(store);
-      String queryString = "path:" + ClientUtils.escapeQueryChars(store) + " AND resourceType:sakai/contact AND state:(ACCEPTED OR INVITED OR PENDING)";
-      Query query = new Query(queryString);
-      LOG.debug("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      Iterator<Result> resultIterator = resultSet.getResultSetIterator();
-      while (resultIterator.hasNext()) {
-        Result contact = resultIterator.next();
-        if (contact.getProperties().containsKey("state")) {
-          String state = ((String) contact.getProperties().get("state").iterator().next()).toLowerCase();
-          int count = 0;
-          if (contacts.containsKey(state)) {
-            count = contacts.get(state);
-          }
-          contacts.put(state, count + 1);
-        }
-      }
-    } finally {
-      for (Entry<String, Integer> entry : contacts.entrySet()) {
-        writer.key(entry.getKey());
-        writer.value(entry.getValue());
+    if (!UserConstants.ANON_USERID.equals(au.getId())) {
+      for (ConnectionState state : new ConnectionState[] { ACCEPTED, INVITED, PENDING }) {
+        String key = state.toString().toLowerCase();
+        writer.key(key);
+        writer.value(count(counts, key));
       }
     }
     writer.endObject();
@@ -351,46 +318,25 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
    *
    * @param writer
    *          The writer
-   * @param session
-   *          A JCR session to perform queries with. This session needs read access on the
-   *          authorizable's message box.
    * @param au
    *          An authorizable to look up the messages for.
+   * @param counts
+   *          the counts from {@link MeCounts}.
    * @throws JSONException
-   * @throws RepositoryException
-   * @throws MessagingException
-   * @throws SolrSearchException
    */
-  protected void writeMessageCounts(ExtendedJSONWriter writer, Session session,
-      Authorizable au, SlingHttpServletRequest request) throws JSONException, MessagingException, SolrSearchException {
+  protected void writeMessageCounts(ExtendedJSONWriter writer, Authorizable au,
+      Map<String, Long> counts) throws JSONException {
     writer.object();
     writer.key("unread");
-
-    // We don't do queries for anonymous users. (Possible ddos hole).
-    String userID = au.getId();
-    if (UserConstants.ANON_USERID.equals(userID)) {
-      writer.value(0);
-      writer.endObject();
-      return;
-    }
-
-    long count = 0;
-    try {
-      String store = messagingService.getFullPathToStore(au.getId(), session);
-      store = ISO9075.encodePath(store);
-      store = store.substring(0, store.length() - 1);
-      String queryString = "path:" + ClientUtils.escapeQueryChars(store) + " AND resourceType:sakai/message AND type:internal AND messagebox:inbox AND read:false";
-      Query query = new Query(queryString);
-      LOG.debug("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      count = resultSet.getSize();
-    } finally {
-      writer.value(count);
-    }
+    writer.value(count(counts, MeCounts.UNREAD));
     writer.endObject();
   }
 
+  private long count(Map<String, Long> counts, String key) {
+    Long count = counts.get(key);
+    return (count == null) ? 0 : count.longValue();
+  }
+
   /**
    *
    * @param write
@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.meservice;
 
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.References;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.sakaiproject.nakamura.api.doc.BindingType;
@@ -32,6 +33,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 
 import java.util.TreeMap;
@@ -137,7 +139,10 @@ import java.util.TreeMap;
   }
 )
 @SlingServlet(paths = { "/system/me/groups" }, generateComponent = true, generateService = true, methods = { "GET" })
-@Reference(name="profileService", referenceInterface=ProfileService.class)
+@References({
+  @Reference(name="profileService", referenceInterface=ProfileService.class),
+  @Reference(name="searchServiceFactory", referenceInterface=SolrSearchServiceFactory.class)
+})
 public class LiteMyGroupsServlet extends LiteAbstractMyGroupsServlet {
   private static final long serialVersionUID = 8809581334593701801L;
 
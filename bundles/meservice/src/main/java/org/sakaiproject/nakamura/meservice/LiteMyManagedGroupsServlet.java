@@ -36,6 +36,7 @@
 package org.sakaiproject.nakamura.meservice;
 
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.References;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.sakaiproject.nakamura.api.doc.BindingType;
@@ -51,6 +52,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 
 import java.util.Iterator;
@@ -125,7 +127,10 @@ import java.util.TreeMap;
   }
 )
 @SlingServlet(paths = { "/system/me/managedgroups" }, generateComponent = true, generateService = true, methods = { "GET" })
-@Reference(name="profileService", referenceInterface=ProfileService.class)
+@References({
+  @Reference(name="profileService", referenceInterface=ProfileService.class),
+  @Reference(name="searchServiceFactory", referenceInterface=SolrSearchServiceFactory.class)
+})
 public class LiteMyManagedGroupsServlet extends LiteAbstractMyGroupsServlet {
   private static final long serialVersionUID = 5286762541480563822L;
   @Override
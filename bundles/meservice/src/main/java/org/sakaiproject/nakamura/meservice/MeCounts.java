@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.ACCEPTED;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.INVITED;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.PENDING;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessagingException;
+import org.sakaiproject.nakamura.api.search.solr.SolrCountService;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+import org.sakaiproject.nakamura.util.PathUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The contact and unread message counts of /system/me. All of them come from one Solr
+ * request that facets the contact store and the message store of the user. Counts are
+ * cached briefly per user and dropped when the user's messages or contacts change.
+ */
+@Component(metatype = true)
+@Service(value = { MeCounts.class, EventHandler.class })
+@Property(name = "event.topics", value = {
+    "org/sakaiproject/nakamura/lite/content/ADDED",
+    "org/sakaiproject/nakamura/lite/content/UPDATED",
+    "org/sakaiproject/nakamura/lite/content/DELETE",
+    ConnectionConstants.EVENT_TOPIC_BASE + "*" })
+public class MeCounts implements EventHandler {
+
+  public static final String UNREAD = "unread";
+
+  private static final List<ConnectionState> CONTACT_STATES = Collections
+      .unmodifiableList(Arrays.asList(ACCEPTED, INVITED, PENDING));
+
+  private static final String CONTACTS_PATH_ELEMENT = "/"
+      + ConnectionConstants.CONTACT_STORE_NAME + "/";
+  private static final String MESSAGES_PATH_ELEMENT = "/"
+      + MessageConstants.FOLDER_MESSAGES + "/";
+
+  private static final String UNREAD_QUERY = "resourceType:sakai/message AND messagebox:"
+      + MessageConstants.BOX_INBOX + " AND read:false";
+
+  @Property(longValue = 10000L)
+  static final String TTL = "sakai.me.counts.ttl";
+
+  @Property(intValue = 10000)
+  static final String SIZE = "sakai.me.counts.size";
+
+  @Reference
+  protected SolrCountService countService;
+
+  @Reference
+  protected LiteMessagingService messagingService;
+
+  private final Map<String, CachedCounts> cache = new ConcurrentHashMap<String, CachedCounts>();
+  private long ttl = 10000L;
+  private int size = 10000;
+
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> props) {
+    ttl = PropertiesUtil.toLong(props.get(TTL), 10000L);
+    size = PropertiesUtil.toInteger(props.get(SIZE), 10000);
+    cache.clear();
+  }
+
+  /**
+   * @param request
+   * @param session
+   *          the session of the request.
+   * @param userId
+   *          the user whose stores are counted.
+   * @return the number of contacts keyed by lower case {@link ConnectionState} and the
+   *         number of unread messages keyed by {@link #UNREAD}.
+   * @throws SolrSearchException
+   * @throws MessagingException
+   */
+  public Map<String, Long> getCounts(SlingHttpServletRequest request, Session session,
+      String userId) throws SolrSearchException, MessagingException {
+    // only the user's own counts are cached, others may see less of the stores.
+    boolean cacheable = ttl > 0 && userId.equals(session.getUserId());
+    if (cacheable) {
+      CachedCounts cached = cache.get(userId);
+      if (cached != null && cached.expires > System.currentTimeMillis()) {
+        return cached.counts;
+      }
+    }
+
+    String contactStore = ISO9075.encodePath(LitePersonalUtils.getHomePath(userId)
+        + "/" + ConnectionConstants.CONTACT_STORE_NAME);
+    String messageStore = ISO9075.encodePath(messagingService.getFullPathToStore(userId,
+        session));
+    messageStore = messageStore.substring(0, messageStore.length() - 1);
+    String queryString = "(path:" + ClientUtils.escapeQueryChars(contactStore)
+        + " AND resourceType:sakai/contact) OR (path:"
+        + ClientUtils.escapeQueryChars(messageStore)
+        + " AND resourceType:sakai/message AND type:internal)";
+
+    List<String> facetQueries = new ArrayList<String>();
+    for (ConnectionState state : CONTACT_STATES) {
+      facetQueries.add(contactQuery(state));
+    }
+    facetQueries.add(UNREAD_QUERY);
+    Map<String, Long> facetCounts = countService.countQueries(request, queryString,
+        facetQueries);
+
+    Map<String, Long> counts = new HashMap<String, Long>();
+    for (ConnectionState state : CONTACT_STATES) {
+      counts.put(state.toString().toLowerCase(), facetCounts.get(contactQuery(state)));
+    }
+    counts.put(UNREAD, facetCounts.get(UNREAD_QUERY));
+    counts = Collections.unmodifiableMap(counts);
+
+    if (cacheable) {
+      if (cache.size() >= size) {
+        cache.clear();
+      }
+      cache.put(userId, new CachedCounts(counts, System.currentTimeMillis() + ttl));
+    }
+    return counts;
+  }
+
+  private String contactQuery(ConnectionState state) {
+    return "resourceType:sakai/contact AND state:" + state.toString();
+  }
+
+  // ---------- EventHandler interface -----------------------------------------
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    if (event.getTopic().startsWith(ConnectionConstants.EVENT_TOPIC_BASE)) {
+      invalidate((String) event.getProperty(UserConstants.EVENT_PROP_USERID));
+      invalidate((String) event.getProperty("target"));
+      return;
+    }
+    String path = (String) event.getProperty("path");
+    if (path != null
+        && (path.indexOf(CONTACTS_PATH_ELEMENT) > 0 || path.indexOf(MESSAGES_PATH_ELEMENT) > 0)) {
+      invalidate(PathUtils.getAuthorizableId(path));
+    }
+  }
+
+  private void invalidate(String userId) {
+    if (userId != null) {
+      cache.remove(userId);
+    }
+  }
+
+  private static final class CachedCounts {
+    private final Map<String, Long> counts;
+    private final long expires;
+
+    private CachedCounts(Map<String, Long> counts, long expires) {
+      this.counts = counts;
+      this.expires = expires;
+    }
+  }
+}
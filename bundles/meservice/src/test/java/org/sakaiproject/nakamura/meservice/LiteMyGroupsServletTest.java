@@ -0,0 +1,264 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.common.params.CommonParams;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class LiteMyGroupsServletTest {
+  private static final int MEMBERSHIPS = 5000;
+  /** four times the 250ms target for page 1, so slow build machines still pass */
+  private static final long P95_BOUND_MS = 1000;
+
+  @Mock
+  private SlingHttpServletRequest request;
+  @Mock
+  private ResourceResolver resourceResolver;
+  @Mock
+  private RequestPathInfo requestPathInfo;
+  @Mock
+  private Session session;
+  @Mock
+  private AuthorizableManager authorizableManager;
+  @Mock
+  private Authorizable user;
+  @Mock
+  private ProfileService profileService;
+  @Mock
+  private SolrSearchServiceFactory searchServiceFactory;
+
+  private Map<String, Authorizable> authorizables;
+  private List<Query> queries;
+  private LiteMyGroupsServlet servlet;
+
+  @Before
+  public void before() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    javax.jcr.Session jcrSession = Mockito.mock(javax.jcr.Session.class, Mockito
+        .withSettings().extraInterfaces(SessionAdaptable.class));
+    when(((SessionAdaptable) jcrSession).getSession()).thenReturn(session);
+    when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jcrSession);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(request.getRequestPathInfo()).thenReturn(requestPathInfo);
+    when(requestPathInfo.getSelectors()).thenReturn(new String[0]);
+    when(request.getParameter("items")).thenReturn("10");
+    when(request.getParameter("page")).thenReturn("0");
+    when(session.getUserId()).thenReturn("suzy");
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+
+    authorizables = new HashMap<String, Authorizable>();
+    authorizables.put("suzy", user);
+    when(authorizableManager.findAuthorizable(Mockito.anyString())).thenAnswer(
+        new Answer<Authorizable>() {
+          public Authorizable answer(InvocationOnMock invocation) throws Throwable {
+            return authorizables.get(invocation.getArguments()[0]);
+          }
+        });
+    when(profileService.getProfileMap(Mockito.any(Authorizable.class),
+        Mockito.any(javax.jcr.Session.class))).thenAnswer(new Answer<ValueMap>() {
+      public ValueMap answer(InvocationOnMock invocation) throws Throwable {
+        Authorizable group = (Authorizable) invocation.getArguments()[0];
+        return new ValueMapDecorator(new HashMap<String, Object>(ImmutableMap.of(
+            "sakai:group-id", (Object) group.getId())));
+      }
+    });
+
+    queries = new ArrayList<Query>();
+    servlet = new LiteMyGroupsServlet();
+    servlet.bindProfileService(profileService);
+    servlet.bindSearchServiceFactory(searchServiceFactory);
+  }
+
+  @Test
+  public void testFirstPageOfManyMembershipsComesFromTheIndex() throws Exception {
+    List<String> groupIds = new ArrayList<String>();
+    for (int i = 0; i < MEMBERSHIPS; i++) {
+      String groupId = String.format("g-%05d", i);
+      addGroup(groupId, "Group " + groupId, false);
+      groupIds.add(groupId);
+    }
+    when(user.getPrincipals()).thenReturn(groupIds.toArray(new String[groupIds.size()]));
+    indexHolds(groupIds);
+
+    JSONObject json = doGet();
+    assertEquals(MEMBERSHIPS, json.getLong("total"));
+    JSONArray results = json.getJSONArray("results");
+    assertEquals(10, results.length());
+    assertEquals("g-00000", results.getJSONObject(0).getString("sakai:group-id"));
+    assertEquals(1, json.getJSONArray("facet_fields").getJSONObject(0)
+        .getJSONArray("tagname").length());
+
+    // profiles are only loaded for the rows on the page
+    Mockito.verify(profileService, Mockito.times(10)).getProfileMap(
+        Mockito.any(Authorizable.class), Mockito.any(javax.jcr.Session.class));
+
+    // the id filter is split into clauses Solr accepts
+    String idFilter = (String) queries.get(0).getOptions().get(CommonParams.FQ);
+    String[] chunks = idFilter.split("\\) OR id:\\(");
+    assertEquals(5, chunks.length);
+    for (String chunk : chunks) {
+      assertTrue(chunk.split(" OR ").length <= LiteAbstractMyGroupsServlet.MAX_IDS_PER_CLAUSE);
+    }
+  }
+
+  @Test
+  public void testFirstPageOfManyMembershipsLatency() throws Exception {
+    List<String> groupIds = new ArrayList<String>();
+    for (int i = 0; i < MEMBERSHIPS; i++) {
+      String groupId = String.format("g-%05d", i);
+      addGroup(groupId, "Group " + groupId, false);
+      groupIds.add(groupId);
+    }
+    when(user.getPrincipals()).thenReturn(groupIds.toArray(new String[groupIds.size()]));
+    indexHolds(groupIds);
+
+    long[] elapsed = new long[100];
+    for (int i = -10; i < elapsed.length; i++) {
+      long start = System.nanoTime();
+      doGet();
+      if (i >= 0) {
+        elapsed[i] = (System.nanoTime() - start) / 1000000L;
+      }
+    }
+    Arrays.sort(elapsed);
+    long p95 = elapsed[(int) Math.ceil(elapsed.length * 0.95) - 1];
+    assertTrue("p95 of " + p95 + "ms is over " + P95_BOUND_MS + "ms", p95 < P95_BOUND_MS);
+  }
+
+  @Test
+  public void testGroupsKeptOutOfTheIndexAreListedInMemory() throws Exception {
+    addGroup("g-b", "Bravo", false);
+    addGroup("g-a", "alpha", true);
+    addGroup("g-c", "Charlie", false);
+    when(user.getPrincipals()).thenReturn(new String[] { "g-c", "g-b", "g-a" });
+    when(request.getParameter("items")).thenReturn("2");
+
+    JSONObject json = doGet();
+    Mockito.verifyZeroInteractions(searchServiceFactory);
+    assertEquals(3, json.getLong("total"));
+    JSONArray results = json.getJSONArray("results");
+    assertEquals(2, results.length());
+    assertEquals("g-a", results.getJSONObject(0).getString("sakai:group-id"));
+    assertEquals("g-b", results.getJSONObject(1).getString("sakai:group-id"));
+    JSONObject tag = json.getJSONArray("facet_fields").getJSONObject(0)
+        .getJSONArray("tagname").getJSONObject(0);
+    assertEquals(3, tag.getLong("common"));
+
+    when(request.getParameter("q")).thenReturn("char*");
+    json = doGet();
+    assertEquals(1, json.getLong("total"));
+    assertEquals("g-c", json.getJSONArray("results").getJSONObject(0)
+        .getString("sakai:group-id"));
+  }
+
+  @Test
+  public void testIdFilterWithoutGroups() {
+    assertFalse(LiteAbstractMyGroupsServlet.getIdFilter(Collections.<String> emptyList())
+        .contains("()"));
+  }
+
+  private void addGroup(String groupId, String title, boolean excludeSearch) {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(Group.ID_FIELD, groupId);
+    props.put("sakai:group-title", title);
+    props.put("sakai:tags", new String[] { "common" });
+    if (excludeSearch) {
+      props.put("sakai:excludeSearch", "true");
+    }
+    authorizables.put(groupId, new Group(props));
+  }
+
+  /**
+   * Answer searches with the first page of the given groups, the way the index would
+   * with the query the servlet builds.
+   */
+  private void indexHolds(final List<String> groupIds) throws Exception {
+    final List<Result> page = new ArrayList<Result>();
+    for (final String groupId : groupIds.subList(0, 10)) {
+      Result result = Mockito.mock(Result.class);
+      when(result.getPath()).thenReturn(groupId);
+      page.add(result);
+    }
+    final SolrSearchResultSet rs = Mockito.mock(SolrSearchResultSet.class);
+    when(rs.getSize()).thenReturn((long) groupIds.size());
+    when(rs.getResultSetIterator()).thenAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return page.iterator();
+      }
+    });
+    FacetField tagname = new FacetField("tagname");
+    tagname.add("common", groupIds.size());
+    when(rs.getFacetFields()).thenReturn(Arrays.asList(tagname));
+    when(searchServiceFactory.getSearchResultSet(Mockito.any(SlingHttpServletRequest.class),
+        Mockito.any(Query.class))).thenAnswer(new Answer<SolrSearchResultSet>() {
+      public SolrSearchResultSet answer(InvocationOnMock invocation) throws Throwable {
+        queries.add((Query) invocation.getArguments()[1]);
+        return rs;
+      }
+    });
+  }
+
+  private JSONObject doGet() throws Exception {
+    StringWriter out = new StringWriter();
+    SlingHttpServletResponse response = Mockito.mock(SlingHttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(out));
+    servlet.doGet(request, response);
+    return new JSONObject(out.toString());
+  }
+}
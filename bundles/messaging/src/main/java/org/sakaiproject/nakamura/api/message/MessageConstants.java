@@ -130,6 +130,18 @@ public interface MessageConstants {
    *
    */
   public static final String EVENT_LOCATION = "location";
+  /**
+   * Posted as each chunk of a bulk internal delivery completes, with the location of the
+   * message being delivered and the delivery counts so far.
+   */
+  public static final String DELIVERY_PROGRESS_EVENT = "org/sakaiproject/nakamura/message/delivery/progress";
+  /**
+   * Number of recipients of a delivery, after groups have been expanded.
+   */
+  public static final String EVENT_DELIVERY_TOTAL = "total";
+  public static final String EVENT_DELIVERY_DELIVERED = "delivered";
+  public static final String EVENT_DELIVERY_DENIED = "denied";
+  public static final String EVENT_DELIVERY_FAILED = "failed";
   
   /**
    * JCR folder name for messages.
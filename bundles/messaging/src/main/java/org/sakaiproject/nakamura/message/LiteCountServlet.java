@@ -43,15 +43,13 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrCountService;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -102,14 +100,15 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
   private static final long serialVersionUID = -5714446506015596037L;
   private static final Logger LOGGER = LoggerFactory.getLogger(LiteCountServlet.class);
 
-  private static long MAX_RESULTS_COUNTED = 500;
-
   @Reference
   protected transient LiteMessagingService messagingService;
   
   @Reference
   SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference
+  protected transient SolrCountService countService;
+
   @Override
   protected void doGet(SlingHttpServletRequest request,
       SlingHttpServletResponse response) throws ServletException, IOException {
@@ -137,6 +136,7 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
         if (filters.length != values.length) {
           response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
               "The amount of values doesn't match the amount of keys.");
+          return;
         }
 
         for (int i = 0; i < filters.length; i++) {
@@ -147,69 +147,40 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
 
       queryString.append(")");
 
-      // The "groupedby" clause forces us to inspect every message. If not
-      // specified, all we need is the count.
-      final long itemCount;
-      if (request.getRequestParameter("groupedby") == null) {
-        itemCount = 0;
-      } else {
-        itemCount = MAX_RESULTS_COUNTED;
-      }
-      Map<String, Object> queryOptions = ImmutableMap.of(
-          PARAMS_ITEMS_PER_PAGE, (Object) Long.toString(itemCount),
-          CommonParams.START, "0",
-          CommonParams.SORT, "_created desc"
-      );
-
-      Query query = new Query(queryString.toString(), queryOptions);
-      LOGGER.info("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      Iterator<Result> resultIterator = resultSet.getResultSetIterator();
-
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
 
       JSONWriter write = new JSONWriter(response.getWriter());
 
       if (request.getRequestParameter("groupedby") == null) {
+        // all we need is the number of matches.
+        Map<String, Object> queryOptions = ImmutableMap.of(
+            PARAMS_ITEMS_PER_PAGE, (Object) "0",
+            CommonParams.START, "0"
+        );
+        Query query = new Query(queryString.toString(), queryOptions);
+        LOGGER.info("Submitting Query {} ", query);
+        SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
+            request, query, false);
+
         write.object();
         write.key("count");
         write.value(resultSet.getSize());
         write.endObject();
       } else {
-        // The user want to group the count by a specified set.
-        // We will have to traverse each node, get that property and count each
-        // value for it.
+        // The user want to group the count by a specified set, Solr facets the matches
+        // on that field so no message has to be fetched.
         String groupedby = request.getRequestParameter("groupedby").getString();
         if (groupedby.startsWith("sakai:")) {
           groupedby = groupedby.substring(6);
         }
-
-        long count = 0;
-        Map<String, Integer> mapCount = new HashMap<String, Integer>();
-        while (resultIterator.hasNext()) {
-          Result n = resultIterator.next();
-
-          if (count >= MAX_RESULTS_COUNTED) {
-            break;
-          }
-          count++;
-
-          if (n.getProperties().containsKey(groupedby)) {
-            String key = (String) n.getFirstValue(groupedby);
-            int val = 1;
-            if (mapCount.containsKey(key)) {
-              val = mapCount.get(key) + 1;
-            }
-            mapCount.put(key, val);
-          }
-        }
+        Map<String, Long> mapCount = countService.countValues(request,
+            queryString.toString(), groupedby);
 
         write.object();
         write.key("count");
         write.array();
-        for (Entry<String, Integer> e : mapCount.entrySet()) {
+        for (Entry<String, Long> e : mapCount.entrySet()) {
           write.object();
 
           write.key("group");
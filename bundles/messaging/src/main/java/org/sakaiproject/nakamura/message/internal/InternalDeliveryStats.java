@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters kept by {@link LiteInternalMessageHandler}.
+ */
+public class InternalDeliveryStats implements InternalDeliveryStatsMBean {
+
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong denied = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private volatile long lastRate;
+  private final AtomicLong peakRate = new AtomicLong();
+
+  void record(int deliveredCount, int deniedCount, int failedCount, long elapsedMs) {
+    messages.incrementAndGet();
+    delivered.addAndGet(deliveredCount);
+    denied.addAndGet(deniedCount);
+    failed.addAndGet(failedCount);
+    long rate = (deliveredCount * 1000L) / Math.max(1, elapsedMs);
+    lastRate = rate;
+    long peak = peakRate.get();
+    while (rate > peak && !peakRate.compareAndSet(peak, rate)) {
+      peak = peakRate.get();
+    }
+  }
+
+  public long getMessageCount() {
+    return messages.get();
+  }
+
+  public long getDeliveredCount() {
+    return delivered.get();
+  }
+
+  public long getDeniedCount() {
+    return denied.get();
+  }
+
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  public long getLastDeliveryRate() {
+    return lastRate;
+  }
+
+  public long getPeakDeliveryRate() {
+    return peakRate.get();
+  }
+
+  public void reset() {
+    messages.set(0);
+    delivered.set(0);
+    denied.set(0);
+    failed.set(0);
+    lastRate = 0;
+    peakRate.set(0);
+  }
+}
@@ -0,0 +1,47 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message.internal;
+
+/**
+ * Delivery statistics of the internal message transport.
+ */
+public interface InternalDeliveryStatsMBean {
+
+  long getMessageCount();
+
+  /**
+   * @return the number of inbox copies written.
+   */
+  long getDeliveredCount();
+
+  /**
+   * @return the number of recipients whose message store did not accept the message.
+   */
+  long getDeniedCount();
+
+  long getFailedCount();
+
+  /**
+   * @return the number of recipients per second of the last message.
+   */
+  long getLastDeliveryRate();
+
+  long getPeakDeliveryRate();
+
+  void reset();
+}
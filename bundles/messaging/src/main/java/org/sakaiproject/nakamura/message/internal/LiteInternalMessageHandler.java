@@ -18,17 +18,24 @@
 package org.sakaiproject.nakamura.message.internal;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -58,8 +65,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * Handler for messages that are sent locally and intended for local delivery. Needs to be
@@ -89,12 +117,77 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
   @Reference
   private BasicUserInfoService basicUserInfoService;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected transient volatile EventAdmin eventAdmin;
+
+  /**
+   * Number of threads delivering chunks of recipients in parallel.
+   */
+  @Property(intValue = 4)
+  static final String DELIVERY_THREADS = "delivery.threads";
+  /**
+   * Number of recipients delivered by one thread with one session, messages to fewer
+   * recipients are delivered on the calling thread.
+   */
+  @Property(intValue = 200)
+  static final String DELIVERY_CHUNK_SIZE = "delivery.chunk.size";
+
+  private int chunkSize = 200;
+  private ExecutorService deliveryExecutor;
+  private InternalDeliveryStats stats = new InternalDeliveryStats();
+  private ObjectName statsName;
+
   /**
    * Default constructor
    */
   public LiteInternalMessageHandler() {
   }
 
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    chunkSize = Math.max(1, PropertiesUtil.toInteger(properties.get(DELIVERY_CHUNK_SIZE), 200));
+    int threads = PropertiesUtil.toInteger(properties.get(DELIVERY_THREADS), 4);
+    if (threads > 0) {
+      final AtomicInteger threadNumber = new AtomicInteger();
+      deliveryExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Internal message delivery "
+              + threadNumber.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(
+          "org.sakaiproject.nakamura.message:type=InternalDelivery");
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(stats, name);
+      statsName = name;
+    } catch (Exception e) {
+      LOG.debug("Unable to register delivery statistics ", e);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (deliveryExecutor != null) {
+      deliveryExecutor.shutdown();
+      deliveryExecutor = null;
+    }
+    if (statsName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsName);
+      } catch (Exception e) {
+        LOG.debug("Unable to unregister delivery statistics ", e);
+      }
+      statsName = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -107,21 +200,11 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
 
       session = slingRepository.loginAdministrative();
 
-      // recipients keeps track of who have already received the message, to avoid
-      // duplicate messages
-      List<String> recipients = new ArrayList<String>();
-      AuthorizableManager authorizableManager = session.getAuthorizableManager();
-      for (MessageRoute route : routes) {
-        if (LiteMessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
-          String recipient = route.getRcpt();
-          LOG.info("Started handling a message for delivery to {} ", recipient );
-          // the path were we want to save messages in.
-          String messageId = (String) originalMessage
-              .getProperty(MessageConstants.PROP_SAKAI_ID);
-          sendHelper(recipients, recipient, originalMessage, session, messageId,
-              authorizableManager);
-        }
-      }
+      // the path were we want to save messages in.
+      String messageId = (String) originalMessage
+          .getProperty(MessageConstants.PROP_SAKAI_ID);
+      Set<String> recipients = expandRecipients(routes, session.getAuthorizableManager());
+      deliver(new ArrayList<String>(recipients), originalMessage, messageId, session);
     } catch (AccessDeniedException e) {
       LOG.error(e.getMessage(), e);
     } catch (ClientPoolException e) {
@@ -139,97 +222,253 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
     }
   }
 
-  private void sendHelper(List<String> recipients, String recipient,
-      Content originalMessage, Session session, String messageId,
-      AuthorizableManager authManager) {
-    try {
-      ContentManager contentManager = session.getContentManager();
-      Authorizable au = authManager.findAuthorizable(recipient);
-      if (au != null && au instanceof Group) {
-        Group group = (Group) au;
-        recipients.add(recipient); // prevent infinite recursion in cyclic group references
-        // user must be in the group directly to send a message:
-        for (String memberName : group.getMembers()) {
-          if (!recipients.contains(memberName)) {
-            // call back to itself: this allows for groups to be in groups and future
-            // extensions
-            sendHelper(recipients, memberName, originalMessage, session, messageId,
-                authManager);
+  /**
+   * Flatten the internal routes into the set of users, or paths, that should get a copy of
+   * the message. Groups are expanded through their direct members, recursively, each
+   * group once.
+   */
+  private Set<String> expandRecipients(MessageRoutes routes, AuthorizableManager authManager) {
+    Set<String> recipients = new LinkedHashSet<String>();
+    Set<String> seen = new HashSet<String>();
+    LinkedList<String> pending = new LinkedList<String>();
+    for (MessageRoute route : routes) {
+      if (LiteMessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
+        LOG.info("Started handling a message for delivery to {} ", route.getRcpt());
+        pending.add(route.getRcpt());
+      }
+    }
+    while (!pending.isEmpty()) {
+      String recipient = pending.removeFirst();
+      if (!seen.add(recipient)) {
+        continue;
+      }
+      try {
+        Authorizable au = authManager.findAuthorizable(recipient);
+        if (au instanceof Group) {
+          // user must be in the group directly to send a message:
+          for (String memberName : ((Group) au).getMembers()) {
+            pending.add(memberName);
           }
+        } else {
+          recipients.add(recipient);
         }
-      } else {
-        // only send a message to a user who hasn't already received one:
-        if (!recipients.contains(recipient)) {
+      } catch (AccessDeniedException e) {
+        LOG.error(e.getMessage(), e);
+      } catch (StorageClientException e) {
+        LOG.error(e.getMessage(), e);
+      }
+    }
+    return recipients;
+  }
 
-          String messageStorePath = messagingService.getFullPathToStore(recipient, session);
+  /**
+   * Deliver to all the recipients, in parallel chunks of chunkSize each with its own
+   * session when there are more recipients than a chunk.
+   */
+  private void deliver(List<String> recipients, final Content originalMessage,
+      final String messageId, Session session) {
+    long start = System.currentTimeMillis();
+    final Map<String, Object> sharedProperties = getSharedProperties(originalMessage);
+    DeliveryCount total = new DeliveryCount();
+    ExecutorService executor = deliveryExecutor;
+    if (executor == null || recipients.size() <= chunkSize) {
+      total.add(deliverChunk(recipients, originalMessage, sharedProperties, messageId,
+          session));
+    } else {
+      CompletionService<DeliveryCount> completion = new ExecutorCompletionService<DeliveryCount>(
+          executor);
+      List<List<String>> chunks = Lists.partition(recipients, chunkSize);
+      for (final List<String> chunk : chunks) {
+        completion.submit(new Callable<DeliveryCount>() {
+          public DeliveryCount call() {
+            Session chunkSession = null;
+            try {
+              chunkSession = slingRepository.loginAdministrative();
+              return deliverChunk(chunk, originalMessage, sharedProperties, messageId,
+                  chunkSession);
+            } catch (ClientPoolException e) {
+              LOG.error(e.getMessage(), e);
+            } catch (StorageClientException e) {
+              LOG.error(e.getMessage(), e);
+            } catch (AccessDeniedException e) {
+              LOG.error(e.getMessage(), e);
+            } finally {
+              if (chunkSession != null) {
+                try {
+                  chunkSession.logout();
+                } catch (ClientPoolException e) {
+                  LOG.warn("Failed to logout session ", e);
+                }
+              }
+            }
+            DeliveryCount failed = new DeliveryCount();
+            failed.failed = chunk.size();
+            return failed;
+          }
+        });
+      }
+      for (int i = 0; i < chunks.size(); i++) {
+        try {
+          total.add(completion.take().get());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          LOG.warn("Interrupted delivering {} ", originalMessage.getPath());
+          break;
+        } catch (ExecutionException e) {
+          LOG.error(e.getMessage(), e.getCause());
+        }
+        postProgress(originalMessage, recipients.size(), total);
+      }
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    stats.record(total.delivered, total.denied, total.failed, elapsed);
+    LOG.info("Delivered {} to {} of {} recipients in {} ms ", new Object[] {
+        originalMessage.getPath(), total.delivered, recipients.size(), elapsed });
+  }
+
+  private DeliveryCount deliverChunk(List<String> recipients, Content originalMessage,
+      Map<String, Object> sharedProperties, String messageId, Session session) {
+    DeliveryCount count = new DeliveryCount();
+    try {
+      ContentManager contentManager = session.getContentManager();
+      // the permission walk up the tree often covers the same paths
+      Map<String, Boolean> publicPaths = new HashMap<String, Boolean>();
+      for (String recipient : recipients) {
+        try {
+          String storePath = messagingService.getFullPathToStore(recipient, session);
+          String messageStorePath = storePath;
           if (messageStorePath.endsWith("/")) {
             messageStorePath = messageStorePath.substring(0, messageStorePath.length() - 1);
           }
-          boolean forPublicOrEveryone = hasEveryoneOrPublicPermission(messageStorePath, contentManager);
-
-          if ( forPublicOrEveryone || messagingService.checkDeliveryAccessOk(recipient, originalMessage, session ) ) {
+          if (messagingService.checkDeliveryAccessOk(recipient, originalMessage, session)
+              || hasEveryoneOrPublicPermission(messageStorePath, contentManager, publicPaths)) {
             String toPath = messagingService.getFullPathToMessage(recipient, messageId,
                 session);
-            
-            
-  
             try {
               lockManager.waitForLock(toPath);
             } catch (LockTimeoutException e1) {
               throw new MessagingException("Unable to lock destination message store");
             }
-            
-            ImmutableMap.Builder<String, Object> propertyBuilder = ImmutableMap.builder();
-            // Copy the content into the user his folder.
-            contentManager.update(
-                new Content(toPath.substring(0, toPath.lastIndexOf("/")), propertyBuilder
-                    .build()));
-            contentManager.copy(originalMessage.getPath(), toPath, true);
-            Content message = contentManager.get(toPath);
-            LOG.debug("Message As delivered at {} from {} is {} ",new Object[]{message.getPath(), originalMessage.getPath(), message});
-  
-            // Add some extra properties on the just created node.
-            message.setProperty(MessageConstants.PROP_SAKAI_READ, false);
-            message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
-            message.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
-            message.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, messagingService.getFullPathToStore(recipient, session));
-            contentManager.update(message);
+            try {
+              writeInboxCopy(originalMessage, sharedProperties, toPath, storePath,
+                  contentManager);
+            } finally {
+              lockManager.clearLocks();
+            }
+            count.delivered++;
           } else {
             LOG.warn("Unable to deliver message, permission denied {} ", originalMessage.getPath());
+            count.denied++;
           }
-          recipients.add(recipient);
+        } catch (MessagingException e) {
+          LOG.error(e.getMessage(), e);
+          count.failed++;
+        } catch (AccessDeniedException e) {
+          LOG.error(e.getMessage(), e);
+          count.failed++;
+        } catch (StorageClientException e) {
+          LOG.error(e.getMessage(), e);
+          count.failed++;
+        } catch (IOException e) {
+          LOG.error(e.getMessage(), e);
+          count.failed++;
         }
       }
-    } catch (AccessDeniedException e) {
-      LOG.error(e.getMessage(), e);
     } catch (StorageClientException e) {
       LOG.error(e.getMessage(), e);
-    } catch (IOException e) {
-      LOG.error(e.getMessage(), e);
-    } finally {
-      lockManager.clearLocks();
+      count.failed += recipients.size() - count.delivered - count.denied - count.failed;
     }
+    return count;
   }
 
-  private boolean hasEveryoneOrPublicPermission(String path, ContentManager contentManager) throws StorageClientException, AccessDeniedException {
-    if ("/".equals(path)) {
-      return false;
+  /**
+   * @return the properties every inbox copy shares with the original message, or null if
+   *         the message has bodies that have to be copied with the content.
+   */
+  private Map<String, Object> getSharedProperties(Content originalMessage) {
+    if (originalMessage.listStreams().iterator().hasNext()) {
+      return null;
     }
-    Content content = contentManager.get(path);
-    if (content == null) {
-      return false;
+    Map<String, Object> properties = new HashMap<String, Object>();
+    for (Entry<String, Object> entry : originalMessage.getProperties().entrySet()) {
+      // internal fields belong to the stored item, not the message
+      if (!entry.getKey().startsWith("_")) {
+        properties.put(entry.getKey(), entry.getValue());
+      }
     }
-    if (content.hasProperty("sakai:permissions")) {
-      if ("public".equals(content.getProperty("sakai:permissions")) || "everyone".equals(content.getProperty("sakai:permissions"))) {
-        return true;
-      } else {
-        return false;
+    return properties;
+  }
+
+  /**
+   * Write the inbox copy. Without bodies to copy, the copy is built from the properties
+   * of the message and written in a single update instead of copy, get and update.
+   */
+  private void writeInboxCopy(Content originalMessage, Map<String, Object> sharedProperties,
+      String toPath, String messageStorePath, ContentManager contentManager)
+      throws AccessDeniedException, StorageClientException, IOException {
+    ImmutableMap.Builder<String, Object> propertyBuilder = ImmutableMap.builder();
+    contentManager.update(
+        new Content(toPath.substring(0, toPath.lastIndexOf("/")), propertyBuilder
+            .build()));
+    Content message;
+    if (sharedProperties == null) {
+      // Copy the content into the user his folder.
+      contentManager.copy(originalMessage.getPath(), toPath, true);
+      message = contentManager.get(toPath);
+    } else {
+      message = new Content(toPath, null);
+      for (Entry<String, Object> entry : sharedProperties.entrySet()) {
+        message.setProperty(entry.getKey(), entry.getValue());
       }
+    }
+    LOG.debug("Message As delivered at {} from {} is {} ",new Object[]{message.getPath(), originalMessage.getPath(), message});
 
+    // Add some extra properties on the just created node.
+    message.setProperty(MessageConstants.PROP_SAKAI_READ, false);
+    message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+    message.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
+    message.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, messageStorePath);
+    contentManager.update(message);
+  }
+
+  private void postProgress(Content originalMessage, int total, DeliveryCount count) {
+    EventAdmin ea = eventAdmin;
+    if (ea == null) {
+      return;
     }
-    String parentPath = PathUtils.getParentReference(path);
-    return hasEveryoneOrPublicPermission(parentPath, contentManager);
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(MessageConstants.EVENT_LOCATION, originalMessage.getPath());
+    properties.put(MessageConstants.EVENT_DELIVERY_TOTAL, total);
+    properties.put(MessageConstants.EVENT_DELIVERY_DELIVERED, count.delivered);
+    properties.put(MessageConstants.EVENT_DELIVERY_DENIED, count.denied);
+    properties.put(MessageConstants.EVENT_DELIVERY_FAILED, count.failed);
+    try {
+      ea.postEvent(new Event(MessageConstants.DELIVERY_PROGRESS_EVENT, properties));
+    } catch (Exception e) {
+      LOG.warn("Failed to post delivery progress, cause {} ", e.getMessage(), e);
+    }
+  }
 
+  private boolean hasEveryoneOrPublicPermission(String path, ContentManager contentManager, Map<String, Boolean> publicPaths) throws StorageClientException, AccessDeniedException {
+    if ("/".equals(path)) {
+      return false;
+    }
+    Boolean cached = publicPaths.get(path);
+    if (cached != null) {
+      return cached;
+    }
+    boolean result;
+    Content content = contentManager.get(path);
+    if (content == null) {
+      result = false;
+    } else if (content.hasProperty("sakai:permissions")) {
+      result = "public".equals(content.getProperty("sakai:permissions")) || "everyone".equals(content.getProperty("sakai:permissions"));
+    } else {
+      String parentPath = PathUtils.getParentReference(path);
+      result = hasEveryoneOrPublicPermission(parentPath, contentManager, publicPaths);
+    }
+    publicPaths.put(path, result);
+    return result;
   }
 
   /**
@@ -271,4 +510,20 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
     }*/
   }
 
+
+  /**
+   * Outcome of delivering to a number of recipients.
+   */
+  private static class DeliveryCount {
+    int delivered;
+    int denied;
+    int failed;
+
+    void add(DeliveryCount other) {
+      delivered += other.delivered;
+      denied += other.denied;
+      failed += other.failed;
+    }
+  }
+
 }
\ No newline at end of file
@@ -17,10 +17,9 @@
  */
 package org.sakaiproject.nakamura.message;
 
-import static org.mockito.Matchers.anyBoolean;
-import static org.mockito.Matchers.isA;
-
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
@@ -39,18 +38,12 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
-import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Result;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+import org.sakaiproject.nakamura.api.search.solr.SolrCountService;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 
-import com.google.common.collect.Lists;
-
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -61,15 +54,18 @@ public class LiteCountServletTest {
   private LiteCountServlet servlet;
   private LiteMessagingService messagingService;
   private SolrSearchServiceFactory searchFactory;
+  private SolrCountService countService;
 
   @Before
   public void setUp() {
     servlet = new LiteCountServlet();
     messagingService = mock(LiteMessagingService.class);
     searchFactory = mock(SolrSearchServiceFactory.class);
+    countService = mock(SolrCountService.class);
 
     servlet.messagingService = messagingService;
     servlet.searchServiceFactory = searchFactory;
+    servlet.countService = countService;
   }
 
   @After
@@ -87,16 +83,10 @@ public class LiteCountServletTest {
 
     // Request stuff
     RequestParameter groupParam = mock(RequestParameter.class);
-    when(groupParam.getString()).thenReturn("foo");
+    when(groupParam.getString()).thenReturn("sakai:foo");
     when(request.getRemoteUser()).thenReturn("admin");
     when(request.getRequestParameter("groupedby")).thenReturn(groupParam);
 
-    // Results
-    Map<String, Collection<Object>> props = new HashMap<String, Collection<Object>>();
-    props.put("foo", (Collection<Object>) Lists.newArrayList((Object) "a"));
-    Map<String, Collection<Object>> propsC = new HashMap<String, Collection<Object>>();
-    propsC.put("foo", (Collection<Object>) Lists.newArrayList((Object) "c"));
-
     // Session & search
     ResourceResolver rr = mock(ResourceResolver.class);
     when(request.getResourceResolver()).thenReturn(rr);
@@ -114,20 +104,12 @@ public class LiteCountServletTest {
     when(messagingService.getFullPathToStore("admin", session)).thenReturn(
         "/path/to/store");
 
-    Result r1 = mock(Result.class);
-    when(r1.getPath()).thenReturn("/path/to/msgA");
-    when(r1.getProperties()).thenReturn(props);
-    Result r2 = mock(Result.class);
-    when(r2.getPath()).thenReturn("/path/to/msgB");
-    when(r2.getProperties()).thenReturn(props);
-    Result r3 = mock(Result.class);
-    when(r3.getPath()).thenReturn("/path/to/msgC");
-    when(r3.getProperties()).thenReturn(propsC);
-    Iterator<Result> results = Lists.newArrayList(r1, r2, r3).iterator();
-
-    SolrSearchResultSet resultSet = mock(SolrSearchResultSet.class);
-    when(searchFactory.getSearchResultSet(isA(SlingHttpServletRequest.class), isA(Query.class), anyBoolean())).thenReturn(resultSet);
-    when(resultSet.getResultSetIterator()).thenReturn(results);
+    // Facet counts, the sakai: prefix is stripped from the field name.
+    Map<String, Long> counts = new LinkedHashMap<String, Long>();
+    counts.put("a", 2L);
+    counts.put("c", 1L);
+    when(countService.countValues(isA(SlingHttpServletRequest.class), isA(String.class),
+        eq("foo"))).thenReturn(counts);
     servlet.doGet(request, response);
 
     write.flush();
@@ -135,9 +117,11 @@ public class LiteCountServletTest {
     JSONObject o = new JSONObject(s);
 
     JSONArray arr = o.getJSONArray("count");
-    assertEquals(1, arr.length());
-    assertEquals("null", arr.getJSONObject(0).getString("group"));
-    assertEquals("3", arr.getJSONObject(0).getString("count"));
+    assertEquals(2, arr.length());
+    assertEquals("a", arr.getJSONObject(0).getString("group"));
+    assertEquals("2", arr.getJSONObject(0).getString("count"));
+    assertEquals("c", arr.getJSONObject(1).getString("group"));
+    assertEquals("1", arr.getJSONObject(1).getString("count"));
 
   }
 }
@@ -18,14 +18,21 @@
 package org.sakaiproject.nakamura.message.internal;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
@@ -41,6 +48,9 @@ import org.sakaiproject.nakamura.message.listener.LiteMessageRoutesImpl;
 
 import com.google.common.collect.ImmutableMap;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -105,6 +115,75 @@ public class LiteInternalMessageHandlerTest {
 
   }
 
+  @Test
+  public void testBulkGroupDelivery() throws Exception {
+    Map<String, Object> config = new HashMap<String, Object>();
+    config.put(LiteInternalMessageHandler.DELIVERY_THREADS, 2);
+    config.put(LiteInternalMessageHandler.DELIVERY_CHUNK_SIZE, 3);
+    handler.activate(config);
+    try {
+      // 10 users, a nested group that repeats some of them and refers back to the parent
+      List<String> members = new ArrayList<String>();
+      List<Authorizable> authorizables = new ArrayList<Authorizable>();
+      for (int i = 0; i < 10; i++) {
+        Authorizable user = createAuthorizable("user" + i, false);
+        authorizables.add(user);
+        members.add(user.getId());
+      }
+      Group course = (Group) createAuthorizable("g_course", true);
+      Group section = (Group) createAuthorizable("g_section", true);
+      members.add(section.getId());
+      when(course.getMembers()).thenReturn(members.toArray(new String[members.size()]));
+      when(section.getMembers()).thenReturn(
+          new String[] { "user1", "user2", course.getId() });
+      authorizables.add(course);
+      authorizables.add(section);
+      AuthorizableManager am = createAuthManager(null,
+          authorizables.toArray(new Authorizable[authorizables.size()]));
+      when(session.getAuthorizableManager()).thenReturn(am);
+      when(repository.loginAdministrative()).thenReturn(session);
+
+      when(messagingService.getFullPathToStore(anyString(), isA(Session.class))).thenAnswer(
+          new Answer<String>() {
+            public String answer(InvocationOnMock invocation) throws Throwable {
+              return "a:" + invocation.getArguments()[0] + "/message/";
+            }
+          });
+      when(messagingService.getFullPathToMessage(anyString(), anyString(), isA(Session.class)))
+          .thenAnswer(new Answer<String>() {
+            public String answer(InvocationOnMock invocation) throws Throwable {
+              return "a:" + invocation.getArguments()[0] + "/message/inbox/"
+                  + invocation.getArguments()[1];
+            }
+          });
+      when(messagingService.checkDeliveryAccessOk(anyString(), any(Content.class),
+          isA(Session.class))).thenReturn(true);
+
+      Map<String, Object> props = ImmutableMap.of(MessageConstants.PROP_SAKAI_TO,
+          (Object) "internal:g_course", MessageConstants.PROP_SAKAI_ID, "foo",
+          MessageConstants.PROP_SAKAI_SUBJECT, "hello");
+      Content originalMessage = new Content("a:admin/message/outbox/foo", props);
+      handler.send(new LiteMessageRoutesImpl(originalMessage), null, originalMessage);
+
+      ArgumentCaptor<Content> updated = ArgumentCaptor.forClass(Content.class);
+      verify(cm, atLeastOnce()).update(updated.capture());
+      Map<String, Content> delivered = new HashMap<String, Content>();
+      for (Content content : updated.getAllValues()) {
+        if (content.getPath().endsWith("/inbox/foo")) {
+          assertEquals(null, delivered.put(content.getPath(), content));
+        }
+      }
+      assertEquals(10, delivered.size());
+      Content copy = delivered.get("a:user3/message/inbox/foo");
+      assertEquals("hello", copy.getProperty(MessageConstants.PROP_SAKAI_SUBJECT));
+      assertEquals(MessageConstants.BOX_INBOX,
+          copy.getProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX));
+      assertEquals("a:user3/message/", copy.getProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE));
+    } finally {
+      handler.deactivate();
+    }
+  }
+
   private void testMessage(String path, String newPath, String to) throws Exception {
  // Original message created to send
     Map<String, Object> props = ImmutableMap.of(MessageConstants.PROP_SAKAI_TO,
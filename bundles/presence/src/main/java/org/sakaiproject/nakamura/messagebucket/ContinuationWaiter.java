@@ -35,4 +35,19 @@ public class ContinuationWaiter implements Waiter {
     continuation.resume();    
   }
 
+  /**
+   * A retried request creates a new waiter for the same continuation, which must replace
+   * the waiter added before the retry rather than be added next to it.
+   */
+  @Override
+  public boolean equals(Object obj) {
+    return (obj instanceof ContinuationWaiter)
+        && ((ContinuationWaiter) obj).continuation == continuation;
+  }
+
+  @Override
+  public int hashCode() {
+    return System.identityHashCode(continuation);
+  }
+
 }
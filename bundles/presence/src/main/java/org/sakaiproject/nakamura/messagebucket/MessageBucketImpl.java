@@ -17,7 +17,6 @@
  */
 package org.sakaiproject.nakamura.messagebucket;
 
-import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 
 import org.apache.sling.commons.json.JSONException;
@@ -27,28 +26,54 @@ import org.sakaiproject.nakamura.api.messagebucket.Waiter;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * A bucket holding a payload for the requests waiting on it. None of the methods lock the
+ * bucket: the payload is published through a volatile flag and waiters are added to a
+ * concurrent map before they check the flag, so a waiter either sees the payload or is
+ * resumed by {@link #markReady(Map)}.
+ */
 public class MessageBucketImpl implements MessageBucket {
 
-  private Map<Waiter, Waiter> waiters = Maps.newConcurrentMap();
-  private Map<String, HttpServletRequest> bound = Maps.newConcurrentMap();
-  private boolean ready = false;
-  private Map<String, Object> messagePayload;
+  private final Map<Waiter, Boolean> waiters = Maps.newConcurrentMap();
+  /** bound requests are only referenced weakly so a lost unbind can't hold a request */
+  private final Map<String, WeakReference<HttpServletRequest>> bound = Maps.newConcurrentMap();
+  /** the count of waiters of all the buckets of the service */
+  private final AtomicInteger activeWaiters;
+  private volatile boolean ready = false;
+  private volatile Map<String, Object> messagePayload;
+  private volatile long lastAccess = System.currentTimeMillis();
+
+  public MessageBucketImpl() {
+    this(new AtomicInteger());
+  }
+
+  MessageBucketImpl(AtomicInteger activeWaiters) {
+    this.activeWaiters = activeWaiters;
+  }
 
   public boolean isReady() {
     return ready;
   }
 
   public void addWaiter(Waiter waiter) {
-    waiters.put(waiter, waiter);
+    lastAccess = System.currentTimeMillis();
+    if (waiters.put(waiter, Boolean.TRUE) == null) {
+      activeWaiters.incrementAndGet();
+    }
   }
 
   public void removeWaiter(Waiter waiter) {
-    waiters.remove(waiter);
+    lastAccess = System.currentTimeMillis();
+    if (waiters.remove(waiter) != null) {
+      activeWaiters.decrementAndGet();
+    }
   }
 
   public void send(HttpServletResponse response) throws MessageBucketException {
@@ -67,19 +92,49 @@ public class MessageBucketImpl implements MessageBucket {
   }
 
   public void unbind(String token, HttpServletRequest request) {
-    bound.put(token, request);
+    lastAccess = System.currentTimeMillis();
+    bound.remove(token);
   }
 
   public void bind(String token, HttpServletRequest request) {
-    bound.remove(token);
+    lastAccess = System.currentTimeMillis();
+    bound.put(token, new WeakReference<HttpServletRequest>(request));
   }
 
   public void markReady(Map<String, Object> messagePayload) {
     this.messagePayload = messagePayload;
     ready = true;
-    for (Waiter w : ImmutableSet.copyOf(waiters.keySet())) {
+    // the key set iterates without locking and each continuation has its own mutex
+    for (Waiter w : waiters.keySet()) {
       w.resume();
     }
   }
 
+  /**
+   * Mark the bucket as used, so it is not evicted as idle.
+   */
+  void touch() {
+    lastAccess = System.currentTimeMillis();
+  }
+
+  long getLastAccess() {
+    return lastAccess;
+  }
+
+  boolean hasWaiters() {
+    return !waiters.isEmpty();
+  }
+
+  /**
+   * Forget the waiters of an evicted bucket so they no longer count as active.
+   */
+  void evict() {
+    for (Waiter w : waiters.keySet()) {
+      if (waiters.remove(w) != null) {
+        activeWaiters.decrementAndGet();
+      }
+    }
+    bound.clear();
+  }
+
 }
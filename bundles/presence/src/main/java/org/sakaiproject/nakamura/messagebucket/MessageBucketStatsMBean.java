@@ -0,0 +1,49 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.messagebucket;
+
+/**
+ * JMX view of the message buckets of a server.
+ */
+public interface MessageBucketStatsMBean {
+
+  /**
+   * @return the number of buckets held.
+   */
+  int getBucketCount();
+
+  /**
+   * @return the number of requests waiting on a bucket.
+   */
+  int getActiveWaiters();
+
+  /**
+   * @return the number of buckets evicted, because they were idle or there were too many.
+   */
+  long getEvictions();
+
+  /**
+   * @return the number of buckets above which idle buckets are evicted.
+   */
+  int getMaxBuckets();
+
+  /**
+   * @return the time in ms after which an unused bucket is evicted.
+   */
+  long getIdleTtl();
+}
@@ -82,14 +82,18 @@ public class UIEventServlet extends HttpServlet {
       MessageBucket mb =  bucketService.getBucket(token);
        mb.bind(token, request);
       try {
-      synchronized (mb) {
         if ( mb.isReady() ) {
           mb.send(response);
         } else {
-          Continuation continuation = ContinuationSupport.getContinuation(request, mb);
+          // each request waits on its own continuation, so filling the bucket resumes
+          // every waiter without contending on a shared lock.
+          Continuation continuation = ContinuationSupport.getContinuation(request, null);
           Waiter waiter = new ContinuationWaiter(continuation);
           mb.addWaiter(waiter);
-          continuation.suspend(timeout);
+          // the bucket may have been filled before the waiter was added.
+          if ( !mb.isReady() ) {
+            continuation.suspend(timeout);
+          }
           mb.removeWaiter(waiter);
           if ( mb.isReady() ) {
             mb.send(response);
@@ -97,7 +101,6 @@ public class UIEventServlet extends HttpServlet {
             response.sendError(HttpServletResponse.SC_NOT_FOUND,"Timed out waiting for message bucket to fill");
           }
         }      
-      }
       } finally {
         mb.unbind(token, request);
       }
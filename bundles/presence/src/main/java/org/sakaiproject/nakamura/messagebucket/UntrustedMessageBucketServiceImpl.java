@@ -21,6 +21,8 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
@@ -30,28 +32,57 @@ import org.sakaiproject.nakamura.api.messagebucket.MessageBucket;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
 import org.sakaiproject.nakamura.util.Signature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.security.SignatureException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.servlet.http.HttpServletRequest;
 
 /**
  * Buckets from this service are not greatly trusted, and we wont trust them to push data
  * into the server, only receive data from the server.
+ * <p>
+ * Buckets that have not been used for the idle TTL are evicted, as are the least recently
+ * used buckets when there are more than the maximum. Buckets with waiting requests are
+ * never evicted.
  */
 @Component(immediate = true, metatype = true)
 @Service(value=MessageBucketService.class)
-public class UntrustedMessageBucketServiceImpl implements MessageBucketService {
+public class UntrustedMessageBucketServiceImpl implements MessageBucketService, MessageBucketStatsMBean {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(UntrustedMessageBucketServiceImpl.class);
   private static final String DEFAULT_URL_PATTERN = "http://localhost:8080/system/uievent/default?token={3}&server={6}&user={7}";
   private static final String BUCKETURLPATTERN_CONFIG = "bucketurlpattern";
+  @Property(longValue = 600000L)
+  static final String IDLE_TTL_CONFIG = "bucket.idle.ttl";
+  @Property(intValue = 10000)
+  static final String MAX_BUCKETS_CONFIG = "bucket.max";
+  private static final String MBEAN_NAME = "org.sakaiproject.nakamura.messagebucket:type=MessageBuckets";
   private String sharedSecret;
-  private Map<String, MessageBucket> messageBuckets = new ConcurrentHashMap<String, MessageBucket>();
+  private ConcurrentMap<String, MessageBucketImpl> messageBuckets = new ConcurrentHashMap<String, MessageBucketImpl>();
   private String urlPattern;
+  private long idleTtl = 600000L;
+  private int maxBuckets = 10000;
+  private final AtomicInteger activeWaiters = new AtomicInteger();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
   
   @Reference
   private ClusterTrackingService clusterService;
@@ -60,6 +91,27 @@ public class UntrustedMessageBucketServiceImpl implements MessageBucketService {
   public void activate(Map<String, Object> properties) {
     sharedSecret = String.valueOf(System.currentTimeMillis()); // not that secure !
     urlPattern = PropertiesUtil.toString(properties.get(BUCKETURLPATTERN_CONFIG), DEFAULT_URL_PATTERN);
+    idleTtl = PropertiesUtil.toLong(properties.get(IDLE_TTL_CONFIG), 600000L);
+    maxBuckets = PropertiesUtil.toInteger(properties.get(MAX_BUCKETS_CONFIG), 10000);
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          new StandardMBean(this, MessageBucketStatsMBean.class), new ObjectName(MBEAN_NAME));
+    } catch (Exception e) {
+      LOGGER.debug("Unable to register message bucket statistics {} ", e.getMessage());
+    }
+  }
+
+  @Deactivate
+  public void deactivate(Map<String, Object> properties) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBEAN_NAME));
+    } catch (Exception e) {
+      LOGGER.debug("Unable to unregister message bucket statistics {} ", e.getMessage());
+    }
+    for (MessageBucketImpl mb : messageBuckets.values()) {
+      mb.evict();
+    }
+    messageBuckets.clear();
   }
 
   public MessageBucket getBucket(String token) throws MessageBucketException {
@@ -67,14 +119,101 @@ public class UntrustedMessageBucketServiceImpl implements MessageBucketService {
     if (key == null) {
       throw new MessageBucketException("Invalid Token " + token);
     }
-    MessageBucket mb = messageBuckets.get(key);
+    MessageBucketImpl mb = messageBuckets.get(key);
     if (mb == null) {
-      mb = new MessageBucketImpl();
-      messageBuckets.put(key, mb);
+      mb = new MessageBucketImpl(activeWaiters);
+      MessageBucketImpl existing = messageBuckets.putIfAbsent(key, mb);
+      if (existing != null) {
+        mb = existing;
+      } else if (messageBuckets.size() > maxBuckets) {
+        evictLeastRecentlyUsed(mb);
+      }
     }
+    mb.touch();
+    evictIdle(System.currentTimeMillis());
     return mb;
   }
 
+  /**
+   * Evict the buckets that have been idle for longer than the TTL. Runs at most once every
+   * half TTL, on the thread that gets it first.
+   *
+   * @param now
+   */
+  void evictIdle(long now) {
+    long last = lastSweep.get();
+    if (now - last < idleTtl / 2 || !lastSweep.compareAndSet(last, now)) {
+      return;
+    }
+    for (Entry<String, MessageBucketImpl> e : messageBuckets.entrySet()) {
+      MessageBucketImpl mb = e.getValue();
+      if (!mb.hasWaiters() && now - mb.getLastAccess() > idleTtl) {
+        evict(e.getKey(), mb);
+      }
+    }
+  }
+
+  /**
+   * Evict the least recently used tenth of the buckets without waiters, leaving room for
+   * new buckets before this has to be done again.
+   *
+   * @param keep the bucket that has just been added.
+   */
+  private synchronized void evictLeastRecentlyUsed(MessageBucketImpl keep) {
+    if (messageBuckets.size() <= maxBuckets) {
+      return;
+    }
+    List<Entry<String, MessageBucketImpl>> idle = new ArrayList<Entry<String, MessageBucketImpl>>();
+    for (Entry<String, MessageBucketImpl> e : messageBuckets.entrySet()) {
+      if (e.getValue() != keep && !e.getValue().hasWaiters()) {
+        idle.add(e);
+      }
+    }
+    final Map<MessageBucketImpl, Long> lastAccess = new IdentityHashMap<MessageBucketImpl, Long>();
+    for (Entry<String, MessageBucketImpl> e : idle) {
+      lastAccess.put(e.getValue(), e.getValue().getLastAccess());
+    }
+    Collections.sort(idle, new Comparator<Entry<String, MessageBucketImpl>>() {
+      public int compare(Entry<String, MessageBucketImpl> o1, Entry<String, MessageBucketImpl> o2) {
+        return lastAccess.get(o1.getValue()).compareTo(lastAccess.get(o2.getValue()));
+      }
+    });
+    int target = maxBuckets - Math.max(1, maxBuckets / 10);
+    for (Entry<String, MessageBucketImpl> e : idle) {
+      if (messageBuckets.size() <= target) {
+        break;
+      }
+      evict(e.getKey(), e.getValue());
+    }
+  }
+
+  private void evict(String key, MessageBucketImpl mb) {
+    if (messageBuckets.remove(key, mb)) {
+      mb.evict();
+      evictions.incrementAndGet();
+    }
+  }
+
+  public int getBucketCount() {
+    return messageBuckets.size();
+  }
+
+  public int getActiveWaiters() {
+    return activeWaiters.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public int getMaxBuckets() {
+    return maxBuckets;
+  }
+
+  public long getIdleTtl() {
+    return idleTtl;
+  }
+
   public String getToken(String userId, String context) throws MessageBucketException {
     try {
       String timeStamp = Long.toHexString(System.currentTimeMillis());
@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.messagebucket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.messagebucket.MessageBucket;
+import org.sakaiproject.nakamura.api.messagebucket.Waiter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ */
+public class UntrustedMessageBucketServiceImplTest {
+
+  private UntrustedMessageBucketServiceImpl service;
+
+  @Before
+  public void setUp() {
+    service = new UntrustedMessageBucketServiceImpl();
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(UntrustedMessageBucketServiceImpl.IDLE_TTL_CONFIG, 1000L);
+    properties.put(UntrustedMessageBucketServiceImpl.MAX_BUCKETS_CONFIG, 10);
+    service.activate(properties);
+  }
+
+  @After
+  public void tearDown() {
+    service.deactivate(null);
+  }
+
+  @Test
+  public void testSameTokenSameBucket() throws Exception {
+    String token = service.getToken("ieb", "chat");
+    assertSame(service.getBucket(token), service.getBucket(token));
+    assertEquals(1, service.getBucketCount());
+  }
+
+  @Test
+  public void testIdleBucketsAreEvicted() throws Exception {
+    String token = service.getToken("ieb", "chat");
+    MessageBucket mb = service.getBucket(token);
+    service.evictIdle(System.currentTimeMillis() + 5000L);
+    assertEquals(0, service.getBucketCount());
+    assertEquals(1, service.getEvictions());
+    assertNotSame(mb, service.getBucket(token));
+  }
+
+  @Test
+  public void testBucketsWithWaitersAreKept() throws Exception {
+    MessageBucket mb = service.getBucket(service.getToken("ieb", "chat"));
+    mb.addWaiter(new CountingWaiter(new AtomicInteger()));
+    assertEquals(1, service.getActiveWaiters());
+    service.evictIdle(System.currentTimeMillis() + 5000L);
+    assertEquals(1, service.getBucketCount());
+  }
+
+  @Test
+  public void testMaxBuckets() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      service.getBucket(service.getToken("user" + i, "chat"));
+    }
+    assertTrue(service.getBucketCount() <= 10);
+    assertTrue(service.getEvictions() >= 10);
+  }
+
+  @Test
+  public void testMarkReadyResumesAllWaiters() throws Exception {
+    MessageBucketImpl mb = (MessageBucketImpl) service.getBucket(service.getToken("ieb",
+        "chat"));
+    AtomicInteger resumed = new AtomicInteger();
+    CountingWaiter[] waiters = new CountingWaiter[100];
+    for (int i = 0; i < waiters.length; i++) {
+      waiters[i] = new CountingWaiter(resumed);
+      mb.addWaiter(waiters[i]);
+    }
+    assertEquals(100, service.getActiveWaiters());
+
+    mb.markReady(ImmutableMap.<String, Object> of("message", "hello"));
+    assertTrue(mb.isReady());
+    assertEquals(100, resumed.get());
+
+    for (CountingWaiter waiter : waiters) {
+      mb.removeWaiter(waiter);
+    }
+    assertEquals(0, service.getActiveWaiters());
+  }
+
+  private static class CountingWaiter implements Waiter {
+    private final AtomicInteger resumed;
+
+    private CountingWaiter(AtomicInteger resumed) {
+      this.resumed = resumed;
+    }
+
+    public void resume() {
+      resumed.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolved profile maps of {@link ProfileServiceImpl}, grouped by authorizable so that
+ * an update of the authorizable or its profile drops all of them at once.
+ * <p>
+ * Which sections of a profile can be read depends on who is asking, so full profiles are
+ * kept per authorizable and reader. Compact profiles only depend on the authorizable.
+ * Profiles that contain sections supplied by a ProfileProvider expire after the provider
+ * TTL, as no event tells us when external data changes; all others after the profile TTL.
+ * When the cache grows beyond its size it is cleared.
+ * </p>
+ */
+public class ProfileCache implements ProfileCacheMBean {
+
+  private static final String COMPACT = "";
+
+  private final ConcurrentMap<String, ConcurrentMap<String, CachedProfile>> profiles =
+      new ConcurrentHashMap<String, ConcurrentMap<String, CachedProfile>>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private volatile int maxSize;
+  private volatile long profileTtl;
+  private volatile long providerTtl;
+
+  public ProfileCache(int maxSize, long profileTtl, long providerTtl) {
+    configure(maxSize, profileTtl, providerTtl);
+  }
+
+  /**
+   * @param maxSize
+   *          the number of maps to keep, 0 disables the cache.
+   * @param profileTtl
+   *          ms to keep profiles that only come from storage.
+   * @param providerTtl
+   *          ms to keep profiles that contain provider supplied sections.
+   */
+  public void configure(int maxSize, long profileTtl, long providerTtl) {
+    this.maxSize = maxSize;
+    this.profileTtl = profileTtl;
+    this.providerTtl = providerTtl;
+    if (maxSize <= 0) {
+      clear();
+    }
+  }
+
+  /**
+   * @param authorizableId
+   * @param readerId
+   *          the user id of the session reading the profile.
+   * @return a copy of the cached profile or null.
+   */
+  public Map<String, Object> getProfile(String authorizableId, String readerId) {
+    return get(authorizableId, readerKey(readerId));
+  }
+
+  public void putProfile(String authorizableId, String readerId,
+      Map<String, Object> profile, boolean provided) {
+    put(authorizableId, readerKey(readerId), profile, provided ? providerTtl : profileTtl);
+  }
+
+  /**
+   * @param authorizableId
+   * @return a copy of the cached compact profile or null.
+   */
+  public Map<String, Object> getCompactProfile(String authorizableId) {
+    return get(authorizableId, COMPACT);
+  }
+
+  public void putCompactProfile(String authorizableId, Map<String, Object> profile) {
+    put(authorizableId, COMPACT, profile, profileTtl);
+  }
+
+  /**
+   * Drop the full and compact profiles of an authorizable.
+   *
+   * @param authorizableId
+   */
+  public void invalidate(String authorizableId) {
+    Map<String, CachedProfile> removed = profiles.remove(authorizableId);
+    if (removed != null) {
+      size.addAndGet(-removed.size());
+      invalidations.incrementAndGet();
+    }
+  }
+
+  private Map<String, Object> get(String authorizableId, String key) {
+    if (maxSize > 0) {
+      Map<String, CachedProfile> cached = profiles.get(authorizableId);
+      CachedProfile profile = (cached == null) ? null : cached.get(key);
+      if (profile != null) {
+        if (profile.expires > System.currentTimeMillis()) {
+          hits.incrementAndGet();
+          return copy(profile.map);
+        }
+        if (cached.remove(key, profile)) {
+          size.decrementAndGet();
+        }
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  private void put(String authorizableId, String key, Map<String, Object> profile, long ttl) {
+    if (maxSize <= 0 || ttl <= 0) {
+      return;
+    }
+    if (size.get() >= maxSize) {
+      clear();
+    }
+    ConcurrentMap<String, CachedProfile> cached = profiles.get(authorizableId);
+    if (cached == null) {
+      cached = new ConcurrentHashMap<String, CachedProfile>();
+      ConcurrentMap<String, CachedProfile> existing = profiles.putIfAbsent(authorizableId,
+          cached);
+      if (existing != null) {
+        cached = existing;
+      }
+    }
+    CachedProfile previous = cached.put(key,
+        new CachedProfile(copy(profile), System.currentTimeMillis() + ttl));
+    if (previous == null) {
+      size.incrementAndGet();
+    }
+  }
+
+  private String readerKey(String readerId) {
+    // keep readers apart from the compact profile entry.
+    return "u:" + readerId;
+  }
+
+  /**
+   * Copies the nested maps of a profile so neither the cache nor the caller sees the
+   * changes the other makes.
+   */
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> copy(Map<String, Object> map) {
+    Map<String, Object> copy = new HashMap<String, Object>(map.size());
+    for (Entry<String, Object> e : map.entrySet()) {
+      Object value = e.getValue();
+      if (value instanceof ValueMap) {
+        value = new ValueMapDecorator(copy((ValueMap) value));
+      } else if (value instanceof Map<?, ?>) {
+        value = copy((Map<String, Object>) value);
+      }
+      copy.put(e.getKey(), value);
+    }
+    return copy;
+  }
+
+  // ---------- ProfileCacheMBean interface ------------------------------------
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return (total == 0) ? 0 : (double) h / total;
+  }
+
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  public int getSize() {
+    return size.get();
+  }
+
+  public void clear() {
+    profiles.clear();
+    size.set(0);
+  }
+
+  public void resetStatistics() {
+    hits.set(0);
+    misses.set(0);
+    invalidations.set(0);
+  }
+
+  private static final class CachedProfile {
+    private final Map<String, Object> map;
+    private final long expires;
+
+    private CachedProfile(Map<String, Object> map, long expires) {
+      this.map = map;
+      this.expires = expires;
+    }
+  }
+}
@@ -24,6 +24,7 @@ import static org.sakaiproject.nakamura.api.user.UserConstants.GROUP_TITLE_PROPE
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -36,6 +37,8 @@ import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
@@ -56,6 +59,7 @@ import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -67,14 +71,26 @@ import java.util.concurrent.Future;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
- *
+ * Resolves profiles and caches the result per authorizable, see {@link ProfileCache}. The
+ * cache is invalidated by updates to the authorizable and to its profile content.
  */
 @Component(immediate = true, metatype = true, specVersion="1.1")
-@Service
+@Service(value = { ProfileService.class, EventHandler.class })
+@Property(name = "event.topics", value = {
+    "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+    "org/sakaiproject/nakamura/lite/authorizables/DELETE",
+    "org/sakaiproject/nakamura/lite/content/ADDED",
+    "org/sakaiproject/nakamura/lite/content/UPDATED",
+    "org/sakaiproject/nakamura/lite/content/DELETE" })
 @Reference(name = "ProfileProviders", referenceInterface = ProfileProvider.class, policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, strategy = ReferenceStrategy.EVENT, bind = "bindProfileProvider", unbind = "unbindProfileProvider")
-public class ProfileServiceImpl implements ProfileService {
+public class ProfileServiceImpl implements ProfileService, EventHandler {
+
+  private static final String PROFILE_PATH_ELEMENT = "/"
+      + LitePersonalUtils.PATH_AUTH_PROFILE;
 
   private Map<String, ProfileProvider> providers = new ConcurrentHashMap<String, ProfileProvider>();
   private ProviderSettingsFactory providerSettingsFactory = new ProviderSettingsFactory();
@@ -84,12 +100,54 @@ public class ProfileServiceImpl implements ProfileService {
   static final String EMAIL_LOCATION = "sakai.profile.email.location";
   private String emailLocation;
 
+  @Property(intValue = 10000)
+  static final String CACHE_SIZE = "sakai.profile.cache.size";
+
+  @Property(longValue = 300000L)
+  static final String CACHE_TTL = "sakai.profile.cache.ttl";
+
+  @Property(longValue = 60000L)
+  static final String CACHE_PROVIDER_TTL = "sakai.profile.cache.provider.ttl";
+
+  private final ProfileCache profileCache = new ProfileCache(10000, 300000L, 60000L);
+
+  private ObjectName cacheName;
+
   @Reference
   private BasicUserInfoService basicUserInfoService;
 
   @Activate @Modified
   protected void activate(Map<?, ?> props) {
     emailLocation = PropertiesUtil.toString(props.get(EMAIL_LOCATION), null);
+    profileCache.configure(PropertiesUtil.toInteger(props.get(CACHE_SIZE), 10000),
+        PropertiesUtil.toLong(props.get(CACHE_TTL), 300000L),
+        PropertiesUtil.toLong(props.get(CACHE_PROVIDER_TTL), 60000L));
+    profileCache.clear();
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(
+          "org.sakaiproject.nakamura.profile:type=ProfileCache");
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(profileCache, name);
+      cacheName = name;
+    } catch (Exception e) {
+      LOG.debug("Unable to register profile cache statistics ", e);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    profileCache.clear();
+    if (cacheName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(cacheName);
+      } catch (Exception e) {
+        LOG.debug("Unable to unregister profile cache statistics ", e);
+      }
+      cacheName = null;
+    }
   }
 
   public String getEmailLocation() {
@@ -107,7 +165,7 @@ public class ProfileServiceImpl implements ProfileService {
    */
   public ValueMap getCompactProfileMap(Authorizable authorizable, Session session)
       throws RepositoryException, StorageClientException, AccessDeniedException {
-    return new ValueMapDecorator(basicUserInfoService.getProperties(authorizable));
+    return getCompactProfileMap(authorizable);
   }
   /**
    * {@inheritDoc}
@@ -118,7 +176,7 @@ public class ProfileServiceImpl implements ProfileService {
       org.apache.jackrabbit.api.security.user.Authorizable authorizable, Session session) throws RepositoryException {
     org.sakaiproject.nakamura.api.lite.Session sparseSession = StorageClientUtils.adaptToSession(session);
     try {
-      return  new ValueMapDecorator(basicUserInfoService.getProperties(sparseSession.getAuthorizableManager().findAuthorizable(authorizable.getID())));
+      return getCompactProfileMap(sparseSession.getAuthorizableManager().findAuthorizable(authorizable.getID()));
     } catch (StorageClientException e) {
       throw new RepositoryException(e.getMessage(), e);
     } catch (AccessDeniedException e) {
@@ -126,6 +184,18 @@ public class ProfileServiceImpl implements ProfileService {
     }
   }
 
+  private ValueMap getCompactProfileMap(Authorizable authorizable) {
+    if (authorizable == null || User.ANON_USER.equals(authorizable.getId())) {
+      return new ValueMapDecorator(basicUserInfoService.getProperties(authorizable));
+    }
+    Map<String, Object> compactProfile = profileCache.getCompactProfile(authorizable.getId());
+    if (compactProfile == null) {
+      compactProfile = basicUserInfoService.getProperties(authorizable);
+      profileCache.putCompactProfile(authorizable.getId(), compactProfile);
+    }
+    return new ValueMapDecorator(compactProfile);
+  }
+
   public ValueMap getProfileMap(
       org.apache.jackrabbit.api.security.user.Authorizable authorizable, Session session) throws RepositoryException {
     org.sakaiproject.nakamura.api.lite.Session sparseSession = StorageClientUtils.adaptToSession(session);
@@ -169,17 +239,28 @@ public class ProfileServiceImpl implements ProfileService {
     if (User.ANON_USER.equals(authorizable.getId())) {
       return new ValueMapDecorator(basicUserInfoService.getProperties(authorizable));
     }
-    String profilePath = LitePersonalUtils.getProfilePath(authorizable.getId());
     org.sakaiproject.nakamura.api.lite.Session sparseSession = StorageClientUtils.adaptToSession(session);
+    // what the reader may see of the profile depends on the reader.
+    String readerId = sparseSession.getUserId();
+    Map<String, Object> cached = profileCache.getProfile(authorizable.getId(), readerId);
+    if (cached != null) {
+      return new ValueMapDecorator(cached);
+    }
+    String profilePath = LitePersonalUtils.getProfilePath(authorizable.getId());
     ContentManager contentManager = sparseSession.getContentManager();
     ValueMap profileMap = new ValueMapDecorator(new HashMap<String, Object>());
-    
+    boolean provided = false;
+
     if (contentManager.exists(profilePath)) {
       Content profileContent = contentManager.get(profilePath);
-      profileMap.putAll(getResolvedProfileMap(authorizable, profileContent, session));
+      Map<Content, Future<Map<String, Object>>> providedNodeData = getProvidedNodeData(
+          profileContent, session);
+      provided = !providedNodeData.isEmpty();
+      profileMap.putAll(resolveProfileMap(profileContent, providedNodeData));
     }
 
     profileMap.putAll(basicUserInfoService.getProperties(authorizable));
+    profileCache.putProfile(authorizable.getId(), readerId, profileMap, provided);
     return profileMap;
   }
 
@@ -190,7 +271,14 @@ public class ProfileServiceImpl implements ProfileService {
    * @see org.sakaiproject.nakamura.api.profile.ProfileService#getProfileMap(javax.jcr.Node)
    */
   public ValueMap getResolvedProfileMap(Authorizable authorizable, Content profileContent, Session jcrSession) throws RepositoryException {
-    // Get the data from our external providers.
+    return resolveProfileMap(profileContent, getProvidedNodeData(profileContent, jcrSession));
+  }
+
+  /**
+   * Get the data from our external providers.
+   */
+  private Map<Content, Future<Map<String, Object>>> getProvidedNodeData(
+      Content profileContent, Session jcrSession) throws RepositoryException {
     Map<String, List<ProviderSettings>> providersMap = scanForProviders(profileContent, jcrSession);
     Map<Content, Future<Map<String, Object>>> providedNodeData = new HashMap<Content, Future<Map<String, Object>>>();
     for (Entry<String, List<ProviderSettings>> e : providersMap.entrySet()) {
@@ -199,6 +287,11 @@ public class ProfileServiceImpl implements ProfileService {
         providedNodeData.putAll(pp.getProvidedMap(e.getValue()));
       }
     }
+    return providedNodeData;
+  }
+
+  private ValueMap resolveProfileMap(Content profileContent,
+      Map<Content, Future<Map<String, Object>>> providedNodeData) throws RepositoryException {
     try {
       // Return it as a ValueMap.
       ValueMap map = new ValueMapDecorator(new HashMap<String, Object>());
@@ -366,6 +459,9 @@ public class ProfileServiceImpl implements ProfileService {
         authorizableManager.updateAuthorizable(a);
       }
     }
+    if (authorizableId != null) {
+      profileCache.invalidate(authorizableId);
+    }
     // update the profile content
     if (json != null && json.length() > 0) {
       AccessControlManager accessControlManger = session.getAccessControlManager();
@@ -375,6 +471,37 @@ public class ProfileServiceImpl implements ProfileService {
     }
   }
 
+  // ---------- EventHandler interface -----------------------------------------
+  /**
+   * {@inheritDoc}
+   *
+   * Drops the cached profiles of the authorizable that was updated, or whose profile
+   * content was changed.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null) {
+      return;
+    }
+    if (event.getTopic().startsWith("org/sakaiproject/nakamura/lite/authorizables/")) {
+      profileCache.invalidate(path);
+    } else if (path.indexOf(PROFILE_PATH_ELEMENT) > 0) {
+      String authorizableId = PathUtils.getAuthorizableId(path);
+      if (authorizableId != null) {
+        profileCache.invalidate(authorizableId);
+      }
+    }
+  }
+
+  /**
+   * @return the statistics of the profile cache.
+   */
+  ProfileCache getProfileCache() {
+    return profileCache;
+  }
+
   private void processBasic(JSONObject basic, Authorizable a)
       throws StorageClientException, AccessDeniedException, JSONException {
     if (basic.has("elements")) {
@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ *
+ */
+public class ProfileCacheTest {
+
+  @Test
+  public void testProfilesArePerReader() {
+    ProfileCache cache = new ProfileCache(100, 60000L, 60000L);
+    cache.putProfile("ieb", "ieb", createProfile(), false);
+
+    assertNotNull(cache.getProfile("ieb", "ieb"));
+    assertNull(cache.getProfile("ieb", "anonymous"));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(0.5, cache.getHitRate(), 0.001);
+  }
+
+  @Test
+  public void testCopiesAreIsolated() {
+    ProfileCache cache = new ProfileCache(100, 60000L, 60000L);
+    cache.putProfile("ieb", "ieb", createProfile(), false);
+
+    Map<String, Object> profile = cache.getProfile("ieb", "ieb");
+    assertTrue(profile.get("basic") instanceof ValueMap);
+    ((ValueMap) profile.get("basic")).put("changed", true);
+
+    assertTrue(((ValueMap) cache.getProfile("ieb", "ieb").get("basic")).isEmpty());
+  }
+
+  @Test
+  public void testProvidedProfilesExpire() throws Exception {
+    ProfileCache cache = new ProfileCache(100, 60000L, 1L);
+    cache.putProfile("ieb", "ieb", createProfile(), true);
+    cache.putProfile("ian", "ieb", createProfile(), false);
+    Thread.sleep(10);
+
+    assertNull(cache.getProfile("ieb", "ieb"));
+    assertNotNull(cache.getProfile("ian", "ieb"));
+  }
+
+  @Test
+  public void testSizeIsBounded() {
+    ProfileCache cache = new ProfileCache(2, 60000L, 60000L);
+    cache.putProfile("a", "ieb", createProfile(), false);
+    cache.putProfile("b", "ieb", createProfile(), false);
+    cache.putProfile("c", "ieb", createProfile(), false);
+
+    assertEquals(1, cache.getSize());
+    assertNotNull(cache.getProfile("c", "ieb"));
+  }
+
+  @Test
+  public void testInvalidateOnEvents() {
+    ProfileServiceImpl profileService = new ProfileServiceImpl();
+    ProfileCache cache = profileService.getProfileCache();
+    cache.putProfile("ieb", "ian", createProfile(), false);
+    cache.putCompactProfile("ieb", createProfile());
+    cache.putProfile("ian", "ian", createProfile(), false);
+
+    profileService.handleEvent(createEvent("org/sakaiproject/nakamura/lite/content/UPDATED",
+        "a:ieb/public/authprofile/aboutme"));
+    assertNull(cache.getProfile("ieb", "ian"));
+    assertNull(cache.getCompactProfile("ieb"));
+    assertNotNull(cache.getProfile("ian", "ian"));
+
+    // other content of the user leaves the profile alone.
+    profileService.handleEvent(createEvent("org/sakaiproject/nakamura/lite/content/UPDATED",
+        "a:ian/private/contacts"));
+    assertNotNull(cache.getProfile("ian", "ian"));
+
+    profileService.handleEvent(createEvent(
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED", "ian"));
+    assertNull(cache.getProfile("ian", "ian"));
+    assertEquals(2, cache.getInvalidations());
+  }
+
+  private Map<String, Object> createProfile() {
+    Map<String, Object> profile = new HashMap<String, Object>();
+    profile.put("userid", "ieb");
+    profile.put("basic", new ValueMapDecorator(new HashMap<String, Object>()));
+    return profile;
+  }
+
+  private Event createEvent(String topic, String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", path);
+    return new Event(topic, properties);
+  }
+}
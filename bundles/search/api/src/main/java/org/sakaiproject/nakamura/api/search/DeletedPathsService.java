@@ -10,4 +10,20 @@ public interface DeletedPathsService {
    * query.
    */
   List<String> getDeletedPaths();
-}
\ No newline at end of file
+
+  /**
+   * Get the filter queries that exclude the deleted paths from a search, eg
+   * <code>-path:(a OR b)</code>. Paths below another deleted path are already collapsed
+   * into their ancestor, and each filter query holds a bounded number of paths.
+   *
+   * @return the filter queries, empty if there is nothing to filter.
+   */
+  List<String> getDeletedPathsFilters();
+
+  /**
+   * @param path an unescaped content path.
+   * @return true if the path, or one of its ancestors, was deleted since the last Solr
+   *         commit on any node in the cluster.
+   */
+  boolean isDeleted(String path);
+}
@@ -0,0 +1,266 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Request scoped cache of the {@link Content} and {@link Authorizable}s behind a page of
+ * search results. A batch processor hands the page to {@link #prefetch(Iterator)} before
+ * it starts writing and then reads through {@link #getContent(String)} and
+ * {@link #getAuthorizable(String)}, so each item is loaded from storage at most once per
+ * request. Anything that was not prefetched is loaded on demand.
+ * <p>
+ * This class loads on the session of the request, one item at a time. The prefetch handed
+ * out by {@link SearchResultPrefetcher} loads the items of a page in parallel instead.
+ * Instances are not thread safe and must be {@link #close() closed} once the results are
+ * written.
+ * </p>
+ */
+public class SearchResultPrefetch {
+
+  /**
+   * The resourceType of results that are authorizables rather than content.
+   */
+  public static final String AUTHORIZABLE_RESOURCE_TYPE = "authorizable";
+
+  private final Session session;
+  private final Map<String, Content> contents = new HashMap<String, Content>();
+  private final Map<String, Authorizable> authorizables = new HashMap<String, Authorizable>();
+  private final Map<String, AccessDeniedException> deniedContent =
+      new HashMap<String, AccessDeniedException>();
+  private final Map<String, AccessDeniedException> deniedAuthorizables =
+      new HashMap<String, AccessDeniedException>();
+  private int lookups;
+  private int roundTrips;
+
+  public SearchResultPrefetch(Session session) {
+    this.session = session;
+  }
+
+  /**
+   * Drain the page of results and load everything they refer to: results with a
+   * resourceType of {@value #AUTHORIZABLE_RESOURCE_TYPE} by their id, all others by their
+   * path.
+   *
+   * @param iterator
+   *          the results of the page.
+   * @return the results in the order they were read.
+   * @throws StorageClientException
+   */
+  public List<Result> prefetch(Iterator<Result> iterator) throws StorageClientException {
+    List<Result> page = new ArrayList<Result>();
+    Set<String> paths = new LinkedHashSet<String>();
+    Set<String> ids = new LinkedHashSet<String>();
+    while (iterator.hasNext()) {
+      Result result = iterator.next();
+      page.add(result);
+      if (AUTHORIZABLE_RESOURCE_TYPE.equals(result.getFirstValue("resourceType"))) {
+        ids.add((String) result.getFirstValue("id"));
+      } else {
+        paths.add(result.getPath());
+      }
+    }
+    load(missing(paths, contents, deniedContent),
+        missing(ids, authorizables, deniedAuthorizables));
+    return page;
+  }
+
+  /**
+   * Load any of the paths that have not been loaded yet.
+   *
+   * @param paths
+   * @throws StorageClientException
+   */
+  public void prefetchContent(Collection<String> paths) throws StorageClientException {
+    load(missing(paths, contents, deniedContent), new ArrayList<String>());
+  }
+
+  /**
+   * @param path
+   * @return the content at path, loading it if it was not prefetched, or null if there is
+   *         none.
+   * @throws AccessDeniedException
+   *           if the session may not read the content.
+   * @throws StorageClientException
+   */
+  public Content getContent(String path) throws AccessDeniedException,
+      StorageClientException {
+    if (!contents.containsKey(path) && !deniedContent.containsKey(path)) {
+      loadContent(session.getContentManager(), path);
+      addLookups(1, 1);
+    }
+    AccessDeniedException e = deniedContent.get(path);
+    if (e != null) {
+      throw e;
+    }
+    return contents.get(path);
+  }
+
+  /**
+   * @param id
+   * @return the authorizable, loading it if it was not prefetched, or null if there is
+   *         none.
+   * @throws AccessDeniedException
+   *           if the session may not read the authorizable.
+   * @throws StorageClientException
+   */
+  public Authorizable getAuthorizable(String id) throws AccessDeniedException,
+      StorageClientException {
+    if (!authorizables.containsKey(id) && !deniedAuthorizables.containsKey(id)) {
+      loadAuthorizable(session.getAuthorizableManager(), id);
+      addLookups(1, 1);
+    }
+    AccessDeniedException e = deniedAuthorizables.get(id);
+    if (e != null) {
+      throw e;
+    }
+    return authorizables.get(id);
+  }
+
+  /**
+   * @return the session of the request.
+   */
+  public Session getSession() {
+    return session;
+  }
+
+  /**
+   * @return the number of items loaded from storage.
+   */
+  public int getLookups() {
+    return lookups;
+  }
+
+  /**
+   * @return the number of storage round trips the request waited for. Items loaded in
+   *         parallel only count once.
+   */
+  public int getRoundTrips() {
+    return roundTrips;
+  }
+
+  /**
+   * Release whatever the prefetch holds beyond the session of the request. Items loaded
+   * through it must not be used afterwards.
+   */
+  public void close() {
+  }
+
+  /**
+   * Load the paths and ids, none of which have been loaded yet, one at a time on the
+   * session of the request. Subclasses loading in some other way record what they find
+   * through {@link #addContent(String, Content, AccessDeniedException)},
+   * {@link #addAuthorizable(String, Authorizable, AccessDeniedException)} and
+   * {@link #addLookups(int, int)}.
+   *
+   * @param paths
+   * @param ids
+   * @throws StorageClientException
+   */
+  protected void load(List<String> paths, List<String> ids) throws StorageClientException {
+    if (!paths.isEmpty()) {
+      ContentManager contentManager = session.getContentManager();
+      for (String path : paths) {
+        loadContent(contentManager, path);
+      }
+    }
+    if (!ids.isEmpty()) {
+      AuthorizableManager authorizableManager = session.getAuthorizableManager();
+      for (String id : ids) {
+        loadAuthorizable(authorizableManager, id);
+      }
+    }
+    addLookups(paths.size() + ids.size(), paths.size() + ids.size());
+  }
+
+  /**
+   * Record the content found at path, null if there is none, or the reason it could not
+   * be read.
+   */
+  protected void addContent(String path, Content content, AccessDeniedException denied) {
+    if (denied != null) {
+      deniedContent.put(path, denied);
+    } else {
+      contents.put(path, content);
+    }
+  }
+
+  /**
+   * Record the authorizable found for id, null if there is none, or the reason it could
+   * not be read.
+   */
+  protected void addAuthorizable(String id, Authorizable authorizable,
+      AccessDeniedException denied) {
+    if (denied != null) {
+      deniedAuthorizables.put(id, denied);
+    } else {
+      authorizables.put(id, authorizable);
+    }
+  }
+
+  protected void addLookups(int lookups, int roundTrips) {
+    this.lookups += lookups;
+    this.roundTrips += roundTrips;
+  }
+
+  private void loadContent(ContentManager contentManager, String path)
+      throws StorageClientException {
+    try {
+      addContent(path, contentManager.get(path), null);
+    } catch (AccessDeniedException e) {
+      addContent(path, null, e);
+    }
+  }
+
+  private void loadAuthorizable(AuthorizableManager authorizableManager, String id)
+      throws StorageClientException {
+    try {
+      addAuthorizable(id, authorizableManager.findAuthorizable(id), null);
+    } catch (AccessDeniedException e) {
+      addAuthorizable(id, null, e);
+    }
+  }
+
+  private static List<String> missing(Collection<String> keys, Map<String, ?> loaded,
+      Map<String, AccessDeniedException> denied) {
+    List<String> missing = new ArrayList<String>();
+    for (String key : keys) {
+      if (key != null && !loaded.containsKey(key) && !denied.containsKey(key)
+          && !missing.contains(key)) {
+        missing.add(key);
+      }
+    }
+    return missing;
+  }
+}
@@ -0,0 +1,35 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import org.sakaiproject.nakamura.api.lite.Session;
+
+/**
+ * Hands out {@link SearchResultPrefetch}es that load the items of a page of search
+ * results in parallel, as the user of the request, and keeps the storage round trips of
+ * each search request as a metric.
+ */
+public interface SearchResultPrefetcher {
+
+  /**
+   * @param session
+   *          the session of the search request.
+   * @return a prefetch for the request, to be closed once its results are written.
+   */
+  SearchResultPrefetch open(Session session);
+}
@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Counts documents with a single Solr request that returns no rows and lets Solr facet
+ * the matches, instead of fetching documents and counting them in the client. Counts are
+ * limited to the documents the user of the request can read.
+ */
+public interface SolrCountService {
+
+  /**
+   * @param request
+   * @param queryString
+   *          the documents to count.
+   * @param facetQueries
+   *          queries that further restrict the documents, each is counted separately.
+   * @return the number of matches of each facet query, keyed by the facet query. The
+   *         total number of matches of queryString is keyed by null.
+   * @throws SolrSearchException
+   */
+  Map<String, Long> countQueries(SlingHttpServletRequest request, String queryString,
+      Collection<String> facetQueries) throws SolrSearchException;
+
+  /**
+   * @param request
+   * @param queryString
+   *          the documents to count.
+   * @param field
+   *          an indexed field.
+   * @return the number of matches for each value of field that occurs at least once.
+   * @throws SolrSearchException
+   */
+  Map<String, Long> countValues(SlingHttpServletRequest request, String queryString,
+      String field) throws SolrSearchException;
+}
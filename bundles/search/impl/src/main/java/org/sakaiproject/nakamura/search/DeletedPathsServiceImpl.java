@@ -18,9 +18,19 @@
 package org.sakaiproject.nakamura.search;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
@@ -35,6 +45,8 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.search.DeletedPathsService;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Manage a cache of deleted paths as signaled by content deletion events. The cache is
@@ -44,6 +56,16 @@ import org.sakaiproject.nakamura.api.search.solr.Query;
  * overwriting a centrally managed but unsynchronized cache. Each machine should have only
  * one version of this service actively managing that machines cache so it should always
  * work with the authoritative state.
+ * <p>
+ * Each machine publishes every deleted path as its own cache entry, numbered in deletion
+ * order, and a small head entry holding the generation and the number of paths. A commit
+ * starts a new generation. Readers keep the merged view of all machines and only fetch the
+ * paths they haven't seen yet, so a delete replicates one path and a search costs one cache
+ * lookup per machine. Paths below an already deleted path are collapsed into it. A machine
+ * publishes at most <code>maxTrackedPaths</code> paths between commits, which caps the
+ * filter queries every search carries. Deletes beyond the cap are not filtered in the
+ * query until the next commit; the index holds nothing a filter could tell them apart by,
+ * so they are left to the result processors, which skip content that no longer exists.
  */
 @Component
 @Service
@@ -55,12 +77,49 @@ import org.sakaiproject.nakamura.api.search.solr.Query;
 public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsService {
   public static final String DELETED_PATH_CACHE = "deletedPathQueue";
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(DeletedPathsServiceImpl.class);
+
+  /** the most paths put in one filter query */
+  @Property(intValue = 500)
+  static final String MAX_FILTER_PATHS = "maxFilterPaths";
+
+  /** the most paths one machine publishes between commits */
+  @Property(intValue = 10000)
+  static final String MAX_TRACKED_PATHS = "maxTrackedPaths";
+
+  private static final String KEY_PREFIX = "deletedPaths@";
+
+  private static final DeletedPaths EMPTY = new DeletedPaths(
+      Collections.<String, ServerPaths> emptyMap(), 1);
+
   @Reference
   private CacheManagerService cacheManagerService;
 
   @Reference
   private ClusterTrackingService clusterTrackingService;
 
+  private int maxFilterPaths = 500;
+
+  private int maxTrackedPaths = 10000;
+
+  /**
+   * The paths deleted on this machine in deletion order. No path is below another path in
+   * the set. Guarded by this.
+   */
+  private final Set<String> localPaths = new LinkedHashSet<String>();
+
+  /** Guarded by this. */
+  private long generation;
+
+  /** the number of paths published in this generation. Guarded by this. */
+  private int published;
+
+  /** the deletes not published since the last commit as the cap was hit. Guarded by this. */
+  private int untracked;
+
+  /** the last merged view of all machines' paths */
+  private volatile DeletedPaths merged = EMPTY;
+
   public DeletedPathsServiceImpl() {
   }
 
@@ -70,6 +129,14 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
     this.clusterTrackingService = clusterTrackingService;
   }
 
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> props) {
+    maxFilterPaths = Math.max(1, PropertiesUtil.toInteger(props.get(MAX_FILTER_PATHS), 500));
+    maxTrackedPaths = PropertiesUtil.toInteger(props.get(MAX_TRACKED_PATHS), 10000);
+    merged = EMPTY;
+  }
+
   /**
    * Get an instance of the cache used to track paths that have been marked as
    * deleted since the last Solr commit.  This cache is shared by all nodes in a
@@ -85,67 +152,181 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
    * @param path the path that was deleted
    */
   private synchronized void storeDeletedPath(String path) {
-    Cache<String> cache = getDeletedPathCache();
-    String myId = clusterTrackingService.getCurrentServerId();
-
-    // add the new path to the last position
-    int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + myId), 0);
-    cache.put("path[" + pathCount + "]@" + myId,
-        SearchUtil.escapeString(path, Query.SOLR));
-    cache.put("pathCount@" + myId, String.valueOf(pathCount + 1));
-
-    // clean out any paths that start with the path we've just added
-    for (int idx = 0; idx < pathCount; idx++) {
-      String key = "path[" + idx + "]@" + myId;
-      String cachedPath = cache.get(key);
-      // check for null in case a previous pass deleted the element. we don't do garbage
-      // collection because the list is expected to be too short lived.
-      if (cachedPath != null && !cachedPath.equals(path) && cachedPath.startsWith(path)) {
-        cache.remove(key);
+    path = trimSlash(path);
+    if (isCovered(localPaths, path)) {
+      return;
+    }
+    if (published >= maxTrackedPaths) {
+      if (untracked++ == 0) {
+        LOGGER.warn("More than {} paths deleted since the last commit, further deletes are "
+            + "not filtered from searches until the next commit", maxTrackedPaths);
+      }
+      return;
+    }
+
+    // clean out any paths below the path we're adding, readers collapse them as well
+    String prefix = path + "/";
+    for (Iterator<String> it = localPaths.iterator(); it.hasNext();) {
+      if (it.next().startsWith(prefix)) {
+        it.remove();
       }
     }
+    localPaths.add(path);
+    publish(path);
   }
 
   /**
    * Clear the list of deleted nodes for this node.
    */
   private synchronized void clearDeletedPaths() {
+    if (untracked > 0) {
+      LOGGER.info("{} deletes were not filtered from searches before this commit", untracked);
+      untracked = 0;
+    }
+    if (published == 0) {
+      return;
+    }
     Cache<String> cache = getDeletedPathCache();
-    String myId = clusterTrackingService.getCurrentServerId();
+    String serverId = clusterTrackingService.getCurrentServerId();
+    long oldGeneration = generation;
+    int oldPublished = published;
+    localPaths.clear();
+    startGeneration();
+    cache.put(KEY_PREFIX + serverId, generation + "\n" + published);
+    for (int i = 1; i <= oldPublished; i++) {
+      cache.remove(getPathKey(serverId, oldGeneration, i));
+    }
+  }
+
+  /**
+   * Generations are time based so they don't repeat after a restart.
+   */
+  private void startGeneration() {
+    generation = Math.max(generation + 1, System.currentTimeMillis());
+    published = 0;
+  }
 
-    int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + myId), 0);
-    for (int idx = 0; idx < pathCount; idx++) {
-      cache.remove("path[" + idx + "]@" + myId);
+  /**
+   * Put a deleted path in the shared cache, then the head that makes it visible.
+   */
+  private void publish(String path) {
+    if (generation == 0) {
+      startGeneration();
     }
+    Cache<String> cache = getDeletedPathCache();
+    String serverId = clusterTrackingService.getCurrentServerId();
+    published++;
+    cache.put(getPathKey(serverId, generation, published), path);
+    cache.put(KEY_PREFIX + serverId, generation + "\n" + published);
+  }
 
-    cache.put("pathCount@" + myId, Integer.toString(0));
+  private static String getPathKey(String serverId, long generation, int number) {
+    return KEY_PREFIX + serverId + "@" + generation + "@" + number;
   }
 
-  // ---------- DeletedPathsService interface ----------------------------------
   /**
-   * {@inheritDoc}
-   *
-   * @see org.sakaiproject.nakamura.api.search.DeletedPathsService#getDeletedPaths()
+   * Get the merged view of the paths of all machines, fetching only the paths published
+   * since it was last built.
    */
-  @Override
-  public List<String> getDeletedPaths() {
-    List<String> deletedPaths = new ArrayList<String>();
+  private DeletedPaths getMerged() {
     Cache<String> cache = getDeletedPathCache();
+    DeletedPaths current = merged;
 
+    Map<String, ServerPaths> servers = new HashMap<String, ServerPaths>();
+    boolean changed = false;
     for (ClusterServer server : clusterTrackingService.getAllServers()) {
       String serverId = server.getServerId();
-      int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + serverId), 0);
-
-      for (int idx = 0; idx < pathCount; idx++) {
-        String path = (String)cache.get("path[" + idx + "]@" + serverId);
-
-        if (path != null) {
-          deletedPaths.add(SearchUtil.escapeString(path, Query.SOLR));
+      String head = cache.get(KEY_PREFIX + serverId);
+      if (head == null) {
+        continue;
+      }
+      String[] parts = StringUtils.split(head, '\n');
+      long generation = Long.parseLong(parts[0]);
+      int count = Integer.parseInt(parts[1]);
+      ServerPaths seen = current.servers.get(serverId);
+      if (seen != null && seen.generation == generation && seen.count == count) {
+        servers.put(serverId, seen);
+        continue;
+      }
+      List<String> paths = new ArrayList<String>();
+      int from = 1;
+      if (seen != null && seen.generation == generation && seen.count < count) {
+        paths.addAll(seen.paths);
+        from = seen.count + 1;
+      }
+      int read = from - 1;
+      for (int i = from; i <= count; i++) {
+        String path = cache.get(getPathKey(serverId, generation, i));
+        if (path == null) {
+          // not replicated here yet, read it and the ones after it next time
+          break;
         }
+        paths.add(path);
+        read = i;
+      }
+      servers.put(serverId, new ServerPaths(generation, read, paths));
+      changed = true;
+    }
+    if (!changed && servers.size() == current.servers.size()) {
+      return current;
+    }
+    current = new DeletedPaths(servers, maxFilterPaths);
+    merged = current;
+    return current;
+  }
+
+  /**
+   * @return true if the path or one of its ancestors is in the set.
+   */
+  private static boolean isCovered(Set<String> paths, String path) {
+    for (String p = path; p != null; p = getParent(p)) {
+      if (paths.contains(p)) {
+        return true;
       }
     }
+    return false;
+  }
+
+  private static String getParent(String path) {
+    int i = path.lastIndexOf('/');
+    return (i <= 0) ? null : path.substring(0, i);
+  }
+
+  private static String trimSlash(String path) {
+    return (path.length() > 1 && path.endsWith("/")) ? path.substring(0, path.length() - 1)
+        : path;
+  }
+
+  // ---------- DeletedPathsService interface ----------------------------------
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.DeletedPathsService#getDeletedPaths()
+   */
+  @Override
+  public List<String> getDeletedPaths() {
+    return getMerged().escaped;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.DeletedPathsService#getDeletedPathsFilters()
+   */
+  @Override
+  public List<String> getDeletedPathsFilters() {
+    return getMerged().filters;
+  }
 
-    return deletedPaths;
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.DeletedPathsService#isDeleted(java.lang.String)
+   */
+  @Override
+  public boolean isDeleted(String path) {
+    Set<String> paths = getMerged().paths;
+    return path != null && !paths.isEmpty() && isCovered(paths, trimSlash(path));
   }
 
   // ---------- EventHandler interface -----------------------------------------
@@ -163,4 +344,57 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
       clearDeletedPaths();
     }
   }
+
+  /**
+   * The paths one machine published in a generation, as far as they have been read.
+   */
+  private static final class ServerPaths {
+    private final long generation;
+    private final int count;
+    private final List<String> paths;
+
+    private ServerPaths(long generation, int count, List<String> paths) {
+      this.generation = generation;
+      this.count = count;
+      this.paths = paths;
+    }
+  }
+
+  /**
+   * An immutable merged view of the deleted paths of all machines.
+   */
+  private static final class DeletedPaths {
+    private final Map<String, ServerPaths> servers;
+    private final Set<String> paths;
+    private final List<String> escaped;
+    private final List<String> filters;
+
+    private DeletedPaths(Map<String, ServerPaths> servers, int maxFilterPaths) {
+      this.servers = servers;
+      Set<String> paths = new LinkedHashSet<String>();
+      for (ServerPaths serverPaths : servers.values()) {
+        paths.addAll(serverPaths.paths);
+      }
+      // a later delete, here or on another machine, may have covered an earlier path
+      for (Iterator<String> it = paths.iterator(); it.hasNext();) {
+        String parent = getParent(it.next());
+        if (parent != null && isCovered(paths, parent)) {
+          it.remove();
+        }
+      }
+      this.paths = (paths.isEmpty()) ? Collections.<String> emptySet() : new HashSet<String>(paths);
+      List<String> escaped = new ArrayList<String>(paths.size());
+      for (String path : paths) {
+        escaped.add(SearchUtil.escapeString(path, Query.SOLR));
+      }
+      this.escaped = Collections.unmodifiableList(escaped);
+      List<String> filters = new ArrayList<String>();
+      for (int i = 0; i < escaped.size(); i += maxFilterPaths) {
+        filters.add("-path:("
+            + StringUtils.join(escaped.subList(i, Math.min(i + maxFilterPaths, escaped.size())),
+                " OR ") + ")");
+      }
+      this.filters = Collections.unmodifiableList(filters);
+    }
+  }
 }
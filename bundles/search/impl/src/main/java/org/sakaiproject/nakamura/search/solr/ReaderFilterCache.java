@@ -0,0 +1,239 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.lite.StoreListener.DELETE_TOPIC;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.search.SearchUtil;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Caches the Solr <code>readers:(...)</code> filter query for each user. The group ids are
+ * escaped and sorted so that a user always gets the same string, and users with the same
+ * memberships share one interned instance, which lets Solr's filterCache reuse the
+ * filter.
+ * <p>
+ * Entries are dropped when the user is updated. When a group is updated its principals
+ * are compared with the last ones seen and, only if the group itself has moved in the
+ * hierarchy, the entries of all of its transitive members are dropped. Deleting an
+ * authorizable clears the cache. The cache is cluster invalidated, so removals made on the
+ * node that handled the event apply to every node.
+ */
+@Component(metatype = true)
+@Service(value = { ReaderFilterCache.class, EventHandler.class })
+@Property(name = "event.topics", value = {
+    "org/sakaiproject/nakamura/lite/authorizables/ADDED",
+    "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+    "org/sakaiproject/nakamura/lite/authorizables/DELETE" })
+public class ReaderFilterCache implements EventHandler {
+
+  public static final String READER_FILTER_CACHE = "solrReaderFilterCache";
+  public static final String GROUP_PRINCIPALS_CACHE = "solrReaderFilterGroupPrincipals";
+
+  @Property(intValue = 10000)
+  static final String MAX_INVALIDATION_EXPANSION = "maxInvalidationExpansion";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReaderFilterCache.class);
+
+  @Reference
+  private CacheManagerService cacheManagerService;
+
+  @Reference
+  private Repository repository;
+
+  private final Interner<String> filters = Interners.newWeakInterner();
+  private int maxInvalidationExpansion = 10000;
+
+  public ReaderFilterCache() {
+  }
+
+  protected ReaderFilterCache(CacheManagerService cacheManagerService,
+      Repository repository) {
+    this.cacheManagerService = cacheManagerService;
+    this.repository = repository;
+  }
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    maxInvalidationExpansion = PropertiesUtil.toInteger(
+        props.get(MAX_INVALIDATION_EXPANSION), 10000);
+  }
+
+  /**
+   * @param authorizableManager
+   *          the authorizable manager of the user's session.
+   * @param userId
+   * @return the canonical <code>readers:(...)</code> filter for the user.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public String getReaderFilter(AuthorizableManager authorizableManager, String userId)
+      throws StorageClientException, AccessDeniedException {
+    Cache<String> cache = getFilterCache();
+    String filter = cache.get(userId);
+    if (filter != null) {
+      return filter;
+    }
+    Set<String> readers = new TreeSet<String>();
+    readers.add(SearchUtil.escapeString(userId, Query.SOLR));
+    Authorizable user = authorizableManager.findAuthorizable(userId);
+    if (user != null) {
+      Cache<String> groupPrincipals = getGroupPrincipalsCache();
+      for (Iterator<Group> gi = user.memberOf(authorizableManager); gi.hasNext();) {
+        Group group = gi.next();
+        readers.add(SearchUtil.escapeString(group.getId(), Query.SOLR));
+        if (!groupPrincipals.containsKey(group.getId())) {
+          groupPrincipals.put(group.getId(), canonicalPrincipals(group));
+        }
+      }
+    }
+    filter = filters.intern("readers:(" + StringUtils.join(readers, " OR ") + ")");
+    cache.put(userId, filter);
+    return filter;
+  }
+
+  // ---------- EventHandler interface -----------------------------------------
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String id = (String) event.getProperty("path");
+    if (id == null) {
+      return;
+    }
+    if (event.getTopic().endsWith(DELETE_TOPIC)) {
+      // the members of a deleted group can't be found any more.
+      getFilterCache().clear();
+      getGroupPrincipalsCache().remove(id);
+      return;
+    }
+    getFilterCache().remove(id);
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      AuthorizableManager authorizableManager = session.getAuthorizableManager();
+      Authorizable authorizable = authorizableManager.findAuthorizable(id);
+      if (authorizable instanceof Group) {
+        Cache<String> groupPrincipals = getGroupPrincipalsCache();
+        String principals = canonicalPrincipals(authorizable);
+        if (!principals.equals(groupPrincipals.get(id))) {
+          // the group has joined or left a group, so all its members have changed.
+          invalidateMembers((Group) authorizable, authorizableManager);
+          groupPrincipals.put(id, principals);
+        }
+      }
+    } catch (ClientPoolException e) {
+      LOGGER.warn(e.getMessage(), e);
+      getFilterCache().clear();
+    } catch (StorageClientException e) {
+      LOGGER.warn(e.getMessage(), e);
+      getFilterCache().clear();
+    } catch (AccessDeniedException e) {
+      LOGGER.warn(e.getMessage(), e);
+      getFilterCache().clear();
+    } finally {
+      if (session != null) {
+        try {
+          session.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.warn(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop the filters of all the transitive members of a group, or the whole cache if
+   * there are more than maxInvalidationExpansion of them.
+   */
+  private void invalidateMembers(Group group, AuthorizableManager authorizableManager)
+      throws AccessDeniedException, StorageClientException {
+    Cache<String> cache = getFilterCache();
+    Set<String> seen = Sets.newHashSet(group.getId());
+    LinkedList<Group> toExpand = Lists.newLinkedList();
+    toExpand.add(group);
+    while (!toExpand.isEmpty()) {
+      for (String member : toExpand.removeFirst().getMembers()) {
+        if (!seen.add(member)) {
+          continue;
+        }
+        if (seen.size() > maxInvalidationExpansion) {
+          LOGGER.debug("{} has too many members to invalidate one by one ", group.getId());
+          cache.clear();
+          return;
+        }
+        cache.remove(member);
+        Authorizable a = authorizableManager.findAuthorizable(member);
+        if (a instanceof Group) {
+          toExpand.add((Group) a);
+        }
+      }
+    }
+  }
+
+  private String canonicalPrincipals(Authorizable authorizable) {
+    Set<String> principals = new TreeSet<String>();
+    for (String principal : authorizable.getPrincipals()) {
+      principals.add(principal);
+    }
+    return StringUtils.join(principals, ';');
+  }
+
+  private Cache<String> getFilterCache() {
+    return cacheManagerService.getCache(READER_FILTER_CACHE, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  private Cache<String> getGroupPrincipalsCache() {
+    return cacheManagerService.getCache(GROUP_PRINCIPALS_CACHE, CacheScope.INSTANCE);
+  }
+}
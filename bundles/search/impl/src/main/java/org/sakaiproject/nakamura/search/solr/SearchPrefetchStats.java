@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters kept by {@link SearchResultPrefetcherImpl}.
+ */
+public class SearchPrefetchStats implements SearchPrefetchStatsMBean {
+
+  private final AtomicLong searches = new AtomicLong();
+  private final AtomicLong lookups = new AtomicLong();
+  private final AtomicLong roundTrips = new AtomicLong();
+  private final AtomicLong maxRoundTrips = new AtomicLong();
+
+  void record(int storageLookups, int storageRoundTrips) {
+    searches.incrementAndGet();
+    lookups.addAndGet(storageLookups);
+    roundTrips.addAndGet(storageRoundTrips);
+    long max = maxRoundTrips.get();
+    while (storageRoundTrips > max && !maxRoundTrips.compareAndSet(max, storageRoundTrips)) {
+      max = maxRoundTrips.get();
+    }
+  }
+
+  public long getSearchCount() {
+    return searches.get();
+  }
+
+  public long getStorageLookups() {
+    return lookups.get();
+  }
+
+  public long getStorageRoundTrips() {
+    return roundTrips.get();
+  }
+
+  public double getAverageStorageRoundTrips() {
+    long count = searches.get();
+    return (count == 0) ? 0 : (double) roundTrips.get() / count;
+  }
+
+  public long getMaxStorageRoundTrips() {
+    return maxRoundTrips.get();
+  }
+
+  public void reset() {
+    searches.set(0);
+    lookups.set(0);
+    roundTrips.set(0);
+    maxRoundTrips.set(0);
+  }
+}
@@ -0,0 +1,325 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.search.solr.SearchResultPrefetch;
+import org.sakaiproject.nakamura.api.search.solr.SearchResultPrefetcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Loads the items of a page of search results in parallel on a bounded pool. A sparse
+ * session must not be used by two threads at once, so each loader logs in its own
+ * session as the user of the request and keeps it until the prefetch is closed, as the
+ * items it loaded may still read through it. Pages of a single item, and anything the
+ * loaders did not get to in time, are loaded on the session of the request.
+ */
+@Component(metatype = true)
+@Service
+public class SearchResultPrefetcherImpl implements SearchResultPrefetcher {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchResultPrefetcherImpl.class);
+
+  static final int DEFAULT_POOL_SIZE = 16;
+  @Property(intValue = SearchResultPrefetcherImpl.DEFAULT_POOL_SIZE)
+  static final String POOL_SIZE = "sakai.search.prefetch.pool_size";
+
+  static final int DEFAULT_PARALLELISM = 4;
+  /** the most loaders working on one page */
+  @Property(intValue = SearchResultPrefetcherImpl.DEFAULT_PARALLELISM)
+  static final String PARALLELISM = "sakai.search.prefetch.parallelism";
+
+  static final int DEFAULT_TIMEOUT = 10;
+  @Property(intValue = SearchResultPrefetcherImpl.DEFAULT_TIMEOUT)
+  static final String TIMEOUT = "sakai.search.prefetch.timeout_seconds";
+
+  @Reference
+  protected Repository repository;
+
+  final SearchPrefetchStats stats = new SearchPrefetchStats();
+  private ObjectName statsName;
+  private volatile ThreadPoolExecutor loaders;
+  private int parallelism = DEFAULT_PARALLELISM;
+  private int timeout = DEFAULT_TIMEOUT;
+
+  public SearchResultPrefetcherImpl() {
+  }
+
+  SearchResultPrefetcherImpl(Repository repository) {
+    this.repository = repository;
+  }
+
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> props) {
+    int poolSize = Math.max(1, PropertiesUtil.toInteger(props.get(POOL_SIZE), DEFAULT_POOL_SIZE));
+    parallelism = Math.max(1, PropertiesUtil.toInteger(props.get(PARALLELISM),
+        DEFAULT_PARALLELISM));
+    timeout = Math.max(1, PropertiesUtil.toInteger(props.get(TIMEOUT), DEFAULT_TIMEOUT));
+
+    ThreadPoolExecutor previous = loaders;
+    final AtomicInteger count = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60L,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(poolSize * 4), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Search prefetch " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    loaders = executor;
+    if (previous != null) {
+      previous.shutdown();
+    }
+    registerStats();
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    ThreadPoolExecutor previous = loaders;
+    loaders = null;
+    if (previous != null) {
+      previous.shutdown();
+    }
+    if (statsName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsName);
+      } catch (Exception e) {
+        LOGGER.debug("Unable to unregister search prefetch statistics ", e);
+      }
+      statsName = null;
+    }
+  }
+
+  private void registerStats() {
+    if (statsName != null) {
+      return;
+    }
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("org.sakaiproject.nakamura.search:type=Prefetch");
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(stats, name);
+      statsName = name;
+    } catch (Exception e) {
+      LOGGER.debug("Unable to register search prefetch statistics ", e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.SearchResultPrefetcher#open(org.sakaiproject.nakamura.api.lite.Session)
+   */
+  public SearchResultPrefetch open(Session session) {
+    return new ParallelPrefetch(session);
+  }
+
+  /**
+   * The items one loader is given and what it found.
+   */
+  private static final class Batch {
+    private final List<String> paths = new ArrayList<String>();
+    private final List<String> ids = new ArrayList<String>();
+    private final Map<String, Content> contents = new HashMap<String, Content>();
+    private final Map<String, Authorizable> authorizables = new HashMap<String, Authorizable>();
+    private final Map<String, AccessDeniedException> deniedContent =
+        new HashMap<String, AccessDeniedException>();
+    private final Map<String, AccessDeniedException> deniedAuthorizables =
+        new HashMap<String, AccessDeniedException>();
+
+    private int size() {
+      return paths.size() + ids.size();
+    }
+  }
+
+  private final class ParallelPrefetch extends SearchResultPrefetch {
+    /** the sessions of the loaders, guarded by itself */
+    private final List<Session> sessions = new ArrayList<Session>();
+    private boolean closed;
+
+    private ParallelPrefetch(Session session) {
+      super(session);
+    }
+
+    @Override
+    protected void load(List<String> paths, List<String> ids) throws StorageClientException {
+      ThreadPoolExecutor executor = loaders;
+      int items = paths.size() + ids.size();
+      if (executor == null || items < 2) {
+        super.load(paths, ids);
+        return;
+      }
+      // deal the items out round robin so every loader has about the same to do
+      Batch[] batches = new Batch[Math.min(parallelism, items)];
+      for (int i = 0; i < batches.length; i++) {
+        batches[i] = new Batch();
+      }
+      int n = 0;
+      for (String path : paths) {
+        batches[n++ % batches.length].paths.add(path);
+      }
+      for (String id : ids) {
+        batches[n++ % batches.length].ids.add(id);
+      }
+
+      final String userId = getSession().getUserId();
+      List<Future<Batch>> futures = new ArrayList<Future<Batch>>(batches.length);
+      for (final Batch batch : batches) {
+        futures.add(executor.submit(new Callable<Batch>() {
+          public Batch call() throws Exception {
+            loadBatch(userId, batch);
+            return batch;
+          }
+        }));
+      }
+
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+      int roundTrips = 0;
+      int lookups = 0;
+      for (Future<Batch> future : futures) {
+        try {
+          Batch batch = future.get(Math.max(0, deadline - System.nanoTime()),
+              TimeUnit.NANOSECONDS);
+          for (Map.Entry<String, Content> e : batch.contents.entrySet()) {
+            addContent(e.getKey(), e.getValue(), null);
+          }
+          for (Map.Entry<String, AccessDeniedException> e : batch.deniedContent.entrySet()) {
+            addContent(e.getKey(), null, e.getValue());
+          }
+          for (Map.Entry<String, Authorizable> e : batch.authorizables.entrySet()) {
+            addAuthorizable(e.getKey(), e.getValue(), null);
+          }
+          for (Map.Entry<String, AccessDeniedException> e : batch.deniedAuthorizables
+              .entrySet()) {
+            addAuthorizable(e.getKey(), null, e.getValue());
+          }
+          lookups += batch.size();
+          roundTrips = Math.max(roundTrips, batch.size());
+        } catch (TimeoutException e) {
+          future.cancel(true);
+          LOGGER.warn("Prefetching search results took longer than {} seconds", timeout);
+        } catch (ExecutionException e) {
+          LOGGER.warn("Unable to prefetch search results: {}", e.getCause().getMessage());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      // whatever was not loaded here is loaded on demand
+      addLookups(lookups, roundTrips);
+    }
+
+    private void loadBatch(String userId, Batch batch) throws StorageClientException,
+        AccessDeniedException {
+      Session session = repository.loginAdministrative(userId);
+      synchronized (sessions) {
+        if (closed) {
+          logout(session);
+          return;
+        }
+        sessions.add(session);
+      }
+      if (!batch.paths.isEmpty()) {
+        ContentManager contentManager = session.getContentManager();
+        for (String path : batch.paths) {
+          try {
+            batch.contents.put(path, contentManager.get(path));
+          } catch (AccessDeniedException e) {
+            batch.deniedContent.put(path, e);
+          }
+        }
+      }
+      if (!batch.ids.isEmpty()) {
+        AuthorizableManager authorizableManager = session.getAuthorizableManager();
+        for (String id : batch.ids) {
+          try {
+            batch.authorizables.put(id, authorizableManager.findAuthorizable(id));
+          } catch (AccessDeniedException e) {
+            batch.deniedAuthorizables.put(id, e);
+          }
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      List<Session> open;
+      synchronized (sessions) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        open = new ArrayList<Session>(sessions);
+        sessions.clear();
+      }
+      for (Session session : open) {
+        logout(session);
+      }
+      stats.record(getLookups(), getRoundTrips());
+      LOGGER.debug("Search loaded {} items in {} storage round trips", getLookups(),
+          getRoundTrips());
+    }
+
+    private void logout(Session session) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+  }
+}
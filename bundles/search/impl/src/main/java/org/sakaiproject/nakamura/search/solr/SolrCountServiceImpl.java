@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_PAGE;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.FacetField.Count;
+import org.apache.solr.common.params.FacetParams;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.SolrCountService;
+import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the counting queries through the {@link SolrSearchServiceFactory}, so the usual
+ * reader and deleted path filters apply, with <code>rows=0</code> and faceting enabled.
+ */
+@Component
+@Service
+public class SolrCountServiceImpl implements SolrCountService {
+
+  @Reference
+  protected SolrSearchServiceFactory searchServiceFactory;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.SolrCountService#countQueries(org.apache.sling.api.SlingHttpServletRequest,
+   *      java.lang.String, java.util.Collection)
+   */
+  public Map<String, Long> countQueries(SlingHttpServletRequest request,
+      String queryString, Collection<String> facetQueries) throws SolrSearchException {
+    Map<String, Object> options = countOptions();
+    options.put(FacetParams.FACET_QUERY, facetQueries);
+    SolrSearchResultSet rs = searchServiceFactory.getSearchResultSet(request, new Query(
+        queryString, options));
+
+    Map<String, Long> counts = new LinkedHashMap<String, Long>();
+    counts.put(null, (rs == null) ? 0L : rs.getSize());
+    Map<String, Integer> facetCounts = null;
+    if (rs instanceof SolrQueryResponseWrapper) {
+      facetCounts = ((SolrQueryResponseWrapper) rs).getQueryResponse().getFacetQuery();
+    }
+    for (String facetQuery : facetQueries) {
+      Integer count = (facetCounts == null) ? null : facetCounts.get(facetQuery);
+      counts.put(facetQuery, (count == null) ? 0L : count.longValue());
+    }
+    return counts;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.SolrCountService#countValues(org.apache.sling.api.SlingHttpServletRequest,
+   *      java.lang.String, java.lang.String)
+   */
+  public Map<String, Long> countValues(SlingHttpServletRequest request,
+      String queryString, String field) throws SolrSearchException {
+    Map<String, Object> options = countOptions();
+    options.put(FacetParams.FACET_FIELD, field);
+    options.put(FacetParams.FACET_MINCOUNT, "1");
+    options.put(FacetParams.FACET_LIMIT, "-1");
+    SolrSearchResultSet rs = searchServiceFactory.getSearchResultSet(request, new Query(
+        queryString, options));
+
+    Map<String, Long> counts = new LinkedHashMap<String, Long>();
+    List<FacetField> facetFields = (rs == null) ? null : rs.getFacetFields();
+    if (facetFields != null) {
+      for (FacetField facetField : facetFields) {
+        if (field.equals(facetField.getName()) && facetField.getValues() != null) {
+          for (Count count : facetField.getValues()) {
+            counts.put(count.getName(), count.getCount());
+          }
+        }
+      }
+    }
+    return counts;
+  }
+
+  private Map<String, Object> countOptions() {
+    Map<String, Object> options = new HashMap<String, Object>();
+    options.put(PARAMS_ITEMS_PER_PAGE, "0");
+    options.put(PARAMS_PAGE, "0");
+    options.put(FacetParams.FACET, "true");
+    return options;
+  }
+}
@@ -18,8 +18,12 @@
 package org.sakaiproject.nakamura.search;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.util.List;
@@ -54,6 +58,8 @@ public class DeletedPathsServiceImplTest {
 
   private DeletedPathsServiceImpl service;
 
+  private Cache<Object> cache;
+
   @Before
   public void setUp() {
     // setup cluster server
@@ -67,7 +73,7 @@ public class DeletedPathsServiceImplTest {
         Lists.newArrayList(clusterServer));
 
     // setup cache manager service
-    Cache<Object> cache = new MapCacheImpl<Object>(
+    cache = new MapCacheImpl<Object>(
         DeletedPathsServiceImpl.DELETED_PATH_CACHE, CacheScope.CLUSTERREPLICATED);
     when(cacheManagerService.getCache(anyString(), any(CacheScope.class))).thenReturn(
         cache);
@@ -134,4 +140,127 @@ public class DeletedPathsServiceImplTest {
 
     assertEquals(keeperPaths, service.getDeletedPaths());
   }
+
+  @Test
+  public void testFilters() throws Exception {
+    service.activate(ImmutableMap.of(DeletedPathsServiceImpl.MAX_FILTER_PATHS, 2));
+    assertTrue(service.getDeletedPathsFilters().isEmpty());
+
+    delete("/a/b");
+    delete("/c");
+    assertEquals(Lists.newArrayList("-path:(/a/b OR /c)"), service.getDeletedPathsFilters());
+
+    // too many paths for one filter query are split over several
+    delete("/d");
+    assertEquals(Lists.newArrayList("-path:(/a/b OR /c)", "-path:(/d)"),
+        service.getDeletedPathsFilters());
+    assertTrue(service.isDeleted("/c/child/grandchild"));
+    assertTrue(service.isDeleted("/a/b"));
+    assertFalse(service.isDeleted("/a"));
+    assertFalse(service.isDeleted("/cc"));
+
+    service.handleEvent(new Event("org/sakaiproject/nakamura/solr/COMMIT", ImmutableMap
+        .of()));
+    assertTrue(service.getDeletedPathsFilters().isEmpty());
+    assertFalse(service.isDeleted("/c"));
+  }
+
+  @Test
+  public void testPublishesEachPathOnce() throws Exception {
+    delete("/a");
+    delete("/b");
+    // a head and one entry per path
+    assertEquals(3, cache.list().size());
+    assertTrue(cache.list().contains("/a"));
+    assertTrue(cache.list().contains("/b"));
+
+    // the entries of the old generation are removed at the commit
+    service.handleEvent(new Event("org/sakaiproject/nakamura/solr/COMMIT", ImmutableMap
+        .of()));
+    assertEquals(1, cache.list().size());
+    assertTrue(service.getDeletedPaths().isEmpty());
+
+    delete("/c");
+    assertEquals(Lists.newArrayList("/c"), service.getDeletedPaths());
+  }
+
+  @Test
+  public void testSiblingPrefixIsNotCollapsed() throws Exception {
+    delete("/first/second");
+    delete("/first/sec");
+    assertEquals(Lists.newArrayList("/first/second", "/first/sec"),
+        service.getDeletedPaths());
+  }
+
+  @Test
+  public void testTrackedPathsAreCapped() throws Exception {
+    service.activate(ImmutableMap.of(DeletedPathsServiceImpl.MAX_TRACKED_PATHS, 2));
+    delete("/a");
+    delete("/b");
+    delete("/c/d");
+    delete("/e");
+    assertEquals(Lists.newArrayList("/a", "/b"), service.getDeletedPaths());
+    assertEquals(Lists.newArrayList("-path:(/a OR /b)"), service.getDeletedPathsFilters());
+    // live siblings of a delete beyond the cap are not hidden
+    assertFalse(service.isDeleted("/c"));
+    assertFalse(service.isDeleted("/c/x"));
+    // a head and one entry per published path
+    assertEquals(3, cache.list().size());
+
+    // the cap is per commit
+    service.handleEvent(new Event("org/sakaiproject/nakamura/solr/COMMIT", ImmutableMap
+        .of()));
+    delete("/c/d");
+    assertEquals(Lists.newArrayList("/c/d"), service.getDeletedPaths());
+  }
+
+  @Test
+  public void testMergedViewIsReusedUntilChanged() throws Exception {
+    delete("/a");
+    List<String> first = service.getDeletedPaths();
+    assertSame(first, service.getDeletedPaths());
+
+    delete("/b");
+    assertEquals(Lists.newArrayList("/a", "/b"), service.getDeletedPaths());
+  }
+
+  @Test
+  public void testMergesOtherServers() throws Exception {
+    ClusterServer other = mock(ClusterServer.class);
+    when(other.getServerId()).thenReturn("other");
+    when(clusterTrackingService.getAllServers()).thenReturn(
+        Lists.newArrayList(clusterServer, other));
+
+    delete("/a/b");
+    delete("/c");
+    // another server deleted the parent of one of our paths
+    cache.put("deletedPaths@other@1@1", "/a");
+    cache.put("deletedPaths@other", "1\n1");
+
+    List<String> deletedPaths = service.getDeletedPaths();
+    assertEquals(2, deletedPaths.size());
+    assertTrue(deletedPaths.contains("/a"));
+    assertTrue(deletedPaths.contains("/c"));
+    assertTrue(service.isDeleted("/a/x"));
+  }
+
+  @Test
+  public void testPathsNotReplicatedYetAreReadLater() throws Exception {
+    ClusterServer other = mock(ClusterServer.class);
+    when(other.getServerId()).thenReturn("other");
+    when(clusterTrackingService.getAllServers()).thenReturn(
+        Lists.newArrayList(clusterServer, other));
+
+    cache.put("deletedPaths@other@1@1", "/a");
+    cache.put("deletedPaths@other", "1\n2");
+    assertEquals(Lists.newArrayList("/a"), service.getDeletedPaths());
+
+    cache.put("deletedPaths@other@1@2", "/b");
+    assertEquals(Lists.newArrayList("/a", "/b"), service.getDeletedPaths());
+  }
+
+  private void delete(String path) {
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", path)));
+  }
 }
@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+/**
+ *
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ReaderFilterCacheTest {
+
+  @Mock
+  private CacheManagerService cacheManagerService;
+  @Mock
+  private Repository repository;
+  @Mock
+  private Session session;
+  @Mock
+  private AuthorizableManager authorizableManager;
+  @Mock
+  private User alice;
+  @Mock
+  private User bob;
+  @Mock
+  private Group groupA;
+  @Mock
+  private Group groupB;
+
+  private ReaderFilterCache readerFilterCache;
+
+  @Before
+  public void setUp() throws Exception {
+    Cache<Object> filterCache = new MapCacheImpl<Object>(
+        ReaderFilterCache.READER_FILTER_CACHE, CacheScope.CLUSTERINVALIDATED);
+    Cache<Object> principalsCache = new MapCacheImpl<Object>(
+        ReaderFilterCache.GROUP_PRINCIPALS_CACHE, CacheScope.INSTANCE);
+    when(cacheManagerService.getCache(eq(ReaderFilterCache.READER_FILTER_CACHE),
+        any(CacheScope.class))).thenReturn(filterCache);
+    when(cacheManagerService.getCache(eq(ReaderFilterCache.GROUP_PRINCIPALS_CACHE),
+        any(CacheScope.class))).thenReturn(principalsCache);
+    when(repository.loginAdministrative()).thenReturn(session);
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+
+    when(groupA.getId()).thenReturn("a-group");
+    when(groupA.getPrincipals()).thenReturn(new String[0]);
+    when(groupA.getMembers()).thenReturn(new String[] { "alice", "bob" });
+    when(groupB.getId()).thenReturn("b-group");
+    when(groupB.getPrincipals()).thenReturn(new String[0]);
+    when(groupB.getMembers()).thenReturn(new String[] { "alice" });
+    when(authorizableManager.findAuthorizable("alice")).thenReturn(alice);
+    when(authorizableManager.findAuthorizable("bob")).thenReturn(bob);
+    when(authorizableManager.findAuthorizable("a-group")).thenReturn(groupA);
+    when(authorizableManager.findAuthorizable("b-group")).thenReturn(groupB);
+    when(alice.memberOf(authorizableManager)).thenReturn(
+        Iterators.forArray(groupB, groupA), Iterators.forArray(groupA, groupB));
+    when(bob.memberOf(authorizableManager)).thenReturn(Iterators.forArray(groupA));
+
+    readerFilterCache = new ReaderFilterCache(cacheManagerService, repository);
+    readerFilterCache.activate(ImmutableMap.of());
+  }
+
+  @Test
+  public void testFilterIsSortedAndCached() throws Exception {
+    String filter = readerFilterCache.getReaderFilter(authorizableManager, "alice");
+    assertEquals("readers:(a\\-group OR alice OR b\\-group)", filter);
+    assertSame(filter, readerFilterCache.getReaderFilter(authorizableManager, "alice"));
+  }
+
+  @Test
+  public void testUserUpdateInvalidates() throws Exception {
+    String filter = readerFilterCache.getReaderFilter(authorizableManager, "alice");
+    readerFilterCache.handleEvent(new Event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        ImmutableMap.of("path", "alice")));
+    String second = readerFilterCache.getReaderFilter(authorizableManager, "alice");
+    // recalculated from memberOf in a different order, but the same canonical string
+    assertEquals(filter, second);
+  }
+
+  @Test
+  public void testGroupMoveInvalidatesMembers() throws Exception {
+    readerFilterCache.getReaderFilter(authorizableManager, "bob");
+    readerFilterCache.getReaderFilter(authorizableManager, "alice");
+    Cache<String> filterCache = cacheManagerService.getCache(
+        ReaderFilterCache.READER_FILTER_CACHE, CacheScope.CLUSTERINVALIDATED);
+
+    // a membership change that doesn't move the group leaves its members cached
+    readerFilterCache.handleEvent(new Event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        ImmutableMap.of("path", "b-group")));
+    assertEquals(true, filterCache.containsKey("alice"));
+
+    // the group joins another group, so its members must be recalculated
+    when(groupA.getPrincipals()).thenReturn(new String[] { "c-group" });
+    readerFilterCache.handleEvent(new Event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        ImmutableMap.of("path", "a-group")));
+    assertEquals(false, filterCache.containsKey("alice"));
+    assertEquals(false, filterCache.containsKey("bob"));
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.search.solr.SearchResultPrefetch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SearchResultPrefetcherImplTest {
+
+  @Mock
+  private Repository repository;
+  @Mock
+  private Session requestSession;
+  @Mock
+  private Session loaderSession;
+  @Mock
+  private ContentManager requestContentManager;
+  @Mock
+  private ContentManager loaderContentManager;
+
+  private SearchResultPrefetcherImpl prefetcher;
+
+  @Before
+  public void setUp() throws Exception {
+    when(requestSession.getUserId()).thenReturn("alice");
+    when(requestSession.getContentManager()).thenReturn(requestContentManager);
+    when(repository.loginAdministrative("alice")).thenReturn(loaderSession);
+    when(loaderSession.getContentManager()).thenReturn(loaderContentManager);
+
+    prefetcher = new SearchResultPrefetcherImpl(repository);
+    prefetcher.activate(ImmutableMap.of(SearchResultPrefetcherImpl.PARALLELISM, 4));
+  }
+
+  @After
+  public void tearDown() {
+    prefetcher.deactivate();
+  }
+
+  @Test
+  public void testPageIsLoadedInParallelAsTheUser() throws Exception {
+    List<String> paths = new ArrayList<String>();
+    for (int i = 0; i < 8; i++) {
+      String path = "/p/" + i;
+      paths.add(path);
+      when(loaderContentManager.get(path)).thenReturn(mock(Content.class));
+    }
+
+    SearchResultPrefetch prefetch = prefetcher.open(requestSession);
+    prefetch.prefetchContent(paths);
+    for (String path : paths) {
+      assertSame(loaderContentManager.get(path), prefetch.getContent(path));
+    }
+    prefetch.close();
+
+    verify(repository, times(4)).loginAdministrative("alice");
+    verify(loaderSession, times(4)).logout();
+    verify(requestContentManager, never()).get("/p/0");
+    assertEquals(8, prefetch.getLookups());
+    // four loaders with two items each
+    assertEquals(2, prefetch.getRoundTrips());
+    assertEquals(1, prefetcher.stats.getSearchCount());
+    assertEquals(2, prefetcher.stats.getMaxStorageRoundTrips());
+  }
+
+  @Test
+  public void testMissedItemsAreLoadedOnDemand() throws Exception {
+    Content content = mock(Content.class);
+    when(requestContentManager.get("/late")).thenReturn(content);
+
+    SearchResultPrefetch prefetch = prefetcher.open(requestSession);
+    assertSame(content, prefetch.getContent("/late"));
+    prefetch.close();
+
+    verify(repository, never()).loginAdministrative("alice");
+    assertEquals(1, prefetch.getRoundTrips());
+  }
+}
@@ -1,169 +1,248 @@
 package org.apache.jackrabbit.core.security.principal;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A reasonably dumb LRU map, but its concurrent.
+ * A bounded, concurrent LRU map. The map is split into lock striped segments, each an
+ * access ordered {@link LinkedHashMap}, so a get refreshes the entry and a put that
+ * overflows a segment evicts the least recently used entry of that segment in O(1).
+ * Threads only contend when they hash to the same segment. Eviction is LRU per segment,
+ * which approximates global LRU once the map holds more than a few entries per segment.
+ * Null keys are not permitted, null values are.
+ * 
  * @param <K>
  * @param <V>
  */
-public class ConcurrentLRUMap<K, V> implements Map<K, V> {
+public class ConcurrentLRUMap<K, V> extends AbstractMap<K, V> implements
+    ConcurrentLRUMapMBean {
 
-  public class Holder<T> {
+  private static final int MAX_SEGMENTS = 16;
 
-    protected long last;
-    protected V value;
-    private K key;
+  private static class Segment<K, V> extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = 7259470744436342577L;
+    private final int capacity;
+    private final AtomicLong evictions;
 
-    public Holder(K key, V value) {
-      this.key = key;
-      this.value = value;
-      this.last = System.currentTimeMillis();
-    }
-
-    public int compareTo(Holder<T> o) {
-      return (int) (this.last - o.last);
+    Segment(int capacity, AtomicLong evictions) {
+      super(Math.min(capacity, 1024), 0.75f, true);
+      this.capacity = capacity;
+      this.evictions = evictions;
     }
 
     @Override
-    public boolean equals(Object obj) {
-      try {
-        @SuppressWarnings("unchecked")
-        Holder<T> t = (Holder<T>) obj;
-        return value.equals(t.value);
-      } catch (ClassCastException e) {
-        return false;
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      if (size() > capacity) {
+        evictions.incrementAndGet();
+        return true;
       }
+      return false;
     }
-
-    @Override
-    public int hashCode() {
-      return value.hashCode();
-    }
-
   }
 
-  /**
-   * 
-   */
-  private Map<K, Holder<V>> delegate = new ConcurrentHashMap<K, Holder<V>>();
-  private int maxSize = 100;
+  private final Segment<K, V>[] segments;
+  private final int segmentMask;
+  private final int maxSize;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
 
   public ConcurrentLRUMap() {
+    this(100);
   }
 
+  @SuppressWarnings("unchecked")
   public ConcurrentLRUMap(int size) {
-    maxSize = size;
+    maxSize = Math.max(1, size);
+    int n = 1;
+    while (n < MAX_SEGMENTS && n * 2 <= maxSize) {
+      n = n * 2;
+    }
+    segments = new Segment[n];
+    for (int i = 0; i < n; i++) {
+      // spread the remainder so the segment capacities add up to exactly maxSize
+      int capacity = maxSize / n + (i < maxSize % n ? 1 : 0);
+      segments[i] = new Segment<K, V>(capacity, evictions);
+    }
+    segmentMask = n - 1;
+  }
+
+  private Segment<K, V> segmentFor(Object key) {
+    if (key == null) {
+      throw new NullPointerException("Null keys are not supported");
+    }
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    h ^= (h >>> 7);
+    return segments[h & segmentMask];
   }
 
   public int size() {
-    return delegate.size();
+    int size = 0;
+    for (Segment<K, V> s : segments) {
+      synchronized (s) {
+        size += s.size();
+      }
+    }
+    return size;
   }
 
   public boolean isEmpty() {
-    return delegate.isEmpty();
+    return size() == 0;
   }
 
   public boolean containsKey(Object key) {
-    return delegate.containsKey(key);
+    Segment<K, V> s = segmentFor(key);
+    synchronized (s) {
+      return s.containsKey(key);
+    }
   }
 
   public boolean containsValue(Object value) {
-    @SuppressWarnings("unchecked")
-    Holder<V> v = new Holder<V>(null, (V) value);
-    return delegate.containsValue(v);
+    for (Segment<K, V> s : segments) {
+      synchronized (s) {
+        if (s.containsValue(value)) {
+          return true;
+        }
+      }
+    }
+    return false;
   }
 
-  public V put(K key, V value) {
-    if ( delegate.size() > maxSize ) {
-      List<Holder<V>> l = new ArrayList<Holder<V>>(delegate.values());
-      Collections.sort(l,new Comparator<Holder<V>>() {
-
-        public int compare(Holder<V> o1, Holder<V> o2) {
-          return (int) (o1.last - o2.last);
-        }
-      });
-      int i = 0;
-      while ( delegate.size() > maxSize && i < l.size() ) {
-        delegate.remove(l.get(i++).key);
+  public V get(Object key) {
+    Segment<K, V> s = segmentFor(key);
+    synchronized (s) {
+      // an access ordered get moves the entry to the most recently used end.
+      V v = s.get(key);
+      if (v != null || s.containsKey(key)) {
+        hits.incrementAndGet();
+      } else {
+        misses.incrementAndGet();
       }
+      return v;
     }
-    Holder<V> v = delegate.put(key, new Holder<V>(key, value));
-    if (v == null) {
-      return null;
+  }
+
+  public V put(K key, V value) {
+    Segment<K, V> s = segmentFor(key);
+    synchronized (s) {
+      return s.put(key, value);
     }
-    return v.value;
   }
 
   public V remove(Object key) {
-    Holder<V> v = delegate.remove(key);
-    if (v == null) {
-      return null;
+    Segment<K, V> s = segmentFor(key);
+    synchronized (s) {
+      return s.remove(key);
     }
-    return v.value;
   }
 
   public void putAll(Map<? extends K, ? extends V> t) {
-    for ( java.util.Map.Entry<? extends K, ? extends V> e : t.entrySet()) {
+    for (Map.Entry<? extends K, ? extends V> e : t.entrySet()) {
       put(e.getKey(), e.getValue());
     }
   }
 
   public void clear() {
-    delegate.clear();
+    for (Segment<K, V> s : segments) {
+      synchronized (s) {
+        s.clear();
+      }
+    }
   }
 
-  public Set<K> keySet() {
-    return delegate.keySet();
+  /**
+   * {@inheritDoc} The set is a snapshot taken segment by segment; removing through its
+   * iterator, or setting the value of an entry, writes through to the map. Iterating does
+   * not change the access order.
+   */
+  public Set<Map.Entry<K, V>> entrySet() {
+    final List<Map.Entry<K, V>> snapshot = new ArrayList<Map.Entry<K, V>>();
+    for (Segment<K, V> s : segments) {
+      synchronized (s) {
+        for (Map.Entry<K, V> e : s.entrySet()) {
+          snapshot.add(new SnapshotEntry(e.getKey(), e.getValue()));
+        }
+      }
+    }
+    return new AbstractSet<Map.Entry<K, V>>() {
+      public Iterator<Map.Entry<K, V>> iterator() {
+        final Iterator<Map.Entry<K, V>> i = snapshot.iterator();
+        return new Iterator<Map.Entry<K, V>>() {
+          private Map.Entry<K, V> current;
+
+          public boolean hasNext() {
+            return i.hasNext();
+          }
+
+          public Map.Entry<K, V> next() {
+            current = i.next();
+            return current;
+          }
+
+          public void remove() {
+            i.remove();
+            ConcurrentLRUMap.this.remove(current.getKey());
+          }
+        };
+      }
+
+      public int size() {
+        return snapshot.size();
+      }
+    };
   }
 
-  public Collection<V> values() {
-    List<V> values = new ArrayList<V>();
-    for (Holder<V> v : delegate.values()) {
-      values.add(v.value);
+  private class SnapshotEntry extends SimpleEntry<K, V> {
+    private static final long serialVersionUID = -3409826743213591004L;
+
+    SnapshotEntry(K key, V value) {
+      super(key, value);
+    }
+
+    @Override
+    public V setValue(V value) {
+      super.setValue(value);
+      return put(getKey(), value);
     }
-    return values;
   }
 
-  public Set<Entry<K, V>> entrySet() {
-    Set<Entry<K, V>> set = new HashSet<Map.Entry<K, V>>();
-    for (final Entry<K, Holder<V>> e : delegate.entrySet()) {
-      set.add(new Entry<K, V>() {
+  public int getSize() {
+    return size();
+  }
 
-        public K getKey() {
-          return e.getKey();
-        }
+  public int getMaxSize() {
+    return maxSize;
+  }
 
-        public V getValue() {
-          return ((Holder<V>) e.getValue()).value;
-        }
+  public long getHits() {
+    return hits.get();
+  }
 
-        public V setValue(V value) {
-          Holder<V> h = e.setValue((Holder<V>) new Holder<V>(e.getKey(), value));
-          if (h == null) {
-            return null;
-          }
-          return h.value;
-        }
-      });
-    }
-    return set;
+  public long getMisses() {
+    return misses.get();
   }
 
-  public V get(Object key) {
-    Holder<V> v = delegate.get(key);
-    if (v == null) {
-      return null;
-    }
-    v.last = System.currentTimeMillis();
-    return v.value;
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public double getHitRatio() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0.0 : (double) h / total;
+  }
+
+  public void resetStatistics() {
+    hits.set(0);
+    misses.set(0);
+    evictions.set(0);
   }
 }
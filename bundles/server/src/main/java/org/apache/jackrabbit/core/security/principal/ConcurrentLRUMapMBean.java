@@ -0,0 +1,42 @@
+package org.apache.jackrabbit.core.security.principal;
+
+/**
+ * JMX view of the statistics of a {@link ConcurrentLRUMap}.
+ */
+public interface ConcurrentLRUMapMBean {
+
+  /**
+   * @return the number of entries in the map.
+   */
+  int getSize();
+
+  /**
+   * @return the maximum number of entries before the least recently used are evicted.
+   */
+  int getMaxSize();
+
+  /**
+   * @return the number of gets that found an entry.
+   */
+  long getHits();
+
+  /**
+   * @return the number of gets that did not find an entry.
+   */
+  long getMisses();
+
+  /**
+   * @return the number of entries evicted to keep the map within its maximum size.
+   */
+  long getEvictions();
+
+  /**
+   * @return hits / (hits + misses)
+   */
+  double getHitRatio();
+
+  /**
+   * Reset the hit, miss and eviction counters.
+   */
+  void resetStatistics();
+}
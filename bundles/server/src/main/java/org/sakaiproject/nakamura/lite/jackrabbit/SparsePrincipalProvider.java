@@ -39,14 +39,18 @@ import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.security.Principal;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 public class SparsePrincipalProvider implements PrincipalProvider {
 
@@ -67,6 +71,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   private org.sakaiproject.nakamura.api.lite.Session session;
   private AuthorizableManager authorizableManager;
   private AccessControlManager accesControlManager;
+  private ObjectName cacheMBeanName;
 
   /**
    * Creates a new DefaultPrincipalProvider reading the principals from the storage below
@@ -138,20 +143,25 @@ public class SparsePrincipalProvider implements PrincipalProvider {
 
   public PrincipalIterator getGroupMembership(final Principal principal) {
     final List<String> memberIds = new ArrayList<String>();
+    final Set<String> seenIds = new HashSet<String>();
     try {
       org.sakaiproject.nakamura.api.lite.authorizable.Authorizable a = authorizableManager
           .findAuthorizable(principal.getName());
       if (a == null) {
         return PrincipalIteratorAdapter.EMPTY;
       }
-      Collections.addAll(memberIds, a.getPrincipals());
+      for (String pid : a.getPrincipals()) {
+        if (seenIds.add(pid)) {
+          memberIds.add(pid);
+        }
+      }
     } catch (AccessDeniedException e) {
       LOGGER.debug(e.getMessage(), e);
     } catch (StorageClientException e) {
       LOGGER.debug(e.getMessage(), e);
     }
     if (everyonePrincipal.isMember(principal)
-        && !memberIds.contains(everyonePrincipal.getName())) {
+        && seenIds.add(everyonePrincipal.getName())) {
       memberIds.add(everyonePrincipal.getName());
       addToCache(principal);
     }
@@ -174,21 +184,19 @@ public class SparsePrincipalProvider implements PrincipalProvider {
                   .findAuthorizable(id);
               if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.Group) {
                 for (String pid : a.getPrincipals()) {
-                  if (!memberIds.contains(pid)) {
+                  if (seenIds.add(pid)) {
                     memberIds.add(pid);
                   }
                 }
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
+                prin = cache.get(id);
+                if (prin == null) {
                   prin = new SparsePrincipal(a, this.getClass().getName());
                   addToCache(prin);
                 }
                 return true;
               } else if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.User) {
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
+                prin = cache.get(id);
+                if (prin == null) {
                   prin = new SparsePrincipal(a, this.getClass().getName());
                   addToCache(prin);
                 }
@@ -259,6 +267,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   }
 
   public void close() {
+    unregisterCacheMBean();
     try {
       session.logout();
     } catch (ClientPoolException e) {
@@ -277,10 +286,10 @@ public class SparsePrincipalProvider implements PrincipalProvider {
    */
   public Principal getPrincipal(String principalName) {
     checkInitialized();
-    if (cache.containsKey(principalName)) {
-      return (Principal) cache.get(principalName);
+    Principal principal = cache.get(principalName);
+    if (principal != null) {
+      return principal;
     }
-    Principal principal = null;
     try {
       principal = providePrincipal(principalName);
     } catch (RepositoryException e) {
@@ -331,8 +340,36 @@ public class SparsePrincipalProvider implements PrincipalProvider {
 
     int maxSize = Integer.parseInt(options.getProperty(MAXSIZE_KEY, "1000"));
     cache = new ConcurrentLRUMap<String, Principal>(maxSize);
+    registerCacheMBean();
 
     initialized = true;
   }
 
+  /**
+   * Expose the hit, miss and eviction counts of the principal cache over JMX.
+   */
+  private void registerCacheMBean() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      cacheMBeanName = new ObjectName(
+          "org.sakaiproject.nakamura.lite.jackrabbit:type=PrincipalCache,instance="
+              + System.identityHashCode(this));
+      mBeanServer.registerMBean(cache, cacheMBeanName);
+    } catch (Exception e) {
+      LOGGER.debug("Unable to register principal cache statistics {} ", e.getMessage());
+      cacheMBeanName = null;
+    }
+  }
+
+  private void unregisterCacheMBean() {
+    if (cacheMBeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(cacheMBeanName);
+      } catch (Exception e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      cacheMBeanName = null;
+    }
+  }
+
 }
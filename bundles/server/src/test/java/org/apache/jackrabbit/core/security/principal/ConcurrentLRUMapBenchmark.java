@@ -0,0 +1,91 @@
+package org.apache.jackrabbit.core.security.principal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contention benchmark for the principal cache: 64 threads doing gets with a skewed key
+ * distribution and a put on every miss, against a map a tenth of the key space. Compares
+ * {@link ConcurrentLRUMap} with a single synchronized access ordered LinkedHashMap. Run the
+ * main method from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(64)
+@Fork(1)
+public class ConcurrentLRUMapBenchmark {
+
+  private static final int KEYS = 10000;
+
+  @Param({ "lru", "synchronized" })
+  public String implementation;
+
+  private Map<String, String> map;
+  private String[] keys;
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+    Random random = new Random();
+  }
+
+  @Setup
+  public void setUp() {
+    if ("lru".equals(implementation)) {
+      map = new ConcurrentLRUMap<String, String>(KEYS / 10);
+    } else {
+      map = Collections.synchronizedMap(new LinkedHashMap<String, String>(KEYS / 10,
+          0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > KEYS / 10;
+        }
+      });
+    }
+    keys = new String[KEYS];
+    for (int i = 0; i < KEYS; i++) {
+      keys[i] = "principal-" + i;
+    }
+  }
+
+  @Benchmark
+  public String getOrPut(ThreadState state) {
+    // square the uniform value to skew lookups towards the low keys, like popular groups.
+    double r = state.random.nextDouble();
+    String key = keys[(int) (r * r * KEYS)];
+    String value = map.get(key);
+    if (value == null) {
+      map.put(key, key);
+      value = key;
+    }
+    return value;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(ConcurrentLRUMapBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+}
@@ -0,0 +1,67 @@
+package org.apache.jackrabbit.core.security.principal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Map;
+
+public class ConcurrentLRUMapTest {
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(1);
+    map.put("a", "1");
+    map.put("b", "2");
+    assertEquals(1, map.size());
+    assertNull(map.get("a"));
+    assertEquals("2", map.get("b"));
+    assertEquals(1, map.getEvictions());
+    assertEquals(1, map.getHits());
+    assertEquals(1, map.getMisses());
+  }
+
+  @Test
+  public void testGetRefreshesEntry() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(1000);
+    for (int i = 0; i < 10000; i++) {
+      map.put("k" + i, "v");
+      assertEquals("v", map.get("k0"));
+    }
+    assertTrue(map.size() <= 1000);
+    assertEquals("v", map.get("k0"));
+    assertEquals(10000 - map.size(), map.getEvictions());
+  }
+
+  @Test
+  public void testMapContract() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(100);
+    map.put("a", null);
+    assertTrue(map.containsKey("a"));
+    assertNull(map.get("a"));
+    assertEquals(1, map.getHits());
+    map.put("b", "2");
+    assertTrue(map.containsValue("2"));
+    assertFalse(map.containsValue("3"));
+    for (Map.Entry<String, String> e : map.entrySet()) {
+      if ("b".equals(e.getKey())) {
+        e.setValue("3");
+      }
+    }
+    assertEquals("3", map.get("b"));
+    Iterator<String> keys = map.keySet().iterator();
+    while (keys.hasNext()) {
+      if ("a".equals(keys.next())) {
+        keys.remove();
+      }
+    }
+    assertFalse(map.containsKey("a"));
+    assertEquals(1, map.size());
+    map.clear();
+    assertTrue(map.isEmpty());
+  }
+}
@@ -71,5 +71,28 @@ public interface TikaService {
 
   String parseToString(URL url) throws IOException, TikaException;
 
+  /**
+   * Extracts the plain text of a document like {@link #parseToString(InputStream, Metadata)}
+   * but on a bounded pool of extraction threads, giving up on documents that take longer
+   * than the configured timeout. The text is truncated at {@link #getMaxStringLength()}
+   * characters and kept in a bounded cache keyed by a digest of the document body, so
+   * extracting an identical body again does not parse it a second time. When the pool is
+   * busy the caller waits for an extraction thread rather than being refused.
+   *
+   * @param stream
+   *          the document to extract, closed before this method returns.
+   * @param metadata
+   *          hints about the document such as its name, may be null. It is not populated
+   *          when the text comes from the cache.
+   * @return the extracted text.
+   * @throws IOException
+   *           if the document could not be read, the caller was interrupted while waiting
+   *           or the service has been stopped.
+   * @throws TikaException
+   *           if the document could not be parsed or took too long.
+   */
+  String extractText(InputStream stream, Metadata metadata) throws IOException,
+      TikaException;
+
   int getMaxStringLength();
 }
\ No newline at end of file
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.tika;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used map of extracted text keyed by the digest of the
+ * document body. Identical uploads share the digest and so are only extracted once.
+ */
+class TextCache {
+
+  private final Map<String, String> entries;
+  private int maxEntries;
+
+  TextCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+    entries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > TextCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Changes the bound and drops every entry, since they may have been extracted with
+   * different limits.
+   */
+  synchronized void reset(int maxEntries) {
+    this.maxEntries = maxEntries;
+    entries.clear();
+  }
+
+  synchronized String get(String digest) {
+    return entries.get(digest);
+  }
+
+  synchronized void put(String digest, String text) {
+    entries.put(digest, text);
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+}
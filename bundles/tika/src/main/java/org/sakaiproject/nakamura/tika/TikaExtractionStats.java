@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.tika;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts kept by {@link TikaServiceImpl}, overall and per mime type.
+ */
+public class TikaExtractionStats implements TikaExtractionStatsMBean {
+
+  static final String UNKNOWN_TYPE = "unknown";
+
+  private final Timings total = new Timings();
+  private final ConcurrentMap<String, Timings> byType = new ConcurrentHashMap<String, Timings>();
+  private final AtomicLong waited = new AtomicLong();
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final TextCache cache;
+
+  TikaExtractionStats(TextCache cache) {
+    this.cache = cache;
+  }
+
+  void extracted(String mimeType, long nanos) {
+    total.record(nanos);
+    timings(mimeType).record(nanos);
+  }
+
+  void failed(String mimeType, long nanos) {
+    extracted(mimeType, nanos);
+    total.failed.incrementAndGet();
+    timings(mimeType).failed.incrementAndGet();
+  }
+
+  void timedOut(String mimeType, long nanos) {
+    failed(mimeType, nanos);
+    total.timeouts.incrementAndGet();
+    timings(mimeType).timeouts.incrementAndGet();
+  }
+
+  void waited() {
+    waited.incrementAndGet();
+  }
+
+  void cacheHit() {
+    cacheHits.incrementAndGet();
+  }
+
+  public long getExtractionCount() {
+    return total.count.get();
+  }
+
+  public long getFailedCount() {
+    return total.failed.get();
+  }
+
+  public long getTimeoutCount() {
+    return total.timeouts.get();
+  }
+
+  public long getWaitedCount() {
+    return waited.get();
+  }
+
+  public long getCacheHitCount() {
+    return cacheHits.get();
+  }
+
+  public int getCacheSize() {
+    return cache.size();
+  }
+
+  public double getAverageExtractionTime() {
+    return total.getAverage();
+  }
+
+  public double getMaxExtractionTime() {
+    return toMillis(total.max.get());
+  }
+
+  public String[] getMimeTypeStats() {
+    Map<String, Timings> sorted = new TreeMap<String, Timings>(byType);
+    String[] lines = new String[sorted.size()];
+    int i = 0;
+    for (Map.Entry<String, Timings> e : sorted.entrySet()) {
+      Timings t = e.getValue();
+      lines[i++] = String.format("%s count=%d failed=%d timeouts=%d avg=%.1fms max=%.1fms",
+          e.getKey(), t.count.get(), t.failed.get(), t.timeouts.get(), t.getAverage(),
+          toMillis(t.max.get()));
+    }
+    return lines;
+  }
+
+  public void reset() {
+    total.reset();
+    byType.clear();
+    waited.set(0);
+    cacheHits.set(0);
+  }
+
+  private Timings timings(String mimeType) {
+    String key = (mimeType == null) ? UNKNOWN_TYPE : mimeType;
+    Timings timings = byType.get(key);
+    if (timings == null) {
+      Timings created = new Timings();
+      timings = byType.putIfAbsent(key, created);
+      if (timings == null) {
+        timings = created;
+      }
+    }
+    return timings;
+  }
+
+  private static double toMillis(long nanos) {
+    return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  private static class Timings {
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong time = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+      count.incrementAndGet();
+      time.addAndGet(nanos);
+      long current = max.get();
+      while (nanos > current && !max.compareAndSet(current, nanos)) {
+        current = max.get();
+      }
+    }
+
+    double getAverage() {
+      long n = count.get();
+      return (n == 0) ? 0 : toMillis(time.get()) / n;
+    }
+
+    void reset() {
+      count.set(0);
+      failed.set(0);
+      timeouts.set(0);
+      time.set(0);
+      max.set(0);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.tika;
+
+/**
+ * Latency and failures of text extraction done by {@link TikaServiceImpl}. Times are in
+ * milliseconds.
+ */
+public interface TikaExtractionStatsMBean {
+
+  /**
+   * @return the number of documents handed to the extraction pool, cache hits excluded.
+   */
+  long getExtractionCount();
+
+  /**
+   * @return the number of extractions that threw an exception, timeouts included.
+   */
+  long getFailedCount();
+
+  /**
+   * @return the number of extractions cancelled because they ran past the timeout.
+   */
+  long getTimeoutCount();
+
+  /**
+   * @return the number of extractions that had to wait because the pool and its queue were
+   *         full.
+   */
+  long getWaitedCount();
+
+  /**
+   * @return the number of documents whose text was found in the cache.
+   */
+  long getCacheHitCount();
+
+  /**
+   * @return the number of entries currently held in the extracted text cache.
+   */
+  int getCacheSize();
+
+  double getAverageExtractionTime();
+
+  double getMaxExtractionTime();
+
+  /**
+   * @return one line per mime type with its count, failures, timeouts, average and maximum
+   *         extraction time.
+   */
+  String[] getMimeTypeStats();
+
+  void reset();
+}
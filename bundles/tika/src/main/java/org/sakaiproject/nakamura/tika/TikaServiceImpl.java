@@ -30,15 +30,43 @@ import org.apache.tika.detect.Detector;
 import org.apache.tika.exception.TikaException;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.mime.MediaType;
 import org.apache.tika.parser.Parser;
 import org.sakaiproject.nakamura.api.tika.TikaService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * OSGi service to wrap {@link Tika} and load a config file found local this bundle. This
@@ -59,7 +87,9 @@ import java.util.Map;
 @Component
 @Service
 public class TikaServiceImpl implements TikaService {
-  private Tika tika;
+  private static final Logger LOGGER = LoggerFactory.getLogger(TikaServiceImpl.class);
+
+  private volatile Tika tika;
 
   // set the default to 100k (default in Tika is 100k)
   static final int DEFAULT_MAX_STRING_LENGTH = 100 * 1000;
@@ -67,25 +97,339 @@ public class TikaServiceImpl implements TikaService {
   private static final String MAX_STRING_LENGTH = "sakai.tika.max_string_length";
   private int maxStringLength;
 
+  static final int DEFAULT_POOL_SIZE = 4;
+  @Property(intValue = TikaServiceImpl.DEFAULT_POOL_SIZE)
+  private static final String POOL_SIZE = "sakai.tika.extraction.pool_size";
+
+  static final int DEFAULT_QUEUE_SIZE = 32;
+  @Property(intValue = TikaServiceImpl.DEFAULT_QUEUE_SIZE)
+  private static final String QUEUE_SIZE = "sakai.tika.extraction.queue_size";
+
+  static final int DEFAULT_TIMEOUT = 60;
+  @Property(intValue = TikaServiceImpl.DEFAULT_TIMEOUT)
+  private static final String TIMEOUT = "sakai.tika.extraction.timeout_seconds";
+  private int timeout;
+
+  static final int DEFAULT_CACHE_ENTRIES = 256;
+  @Property(intValue = TikaServiceImpl.DEFAULT_CACHE_ENTRIES)
+  private static final String CACHE_ENTRIES = "sakai.tika.extraction.cache_entries";
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final TextCache cache = new TextCache(DEFAULT_CACHE_ENTRIES);
+  final TikaExtractionStats stats = new TikaExtractionStats(cache);
+  private ObjectName statsName;
+  private volatile ExtractionPool extractors;
+
   @Reference
   private Detector detector;
 
   @Reference
   private Parser parser;
 
+  public TikaServiceImpl() {
+  }
+
+  TikaServiceImpl(Detector detector, Parser parser) {
+    this.detector = detector;
+    this.parser = parser;
+  }
+
   // ---------- SCR integration ------------------------------------------------
   @Activate @Modified
   protected void activate(Map<?, ?> props) throws Exception {
     tika = new Tika(detector, new AutoDetectParser(parser));
     maxStringLength = PropertiesUtil.toInteger(props.get(MAX_STRING_LENGTH), DEFAULT_MAX_STRING_LENGTH);
     tika.setMaxStringLength(maxStringLength);
+
+    timeout = PropertiesUtil.toInteger(props.get(TIMEOUT), DEFAULT_TIMEOUT);
+    int poolSize = Math.max(1, PropertiesUtil.toInteger(props.get(POOL_SIZE), DEFAULT_POOL_SIZE));
+    int queueSize = Math.max(1, PropertiesUtil.toInteger(props.get(QUEUE_SIZE), DEFAULT_QUEUE_SIZE));
+    cache.reset(PropertiesUtil.toInteger(props.get(CACHE_ENTRIES), DEFAULT_CACHE_ENTRIES));
+
+    ExtractionPool previous = extractors;
+    extractors = new ExtractionPool(poolSize, queueSize);
+    if (previous != null) {
+      // documents already submitted finish on the old pool, callers waiting for a slot
+      // move over to the new one
+      previous.shutdown();
+    }
+    registerStats();
   }
 
   @Deactivate
   protected void deactivate() {
+    ExtractionPool previous = extractors;
+    extractors = null;
+    if (previous != null) {
+      previous.shutdownNow();
+    }
+    if (statsName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsName);
+      } catch (Exception e) {
+        LOGGER.debug("Unable to unregister Tika extraction statistics ", e);
+      }
+      statsName = null;
+    }
+    cache.reset(0);
     tika = null;
   }
 
+  private void registerStats() {
+    if (statsName != null) {
+      return;
+    }
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("org.sakaiproject.nakamura.tika:type=Extraction");
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(stats, name);
+      statsName = name;
+    } catch (Exception e) {
+      LOGGER.debug("Unable to register Tika extraction statistics ", e);
+    }
+  }
+
+  // ---------- Extraction -----------------------------------------------------
+  /**
+   * {@inheritDoc}
+   *
+   * The body is spooled to a temporary file while its SHA-1 digest is computed. Text
+   * already extracted from an identical body is served from the cache, otherwise the
+   * parse runs on the extraction pool and is cancelled once the timeout has passed. When
+   * every extraction thread is busy and the queue is full the caller waits for a slot
+   * rather than being refused, so indexers never have to index a document without its
+   * text just because others are being extracted at the same time. The timeout covers
+   * that wait as well, so parsers that hang cannot hold up their callers for longer.
+   *
+   * @see org.sakaiproject.nakamura.api.tika.TikaService#extractText(java.io.InputStream,
+   *      org.apache.tika.metadata.Metadata)
+   */
+  public String extractText(InputStream stream, Metadata metadata) throws IOException,
+      TikaException {
+    if (metadata == null) {
+      metadata = new Metadata();
+    }
+    File spool = File.createTempFile("tika", ".spool");
+    try {
+      String digest;
+      try {
+        digest = spool(stream, spool);
+      } finally {
+        stream.close();
+      }
+      String text = cache.get(digest);
+      if (text != null) {
+        stats.cacheHit();
+        return text;
+      }
+      text = extract(spool, metadata);
+      cache.put(digest, text);
+      return text;
+    } finally {
+      if (!spool.delete()) {
+        spool.deleteOnExit();
+      }
+    }
+  }
+
+  private String extract(File spool, final Metadata metadata) throws IOException,
+      TikaException {
+    final Tika parser = tika;
+    if (parser == null) {
+      throw new IOException("Text extraction is not available, the Tika service is stopped");
+    }
+    String mimeType = getMimeType(parser, spool, metadata);
+    final InputStream in = new BufferedInputStream(new FileInputStream(spool));
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.SECONDS.toNanos(timeout);
+    Future<String> future;
+    try {
+      future = submit(new Callable<String>() {
+        public String call() throws Exception {
+          // parseToString closes the stream
+          return parser.parseToString(in, metadata);
+        }
+      }, deadline);
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+    if (future == null) {
+      in.close();
+      stats.timedOut(mimeType, System.nanoTime() - start);
+      throw new TikaException("Waited longer than " + timeout
+          + " seconds to extract the text of a " + mimeType + " document");
+    }
+    try {
+      String text = future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      stats.extracted(mimeType, System.nanoTime() - start);
+      return text;
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      // most parsers ignore the interrupt but fail once their input is gone
+      in.close();
+      stats.timedOut(mimeType, System.nanoTime() - start);
+      throw new TikaException("Text extraction of a " + mimeType + " document took longer than "
+          + timeout + " seconds");
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      in.close();
+      stats.failed(mimeType, System.nanoTime() - start);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while extracting text");
+    } catch (ExecutionException e) {
+      stats.failed(mimeType, System.nanoTime() - start);
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof TikaException) {
+        throw (TikaException) cause;
+      }
+      throw new TikaException("Text extraction failed", cause);
+    }
+  }
+
+  /**
+   * Submits the task to the current extraction pool, waiting until the deadline for a slot
+   * when the pool and its queue are full. A pool replaced by a configuration change
+   * refuses new work, in which case the task is handed to its replacement.
+   *
+   * @return the future of the task, or null if no slot came free before the deadline.
+   */
+  private Future<String> submit(Callable<String> task, long deadline) throws IOException {
+    boolean waited = false;
+    ExtractionPool pool;
+    while ((pool = extractors) != null) {
+      try {
+        if (!pool.slots.tryAcquire()) {
+          if (!waited) {
+            waited = true;
+            stats.waited();
+          }
+          if (!pool.slots.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            return null;
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for text extraction");
+      }
+      try {
+        return pool.submit(task);
+      } catch (RejectedExecutionException e) {
+        pool.slots.release();
+        if (pool == extractors) {
+          break;
+        }
+      }
+    }
+    throw new IOException("Text extraction is not available, the Tika service is stopped");
+  }
+
+  private String getMimeType(Tika parser, File spool, Metadata metadata) {
+    InputStream in = null;
+    try {
+      in = TikaInputStream.get(spool);
+      return MediaType.parse(parser.detect(in, metadata)).getBaseType().toString();
+    } catch (Exception e) {
+      return TikaExtractionStats.UNKNOWN_TYPE;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Copies the stream to the file and returns the hex encoded SHA-1 digest of what was
+   * copied.
+   */
+  private String spool(InputStream stream, File spool) throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-1 is not available", e);
+    }
+    DigestInputStream in = new DigestInputStream(stream, md);
+    OutputStream out = new FileOutputStream(spool);
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+    } finally {
+      out.close();
+    }
+    StringBuilder sb = new StringBuilder();
+    for (byte b : md.digest()) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * The extraction threads along with a permit for every document the pool can run or
+   * queue. A caller takes a permit before submitting and the task gives it back when it
+   * completes, so the queue never overflows.
+   */
+  private static final class ExtractionPool {
+    private final ThreadPoolExecutor executor;
+    private final Semaphore slots;
+
+    ExtractionPool(int poolSize, int queueSize) {
+      slots = new Semaphore(poolSize + queueSize);
+      executor = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "Tika extractor " + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+      executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the task on this pool, the caller must already hold a permit. The permit is
+     * given back once the task leaves the pool, even when it was cancelled while queued.
+     */
+    Future<String> submit(Callable<String> task) {
+      FutureTask<String> future = new FutureTask<String>(task) {
+        @Override
+        public void run() {
+          try {
+            super.run();
+          } finally {
+            slots.release();
+          }
+        }
+      };
+      executor.execute(future);
+      return future;
+    }
+
+    void shutdown() {
+      executor.shutdown();
+    }
+
+    void shutdownNow() {
+      // tasks that never started will not give their permits back
+      slots.release(executor.shutdownNow().size());
+    }
+  }
+
   // ---------- Tika methods ---------------------------------------------------
   public String detect(byte[] prefix) {
     return tika.detect(prefix);
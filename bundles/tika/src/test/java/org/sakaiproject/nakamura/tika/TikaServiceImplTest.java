@@ -0,0 +1,241 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.tika;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.tika.detect.Detector;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.XHTMLContentHandler;
+import org.junit.After;
+import org.junit.Test;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TikaServiceImplTest {
+
+  private TikaServiceImpl tikaService;
+
+  private TextParser textParser = new TextParser();
+
+  @After
+  public void tearDown() {
+    if (tikaService != null) {
+      textParser.gate.countDown();
+      tikaService.deactivate();
+    }
+  }
+
+  @Test
+  public void testIdenticalBodyComesFromTheCache() throws Exception {
+    activate(new HashMap<String, Object>());
+
+    String first = extract("the quick brown fox");
+    String second = extract("the quick brown fox");
+
+    assertEquals("the quick brown fox", first.trim());
+    assertEquals(first, second);
+    assertEquals(1, textParser.parsed.get());
+    assertEquals(1, tikaService.stats.getCacheHitCount());
+
+    extract("jumps over the lazy dog");
+    assertEquals(2, textParser.parsed.get());
+  }
+
+  @Test
+  public void testSlowDocumentTimesOut() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("sakai.tika.extraction.timeout_seconds", 1);
+    activate(props);
+    textParser.gate = new CountDownLatch(1);
+
+    try {
+      extract("never finishes");
+      fail("Extraction should have timed out");
+    } catch (TikaException e) {
+      // expected
+    }
+    assertEquals(1, tikaService.stats.getTimeoutCount());
+  }
+
+  @Test
+  public void testTextIsTruncated() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("sakai.tika.max_string_length", 10);
+    activate(props);
+
+    assertEquals("abcdefghij", extract("abcdefghijklmnopqrstuvwxyz"));
+  }
+
+  @Test
+  public void testCallersWaitWhenThePoolIsFull() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("sakai.tika.extraction.pool_size", 1);
+    props.put("sakai.tika.extraction.queue_size", 1);
+    activate(props);
+    textParser.gate = new CountDownLatch(1);
+
+    Extraction[] extractions = new Extraction[] { new Extraction("one"),
+        new Extraction("two"), new Extraction("three") };
+    for (Extraction extraction : extractions) {
+      extraction.start();
+    }
+    // one document is parsing, one is queued and the third caller waits for a slot
+    for (int i = 0; i < 100 && tikaService.stats.getWaitedCount() == 0; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(1, tikaService.stats.getWaitedCount());
+
+    textParser.gate.countDown();
+    for (Extraction extraction : extractions) {
+      extraction.join(10000);
+      assertNull(extraction.error);
+      assertEquals(extraction.body, extraction.text.trim());
+    }
+    assertEquals(3, textParser.parsed.get());
+  }
+
+  @Test
+  public void testWaitForASlotTimesOut() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("sakai.tika.extraction.pool_size", 1);
+    props.put("sakai.tika.extraction.queue_size", 1);
+    props.put("sakai.tika.extraction.timeout_seconds", 1);
+    activate(props);
+    textParser.gate = new CountDownLatch(1);
+
+    Extraction[] extractions = new Extraction[] { new Extraction("one"),
+        new Extraction("two"), new Extraction("three") };
+    for (Extraction extraction : extractions) {
+      extraction.start();
+    }
+    // the parser never finishes, so the caller waiting for a slot gives up with the others
+    for (Extraction extraction : extractions) {
+      extraction.join(10000);
+      assertTrue(extraction.error instanceof TikaException);
+    }
+    assertEquals(1, tikaService.stats.getWaitedCount());
+    assertEquals(3, tikaService.stats.getTimeoutCount());
+  }
+
+  @Test
+  public void testExtractionAfterDeactivate() throws Exception {
+    activate(new HashMap<String, Object>());
+    tikaService.deactivate();
+
+    try {
+      extract("too late");
+      fail("Extraction should not be available once the service is stopped");
+    } catch (IOException e) {
+      // expected
+    }
+    tikaService = null;
+  }
+
+  private void activate(Map<String, Object> props) throws Exception {
+    tikaService = new TikaServiceImpl(new TextDetector(), textParser);
+    tikaService.activate(props);
+  }
+
+  private String extract(String body) throws Exception {
+    return tikaService.extractText(new ByteArrayInputStream(body.getBytes("UTF-8")),
+        new Metadata());
+  }
+
+  private class Extraction extends Thread {
+    private final String body;
+    private String text;
+    private Exception error;
+
+    Extraction(String body) {
+      this.body = body;
+    }
+
+    @Override
+    public void run() {
+      try {
+        text = extract(body);
+      } catch (Exception e) {
+        error = e;
+      }
+    }
+  }
+
+  private static class TextDetector implements Detector {
+    private static final long serialVersionUID = 1L;
+
+    public MediaType detect(InputStream input, Metadata metadata) throws IOException {
+      return MediaType.TEXT_PLAIN;
+    }
+  }
+
+  /**
+   * Emits the body as a single paragraph, once the gate has been opened.
+   */
+  private static class TextParser implements Parser {
+    private static final long serialVersionUID = 1L;
+
+    private final AtomicInteger parsed = new AtomicInteger();
+    private volatile CountDownLatch gate = new CountDownLatch(0);
+
+    public Set<MediaType> getSupportedTypes(ParseContext context) {
+      Set<MediaType> types = new HashSet<MediaType>();
+      types.add(MediaType.TEXT_PLAIN);
+      types.add(MediaType.OCTET_STREAM);
+      return types;
+    }
+
+    public void parse(InputStream stream, ContentHandler handler, Metadata metadata,
+        ParseContext context) throws IOException, SAXException, TikaException {
+      try {
+        gate.await();
+      } catch (InterruptedException e) {
+        throw new TikaException("Interrupted", e);
+      }
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int n;
+      while ((n = stream.read(buffer)) != -1) {
+        body.write(buffer, 0, n);
+      }
+      parsed.incrementAndGet();
+      XHTMLContentHandler xhtml = new XHTMLContentHandler(handler, metadata);
+      xhtml.startDocument();
+      xhtml.element("p", body.toString("UTF-8"));
+      xhtml.endDocument();
+    }
+  }
+}
@@ -39,6 +39,11 @@ import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
@@ -123,17 +128,21 @@ public class TokenStore {
     public String encode(long expires, String userId, String tokenType) throws IllegalStateException,
         UnsupportedEncodingException, NoSuchAlgorithmException, InvalidKeyException,
         SecureCookieException {
-      String cookiePayload = String.valueOf(secretKeyId) + String.valueOf(expires) + "@"
-          + encodeField(userId) + "@" + tokenType+ "@" + serverId;
-      Mac m = Mac.getInstance(HMAC_SHA1);
       ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
           secretKeyId);
       if (expiringSecretKey == null) {
         throw new SecureCookieException("Key serverId=["+serverId+"]: KeyId=["+secretKeyId+"] not found ", false);
       }
-      m.init(TokenStore.this.getSecretKey(serverId, secretKeyId).getSecretKey());
-      m.update(cookiePayload.getBytes(UTF_8));
-      String cookieValue = encodeField(m.doFinal());
+      return encode(expires, userId, tokenType, expiringSecretKey);
+    }
+
+    private String encode(long expires, String userId, String tokenType,
+        ExpiringSecretKey expiringSecretKey) throws UnsupportedEncodingException,
+        NoSuchAlgorithmException, InvalidKeyException {
+      String cookiePayload = String.valueOf(secretKeyId) + String.valueOf(expires) + "@"
+          + encodeField(userId) + "@" + tokenType+ "@" + serverId;
+      Mac m = getMac(getCacheKey(serverId, secretKeyId), expiringSecretKey.getSecretKey());
+      String cookieValue = encodeField(m.doFinal(cookiePayload.getBytes(UTF_8)));
       return cookieValue + "@" + cookiePayload;
     }
 
@@ -143,6 +152,10 @@ public class TokenStore {
      * @throws SecureCookieException
      */
     public String[] decode(String value) throws SecureCookieException {
+      String[] verified = getVerifiedCookie(value);
+      if (verified != null) {
+        return verified;
+      }
       String[] parts = StringUtils.split(value, "@");
       if (parts != null && parts.length == 5) {
         this.secretKeyId = Integer.parseInt(parts[1].substring(0, 1));
@@ -164,8 +177,10 @@ public class TokenStore {
             if ( debugCookies ) {
               LOG.info("Decoding with server:{} keyno:{} secret:{} user:{} cookeiTime:{} cookie:{}",new Object[]{serverId, secretKeyId, encodeField(secretKey.getEncoded()), userId, cookieTime, value} );
             }
-            String hmac = encode(cookieTime, userId, this.tokenType);
+            String hmac = encode(cookieTime, userId, this.tokenType, expiringSecretKey);
             if (value.equals(hmac)) {
+              putVerifiedCookie(value, userId, tokenType,
+                  Math.min(cookieTime, expiringSecretKey.getExpires()));
               return new String[]{userId, tokenType};
             }
           } catch (ArrayIndexOutOfBoundsException e) {
@@ -216,17 +231,36 @@ public class TokenStore {
   private long ttl = 20L * 60000L; // 20 minutes
 
   /**
-   * The time when a new token should be created.
+   * The ring of keys used to encrypt, with the current key and the time when the next key
+   * should be created. Replaced, never modified, so that readers don't need to lock.
    */
-  private long nextUpdate = System.currentTimeMillis();
+  private volatile KeyRing keyRing;
+
   /**
-   * The location of the current token.
+   * Cookies that have been verified recently, keyed by their HMAC.
    */
-  private int secretKeyId = 0;
+  private final Map<String, VerifiedCookie> verifiedCookies = new ConcurrentHashMap<String, VerifiedCookie>();
+
+  /**
+   * The maximum number of verified cookies to keep, 0 disables the cache.
+   */
+  private int verifiedCookiesSize = 10000;
+
   /**
-   * A ring of tokens used to encypt.
+   * How long a verified cookie is trusted without checking its HMAC again (in ms), so that
+   * a key withdrawn from the cluster stops being honoured soon after.
    */
-  private ExpiringSecretKey[] secretKeyRingBuffer;
+  private long verifiedCookiesTtl = 60000L;
+
+  /**
+   * Initialised Macs of this thread, by key.
+   */
+  private final ThreadLocal<Map<String, KeyedMac>> macs = new ThreadLocal<Map<String, KeyedMac>>() {
+    @Override
+    protected Map<String, KeyedMac> initialValue() {
+      return new HashMap<String, KeyedMac>();
+    }
+  };
   /**
    * A secure random used for generating new tokens.
    */
@@ -301,22 +335,47 @@ public class TokenStore {
     this.serverId = serverId;
     this.ttl = ttl;
     this.cacheManager = cacheManager;
+    verifiedCookies.clear();
     getActiveToken();
   }
 
+  /**
+   * Configure the cache of verified cookies.
+   *
+   * @param size
+   *          the maximum number of cookies, 0 to disable the cache.
+   * @param ttl
+   *          how long a cookie is trusted without checking its HMAC again, in ms.
+   */
+  public void setVerifiedCookieCache(int size, long ttl) {
+    this.verifiedCookiesSize = size;
+    this.verifiedCookiesTtl = ttl;
+    verifiedCookies.clear();
+  }
+
   /**
    * Maintain a circular buffer to tokens, and return the current one.
    *
    * @return the current token.
    */
-  synchronized SecureCookie getActiveToken() {
-    if (secretKeyRingBuffer == null) {
+  SecureCookie getActiveToken() {
+    KeyRing ring = keyRing;
+    if (ring != null && System.currentTimeMillis() <= ring.nextUpdate
+        && !hasExpired(ring.keys[ring.activeId])) {
+      return new SecureCookie(serverId, ring.activeId);
+    }
+    return rotateActiveToken();
+  }
+
+  private synchronized SecureCookie rotateActiveToken() {
+    if (keyRing == null) {
       loadLocalSecretKeys();
     }
-    if (System.currentTimeMillis() > nextUpdate
-        || hasExpired(secretKeyRingBuffer[secretKeyId]) ) {
+    int secretKeyId = keyRing.activeId;
+    if (System.currentTimeMillis() > keyRing.nextUpdate
+        || hasExpired(keyRing.keys[secretKeyId]) ) {
       // cycle so that during a typical ttl the tokens get completely refreshed.
-      nextUpdate = System.currentTimeMillis() + ttl / 2;
+      long nextUpdate = System.currentTimeMillis() + ttl / 2;
       byte[] b = new byte[20];
       random.nextBytes(b);
 
@@ -326,24 +385,28 @@ public class TokenStore {
       ExpiringSecretKey expiringSecretKey = new ExpiringSecretKey(b, HMAC_SHA1, System
           .currentTimeMillis()
           + (ttl * 2), serverId);
+      ExpiringSecretKey[] secretKeyRingBuffer = keyRing.keys.clone();
       int nextToken = secretKeyId + 1;
       if (nextToken == secretKeyRingBuffer.length) {
         nextToken = 0;
       }
       secretKeyRingBuffer[nextToken] = expiringSecretKey;
       LOG.debug("Added SecretKey {} at {} ", encodeField(expiringSecretKey.getSecretKey().getEncoded()), nextToken);
-      if ( debugCookies ) {
-        dumpSecretKeyRingBuffer(secretKeyRingBuffer);
-      }
+      // publish the key to the cluster before cookies signed with it can be handed out
       getServerKeyCache().put(getCacheKey(serverId, nextToken),
           expiringSecretKey.getSecretKeyData());
       secretKeyId = nextToken;
+      keyRing = new KeyRing(secretKeyRingBuffer, secretKeyId, nextUpdate);
+      if ( debugCookies ) {
+        dumpSecretKeyRingBuffer(keyRing);
+      }
       saveLocalSecretKeys();
     }
     return new SecureCookie(serverId, secretKeyId);
   }
 
-  private void dumpSecretKeyRingBuffer(ExpiringSecretKey[] secretKeyRingBuffer) {
+  private void dumpSecretKeyRingBuffer(KeyRing ring) {
+    ExpiringSecretKey[] secretKeyRingBuffer = ring.keys;
     StringBuilder sb  = new StringBuilder();
     int i = 0;
     for ( ExpiringSecretKey e : secretKeyRingBuffer ) {
@@ -355,7 +418,7 @@ public class TokenStore {
         sb.append(", Server:").append(e.getServerId()).append("\n");
       }
     }
-    LOG.info("Secret Key Ring Buffer, Active ID is {}\n{}",secretKeyId,sb.toString());
+    LOG.info("Secret Key Ring Buffer, Active ID is {}\n{}",ring.activeId,sb.toString());
   }
 
   /**
@@ -380,6 +443,8 @@ public class TokenStore {
    */
   @edu.umd.cs.findbugs.annotations.SuppressWarnings(value="RV_RETURN_VALUE_IGNORED_BAD_PRACTICE",justification="Could be injected from annother bundle")
   private void saveLocalSecretKeys() {
+    KeyRing ring = keyRing;
+    ExpiringSecretKey[] secretKeyRingBuffer = ring.keys;
     FileOutputStream fout = null;
     DataOutputStream keyOutputStream = null;
     try {
@@ -390,8 +455,8 @@ public class TokenStore {
       }
       fout = new FileOutputStream(tmpTokenFile);
       keyOutputStream = new DataOutputStream(fout);
-      keyOutputStream.writeInt(secretKeyId);
-      keyOutputStream.writeLong(nextUpdate);
+      keyOutputStream.writeInt(ring.activeId);
+      keyOutputStream.writeLong(ring.nextUpdate);
       for (int i = 0; i < secretKeyRingBuffer.length; i++) {
         if (secretKeyRingBuffer[i] == null) {
           keyOutputStream.writeInt(0);
@@ -454,9 +519,7 @@ public class TokenStore {
         }
       }
       keyInputStream.close();
-      nextUpdate = newNextUpdate;
-      secretKeyId = newCurrentToken;
-      secretKeyRingBuffer = newKeys;
+      keyRing = new KeyRing(newKeys, newCurrentToken, newNextUpdate);
       
     } catch (IOException e) {
       LOG.error("Failed to load cookie keys " + e.getMessage());
@@ -470,13 +533,11 @@ public class TokenStore {
       } catch (Exception e) {
       }
     }
-    if (secretKeyRingBuffer == null) {
-      secretKeyRingBuffer = new ExpiringSecretKey[5];
-      nextUpdate = System.currentTimeMillis();
-      secretKeyId = 0;
+    if (keyRing == null) {
+      keyRing = new KeyRing(new ExpiringSecretKey[5], 0, System.currentTimeMillis());
     }
     if ( debugCookies ) {
-      dumpSecretKeyRingBuffer(secretKeyRingBuffer);
+      dumpSecretKeyRingBuffer(keyRing);
     }
   }
 
@@ -502,6 +563,7 @@ public class TokenStore {
    */
   private ExpiringSecretKey getSecretKey(String serverId, int keyNumber) {
     LOG.debug("Looking key {} in {} ", serverId, keyNumber);
+    ExpiringSecretKey[] secretKeyRingBuffer = keyRing.keys;
     if ( secretKeyRingBuffer[keyNumber] != null ) {
       if ( serverId.equals(secretKeyRingBuffer[keyNumber].getServerId())) {
         LOG.debug("Found Key {} will expire at {}", keyNumber, secretKeyRingBuffer[keyNumber].getExpires());
@@ -532,6 +594,70 @@ public class TokenStore {
     return null;
   }
 
+  /**
+   * @return a Mac for this thread initialised with the key.
+   */
+  private Mac getMac(String cacheKey, SecretKey secretKey) throws NoSuchAlgorithmException,
+      InvalidKeyException {
+    Map<String, KeyedMac> threadMacs = macs.get();
+    KeyedMac keyedMac = threadMacs.get(cacheKey);
+    byte[] encoded = secretKey.getEncoded();
+    // a slot in the ring may have been given a new key since
+    if (keyedMac == null || !Arrays.equals(keyedMac.key, encoded)) {
+      Mac m = Mac.getInstance(HMAC_SHA1);
+      m.init(secretKey);
+      keyedMac = new KeyedMac(encoded, m);
+      threadMacs.put(cacheKey, keyedMac);
+    }
+    return keyedMac.mac;
+  }
+
+  /**
+   * @return the user and token type of a cookie verified recently, or null.
+   */
+  private String[] getVerifiedCookie(String value) {
+    if (verifiedCookiesSize <= 0 || value == null) {
+      return null;
+    }
+    VerifiedCookie verified = verifiedCookies.get(getVerifiedCookieKey(value));
+    if (verified == null || !verified.value.equals(value)) {
+      return null;
+    }
+    if (System.currentTimeMillis() >= verified.expires) {
+      verifiedCookies.remove(getVerifiedCookieKey(value));
+      return null;
+    }
+    return new String[] { verified.userId, verified.tokenType };
+  }
+
+  private void putVerifiedCookie(String value, String userId, String tokenType, long expires) {
+    if (verifiedCookiesSize <= 0) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (verifiedCookies.size() >= verifiedCookiesSize) {
+      for (Iterator<VerifiedCookie> i = verifiedCookies.values().iterator(); i.hasNext();) {
+        if (now >= i.next().expires) {
+          i.remove();
+        }
+      }
+      if (verifiedCookies.size() >= verifiedCookiesSize) {
+        // all live, rather than track usage let them be verified again.
+        verifiedCookies.clear();
+      }
+    }
+    verifiedCookies.put(getVerifiedCookieKey(value), new VerifiedCookie(value, userId,
+        tokenType, Math.min(expires, now + verifiedCookiesTtl)));
+  }
+
+  /**
+   * The HMAC at the start of the cookie is a digest of the rest of it.
+   */
+  private String getVerifiedCookieKey(String value) {
+    int i = value.indexOf('@');
+    return (i < 0) ? value : value.substring(0, i);
+  }
+
   /**
    * @return
    */
@@ -574,4 +700,43 @@ public class TokenStore {
   }
 
 
+  /**
+   * The keys of this server and which is in use.
+   */
+  private static final class KeyRing {
+    private final ExpiringSecretKey[] keys;
+    private final int activeId;
+    private final long nextUpdate;
+
+    KeyRing(ExpiringSecretKey[] keys, int activeId, long nextUpdate) {
+      this.keys = keys;
+      this.activeId = activeId;
+      this.nextUpdate = nextUpdate;
+    }
+  }
+
+  private static final class KeyedMac {
+    private final byte[] key;
+    private final Mac mac;
+
+    KeyedMac(byte[] key, Mac mac) {
+      this.key = key;
+      this.mac = mac;
+    }
+  }
+
+  private static final class VerifiedCookie {
+    private final String value;
+    private final String userId;
+    private final String tokenType;
+    private final long expires;
+
+    VerifiedCookie(String value, String userId, String tokenType, long expires) {
+      this.value = value;
+      this.userId = userId;
+      this.tokenType = tokenType;
+      this.expires = expires;
+    }
+  }
+
 }
@@ -120,6 +120,14 @@ public final class TrustedTokenServiceImpl implements TrustedTokenService {
   @Property(boolValue=false )
   public static final String DEBUG_COOKIES = "sakai.auth.trusted.token.debugcookies";
 
+  /** The number of verified cookies to remember, 0 to check every cookie. */
+  @Property(intValue = 10000)
+  public static final String VERIFIED_CACHE_SIZE = "sakai.auth.trusted.token.verifiedcache.size";
+
+  /** How long (ms) a verified cookie is remembered, never past its expiry or its key's. */
+  @Property(longValue = 60000)
+  public static final String VERIFIED_CACHE_TTL = "sakai.auth.trusted.token.verifiedcache.ttl";
+
   /**
    * the name of the header to be trusted, if null or "" then don't trust headers.
    */
@@ -224,6 +232,9 @@ public final class TrustedTokenServiceImpl implements TrustedTokenService {
     trustedTokenEnabled = PropertiesUtil.toBoolean(props.get(SERVER_TOKEN_ENABLED), true);
     debugCookies = PropertiesUtil.toBoolean(props.get(DEBUG_COOKIES), false);
     tokenStore.setDebugCookies(debugCookies);
+    tokenStore.setVerifiedCookieCache(
+        PropertiesUtil.toInteger(props.get(VERIFIED_CACHE_SIZE), 10000),
+        PropertiesUtil.toLong(props.get(VERIFIED_CACHE_TTL), 60000));
     String safeHostsAddr = PropertiesUtil.toString(props.get(SERVER_TOKEN_SAFE_HOSTS_ADDR), "");
     safeHostAddrSet.clear();
     if ( safeHostsAddr != null) {
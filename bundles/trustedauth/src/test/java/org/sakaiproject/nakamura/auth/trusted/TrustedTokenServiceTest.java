@@ -229,6 +229,26 @@ public class TrustedTokenServiceTest {
     verify();
   }
 
+  @Test
+  public void testVerifiedCookieTampered() {
+    ComponentContext context = configureForCookie();
+    replay();
+    trustedTokenService.activate(context);
+    String cookie = trustedTokenService.encodeCookie("ieb", TrustedTokenTypes.AUTHENTICATED_TRUST);
+    String other = trustedTokenService.encodeCookie("other", TrustedTokenTypes.AUTHENTICATED_TRUST);
+    // verify both so they are cached
+    Assert.assertEquals("ieb", trustedTokenService.decodeCookie(cookie)[0]);
+    Assert.assertEquals("other", trustedTokenService.decodeCookie(other)[0]);
+    // the HMAC of one cookie with the payload of another must not pass
+    String[] parts = StringUtils.split(cookie, "@");
+    String[] otherParts = StringUtils.split(other, "@");
+    String forged = parts[0] + "@" + otherParts[1] + "@" + otherParts[2] + "@" + otherParts[3]
+        + "@" + otherParts[4];
+    Assert.assertNull(trustedTokenService.decodeCookie(forged));
+    Assert.assertEquals("ieb", trustedTokenService.decodeCookie(cookie)[0]);
+    verify();
+  }
+
   @Test
   public void testCookieEncodingTokens() throws InterruptedException {
     ComponentContext context = configureForCookieFast();
@@ -18,9 +18,17 @@
 
 package org.sakaiproject.nakamura.user.counts;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -28,21 +36,148 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.user.AuthorizableCountChanger;
+import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Keeps the count properties of authorizables current. Notifications and the content,
+ * sharing, membership, connection and contact group events only mark a count as dirty; a
+ * single writer thread recomputes the dirty counts of each authorizable every flush
+ * interval and saves it once, so a busy group is rewritten at most once per interval
+ * however many changes it sees.
+ * <p>
+ * Content item counts are read from the search index, so they are only recomputed once the
+ * index has been committed twice since they were marked: the first commit may have been
+ * started before the change was indexed.
+ */
 @Component(metatype = true)
-@Service
-public class AuthorizableCountChangerImpl implements AuthorizableCountChanger {
+@Service(value = { AuthorizableCountChanger.class, EventHandler.class })
+@Property(name = "event.topics", value = {
+    "org/sakaiproject/nakamura/lite/content/ADDED",
+    "org/sakaiproject/nakamura/lite/content/UPDATED",
+    "org/sakaiproject/nakamura/lite/content/DELETE",
+    "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+    "org/sakaiproject/nakamura/connections/*",
+    "org/sakaiproject/nakamura/solr/COMMIT",
+    "org/sakaiproject/nakamura/solr/SOFT_COMMIT" })
+public class AuthorizableCountChangerImpl implements AuthorizableCountChanger, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(AuthorizableCountChangerImpl.class);
 
+  private static final String CONNECTIONS_TOPIC_BASE = "org/sakaiproject/nakamura/connections/";
+
+  private static final String CONTENT_TOPIC_BASE = "org/sakaiproject/nakamura/lite/content/";
+
+  private static final String CONTACTS_GROUP_PREFIX = "g-contacts-";
+
+  private static final String COMMIT_TOPIC = "org/sakaiproject/nakamura/solr/COMMIT";
+
+  private static final String SOFT_COMMIT_TOPIC = "org/sakaiproject/nakamura/solr/SOFT_COMMIT";
+
+  private static final String POOLED_CONTENT_RT = "sakai/pooled-content";
+
+  /** the member properties of pooled content, the files bundle depends on this one */
+  private static final String[] POOLED_CONTENT_MEMBER_PROPS = {
+      "sakai:pooled-content-manager", "sakai:pooled-content-editor",
+      "sakai:pooled-content-viewer" };
+
+  @Property(longValue = 2000, label = "Flush Interval Milliseconds",
+      description = "How long count changes are collected before the counts are recomputed and saved")
+  protected static final String PROP_FLUSH_INTERVAL = "sakai.counts.flush.interval";
+
+  @Reference
+  protected Repository repository;
+
   @Reference
-  private Repository repository;
+  protected CountProvider countProvider;
+
+  /**
+   * Count properties waiting to be recomputed, keyed by authorizable id.
+   */
+  private final ConcurrentMap<String, Set<String>> pending = new ConcurrentHashMap<String, Set<String>>();
+
+  /**
+   * Authorizables whose content item count changed since the last index commit.
+   */
+  private Set<String> waitingForIndex = new HashSet<String>();
+
+  /**
+   * Authorizables whose content item count changed before the last index commit, which may
+   * not have included the change yet.
+   */
+  private Set<String> indexing = new HashSet<String>();
+
+  private final Object indexLock = new Object();
+
+  /**
+   * Pooled content items whose members are to be marked by the writer.
+   */
+  private final Set<String> updatedContent = Collections
+      .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private ScheduledExecutorService writer;
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    long flushInterval = PropertiesUtil.toLong(properties.get(PROP_FLUSH_INTERVAL), 2000);
+    stopWriter();
+    writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Authorizable count writer");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    writer.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          flush();
+        } catch (RuntimeException e) {
+          // keep the writer scheduled
+          LOGGER.error("Error updating authorizable counts", e);
+        }
+      }
+    }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    stopWriter();
+    // don't lose the changes that were collected since the last flush
+    flush();
+  }
+
+  private void stopWriter() {
+    if (writer != null) {
+      writer.shutdown();
+      try {
+        writer.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      writer = null;
+    }
+  }
 
   @SuppressWarnings("unchecked")
   @Override
@@ -52,31 +187,187 @@ public class AuthorizableCountChangerImpl implements AuthorizableCountChanger {
 
   @Override
   public void notify(String propertyName, Collection<String>... authorizableIDs) {
+    for (Collection<String> list : authorizableIDs) {
+      if (list != null) {
+        for (String id : list) {
+          markDirty(propertyName, id);
+        }
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String topic = event.getTopic();
+    if (COMMIT_TOPIC.equals(topic) || SOFT_COMMIT_TOPIC.equals(topic)) {
+      indexCommitted();
+      return;
+    }
+    if (topic.startsWith(CONNECTIONS_TOPIC_BASE)) {
+      // a connection changes the contacts of both ends
+      markDirty(UserConstants.CONTACTS_PROP,
+          (String) event.getProperty(UserConstants.EVENT_PROP_USERID));
+      markDirty(UserConstants.CONTACTS_PROP, (String) event.getProperty("target"));
+      return;
+    }
+    String path = (String) event.getProperty("path");
+    if (path == null) {
+      return;
+    }
+    if (topic.startsWith(CONTENT_TOPIC_BASE)) {
+      // pooled content items live at the root of the content store, the content below them
+      // doesn't change the counts.
+      if (path.indexOf('/') >= 0) {
+        return;
+      }
+      markDirty(UserConstants.CONTENT_ITEMS_PROP,
+          (String) event.getProperty(UserConstants.EVENT_PROP_USERID));
+      if (topic.endsWith("/DELETE")) {
+        // the item is gone from the store but not yet from the index
+        for (String member : countProvider.getIndexedContentMembers(path)) {
+          markDirty(UserConstants.CONTENT_ITEMS_PROP, member);
+        }
+      } else if (!topic.endsWith("/ADDED")
+          && POOLED_CONTENT_RT.equals(event.getProperty("resourceType"))) {
+        // sharing changes the members and the access control of the item, the writer reads
+        // who they are now.
+        updatedContent.add(path);
+      }
+    } else if (path.startsWith(CONTACTS_GROUP_PREFIX)) {
+      // the members of a contacts group are the contacts of the user it points at.
+      markDirty(UserConstants.CONTACTS_PROP, path.substring(CONTACTS_GROUP_PREFIX.length()));
+    } else {
+      // only updates that change the members count, saving the counts fires updates too.
+      Collection<String> added = getIds(event.getProperty("added"));
+      Collection<String> removed = getIds(event.getProperty("removed"));
+      if (!added.isEmpty() || !removed.isEmpty()) {
+        markDirty(UserConstants.GROUP_MEMBERS_PROP, path);
+        for (String id : added) {
+          markDirty(UserConstants.GROUP_MEMBERSHIPS_PROP, id);
+        }
+        for (String id : removed) {
+          markDirty(UserConstants.GROUP_MEMBERSHIPS_PROP, id);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param value a single id, a comma separated list of ids, an array or a collection.
+   * @return the ids in an event property.
+   */
+  private Collection<String> getIds(Object value) {
+    List<String> ids = new ArrayList<String>();
+    if (value instanceof Object[]) {
+      for (Object o : (Object[]) value) {
+        ids.addAll(getIds(o));
+      }
+    } else if (value instanceof Collection<?>) {
+      for (Object o : (Collection<?>) value) {
+        ids.addAll(getIds(o));
+      }
+    } else if (value != null) {
+      for (String id : StringUtils.split(String.valueOf(value), ',')) {
+        id = id.trim();
+        if (id.length() > 0) {
+          ids.add(id);
+        }
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * The index has been committed: counts marked before the previous commit can be read from
+   * it now, the ones marked since wait for the next commit.
+   */
+  private void indexCommitted() {
+    Set<String> indexed;
+    synchronized (indexLock) {
+      indexed = indexing;
+      indexing = waitingForIndex;
+      waitingForIndex = new HashSet<String>();
+    }
+    for (String id : indexed) {
+      markPending(UserConstants.CONTENT_ITEMS_PROP, id);
+    }
+  }
+
+  private void markDirty(String propertyName, String authorizableID) {
+    if (authorizableID == null || CountProvider.IGNORE_AUTHIDS.contains(authorizableID)) {
+      return;
+    }
+    if (UserConstants.CONTENT_ITEMS_PROP.equals(propertyName)) {
+      synchronized (indexLock) {
+        waitingForIndex.add(authorizableID);
+      }
+      return;
+    }
+    markPending(propertyName, authorizableID);
+  }
+
+  private void markPending(String propertyName, String authorizableID) {
+    while (true) {
+      Set<String> properties = pending.get(authorizableID);
+      if (properties == null) {
+        Set<String> newProperties = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        properties = pending.putIfAbsent(authorizableID, newProperties);
+        if (properties == null) {
+          properties = newProperties;
+        }
+      }
+      properties.add(propertyName);
+      // if the writer took the set while we were adding, add it again to a fresh one
+      if (pending.get(authorizableID) == properties) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Recompute and save the counts that were marked dirty since the last flush.
+   */
+  protected void flush() {
+    if (pending.isEmpty() && updatedContent.isEmpty()) {
+      return;
+    }
     Session adminSession = null;
     try {
       adminSession = this.repository.loginAdministrative();
+      markContentMembers(adminSession.getContentManager());
       AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
-      for (Collection<String> list : authorizableIDs) {
-        for (String id : list) {
+      for (String id : pending.keySet()) {
+        Set<String> properties = pending.remove(id);
+        if (properties == null) {
+          continue;
+        }
+        try {
           Authorizable authz = authorizableManager.findAuthorizable(id);
-          if (authz == null || CountProvider.IGNORE_AUTHIDS.contains(authz.getId())) {
-            continue; // skip the immutable system authzs
+          if (authz == null) {
+            continue;
           }
-          if (authz.hasProperty(propertyName)) {
-            authz.removeProperty(propertyName);
-            authorizableManager.updateAuthorizable(authz, false);
-            if (LOGGER.isDebugEnabled()) {
-              LOGGER.debug("Removed {} prop from authorizable {}", new String[]{propertyName, id});
-            }
+          countProvider.updateCountProperties(authz, new ArrayList<String>(properties),
+              adminSession);
+          if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Updated {} of authorizable {}", new Object[] { properties, id });
           }
+        } catch (AccessDeniedException e) {
+          LOGGER.warn("Error updating counts of authorizable {}: {}", id, e.getMessage());
+        } catch (StorageClientException e) {
+          LOGGER.warn("Error updating counts of authorizable {}: {}", id, e.getMessage());
         }
       }
     } catch (AccessDeniedException e) {
-      LOGGER.error("Error removing count property from authorizable", e);
+      LOGGER.error("Error updating authorizable counts", e);
     } catch (ClientPoolException e) {
-      LOGGER.error("Error removing count property from authorizable", e);
+      LOGGER.error("Error updating authorizable counts", e);
     } catch (StorageClientException e) {
-      LOGGER.error("Error removing count property from authorizable", e);
+      LOGGER.error("Error updating authorizable counts", e);
     } finally {
       if (adminSession != null) {
         try {
@@ -87,4 +378,47 @@ public class AuthorizableCountChangerImpl implements AuthorizableCountChanger {
       }
     }
   }
+
+  /**
+   * Mark the content item counts of the current members of the updated pooled content.
+   */
+  private void markContentMembers(ContentManager contentManager) {
+    for (String path : updatedContent) {
+      updatedContent.remove(path);
+      try {
+        Content content = contentManager.get(path);
+        if (content == null) {
+          continue;
+        }
+        for (String property : POOLED_CONTENT_MEMBER_PROPS) {
+          String[] members = PropertiesUtil.toStringArray(content.getProperty(property));
+          if (members != null) {
+            for (String member : members) {
+              markDirty(UserConstants.CONTENT_ITEMS_PROP, member);
+            }
+          }
+        }
+      } catch (AccessDeniedException e) {
+        LOGGER.warn("Error reading members of {}: {}", path, e.getMessage());
+      } catch (StorageClientException e) {
+        LOGGER.warn("Error reading members of {}: {}", path, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return the number of authorizables with counts waiting to be recomputed.
+   */
+  protected int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * @return the number of authorizables with content item counts waiting for the index.
+   */
+  protected int getWaitingForIndexCount() {
+    synchronized (indexLock) {
+      return waitingForIndex.size() + indexing.size();
+    }
+  }
 }
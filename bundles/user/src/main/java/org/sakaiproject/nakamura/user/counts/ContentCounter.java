@@ -17,7 +17,10 @@
  */
 package org.sakaiproject.nakamura.user.counts;
 
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.solr.client.solrj.SolrQuery;
@@ -25,6 +28,7 @@ import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.solr.SolrServerService;
@@ -65,6 +69,34 @@ public class ContentCounter {
     return 0;
   }
 
+  /**
+   * @param poolId
+   * @param solrSearchService
+   * @return the managers and viewers of a pooled content item as they are in the index.
+   */
+  public Collection<String> getMembers(String poolId, SolrServerService solrSearchService) {
+    Set<String> members = new HashSet<String>();
+    SolrQuery solrQuery = new SolrQuery("id:" + ClientUtils.escapeQueryChars(poolId));
+    solrQuery.setFields("manager", "viewer");
+    solrQuery.setRows(1);
+    try {
+      QueryResponse response = solrSearchService.getServer().query(solrQuery);
+      for (SolrDocument doc : response.getResults()) {
+        for (String field : new String[] { "manager", "viewer" }) {
+          Collection<Object> values = doc.getFieldValues(field);
+          if (values != null) {
+            for (Object value : values) {
+              members.add(String.valueOf(value));
+            }
+          }
+        }
+      }
+    } catch (SolrServerException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+    return members;
+  }
+
   /**
    * @param queryString
    * @param solrSearchService
@@ -26,6 +26,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 
+import java.util.Collection;
 import java.util.Set;
 
 
@@ -65,4 +66,23 @@ public interface CountProvider {
    */
   public void updateCountProperty(Authorizable authorizable, String propertyName, Session session)
       throws AccessDeniedException, StorageClientException;
+
+  /**
+   * update the total counts for several properties of an authorizable, saving it once.
+   * @param authorizable
+   * @param propertyNames
+   * @param session
+   * @throws AccessDeniedException
+   * @throws StorageClientException
+   */
+  public void updateCountProperties(Authorizable authorizable,
+      Collection<String> propertyNames, Session session) throws AccessDeniedException,
+      StorageClientException;
+
+  /**
+   * find the managers and viewers of a pooled content item as they are in the search index.
+   * @param poolId
+   * @return the member ids, empty if the item is not indexed.
+   */
+  public Collection<String> getIndexedContentMembers(String poolId);
 }
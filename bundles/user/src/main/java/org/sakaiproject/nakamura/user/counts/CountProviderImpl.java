@@ -36,6 +36,7 @@ import org.sakaiproject.nakamura.api.solr.SolrServerService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
 import java.util.Map;
 
 import static org.sakaiproject.nakamura.api.user.UserConstants.*;
@@ -52,6 +53,11 @@ public class CountProviderImpl implements CountProvider {
   @Reference
   protected Repository repository;
 
+  /**
+   * Counts are kept current by {@link AuthorizableCountChangerImpl}, the refresh job
+   * reconciles authorizables whose counts are older than this, e.g. the viewers of content
+   * shared with a group they belong to.
+   */
   @Property(intValue = 30)
   public static final String UPDATE_INTERVAL_MINUTES = "sakai.countProvider.updateIntervalMinutes";
 
@@ -76,9 +82,9 @@ public class CountProviderImpl implements CountProvider {
       internalUpdateCountProperty(authorizable, CONTACTS_PROP, session, false);
       internalUpdateCountProperty(authorizable, GROUP_MEMBERSHIPS_PROP, session, false);
     } else if (authorizable instanceof Group) {
-      internalUpdateCountProperty(authorizable, GROUP_MEMBERS_PROP, session, true);
+      internalUpdateCountProperty(authorizable, GROUP_MEMBERS_PROP, session, false);
     }
-
+    saveCounts(authorizable, session.getAuthorizableManager());
   }
 
   @Override
@@ -90,6 +96,20 @@ public class CountProviderImpl implements CountProvider {
     internalUpdateCountProperty(authorizable, propertyName, session, true);
   }
 
+  @Override
+  public void updateCountProperties(Authorizable authorizable,
+      Collection<String> propertyNames, Session session) throws AccessDeniedException,
+      StorageClientException {
+    if (authorizable == null || IGNORE_AUTHIDS.contains(authorizable.getId())
+        || propertyNames.isEmpty()) {
+      return;
+    }
+    for (String propertyName : propertyNames) {
+      internalUpdateCountProperty(authorizable, propertyName, session, false);
+    }
+    saveCounts(authorizable, session.getAuthorizableManager());
+  }
+
   private void internalUpdateCountProperty(Authorizable authorizable, String propertyName,
                                            Session session, boolean saveChanges)
       throws AccessDeniedException,
@@ -116,26 +136,31 @@ public class CountProviderImpl implements CountProvider {
     }
 
     if (saveChanges) {
-      long lastUpdate = System.currentTimeMillis();
-      authorizable.setProperty(COUNTS_LAST_UPDATE_PROP, lastUpdate);
-      if (LOG.isDebugEnabled()) {
-        if (authorizable instanceof User) {
-          LOG.debug("update User authorizable: {} with {}={}, {}={}, {}={}",
-              new Object[]{authorizable.getId(),
-                  CONTENT_ITEMS_PROP, authorizable.getProperty(CONTENT_ITEMS_PROP),
-                  CONTACTS_PROP, authorizable.getProperty(CONTACTS_PROP),
-                  GROUP_MEMBERSHIPS_PROP, authorizable.getProperty(GROUP_MEMBERSHIPS_PROP),
-                  COUNTS_LAST_UPDATE_PROP, lastUpdate});
-        } else if (authorizable instanceof Group) {
-          LOG.debug("update Group authorizable: {} with {}={}, {}={}", new Object[]{
-              authorizable.getId(),
-              CONTENT_ITEMS_PROP, authorizable.getProperty(CONTENT_ITEMS_PROP),
-              GROUP_MEMBERS_PROP, authorizable.getProperty(GROUP_MEMBERS_PROP),
-              COUNTS_LAST_UPDATE_PROP, lastUpdate});
-        }
+      saveCounts(authorizable, authorizableManager);
+    }
+  }
+
+  private void saveCounts(Authorizable authorizable, AuthorizableManager authorizableManager)
+      throws AccessDeniedException, StorageClientException {
+    long lastUpdate = System.currentTimeMillis();
+    authorizable.setProperty(COUNTS_LAST_UPDATE_PROP, lastUpdate);
+    if (LOG.isDebugEnabled()) {
+      if (authorizable instanceof User) {
+        LOG.debug("update User authorizable: {} with {}={}, {}={}, {}={}",
+            new Object[]{authorizable.getId(),
+                CONTENT_ITEMS_PROP, authorizable.getProperty(CONTENT_ITEMS_PROP),
+                CONTACTS_PROP, authorizable.getProperty(CONTACTS_PROP),
+                GROUP_MEMBERSHIPS_PROP, authorizable.getProperty(GROUP_MEMBERSHIPS_PROP),
+                COUNTS_LAST_UPDATE_PROP, lastUpdate});
+      } else if (authorizable instanceof Group) {
+        LOG.debug("update Group authorizable: {} with {}={}, {}={}", new Object[]{
+            authorizable.getId(),
+            CONTENT_ITEMS_PROP, authorizable.getProperty(CONTENT_ITEMS_PROP),
+            GROUP_MEMBERS_PROP, authorizable.getProperty(GROUP_MEMBERS_PROP),
+            COUNTS_LAST_UPDATE_PROP, lastUpdate});
       }
-      authorizableManager.updateAuthorizable(authorizable, false);
     }
+    authorizableManager.updateAuthorizable(authorizable, false);
   }
 
   public long getUpdateIntervalMinutes() {
@@ -157,6 +182,10 @@ public class CountProviderImpl implements CountProvider {
     return contentCounter.countExact(au, solrSearchService);
   }
 
+  public Collection<String> getIndexedContentMembers(String poolId) {
+    return contentCounter.getMembers(poolId, solrSearchService);
+  }
+
   private int getContactsCount(Authorizable au, AuthorizableManager authorizableManager)
       throws AccessDeniedException, StorageClientException {
     return contactsCounter.count(au, authorizableManager);
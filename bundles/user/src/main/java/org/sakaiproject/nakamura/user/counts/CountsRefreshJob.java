@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.user.counts;
 
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.commons.scheduler.Job;
 import org.apache.sling.commons.scheduler.JobContext;
 import org.apache.solr.client.solrj.SolrQuery;
@@ -36,6 +37,24 @@ import org.sakaiproject.nakamura.api.solr.SolrServerService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reconciles the counts of authorizables that have not been updated in the update interval.
+ * Counts are normally kept current by {@link AuthorizableCountChangerImpl}, so this only
+ * catches changes that raised no notification. The batch is shared by a few low priority
+ * workers, each with its own session, which together update no more than the configured
+ * number of authorizables per second.
+ */
 public class CountsRefreshJob implements Job {
   private static final Logger LOGGER = LoggerFactory.getLogger(CountsRefreshJob.class);
 
@@ -58,44 +77,118 @@ public class CountsRefreshJob implements Job {
    * @see org.apache.sling.commons.scheduler.Job#execute(org.apache.sling.commons.scheduler.JobContext)
    */
   public void execute(JobContext context) {
-    Session adminSession = null;
-    Integer batchSize = (Integer) context.getConfiguration().get(
-        CountsRefreshScheduler.PROP_UPDATE_BATCH_SIZE);
+    Map<String, ?> config = context.getConfiguration();
+    Integer batchSize = (Integer) config.get(CountsRefreshScheduler.PROP_UPDATE_BATCH_SIZE);
+    int workers = Math.max(1, PropertiesUtil.toInteger(
+        config.get(CountsRefreshScheduler.PROP_WORKERS), 2));
+    int maxRate = PropertiesUtil.toInteger(config.get(CountsRefreshScheduler.PROP_MAX_RATE),
+        20);
+    SolrServer solrServer = solrServerService.getServer();
+    long nowTicks = System.currentTimeMillis();
+    long updateIntervalTicks = this.countProvider.getUpdateIntervalMinutes() * 60 * 1000;
+    long updateTicks = nowTicks - updateIntervalTicks;
+    // find all the authorizables have not been updated in the update interval
+    // or who have never been updated
+    StringBuilder querySB = new StringBuilder("+resourceType:authorizable AND -countLastUpdate:[")
+                            .append(updateTicks).append(" TO * ]");
+    String queryString = querySB.toString();
+    SolrQuery solrQuery = new SolrQuery(queryString).setStart(0).setRows(batchSize);
+    QueryResponse response;
     try {
-      adminSession = this.sparseRepository.loginAdministrative();
-      AuthorizableManager authManager = adminSession.getAuthorizableManager();
-      SolrServer solrServer = solrServerService.getServer();
-      long nowTicks = System.currentTimeMillis();
-      long updateIntervalTicks = this.countProvider.getUpdateIntervalMinutes() * 60 * 1000;
-      long updateTicks = nowTicks - updateIntervalTicks;
-      // find all the authorizables have not been updated in the update interval
-      // or who have never been updated
-      StringBuilder querySB = new StringBuilder("+resourceType:authorizable AND -countLastUpdate:[")
-                              .append(updateTicks).append(" TO * ]");
-      String queryString = querySB.toString();
-      SolrQuery solrQuery = new SolrQuery(queryString).setStart(0).setRows(batchSize);
-      QueryResponse response;
-      try {
-        response = solrServer.query(solrQuery);
-        SolrDocumentList results = response.getResults();
-        long numResults = results.getNumFound();
-        if (LOGGER.isDebugEnabled()) {
-          LOGGER.debug("with query {}, found {} results", new Object[] { queryString,
-              numResults });
+      response = solrServer.query(solrQuery);
+    } catch (SolrServerException e) {
+      LOGGER.warn(e.getMessage(), e);
+      return;
+    }
+    SolrDocumentList results = response.getResults();
+    long numResults = results.getNumFound();
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("with query {}, found {} results", new Object[] { queryString,
+          numResults });
+    }
+    if (numResults == 0) {
+      LOGGER.info("All authorizables have up to date counts");
+      return;
+    }
+    batchSize = (int) (batchSize < numResults ? batchSize : numResults);
+    LOGGER.info("will update counts on max of {} authorizables",
+        new Object[] { batchSize });
+
+    // deal the batch out to the workers
+    workers = Math.min(workers, results.size());
+    List<List<String>> batches = new ArrayList<List<String>>();
+    for (int i = 0; i < workers; i++) {
+      batches.add(new ArrayList<String>());
+    }
+    int i = 0;
+    for (SolrDocument solrDocument : results) {
+      batches.get(i++ % workers).add((String) solrDocument.getFieldValue("id"));
+    }
+    // each worker waits long enough between updates to keep the total under the max rate
+    long pauseMillis = maxRate > 0 ? workers * 1000L / maxRate : 0;
+
+    long startTicks = System.currentTimeMillis();
+    ExecutorService executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+      private final AtomicInteger threadNumber = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Counts refresh " + threadNumber.incrementAndGet());
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      }
+    });
+    int count = 0;
+    try {
+      List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+      for (List<String> batch : batches) {
+        futures.add(executor.submit(new RefreshWorker(batch, pauseMillis)));
+      }
+      for (Future<Integer> future : futures) {
+        try {
+          count += future.get();
+        } catch (ExecutionException e) {
+          LOGGER.warn(e.getMessage(), e.getCause());
         }
-        if (numResults > 0) {
-          batchSize = (int) (batchSize < numResults ? batchSize : numResults);
-          LOGGER.info("will update counts on max of {} authorizables",
-              new Object[] { batchSize });
-          long startTicks = System.currentTimeMillis();
-          int count = 0;
-          for (SolrDocument solrDocument : results) {
-            String authorizableId = (String) solrDocument.getFieldValue("id");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+    long endTicks = System.currentTimeMillis();
+    LOGGER.info("updated {} authorizables in {} seconds", new Object[] { count,
+        (endTicks - startTicks) / 1000 });
+  }
+
+  /**
+   * Updates the counts of a share of the batch with its own administrative session.
+   */
+  private class RefreshWorker implements Callable<Integer> {
+    private final List<String> authorizableIds;
+    private final long pauseMillis;
+
+    RefreshWorker(List<String> authorizableIds, long pauseMillis) {
+      this.authorizableIds = authorizableIds;
+      this.pauseMillis = pauseMillis;
+    }
+
+    public Integer call() throws Exception {
+      int count = 0;
+      Session adminSession = null;
+      try {
+        adminSession = sparseRepository.loginAdministrative();
+        AuthorizableManager authManager = adminSession.getAuthorizableManager();
+        for (String authorizableId : authorizableIds) {
+          if (count > 0 && pauseMillis > 0) {
+            Thread.sleep(pauseMillis);
+          }
+          try {
             Authorizable authorizable = authManager.findAuthorizable(authorizableId);
             if (authorizable != null) {
               if (authorizable.getId() != null) {
-                this.countProvider.update(authorizable, adminSession);
-                count++;              
+                countProvider.update(authorizable, adminSession);
+                count++;
               } else {
                 LOGGER.debug(
                     "found authorizable with id {} in Solr index but with NULL id in Sparse, not updating", 
@@ -106,30 +199,25 @@ public class CountsRefreshJob implements Job {
                       "found authorizable with id {} in Solr index but couldn't find authorizable in Sparse, not updating",
                       new Object[] { authorizableId });
             }
+          } catch (StorageClientException e) {
+            LOGGER.warn(e.getMessage(), e);
+          } catch (AccessDeniedException e) {
+            LOGGER.warn(e.getMessage(), e);
           }
-          long endTicks = System.currentTimeMillis();
-          LOGGER.info("updated {} authorizables in {} seconds", new Object[] { count,
-              (endTicks - startTicks) / 1000 });
-        } else {
-          LOGGER.info("All authorizables have up to date counts");
         }
-      } catch (SolrServerException e) {
-        LOGGER.warn(e.getMessage(), e);
-      }
-    } catch (ClientPoolException e) {
-      LOGGER.warn(e.getMessage(), e);
-    } catch (StorageClientException e) {
-      LOGGER.warn(e.getMessage(), e);
-    } catch (AccessDeniedException e) {
-      LOGGER.warn(e.getMessage(), e);
-    } finally {
-      if (adminSession != null) {
-        try {
-          adminSession.logout();
-        } catch (ClientPoolException e) {
-          LOGGER.warn(e.getMessage(), e);
+      } catch (InterruptedException e) {
+        // the job is being stopped, leave the rest for the next run
+        Thread.currentThread().interrupt();
+      } finally {
+        if (adminSession != null) {
+          try {
+            adminSession.logout();
+          } catch (ClientPoolException e) {
+            LOGGER.warn(e.getMessage(), e);
+          }
         }
       }
+      return count;
     }
   }
 }
@@ -21,6 +21,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.commons.scheduler.Job;
 import org.apache.sling.commons.scheduler.Scheduler;
 import org.osgi.service.component.ComponentContext;
@@ -66,6 +67,14 @@ public class CountsRefreshScheduler {
       description = "Maximum Number of Authorizables to Update in one Job")
   public static final String PROP_UPDATE_BATCH_SIZE = "refreshcounts.batchsize";  
 
+  @Property(intValue = 2, label = "Refresh Workers",
+      description = "Number of low priority threads that share a batch of authorizables")
+  public static final String PROP_WORKERS = "refreshcounts.workers";
+
+  @Property(intValue = 20, label = "Maximum Authorizables Updated per Second",
+      description = "Upper bound on the update rate of all the workers together, 0 for no limit")
+  public static final String PROP_MAX_RATE = "refreshcounts.maxrate";
+
   protected final static String JOB_NAME = "refreshCountsJob";
   
   protected void activate(ComponentContext componentContext) throws Exception {
@@ -74,6 +83,8 @@ public class CountsRefreshScheduler {
     Integer batchSize = (Integer) props.get(PROP_UPDATE_BATCH_SIZE);
     Map<String, Serializable> config = new HashMap<String, Serializable>();
     config.put(PROP_UPDATE_BATCH_SIZE, batchSize);
+    config.put(PROP_WORKERS, PropertiesUtil.toInteger(props.get(PROP_WORKERS), 2));
+    config.put(PROP_MAX_RATE, PropertiesUtil.toInteger(props.get(PROP_MAX_RATE), 20));
     final Job countsRefreshJob = new CountsRefreshJob(this.sparseRepository, this.solrServerService, this.countProvider);
     try {
       LOGGER.debug("Activating CountsRefreshJob...");
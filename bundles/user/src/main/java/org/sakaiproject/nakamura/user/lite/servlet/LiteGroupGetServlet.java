@@ -17,19 +17,23 @@
  */
 package org.sakaiproject.nakamura.user.lite.servlet;
 
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceExtension;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.doc.ServiceSelector;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -40,11 +44,19 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.servlet.ServletException;
@@ -64,11 +76,19 @@ import javax.servlet.http.HttpServletResponse;
         "/system/userManager/group/math101.json",
     shortDescription="Get a group as json",
     bindings=@ServiceBinding(type=BindingType.TYPE,bindings={"sparse/group"},
+        selectors=@ServiceSelector(name="count-only", description="Only return the number of distinct members as {\"count\": n}."),
         extensions=@ServiceExtension(name="*", description="All the standard Sling serializations are possible, json, xml, html")),
     methods=@ServiceMethod(name="GET",
         description={"Get the group json.",
             "Example<br>" +
-            "<pre>curl http://localhost:8080/system/userManager/group/math101.json</pre>"},
+            "<pre>curl http://localhost:8080/system/userManager/group/math101.json</pre>",
+            "With any of the paging parameters the members are a page of basic member " +
+            "profiles in member id order, followed by the total number of members.<br>" +
+            "<pre>curl http://localhost:8080/system/userManager/group/math101.json?items=50&page=2</pre>"},
+        parameters={
+          @ServiceParameter(name="items", description="The number of members in a page, defaults to 25."),
+          @ServiceParameter(name="page", description="The page of members to return, starting at 0."),
+          @ServiceParameter(name="sortOrder", description="ascending (the default) or descending member id order.")},
         response={
           @ServiceResponse(code=200,description="Success, the body contains the Group json with profile."),
           @ServiceResponse(code=404,description="Group was not found."),
@@ -77,6 +97,20 @@ import javax.servlet.http.HttpServletResponse;
 public class LiteGroupGetServlet extends SlingSafeMethodsServlet {
 
   private static final long serialVersionUID = 2792407832129918578L;
+  private static final Logger LOGGER = LoggerFactory.getLogger(LiteGroupGetServlet.class);
+
+  static final String ITEMS = "items";
+  static final String PAGE = "page";
+  static final String SORT_ORDER = "sortOrder";
+  static final String COUNT_ONLY = "count-only";
+  static final int DEFAULT_ITEMS = 25;
+  /**
+   * The number of members resolved before the response is flushed to the client.
+   */
+  static final int RESOLVE_BATCH_SIZE = 50;
+
+  @Reference
+  protected transient BasicUserInfoService basicUserInfoService;
 
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
@@ -108,7 +142,18 @@ public class LiteGroupGetServlet extends SlingSafeMethodsServlet {
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
 
+      Group group = (Group)authorizable;
+      List<String> selectors = Arrays.asList(request.getRequestPathInfo().getSelectors());
       ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
+      write.setTidy(selectors.contains("tidy"));
+      if (selectors.contains(COUNT_ONLY)) {
+        write.object();
+        write.key("count");
+        write.value(countDistinct(sortedMembers(group, null)));
+        write.endObject();
+        return;
+      }
+
       write.object();
       ValueMap groupProps = resource.adaptTo(ValueMap.class);
       if (groupProps != null)
@@ -119,10 +164,16 @@ public class LiteGroupGetServlet extends SlingSafeMethodsServlet {
       }
       write.key("profile");
       write.value("a:"+authorizable.getId()+"/public/authprofile");
+
+      if (isPaged(request)) {
+        writeMemberPage(request, response, write, group, authorizableManager);
+        write.endObject();
+        return;
+      }
+
       write.key("members");
       write.array();
 
-      Group group = (Group)authorizable;
       Set<String> memberNames = new HashSet<String>();
       String[] members = group.getMembers();
       for (String name : members )
@@ -144,6 +195,107 @@ public class LiteGroupGetServlet extends SlingSafeMethodsServlet {
     }
   }
 
+  private boolean isPaged(SlingHttpServletRequest request) {
+    return request.getParameter(ITEMS) != null || request.getParameter(PAGE) != null
+        || request.getParameter(SORT_ORDER) != null;
+  }
 
+  /**
+   * Write one page of the distinct members, in member id order, resolving them a batch
+   * at a time and flushing each batch so only the page is ever held in memory.
+   */
+  private void writeMemberPage(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, ExtendedJSONWriter write, Group group,
+      AuthorizableManager authorizableManager) throws JSONException, IOException,
+      StorageClientException {
+    long items = longParameter(request, ITEMS, DEFAULT_ITEMS);
+    long page = longParameter(request, PAGE, 0);
+    if (items < 0) {
+      items = DEFAULT_ITEMS;
+    }
+    if (page < 0) {
+      page = 0;
+    }
+    Comparator<String> comparator = null;
+    if ("descending".equals(request.getParameter(SORT_ORDER))) {
+      comparator = Collections.reverseOrder();
+    }
+    String[] members = sortedMembers(group, comparator);
+    long offset = items * page;
+
+    write.key("members");
+    write.array();
+    List<String> batch = new ArrayList<String>(RESOLVE_BATCH_SIZE);
+    long index = 0;
+    for (int i = 0; i < members.length && index < offset + items; i++) {
+      if (i > 0 && members[i].equals(members[i - 1])) {
+        continue;
+      }
+      if (index++ < offset) {
+        continue;
+      }
+      batch.add(members[i]);
+      if (batch.size() == RESOLVE_BATCH_SIZE) {
+        writeMembers(batch, write, authorizableManager);
+        response.getWriter().flush();
+      }
+    }
+    writeMembers(batch, write, authorizableManager);
+    write.endArray();
+    write.key("total");
+    write.value(countDistinct(members));
+  }
+
+  private void writeMembers(List<String> batch, ExtendedJSONWriter write,
+      AuthorizableManager authorizableManager) throws JSONException,
+      StorageClientException {
+    for (String memberName : batch) {
+      Authorizable member = null;
+      try {
+        member = authorizableManager.findAuthorizable(memberName);
+      } catch (AccessDeniedException e) {
+        // a member we're not allowed to see is left out of the page (KERN-2302)
+        LOGGER.debug("Skipping member {} of a group: {}", memberName, e.getMessage());
+      }
+      if (member != null) {
+        write.valueMap(new ValueMapDecorator(basicUserInfoService.getProperties(member)));
+      }
+    }
+    batch.clear();
+  }
+
+  /**
+   * @return a sorted copy of the member ids, which shares the id strings with the group so
+   *         only one reference per member is added, and puts duplicates next to each
+   *         other.
+   */
+  private String[] sortedMembers(Group group, Comparator<String> comparator) {
+    String[] members = group.getMembers().clone();
+    Arrays.sort(members, comparator);
+    return members;
+  }
+
+  private long countDistinct(String[] sortedMembers) {
+    long count = 0;
+    for (int i = 0; i < sortedMembers.length; i++) {
+      if (i == 0 || !sortedMembers[i].equals(sortedMembers[i - 1])) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private long longParameter(SlingHttpServletRequest request, String name,
+      long defaultValue) {
+    String value = request.getParameter(name);
+    if (value == null || value.trim().length() == 0) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
 
 }
@@ -0,0 +1,248 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.counts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+public class AuthorizableCountChangerImplTest {
+
+  private AuthorizableCountChangerImpl changer;
+  private CountProvider countProvider;
+  private Repository repository;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = (Repository) new BaseMemoryRepository().getRepository();
+    Session adminSession = repository.loginAdministrative();
+    AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
+    Map<String, Object> none = new HashMap<String, Object>();
+    authorizableManager.createUser("alice", "Alice", "password", none);
+    authorizableManager.createUser("bob", "Bob", "password", none);
+    authorizableManager.createUser("carol", "Carol", "password", none);
+    adminSession.logout();
+
+    countProvider = mock(CountProvider.class);
+    changer = new AuthorizableCountChangerImpl();
+    changer.repository = repository;
+    changer.countProvider = countProvider;
+    // a long flush interval so the test decides when the counts are written
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(AuthorizableCountChangerImpl.PROP_FLUSH_INTERVAL, 3600000L);
+    changer.activate(properties);
+  }
+
+  @After
+  public void tearDown() {
+    changer.deactivate();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testNotificationsAreCoalesced() throws Exception {
+    changer.notify(UserConstants.GROUP_MEMBERSHIPS_PROP, "alice");
+    changer.notify(UserConstants.GROUP_MEMBERSHIPS_PROP, Arrays.asList("alice", "bob"));
+    changer.notify(UserConstants.CONTENT_ITEMS_PROP, "alice");
+    changer.notify(UserConstants.CONTENT_ITEMS_PROP, "admin");
+    assertEquals(2, changer.getPendingCount());
+    indexCommitted();
+    indexCommitted();
+
+    changer.flush();
+    assertEquals(0, changer.getPendingCount());
+
+    ArgumentCaptor<Collection> aliceProperties = ArgumentCaptor.forClass(Collection.class);
+    verify(countProvider, times(1)).updateCountProperties(argThat(hasId("alice")),
+        aliceProperties.capture(), any(Session.class));
+    assertEquals(2, aliceProperties.getValue().size());
+    assertTrue(aliceProperties.getValue().contains(UserConstants.GROUP_MEMBERSHIPS_PROP));
+    assertTrue(aliceProperties.getValue().contains(UserConstants.CONTENT_ITEMS_PROP));
+    verify(countProvider, times(1)).updateCountProperties(argThat(hasId("bob")),
+        eq(Arrays.asList(UserConstants.GROUP_MEMBERSHIPS_PROP)), any(Session.class));
+    verify(countProvider, never()).updateCountProperties(argThat(hasId("admin")),
+        anyCollectionOf(String.class), any(Session.class));
+
+    // nothing left to write
+    changer.flush();
+    verify(countProvider, times(2)).updateCountProperties(any(Authorizable.class),
+        anyCollectionOf(String.class), any(Session.class));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testEvents() throws Exception {
+    changer.handleEvent(event("org/sakaiproject/nakamura/connections/invite",
+        ImmutableMap.of("userid", "alice", "target", "bob")));
+    changer.handleEvent(event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        ImmutableMap.of("path", "g-contacts-alice")));
+    // a save of the counts themselves doesn't mark anything
+    changer.handleEvent(event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        ImmutableMap.of("path", "bob")));
+    changer.handleEvent(event("org/sakaiproject/nakamura/lite/content/ADDED",
+        ImmutableMap.of("path", "xYzpoolId", "userid", "bob")));
+    // content below a pooled item doesn't change the count
+    changer.handleEvent(event("org/sakaiproject/nakamura/lite/content/ADDED",
+        ImmutableMap.of("path", "xYzpoolId/comments", "userid", "alice")));
+    indexCommitted();
+    indexCommitted();
+    changer.flush();
+
+    verify(countProvider).updateCountProperties(argThat(hasId("alice")),
+        eq(Arrays.asList(UserConstants.CONTACTS_PROP)), any(Session.class));
+    ArgumentCaptor<Collection> bobProperties = ArgumentCaptor.forClass(Collection.class);
+    verify(countProvider).updateCountProperties(argThat(hasId("bob")),
+        bobProperties.capture(), any(Session.class));
+    assertEquals(2, bobProperties.getValue().size());
+    assertTrue(bobProperties.getValue().contains(UserConstants.CONTACTS_PROP));
+    assertTrue(bobProperties.getValue().contains(UserConstants.CONTENT_ITEMS_PROP));
+  }
+
+  @Test
+  public void testContentCountsWaitForTheIndex() throws Exception {
+    changer.notify(UserConstants.CONTENT_ITEMS_PROP, "alice");
+    assertEquals(0, changer.getPendingCount());
+    assertEquals(1, changer.getWaitingForIndexCount());
+
+    // the commit may have started before alice's content was indexed
+    indexCommitted();
+    changer.flush();
+    verify(countProvider, never()).updateCountProperties(any(Authorizable.class),
+        anyCollectionOf(String.class), any(Session.class));
+
+    changer.handleEvent(event("org/sakaiproject/nakamura/solr/SOFT_COMMIT",
+        new HashMap<String, String>()));
+    assertEquals(0, changer.getWaitingForIndexCount());
+    changer.flush();
+    verify(countProvider).updateCountProperties(argThat(hasId("alice")),
+        eq(Arrays.asList(UserConstants.CONTENT_ITEMS_PROP)), any(Session.class));
+  }
+
+  @Test
+  public void testSharingMarksAllMembers() throws Exception {
+    Session adminSession = repository.loginAdministrative();
+    adminSession.getContentManager().update(new Content("xYzpoolId", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/pooled-content",
+        "sakai:pooled-content-manager", new String[] { "alice" },
+        "sakai:pooled-content-viewer", new String[] { "bob", "carol" })));
+    adminSession.logout();
+
+    changer.handleEvent(event("org/sakaiproject/nakamura/lite/content/UPDATED",
+        ImmutableMap.of("path", "xYzpoolId", "resourceType", "sakai/pooled-content")));
+    changer.flush();
+    assertEquals(3, changer.getWaitingForIndexCount());
+    indexCommitted();
+    indexCommitted();
+    changer.flush();
+
+    for (String id : new String[] { "alice", "bob", "carol" }) {
+      verify(countProvider).updateCountProperties(argThat(hasId(id)),
+          eq(Arrays.asList(UserConstants.CONTENT_ITEMS_PROP)), any(Session.class));
+    }
+  }
+
+  @Test
+  public void testDeleteMarksIndexedMembers() throws Exception {
+    when(countProvider.getIndexedContentMembers("xYzpoolId")).thenReturn(
+        Arrays.asList("alice", "carol"));
+    changer.handleEvent(event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "xYzpoolId", "userid", "bob")));
+    indexCommitted();
+    indexCommitted();
+    changer.flush();
+
+    for (String id : new String[] { "alice", "bob", "carol" }) {
+      verify(countProvider).updateCountProperties(argThat(hasId(id)),
+          eq(Arrays.asList(UserConstants.CONTENT_ITEMS_PROP)), any(Session.class));
+    }
+  }
+
+  @Test
+  public void testMembershipChanges() throws Exception {
+    Session adminSession = repository.loginAdministrative();
+    adminSession.getAuthorizableManager().createGroup("g-course", "Course",
+        new HashMap<String, Object>());
+    adminSession.logout();
+
+    changer.handleEvent(event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        ImmutableMap.of("path", "g-course", "added", "alice,bob", "removed", "carol")));
+    changer.flush();
+
+    verify(countProvider).updateCountProperties(argThat(hasId("g-course")),
+        eq(Arrays.asList(UserConstants.GROUP_MEMBERS_PROP)), any(Session.class));
+    for (String id : new String[] { "alice", "bob", "carol" }) {
+      verify(countProvider).updateCountProperties(argThat(hasId(id)),
+          eq(Arrays.asList(UserConstants.GROUP_MEMBERSHIPS_PROP)), any(Session.class));
+    }
+
+    // saving the counts updates the group without changing its members
+    changer.handleEvent(event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        ImmutableMap.of("path", "g-course")));
+    assertEquals(0, changer.getPendingCount());
+  }
+
+  private void indexCommitted() {
+    changer.handleEvent(event("org/sakaiproject/nakamura/solr/COMMIT",
+        new HashMap<String, String>()));
+  }
+
+  private Event event(String topic, Map<String, String> properties) {
+    Dictionary<String, Object> dictionary = new Hashtable<String, Object>(properties);
+    return new Event(topic, dictionary);
+  }
+
+  private ArgumentMatcher<Authorizable> hasId(final String id) {
+    return new ArgumentMatcher<Authorizable>() {
+      @Override
+      public boolean matches(Object argument) {
+        return argument instanceof Authorizable && id.equals(((Authorizable) argument).getId());
+      }
+    };
+  }
+}
@@ -17,19 +17,25 @@
  */
 package org.sakaiproject.nakamura.user.lite.servlet;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.ImmutableMap;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -38,13 +44,17 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.user.lite.resource.LiteAuthorizableResource;
 import org.sakaiproject.nakamura.user.lite.resource.LiteAuthorizableResourceProvider;
 import org.sakaiproject.nakamura.user.lite.resource.RepositoryHelper;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 
@@ -54,6 +64,12 @@ public class LiteGroupGetServletTest {
   
   @Mock
   private ResourceResolver resourceResolver;
+
+  @Mock
+  private RequestPathInfo requestPathInfo;
+
+  @Mock
+  private BasicUserInfoService basicUserInfoService;
   
   
   private Repository repository;
@@ -77,10 +93,20 @@ public class LiteGroupGetServletTest {
     Mockito.when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jcrSession);
     when(request.getRemoteUser()).thenReturn("ieb");
     when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(request.getRequestPathInfo()).thenReturn(requestPathInfo);
+    when(requestPathInfo.getSelectors()).thenReturn(new String[0]);
+    when(basicUserInfoService.getProperties(Mockito.any(Authorizable.class))).thenAnswer(
+        new Answer<Map<String, Object>>() {
+          public Map<String, Object> answer(InvocationOnMock invocation) throws Throwable {
+            Authorizable member = (Authorizable) invocation.getArguments()[0];
+            return ImmutableMap.of("userid", (Object) member.getId());
+          }
+        });
 
     
     
     servlet = new LiteGroupGetServlet();
+    servlet.basicUserInfoService = basicUserInfoService;
 
   }
 
@@ -134,4 +160,49 @@ public class LiteGroupGetServletTest {
 
     servlet.doGet(request, response);
   }
+
+  @Test
+  public void testPagedMembers() throws Exception {
+    when(request.getParameter("items")).thenReturn("2");
+    when(request.getParameter("sortOrder")).thenReturn("descending");
+    JSONObject json = getGroupWithMembers("jeff", "joe", "ieb", "joe");
+    assertEquals(3, json.getLong("total"));
+    JSONArray members = json.getJSONArray("members");
+    assertEquals(2, members.length());
+    assertEquals("joe", members.getJSONObject(0).getString("userid"));
+    assertEquals("jeff", members.getJSONObject(1).getString("userid"));
+
+    when(request.getParameter("page")).thenReturn("1");
+    members = getGroupWithMembers().getJSONArray("members");
+    assertEquals(1, members.length());
+    assertEquals("ieb", members.getJSONObject(0).getString("userid"));
+  }
+
+  @Test
+  public void testCountOnly() throws Exception {
+    when(requestPathInfo.getSelectors()).thenReturn(new String[] { "count-only" });
+    JSONObject json = getGroupWithMembers("jeff", "joe", "jeff");
+    assertEquals(2, json.getLong("count"));
+    assertEquals(1, json.length());
+    Mockito.verifyZeroInteractions(basicUserInfoService);
+  }
+
+  private JSONObject getGroupWithMembers(String... memberIds) throws Exception {
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    Group group = (Group) authorizableManager.findAuthorizable("g-course101");
+    for (String memberId : memberIds) {
+      group.addMember(memberId);
+    }
+    authorizableManager.updateAuthorizable(group);
+    group = (Group) authorizableManager.findAuthorizable("g-course101");
+    Resource resource = new LiteAuthorizableResource(group, resourceResolver, LiteAuthorizableResourceProvider.SYSTEM_USER_MANAGER_GROUP_PREFIX+group.getId());
+    when(request.getResource()).thenReturn(resource);
+
+    StringWriter out = new StringWriter();
+    SlingHttpServletResponse response = Mockito.mock(SlingHttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(out));
+
+    servlet.doGet(request, response);
+    return new JSONObject(out.toString());
+  }
 }
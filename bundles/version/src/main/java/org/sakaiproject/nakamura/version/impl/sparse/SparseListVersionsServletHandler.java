@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.version.impl.sparse;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -31,6 +32,9 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.resource.AbstractSafeMethodsServletResourceHandler;
 import org.sakaiproject.nakamura.api.resource.SafeServletResourceHandler;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
@@ -40,7 +44,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -77,8 +84,18 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
   */
   public static final String PARAMS_PAGE = "page";
 
+  /**
+   * Lists only the id, timestamp, size and editor of each version.
+   */
+  public static final String SUMMARY_SELECTOR = "summary";
+
+  private static final String VERSION_METADATA_CACHE = SparseListVersionsServletHandler.class.getName() + "-metadata";
+
   private static final Logger LOGGER = LoggerFactory.getLogger(SparseListVersionsServletHandler.class);
 
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
   public void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
     Resource resource = request.getResource();
@@ -107,11 +124,13 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
       response.setCharacterEncoding("UTF-8");
 
       boolean tidy = false;
+      boolean summary = false;
       String[] selectors = request.getRequestPathInfo().getSelectors();
       for (String selector : selectors) {
         if ("tidy".equals(selector)) {
           tidy = true;
-          break;
+        } else if (SUMMARY_SELECTOR.equals(selector)) {
+          summary = true;
         }
       }
 
@@ -128,16 +147,39 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
       write.key(JSON_VERSIONS);
       write.object();
       
-      for (int j = start; j < end ; j++) {
-        write.key("1."+(versionList.size()-j-1));
-        write.object();
-        write.key("versionId");
-        String versionId = versionList.get(j);
-        write.value(versionId);
-        Content vContent = contentManager.getVersion(path, versionId);
-        writeEditorDetails(vContent, write, authorizableManager);
-        ExtendedJSONWriter.writeNodeContentsToWriter(write, vContent);
-        write.endObject();
+      Map<String, Map<String, Object>> editors = new HashMap<String, Map<String, Object>>();
+      if (summary) {
+        List<VersionMetadata> page = getVersionMetadata(contentManager, path,
+            versionList.subList(start, end));
+        for (int j = start; j < end ; j++) {
+          VersionMetadata metadata = page.get(j - start);
+          write.key("1."+(versionList.size()-j-1));
+          write.object();
+          write.key("versionId");
+          write.value(metadata.getVersionId());
+          write.key(Content.LASTMODIFIED_FIELD);
+          write.value(metadata.getTimestamp());
+          write.key(Content.LENGTH_FIELD);
+          write.value(metadata.getSize());
+          writeEditorDetails(metadata.getEditor(), write, authorizableManager, editors);
+          write.endObject();
+        }
+      } else {
+        for (int j = start; j < end ; j++) {
+          write.key("1."+(versionList.size()-j-1));
+          write.object();
+          write.key("versionId");
+          String versionId = versionList.get(j);
+          write.value(versionId);
+          Content vContent = contentManager.getVersion(path, versionId);
+          String editor = null;
+          if (vContent.hasProperty(Content.VERSION_SAVEDBY_FIELD)) {
+            editor = (String) vContent.getProperty(Content.VERSION_SAVEDBY_FIELD);
+          }
+          writeEditorDetails(editor, write, authorizableManager, editors);
+          ExtendedJSONWriter.writeNodeContentsToWriter(write, vContent);
+          write.endObject();
+        }
       }
       write.endObject();
       write.endObject();
@@ -159,19 +201,56 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
     }
   }
 
-  private void writeEditorDetails(Content content, ExtendedJSONWriter write, AuthorizableManager authorizableManager)
+  /**
+   * Write the details of the user that saved a version, looking each editor up only once
+   * per request.
+   */
+  private void writeEditorDetails(String user, ExtendedJSONWriter write,
+      AuthorizableManager authorizableManager, Map<String, Map<String, Object>> editors)
       throws JSONException, AccessDeniedException, StorageClientException {
-    String user = null;
-    if (content.hasProperty(Content.VERSION_SAVEDBY_FIELD)) {
-      user = (String) content.getProperty(Content.VERSION_SAVEDBY_FIELD);
+    if (user != null) {
+      Map<String, Object> editor = editors.get(user);
+      if (editor == null && !editors.containsKey(user)) {
+        org.sakaiproject.nakamura.api.lite.authorizable.Authorizable authorizable = authorizableManager.findAuthorizable(user);
+        if (authorizable != null) {
+          editor = authorizable.getSafeProperties();
+        }
+        editors.put(user, editor);
+      }
+      if (editor != null) {
+        write.key(Content.VERSION_SAVEDBY_FIELD);
+        write.valueMap(editor);
+      }
     }
-    
+  }
 
-    if (user != null) {
-      org.sakaiproject.nakamura.api.lite.authorizable.Authorizable authorizable = authorizableManager.findAuthorizable(user);
-      write.key(Content.VERSION_SAVEDBY_FIELD);
-      write.valueMap(authorizable.getSafeProperties());
+  /**
+   * Get the metadata of a page of versions, reading only the versions that have not been
+   * projected before.
+   *
+   * @return the metadata, in the order of the version ids.
+   */
+  protected List<VersionMetadata> getVersionMetadata(ContentManager contentManager,
+      String path, List<String> versionIds) throws StorageClientException,
+      AccessDeniedException {
+    Cache<VersionMetadata> cache = cacheManagerService.getCache(VERSION_METADATA_CACHE,
+        CacheScope.INSTANCE);
+    List<VersionMetadata> page = new ArrayList<VersionMetadata>(versionIds.size());
+    for (String versionId : versionIds) {
+      String key = path + "#" + versionId;
+      VersionMetadata metadata = cache.get(key);
+      if (metadata == null) {
+        Content version = contentManager.getVersion(path, versionId);
+        if (version == null) {
+          metadata = new VersionMetadata(versionId, 0, null, 0);
+        } else {
+          metadata = VersionMetadata.of(versionId, version);
+          cache.put(key, metadata);
+        }
+      }
+      page.add(metadata);
     }
+    return page;
   }
 
 
@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.version.impl.sparse;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+
+import java.io.Serializable;
+
+/**
+ * The part of a saved version that a version history listing needs. Saved versions never
+ * change, so once projected the metadata can be kept for as long as is convenient.
+ */
+public class VersionMetadata implements Serializable {
+
+  private static final long serialVersionUID = -2316391866435036372L;
+
+  private final String versionId;
+  private final long timestamp;
+  private final String editor;
+  private final long size;
+
+  public VersionMetadata(String versionId, long timestamp, String editor, long size) {
+    this.versionId = versionId;
+    this.timestamp = timestamp;
+    this.editor = editor;
+    this.size = size;
+  }
+
+  /**
+   * @param versionId
+   *          the id of the version.
+   * @param version
+   *          the saved version, as returned by the content manager.
+   * @return the metadata of the version.
+   */
+  public static VersionMetadata of(String versionId, Content version) {
+    long timestamp = 0;
+    if (version.hasProperty(Content.LASTMODIFIED_FIELD)) {
+      timestamp = StorageClientUtils.toLong(version.getProperty(Content.LASTMODIFIED_FIELD));
+    }
+    long size = 0;
+    if (version.hasProperty(Content.LENGTH_FIELD)) {
+      size = StorageClientUtils.toLong(version.getProperty(Content.LENGTH_FIELD));
+    }
+    String editor = null;
+    if (version.hasProperty(Content.VERSION_SAVEDBY_FIELD)) {
+      editor = (String) version.getProperty(Content.VERSION_SAVEDBY_FIELD);
+    }
+    return new VersionMetadata(versionId, timestamp, editor, size);
+  }
+
+  public String getVersionId() {
+    return versionId;
+  }
+
+  /**
+   * @return when the saved content was last modified, 0 if not known.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return the id of the user that saved the version, or null if not known.
+   */
+  public String getEditor() {
+    return editor;
+  }
+
+  /**
+   * @return the length of the saved body, 0 if there is none.
+   */
+  public long getSize() {
+    return size;
+  }
+
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.version.impl.sparse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.commons.json.JSONObject;
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ *
+ */
+public class SparseListVersionsServletHandlerTest extends AbstractEasyMockTest {
+
+  private SparseListVersionsServletHandler handler;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    handler = new SparseListVersionsServletHandler();
+  }
+
+  @Test
+  public void testSummaryReadsEachVersionAndEditorOnce() throws Exception {
+    Content content = new Content("/foo", ImmutableMap.<String, Object> of());
+    ContentManager contentManager = createMock(ContentManager.class);
+    AuthorizableManager authorizableManager = createMock(AuthorizableManager.class);
+    Session session = createNiceMock(Session.class);
+    Resource resource = createNiceMock(Resource.class);
+    CacheManagerService cacheManagerService = createNiceMock(CacheManagerService.class);
+
+    EasyMock.expect(resource.adaptTo(Content.class)).andReturn(content).anyTimes();
+    EasyMock.expect(resource.adaptTo(ContentManager.class)).andReturn(contentManager).anyTimes();
+    EasyMock.expect(resource.adaptTo(Session.class)).andReturn(session).anyTimes();
+    EasyMock.expect(session.getAuthorizableManager()).andReturn(authorizableManager).anyTimes();
+    EasyMock.expect(cacheManagerService.getCache(EasyMock.<String> anyObject(),
+        EasyMock.eq(CacheScope.INSTANCE))).andReturn(
+        new MapCacheImpl<Object>("versions", CacheScope.INSTANCE)).anyTimes();
+
+    EasyMock.expect(contentManager.getVersionHistory("/foo")).andReturn(
+        ImmutableList.of("v3", "v2", "v1")).times(2);
+    for (String versionId : new String[] { "v3", "v2", "v1" }) {
+      // only read on the first listing
+      EasyMock.expect(contentManager.getVersion("/foo", versionId)).andReturn(
+          new Content("/foo", ImmutableMap.<String, Object> of(
+              Content.VERSION_SAVEDBY_FIELD, "ieb",
+              Content.LASTMODIFIED_FIELD, 1000L,
+              Content.LENGTH_FIELD, 42L,
+              "body", "a large document")));
+    }
+    // one lookup per listing, not one per version
+    EasyMock.expect(authorizableManager.findAuthorizable("ieb")).andReturn(
+        new User(ImmutableMap.<String, Object> of(User.ID_FIELD, "ieb"))).times(2);
+    replay();
+    handler.cacheManagerService = cacheManagerService;
+
+    JSONObject json = getSummary(resource);
+    assertEquals(3, json.getInt("total"));
+    JSONObject newest = json.getJSONObject("versions").getJSONObject("1.2");
+    assertEquals("v3", newest.getString("versionId"));
+    assertEquals(1000L, newest.getLong(Content.LASTMODIFIED_FIELD));
+    assertEquals(42L, newest.getLong(Content.LENGTH_FIELD));
+    assertEquals("ieb", newest.getJSONObject(Content.VERSION_SAVEDBY_FIELD).getString(User.ID_FIELD));
+    assertFalse(newest.has("body"));
+
+    json = getSummary(resource);
+    assertEquals("v1", json.getJSONObject("versions").getJSONObject("1.0").getString("versionId"));
+    verify();
+  }
+
+  private JSONObject getSummary(Resource resource) throws Exception {
+    SlingHttpServletRequest request = EasyMock.createNiceMock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = EasyMock.createNiceMock(SlingHttpServletResponse.class);
+    RequestPathInfo pathInfo = EasyMock.createNiceMock(RequestPathInfo.class);
+    EasyMock.expect(request.getResource()).andReturn(resource).anyTimes();
+    EasyMock.expect(request.getRequestPathInfo()).andReturn(pathInfo).anyTimes();
+    EasyMock.expect(pathInfo.getSelectors()).andReturn(
+        new String[] { SparseListVersionsServletHandler.SUMMARY_SELECTOR }).anyTimes();
+    StringWriter out = new StringWriter();
+    EasyMock.expect(response.getWriter()).andReturn(new PrintWriter(out)).anyTimes();
+    EasyMock.replay(request, response, pathInfo);
+
+    handler.doGet(request, response);
+    return new JSONObject(out.toString());
+  }
+}